@@ -0,0 +1,39 @@
+package remote.bench;
+
+/**
+ * A single benchmarked operation.
+ */
+public abstract class Benchmark {
+	/**
+	 * Name of the benchmark.
+	 */
+	private final String name;
+
+	/**
+	 * Constructs a new benchmark.
+	 * 
+	 * @param name
+	 *            Name of the benchmark.
+	 */
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Runs the operation once. The result should be passed to
+	 * {@link BenchmarkRunner#consume(Object)} so it is not optimized away.
+	 * 
+	 * @throws Exception
+	 *             If the operation fails.
+	 */
+	public abstract void run() throws Exception;
+
+	/**
+	 * Gets the name of the benchmark.
+	 * 
+	 * @return The name.
+	 */
+	public String getName() {
+		return name;
+	}
+}
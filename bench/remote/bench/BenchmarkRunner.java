@@ -0,0 +1,225 @@
+package remote.bench;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+/**
+ * Runs benchmarks in the current thread and reports throughput and allocation
+ * rate. Each benchmark is run for a number of warm-up iterations followed by a
+ * number of measured iterations of fixed length.
+ */
+public class BenchmarkRunner {
+	/**
+	 * Sink for benchmark results, prevents them from being optimized away.
+	 */
+	private static volatile int sink;
+
+	/**
+	 * Number of warm-up iterations.
+	 */
+	private final int warmupIterations;
+	/**
+	 * Number of measured iterations.
+	 */
+	private final int iterations;
+	/**
+	 * Length of each iteration in nanoseconds.
+	 */
+	private final long iterationNanos;
+	/**
+	 * Where the results are printed.
+	 */
+	private final PrintStream out;
+
+	/**
+	 * Constructs a new benchmark runner.
+	 * 
+	 * @param warmupIterations
+	 *            Number of warm-up iterations.
+	 * @param iterations
+	 *            Number of measured iterations.
+	 * @param iterationMillis
+	 *            Length of each iteration in milliseconds.
+	 * @param out
+	 *            Where the results are printed.
+	 */
+	public BenchmarkRunner(int warmupIterations, int iterations,
+			long iterationMillis, PrintStream out) {
+		this.warmupIterations = warmupIterations;
+		this.iterations = iterations;
+		this.iterationNanos = iterationMillis * 1000000L;
+		this.out = out;
+	}
+
+	/**
+	 * Constructs a benchmark runner configured by system properties:
+	 * bench.warmup, bench.iterations and bench.time (milliseconds).
+	 * 
+	 * @return The benchmark runner.
+	 */
+	public static BenchmarkRunner fromProperties() {
+		return new BenchmarkRunner(Integer.getInteger("bench.warmup", 3),
+				Integer.getInteger("bench.iterations", 5), Long.getLong(
+						"bench.time", 1000L), System.out);
+	}
+
+	/**
+	 * Consumes a benchmark result.
+	 * 
+	 * @param o
+	 *            The result.
+	 */
+	public static void consume(Object o) {
+		sink ^= System.identityHashCode(o);
+	}
+
+	/**
+	 * Consumes a benchmark result.
+	 * 
+	 * @param i
+	 *            The result.
+	 */
+	public static void consume(int i) {
+		sink ^= i;
+	}
+
+	/**
+	 * Prints the header of the result table.
+	 */
+	public void printHeader() {
+		out.println(String.format("%-40s %14s %10s %10s %8s %8s",
+				"Benchmark", "ops/s", "+-", "B/op", "gc.count", "gc.ms"));
+	}
+
+	/**
+	 * Runs the benchmarks and prints a result line for each.
+	 * 
+	 * @param benchmarks
+	 *            The benchmarks to run.
+	 * @throws Exception
+	 *             If a benchmark fails.
+	 */
+	public void run(Benchmark... benchmarks) throws Exception {
+		for (Benchmark benchmark : benchmarks) {
+			run(benchmark);
+		}
+	}
+
+	/**
+	 * Runs a benchmark and prints a result line.
+	 * 
+	 * @param benchmark
+	 *            The benchmark to run.
+	 * @throws Exception
+	 *             If the benchmark fails.
+	 */
+	public void run(Benchmark benchmark) throws Exception {
+		for (int i = 0; i < warmupIterations; i++) {
+			iteration(benchmark);
+		}
+		long allocatedBefore = allocatedBytes();
+		long gcCountBefore = gcCount();
+		long gcTimeBefore = gcTime();
+		double[] rates = new double[iterations];
+		long totalOps = 0;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			long ops = iteration(benchmark);
+			long time = System.nanoTime() - start;
+			rates[i] = ops * 1e9 / time;
+			totalOps += ops;
+		}
+		long allocatedAfter = allocatedBytes();
+		double mean = 0;
+		for (double rate : rates) {
+			mean += rate;
+		}
+		mean /= rates.length;
+		double variance = 0;
+		for (double rate : rates) {
+			variance += (rate - mean) * (rate - mean);
+		}
+		double error = rates.length > 1 ? Math.sqrt(variance
+				/ (rates.length - 1)) : 0;
+		// Either counter is -1 if allocation tracking is not supported
+		String bytesPerOp = allocatedBefore < 0 || allocatedAfter < 0 ? "n/a"
+				: String.format("%.1f",
+						(double) (allocatedAfter - allocatedBefore) / totalOps);
+		out.println(String.format("%-40s %14.0f %10.0f %10s %8d %8d",
+				benchmark.getName(), mean, error, bytesPerOp, gcCount()
+						- gcCountBefore, gcTime() - gcTimeBefore));
+	}
+
+	/**
+	 * Runs the benchmark for one iteration.
+	 * 
+	 * @param benchmark
+	 *            The benchmark to run.
+	 * @return Number of operations performed.
+	 * @throws Exception
+	 *             If the benchmark fails.
+	 */
+	private long iteration(Benchmark benchmark) throws Exception {
+		long ops = 0;
+		long end = System.nanoTime() + iterationNanos;
+		do {
+			// Check the time in batches to keep the overhead low
+			for (int i = 0; i < 64; i++) {
+				benchmark.run();
+			}
+			ops += 64;
+		} while (System.nanoTime() < end);
+		return ops;
+	}
+
+	/**
+	 * Gets the number of bytes allocated by the current thread.
+	 * 
+	 * @return The number of bytes or -1 if not supported by the JVM.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+			if (sunBean.isThreadAllocatedMemorySupported()
+					&& sunBean.isThreadAllocatedMemoryEnabled()) {
+				return sunBean.getThreadAllocatedBytes(Thread.currentThread()
+						.getId());
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the total number of garbage collections.
+	 * 
+	 * @return The number of collections.
+	 */
+	private static long gcCount() {
+		long count = 0;
+		List<GarbageCollectorMXBean> beans = ManagementFactory
+				.getGarbageCollectorMXBeans();
+		for (GarbageCollectorMXBean bean : beans) {
+			count += Math.max(0, bean.getCollectionCount());
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the total time spent in garbage collection.
+	 * 
+	 * @return The time in milliseconds.
+	 */
+	private static long gcTime() {
+		long time = 0;
+		List<GarbageCollectorMXBean> beans = ManagementFactory
+				.getGarbageCollectorMXBeans();
+		for (GarbageCollectorMXBean bean : beans) {
+			time += Math.max(0, bean.getCollectionTime());
+		}
+		return time;
+	}
+}
@@ -0,0 +1,477 @@
+package remote.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+
+import remote.api.Packet;
+import remote.api.commands.Command;
+import remote.api.exceptions.PacketException;
+import remote.api.journal.JournalWriter;
+import remote.api.messages.CommandRequest;
+import remote.api.messages.Message;
+
+/**
+ * Analyzes captured streams in parallel. A capture is either the raw bytes
+ * written by {@link Packet#write(Cipher, OutputStream)} in one direction, or
+ * a journal written by {@link JournalWriter}. The file is memory mapped,
+ * split on frame boundaries into chunks and the chunks are decoded on a pool
+ * of threads. Prints the number and size distribution of each message and
+ * command type, decode failures and, for journals, the inter-arrival times.
+ * <p>
+ * Usage: ant bench -Dbench.class=remote.bench.CaptureAnalyzer
+ * -Dbench.args="file ..." with the session keys of raw captures as hex in
+ * bench.key and bench.iv. Configured further by bench.threads and bench.chunk
+ * (chunk size in bytes). Without files a capture is generated from bench.count,
+ * bench.mix and bench.seed and analyzed with its own keys.
+ */
+public class CaptureAnalyzer {
+	/**
+	 * Size of the windows used to find the frame boundaries.
+	 */
+	private static final int WINDOW_SIZE = 64 << 20;
+
+	/**
+	 * Statistics of a chunk or of a whole capture.
+	 */
+	static class Stats {
+		/**
+		 * Frame sizes by type, including the length bytes.
+		 */
+		final Map<String, Histogram> sizes = new TreeMap<String, Histogram>();
+		/**
+		 * Frame sizes of all types.
+		 */
+		final Histogram allSizes = new Histogram();
+		/**
+		 * Time between consecutive commands, only for journals.
+		 */
+		final Histogram interArrival = new Histogram();
+		/**
+		 * Decode failures by reason.
+		 */
+		final Map<String, Long> failures = new TreeMap<String, Long>();
+		/**
+		 * Time of the first command or -1.
+		 */
+		long firstTime = -1;
+		/**
+		 * Time of the last command or -1.
+		 */
+		long lastTime = -1;
+
+		/**
+		 * Records a decoded frame.
+		 * 
+		 * @param type
+		 *            Name of the type.
+		 * @param size
+		 *            Size of the frame.
+		 */
+		void frame(String type, long size) {
+			Histogram histogram = sizes.get(type);
+			if (histogram == null) {
+				histogram = new Histogram();
+				sizes.put(type, histogram);
+			}
+			histogram.record(size);
+			allSizes.record(size);
+		}
+
+		/**
+		 * Records the time of a command.
+		 * 
+		 * @param time
+		 *            The time in nanoseconds.
+		 */
+		void time(long time) {
+			if (lastTime >= 0) {
+				interArrival.record(Math.max(0, time - lastTime));
+			} else {
+				firstTime = time;
+			}
+			lastTime = time;
+		}
+
+		/**
+		 * Records a failed frame.
+		 * 
+		 * @param reason
+		 *            The reason of the failure.
+		 */
+		void failure(String reason) {
+			Long count = failures.get(reason);
+			failures.put(reason, count == null ? 1 : count + 1);
+		}
+
+		/**
+		 * Adds the statistics of the following chunk.
+		 * 
+		 * @param other
+		 *            The statistics to add.
+		 */
+		void add(Stats other) {
+			for (Map.Entry<String, Histogram> entry : other.sizes.entrySet()) {
+				Histogram histogram = sizes.get(entry.getKey());
+				if (histogram == null) {
+					histogram = new Histogram();
+					sizes.put(entry.getKey(), histogram);
+				}
+				histogram.add(entry.getValue());
+			}
+			allSizes.add(other.allSizes);
+			interArrival.add(other.interArrival);
+			for (Map.Entry<String, Long> entry : other.failures.entrySet()) {
+				Long count = failures.get(entry.getKey());
+				failures.put(entry.getKey(), count == null ? entry.getValue()
+						: count + entry.getValue());
+			}
+			if (other.firstTime >= 0) {
+				// The gap between the chunks
+				time(other.firstTime);
+				lastTime = other.lastTime;
+			}
+		}
+
+		/**
+		 * Prints the statistics.
+		 * 
+		 * @param out
+		 *            Where to print.
+		 */
+		void print(PrintStream out) {
+			Histogram.printHeader(out, "bytes");
+			for (Map.Entry<String, Histogram> entry : sizes.entrySet()) {
+				entry.getValue().print(out, entry.getKey(), 1);
+			}
+			allSizes.print(out, "all", 1);
+			if (interArrival.getCount() > 0) {
+				Histogram.printMicrosHeader(out);
+				interArrival.printMicros(out, "inter-arrival");
+			}
+			for (Map.Entry<String, Long> entry : failures.entrySet()) {
+				out.println(String.format("failed %10d %s", entry.getValue(),
+						entry.getKey()));
+			}
+		}
+	}
+
+	/**
+	 * Finds the chunks of a raw capture. Frames carry no marker, so the
+	 * boundaries are found by following the length bytes from the start,
+	 * which is cheap compared to decrypting.
+	 * 
+	 * @param channel
+	 *            The capture.
+	 * @param chunkSize
+	 *            Approximate size of the chunks.
+	 * @return Start and end of each chunk.
+	 * @throws IOException
+	 *             If it fails to map the file.
+	 */
+	static List<long[]> split(FileChannel channel, long chunkSize)
+			throws IOException {
+		long size = channel.size();
+		List<long[]> chunks = new ArrayList<long[]>();
+		MappedByteBuffer window = null;
+		long windowStart = 0;
+		long chunkStart = 0;
+		long position = 0;
+		while (position + 2 <= size) {
+			if (window == null || position + 2 > windowStart + window.limit()) {
+				windowStart = position;
+				window = channel.map(FileChannel.MapMode.READ_ONLY,
+						windowStart, Math.min(WINDOW_SIZE, size - windowStart));
+			}
+			int offset = (int) (position - windowStart);
+			int length = window.getShort(offset) & 0xFFFF;
+			if (length > Message.MAX_LENGTH || position + 2 + length > size) {
+				System.err.println("Corrupt or truncated frame at " + position
+						+ ", ignoring the rest");
+				break;
+			}
+			position += 2 + length;
+			if (position - chunkStart >= chunkSize) {
+				chunks.add(new long[] { chunkStart, position });
+				chunkStart = position;
+			}
+		}
+		if (position > chunkStart) {
+			chunks.add(new long[] { chunkStart, position });
+		}
+		return chunks;
+	}
+
+	/**
+	 * Decodes a chunk of a raw capture.
+	 * 
+	 * @param channel
+	 *            The capture.
+	 * @param start
+	 *            Start of the chunk, on a frame boundary.
+	 * @param end
+	 *            End of the chunk, on a frame boundary.
+	 * @param key
+	 *            The block cipher key of the session.
+	 * @param iv
+	 *            The initialization vector of the session.
+	 * @return The statistics of the chunk.
+	 * @throws Exception
+	 *             If it fails to map the chunk or create the cipher.
+	 */
+	static Stats analyzeCapture(FileChannel channel, long start, long end,
+			byte[] key, byte[] iv) throws Exception {
+		Cipher cipher = CodecBenchmark.cipher(Packet.BLOCK_CIPHER,
+				Cipher.DECRYPT_MODE, key, iv);
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+				start, end - start);
+		Stats stats = new Stats();
+		while (buffer.remaining() >= 2) {
+			int length = buffer.getShort() & 0xFFFF;
+			byte[] data = new byte[length];
+			buffer.get(data);
+			try {
+				Message message = new Packet(data, true).decode(cipher);
+				stats.frame(CodecBenchmark.name(message), length + 2);
+			} catch (PacketException e) {
+				stats.failure(e.getReason());
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Decodes one region of a journal. Each region starts with a record, so
+	 * they can be decoded independently.
+	 * 
+	 * @param channel
+	 *            The journal.
+	 * @param start
+	 *            Start of the region.
+	 * @param end
+	 *            End of the region.
+	 * @return The statistics of the region.
+	 * @throws Exception
+	 *             If it fails to map the region.
+	 */
+	static Stats analyzeJournal(FileChannel channel, long start, long end)
+			throws Exception {
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+				start, end - start);
+		if (start == 0) {
+			buffer.position(JournalWriter.HEADER_LENGTH);
+		}
+		Stats stats = new Stats();
+		while (buffer.remaining() >= JournalWriter.RECORD_HEADER_LENGTH) {
+			int length = buffer.getShort();
+			if (length <= 0) {
+				// The rest of the region is unused
+				break;
+			}
+			long time = buffer.getLong();
+			if (length > buffer.remaining()) {
+				stats.failure("Truncated record");
+				break;
+			}
+			byte[] data = new byte[length];
+			buffer.get(data);
+			try {
+				Command command = CommandRequest.unpack(data).getCommand();
+				stats.frame(command.getClass().getSimpleName(), length);
+				stats.time(time);
+			} catch (PacketException e) {
+				stats.failure(e.getReason());
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Analyzes a capture or journal.
+	 * 
+	 * @param path
+	 *            The file.
+	 * @param executor
+	 *            Where the chunks are decoded.
+	 * @param chunkSize
+	 *            Approximate size of the chunks of raw captures.
+	 * @param key
+	 *            The block cipher key of raw captures.
+	 * @param iv
+	 *            The initialization vector of raw captures.
+	 * @throws Exception
+	 *             If the analysis fails.
+	 */
+	static void analyze(File path, ExecutorService executor, long chunkSize,
+			final byte[] key, final byte[] iv) throws Exception {
+		long begin = System.nanoTime();
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			final FileChannel channel = file.getChannel();
+			long size = channel.size();
+			boolean journal = size >= JournalWriter.HEADER_LENGTH
+					&& file.readInt() == JournalWriter.MAGIC;
+			List<long[]> chunks;
+			if (journal) {
+				file.readInt();
+				long regionSize = file.readInt();
+				chunks = new ArrayList<long[]>();
+				for (long start = 0; start < size; start += regionSize) {
+					chunks.add(new long[] { start,
+							Math.min(size, start + regionSize) });
+				}
+			} else {
+				if (key == null || iv == null) {
+					throw new IllegalArgumentException(
+							"bench.key and bench.iv are needed for " + path);
+				}
+				chunks = split(channel, chunkSize);
+			}
+			List<Future<Stats>> futures = new ArrayList<Future<Stats>>();
+			for (final long[] chunk : chunks) {
+				final boolean isJournal = journal;
+				futures.add(executor.submit(new Callable<Stats>() {
+					@Override
+					public Stats call() throws Exception {
+						if (isJournal) {
+							return analyzeJournal(channel, chunk[0], chunk[1]);
+						}
+						return analyzeCapture(channel, chunk[0], chunk[1], key,
+								iv);
+					}
+				}));
+			}
+			// Merged in file order, so the gaps between chunks are right
+			Stats stats = new Stats();
+			for (Future<Stats> future : futures) {
+				stats.add(future.get());
+			}
+			long elapsed = System.nanoTime() - begin;
+			System.out.println(String.format(
+					"%s: %s, %d bytes, %d chunks, %.1f ms, %.1f MB/s", path,
+					journal ? "journal" : "capture", size, chunks.size(),
+					elapsed / 1e6, size * 1e3 / elapsed));
+			stats.print(System.out);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Parses a hex string.
+	 * 
+	 * @param hex
+	 *            The hex string or null.
+	 * @return The bytes or null.
+	 */
+	static byte[] parseHex(String hex) {
+		if (hex == null) {
+			return null;
+		}
+		byte[] data = new byte[hex.length() / 2];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2),
+					16);
+		}
+		return data;
+	}
+
+	/**
+	 * Generates a raw capture of commands.
+	 * 
+	 * @param path
+	 *            Where to write the capture.
+	 * @param count
+	 *            Number of frames.
+	 * @param mix
+	 *            The command mix.
+	 * @param key
+	 *            The block cipher key.
+	 * @param iv
+	 *            The initialization vector.
+	 * @throws Exception
+	 *             If it fails to write the capture.
+	 */
+	static void generate(File path, int count, LoopbackBenchmark.CommandMix mix,
+			byte[] key, byte[] iv) throws Exception {
+		Cipher cipher = CodecBenchmark.cipher(Packet.BLOCK_CIPHER,
+				Cipher.ENCRYPT_MODE, key, iv);
+		OutputStream output = new BufferedOutputStream(
+				new FileOutputStream(path), 1 << 16);
+		try {
+			for (int i = 0; i < count; i++) {
+				new CommandRequest(mix.next()).pack().write(cipher, output);
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Runs the analyzer.
+	 * 
+	 * @param args
+	 *            The files to analyze.
+	 * @throws Exception
+	 *             If the analysis fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		byte[] key = parseHex(System.getProperty("bench.key"));
+		byte[] iv = parseHex(System.getProperty("bench.iv"));
+		int threads = Integer.getInteger("bench.threads", Runtime
+				.getRuntime().availableProcessors());
+		long chunkSize = Long.getLong("bench.chunk", 16 << 20);
+
+		List<File> files = new ArrayList<File>();
+		for (String arg : args) {
+			if (arg.length() > 0) {
+				files.add(new File(arg));
+			}
+		}
+		if (files.isEmpty()) {
+			int count = Integer.getInteger("bench.count", 2000000);
+			String mix = System.getProperty("bench.mix",
+					"move:80,wheel:5,button:5,key:5,text:5");
+			long seed = Long.getLong("bench.seed", 42L);
+			Random random = new Random(seed);
+			key = new byte[Packet.BLOCK_KEY_SIZE];
+			iv = new byte[Packet.BLOCK_SIZE];
+			random.nextBytes(key);
+			random.nextBytes(iv);
+			File path = File.createTempFile("capture", ".bin");
+			path.deleteOnExit();
+			generate(path, count, new LoopbackBenchmark.CommandMix(mix,
+					random), key, iv);
+			System.out.println("generated " + count + " frames mix=" + mix
+					+ " seed=" + seed);
+			files.add(path);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			System.out.println("threads=" + threads + " chunk=" + chunkSize);
+			for (File file : files) {
+				analyze(file, executor, chunkSize, key, iv);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
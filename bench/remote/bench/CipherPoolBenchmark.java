@@ -0,0 +1,130 @@
+package remote.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import remote.api.CipherPool;
+import remote.api.ClientProtocol;
+import remote.api.Packet;
+import remote.api.ServerProtocol;
+import remote.api.ServerProtocol.ConnectionHandler;
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+
+/**
+ * Measures the cost of setting up and closing sessions with the ciphers taken
+ * from the shared {@link CipherPool}, and with a new cipher per session. Each
+ * session benchmark creates a client and a server and closes them. Each
+ * handshake benchmark also authenticates both sides with a full handshake.
+ * <p>
+ * Configured by system properties: bench.warmup, bench.iterations and
+ * bench.time.
+ */
+public class CipherPoolBenchmark {
+	/**
+	 * Handler that accepts everyone and ignores everything else.
+	 */
+	private static class Accepting implements Handler, ConnectionHandler {
+		@Override
+		public boolean authentication(byte[] user, byte[] password) {
+			return true;
+		}
+
+		@Override
+		public void command(Command command) {
+		}
+
+		@Override
+		public void terminate(boolean shutdown) {
+		}
+
+		@Override
+		public void onAuthenticated() {
+		}
+	}
+
+	/**
+	 * The handler of all sessions.
+	 */
+	private static final Accepting HANDLER = new Accepting();
+
+	/**
+	 * Input of sessions that never read.
+	 */
+	private static final ByteArrayInputStream EMPTY = new ByteArrayInputStream(
+			new byte[0]);
+
+	/**
+	 * Runs the benchmarks of one mode.
+	 * 
+	 * @param runner
+	 *            The benchmark runner.
+	 * @param mode
+	 *            Name of the mode.
+	 * @param keyPair
+	 *            The key pair of the server.
+	 * @throws Exception
+	 *             If a benchmark fails.
+	 */
+	private static void run(BenchmarkRunner runner, String mode,
+			final KeyPair keyPair) throws Exception {
+		final ByteArrayOutputStream toClient = new ByteArrayOutputStream();
+		final ByteArrayOutputStream toServer = new ByteArrayOutputStream();
+		runner.run(new Benchmark("session." + mode) {
+			@Override
+			public void run() throws Exception {
+				toServer.reset();
+				ClientProtocol client = new ClientProtocol(keyPair.getPublic(),
+						EMPTY, toServer);
+				ServerProtocol server = new ServerProtocol(HANDLER, HANDLER,
+						keyPair.getPrivate(), EMPTY, toClient);
+				client.close();
+				server.close();
+				BenchmarkRunner.consume(server);
+			}
+		}, new Benchmark("handshake." + mode) {
+			@Override
+			public void run() throws Exception {
+				toClient.reset();
+				toServer.reset();
+				ClientProtocol client = new ClientProtocol(keyPair.getPublic(),
+						EMPTY, toServer);
+				ServerProtocol server = new ServerProtocol(HANDLER, HANDLER,
+						keyPair.getPrivate(), EMPTY, toClient);
+				client.authenticate(new byte[0], new byte[0]);
+				server.process(Packet.read(toServer.toByteArray()));
+				client.process(Packet.read(toClient.toByteArray()));
+				client.close();
+				server.close();
+				BenchmarkRunner.consume(client);
+			}
+		});
+	}
+
+	/**
+	 * Runs the benchmarks.
+	 * 
+	 * @param args
+	 *            Not used.
+	 * @throws Exception
+	 *             If a benchmark fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator
+				.getInstance(Packet.SECURE_ALGORITHM_NAME);
+		generator.initialize(Packet.SECURE_KEY_SIZE);
+		KeyPair keyPair = generator.generateKeyPair();
+
+		BenchmarkRunner runner = BenchmarkRunner.fromProperties();
+		runner.printHeader();
+		CipherPool pool = new CipherPool();
+		CipherPool.setShared(pool);
+		run(runner, "pooled", keyPair);
+		System.out.println("created=" + pool.getCreated() + " reused="
+				+ pool.getReused());
+		CipherPool.setShared(null);
+		run(runner, "unpooled", keyPair);
+	}
+}
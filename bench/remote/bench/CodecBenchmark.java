@@ -0,0 +1,350 @@
+package remote.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import remote.api.Packet;
+import remote.api.PacketScanner;
+import remote.api.commands.Command;
+import remote.api.commands.KeyPress;
+import remote.api.commands.KeyRelease;
+import remote.api.commands.MouseMove;
+import remote.api.commands.MousePress;
+import remote.api.commands.MouseRelease;
+import remote.api.commands.MouseWheel;
+import remote.api.commands.TextInput;
+import remote.api.messages.AuthenticationRequest;
+import remote.api.messages.AuthenticationResponse;
+import remote.api.messages.CommandRequest;
+import remote.api.messages.Message;
+import remote.api.messages.Ping;
+import remote.api.messages.TerminateRequest;
+import remote.api.trace.WireRecorder;
+
+/**
+ * Benchmarks of the wire codec: encoding and decoding of every message and
+ * command, packet framing on fragmented input and the cost of the block cipher
+ * compared to alternatives.
+ */
+public class CodecBenchmark {
+	/**
+	 * Seed for all randomness, so runs are comparable.
+	 */
+	private static final long SEED = 42;
+
+	/**
+	 * An input stream that returns the data in small fragments and starts over
+	 * when the end is reached.
+	 */
+	private static class FragmentedInputStream extends InputStream {
+		/**
+		 * The data to return.
+		 */
+		private final byte[] data;
+		/**
+		 * Maximum number of bytes returned by each read.
+		 */
+		private final int fragment;
+		/**
+		 * Position in the data.
+		 */
+		private int pos;
+
+		/**
+		 * Constructs a new fragmented input stream.
+		 * 
+		 * @param data
+		 *            The data to return.
+		 * @param fragment
+		 *            Maximum number of bytes returned by each read.
+		 */
+		public FragmentedInputStream(byte[] data, int fragment) {
+			this.data = data;
+			this.fragment = fragment;
+			pos = 0;
+		}
+
+		@Override
+		public int read() {
+			if (pos == data.length) {
+				pos = 0;
+			}
+			return data[pos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (pos == data.length) {
+				pos = 0;
+			}
+			int n = Math.min(Math.min(len, fragment), data.length - pos);
+			System.arraycopy(data, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+	}
+
+	/**
+	 * Creates one of each command.
+	 * 
+	 * @return The commands.
+	 */
+	static Command[] commands() {
+		return new Command[] { new MouseMove((short) 12, (short) -7),
+				new MousePress(16), new MouseRelease(16), new MouseWheel(-3),
+				new KeyPress(65), new KeyRelease(65),
+				new TextInput("hello world".getBytes()) };
+	}
+
+	/**
+	 * Creates one of each message, and a command request for each command.
+	 * 
+	 * @param key
+	 *            The block cipher key.
+	 * @param iv
+	 *            The block cipher initialization vector.
+	 * @return The messages.
+	 * @throws Exception
+	 *             If creating a message fails.
+	 */
+	static List<Message> messages(byte[] key, byte[] iv) throws Exception {
+		List<Message> messages = new ArrayList<Message>();
+		messages.add(new AuthenticationRequest(key, iv, "user".getBytes(),
+				"password".getBytes()));
+		messages.add(new AuthenticationResponse());
+		messages.add(new Ping(true));
+		for (Command command : commands()) {
+			messages.add(new CommandRequest(command));
+		}
+		messages.add(new TerminateRequest(false));
+		return messages;
+	}
+
+	/**
+	 * Gets a name for the message, including the command for command requests.
+	 * 
+	 * @param message
+	 *            The message.
+	 * @return The name.
+	 */
+	static String name(Message message) {
+		String name = message.getClass().getSimpleName();
+		if (message instanceof CommandRequest) {
+			name += "." + ((CommandRequest) message).getCommand().getClass()
+					.getSimpleName();
+		}
+		return name;
+	}
+
+	/**
+	 * Creates a cipher.
+	 * 
+	 * @param transformation
+	 *            The transformation.
+	 * @param mode
+	 *            Encrypt or decrypt mode.
+	 * @param key
+	 *            The key.
+	 * @param iv
+	 *            The initialization vector.
+	 * @return The cipher.
+	 * @throws Exception
+	 *             If the cipher cannot be created.
+	 */
+	static Cipher cipher(String transformation, int mode, byte[] key, byte[] iv)
+			throws Exception {
+		String algorithm = transformation.substring(0,
+				transformation.indexOf('/'));
+		Cipher cipher = Cipher.getInstance(transformation);
+		cipher.init(mode, new SecretKeySpec(key, algorithm),
+				new IvParameterSpec(iv));
+		return cipher;
+	}
+
+	/**
+	 * Runs the benchmarks.
+	 * 
+	 * @param args
+	 *            Not used.
+	 * @throws Exception
+	 *             If a benchmark fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(SEED);
+		byte[] key = new byte[Packet.BLOCK_KEY_SIZE];
+		byte[] iv = new byte[Packet.BLOCK_SIZE];
+		random.nextBytes(key);
+		random.nextBytes(iv);
+		final Cipher blockEncrypt = cipher(Packet.BLOCK_CIPHER,
+				Cipher.ENCRYPT_MODE, key, iv);
+		final Cipher blockDecrypt = cipher(Packet.BLOCK_CIPHER,
+				Cipher.DECRYPT_MODE, key, iv);
+		KeyPairGenerator generator = KeyPairGenerator
+				.getInstance(Packet.SECURE_ALGORITHM_NAME);
+		SecureRandom secureRandom = SecureRandom.getInstance("SHA1PRNG");
+		secureRandom.setSeed(SEED);
+		generator.initialize(Packet.SECURE_KEY_SIZE, secureRandom);
+		KeyPair keyPair = generator.generateKeyPair();
+		final Cipher secureEncrypt = Cipher
+				.getInstance(Packet.SECURE_ALGORITHM);
+		secureEncrypt.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+		final Cipher secureDecrypt = Cipher
+				.getInstance(Packet.SECURE_ALGORITHM);
+		secureDecrypt.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+
+		BenchmarkRunner runner = BenchmarkRunner.fromProperties();
+		runner.printHeader();
+
+		// Encoding and decoding of every message
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		for (final Message message : messages(key, iv)) {
+			boolean secure = message.getType() == Message.AUTHENTICATION_REQUEST;
+			final Cipher encrypt = secure ? secureEncrypt : blockEncrypt;
+			final Cipher decrypt = secure ? secureDecrypt : blockDecrypt;
+			output.reset();
+			message.pack().write(encrypt, output);
+			final byte[] frame = output.toByteArray();
+			runner.run(new Benchmark("encode." + name(message)) {
+				@Override
+				public void run() throws Exception {
+					output.reset();
+					message.pack().write(encrypt, output);
+					BenchmarkRunner.consume(output.size());
+				}
+			}, new Benchmark("decode." + name(message)) {
+				@Override
+				public void run() throws Exception {
+					BenchmarkRunner.consume(Packet.read(frame).decode(decrypt));
+				}
+			});
+		}
+
+		// Command codec without the message and cipher layers
+		for (final Command command : commands()) {
+			final byte[] data = new byte[command.getLength()];
+			command.write(data, 0);
+			final String name = command.getClass().getSimpleName();
+			runner.run(new Benchmark("command.write." + name) {
+				@Override
+				public void run() throws Exception {
+					command.write(data, 0);
+					BenchmarkRunner.consume(data[0]);
+				}
+			}, new Benchmark("command.read." + name) {
+				@Override
+				public void run() throws Exception {
+					BenchmarkRunner.consume(read(data));
+				}
+			});
+		}
+
+		// Framing of a realistic stream arriving in small fragments
+		output.reset();
+		List<Message> messages = messages(key, iv);
+		for (int i = 0; i < 1000; i++) {
+			// Skip the authentication request, it is only sent once
+			Message message = messages.get(1 + random.nextInt(messages
+					.size() - 1));
+			message.pack().write(blockEncrypt, output);
+		}
+		byte[] stream = output.toByteArray();
+		for (int fragment : new int[] { 1, 7, 64, PacketScanner.BUFFER_SIZE }) {
+			final PacketScanner scanner = new PacketScanner(
+					new FragmentedInputStream(stream, fragment));
+			runner.run(new Benchmark("scanner.fragment" + fragment) {
+				@Override
+				public void run() throws Exception {
+					BenchmarkRunner.consume(scanner.nextPacket());
+				}
+			});
+		}
+
+		// Block cipher compared to alternatives, on a typical command size
+		final byte[] plain = new CommandRequest(new MouseMove((short) 1,
+				(short) 1)).pack().getData();
+		String[] transformations = { Packet.BLOCK_CIPHER,
+				"AES/CBC/PKCS5Padding", "AES/CTR/NoPadding",
+				"DESede/CBC/PKCS5Padding" };
+		int[] keySizes = { Packet.BLOCK_KEY_SIZE, 16, 16, 24 };
+		int[] ivSizes = { Packet.BLOCK_SIZE, 16, 16, 8 };
+		for (int i = 0; i < transformations.length; i++) {
+			byte[] cipherKey = new byte[keySizes[i]];
+			byte[] cipherIv = new byte[ivSizes[i]];
+			random.nextBytes(cipherKey);
+			random.nextBytes(cipherIv);
+			final Cipher encrypt = cipher(transformations[i],
+					Cipher.ENCRYPT_MODE, cipherKey, cipherIv);
+			final Cipher decrypt = cipher(transformations[i],
+					Cipher.DECRYPT_MODE, cipherKey, cipherIv);
+			final byte[] encrypted = encrypt.doFinal(plain);
+			runner.run(new Benchmark("cipher.encrypt." + transformations[i]) {
+				@Override
+				public void run() throws Exception {
+					BenchmarkRunner.consume(encrypt.doFinal(plain));
+				}
+			}, new Benchmark("cipher.decrypt." + transformations[i]) {
+				@Override
+				public void run() throws Exception {
+					BenchmarkRunner.consume(decrypt.doFinal(encrypted));
+				}
+			});
+		}
+
+		// Cost of recording a frame, to compare with the cipher above
+		final WireRecorder recorder = new WireRecorder();
+		final WireRecorder plaintextRecorder = new WireRecorder(
+				WireRecorder.DEFAULT_RECORDS, 32);
+		final int length = plain.length + 2;
+		runner.run(new Benchmark("recorder.record") {
+			@Override
+			public void run() throws Exception {
+				recorder.record(WireRecorder.INBOUND, length, plain,
+						System.nanoTime());
+			}
+		}, new Benchmark("recorder.record.plaintext32") {
+			@Override
+			public void run() throws Exception {
+				plaintextRecorder.record(WireRecorder.INBOUND, length, plain,
+						System.nanoTime());
+			}
+		});
+	}
+
+	/**
+	 * Reads a command with the read method of its type.
+	 * 
+	 * @param data
+	 *            The written command.
+	 * @return The read command.
+	 * @throws Exception
+	 *             If the read fails.
+	 */
+	static Command read(byte[] data) throws Exception {
+		switch (data[0]) {
+		case Command.MOUSE_MOVE:
+			return MouseMove.read(data, 0);
+		case Command.MOUSE_PRESS:
+			return MousePress.read(data, 0);
+		case Command.MOUSE_RELEASE:
+			return MouseRelease.read(data, 0);
+		case Command.MOUSE_WHEEL:
+			return MouseWheel.read(data, 0);
+		case Command.KEY_PRESS:
+			return KeyPress.read(data, 0);
+		case Command.KEY_RELEASE:
+			return KeyRelease.read(data, 0);
+		default:
+			return TextInput.read(data, 0);
+		}
+	}
+}
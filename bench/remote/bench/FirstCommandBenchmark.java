@@ -0,0 +1,274 @@
+package remote.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import remote.api.ClientProtocol;
+import remote.api.Packet;
+import remote.api.ServerProtocol;
+import remote.api.ServerProtocol.ConnectionHandler;
+import remote.api.ServerProtocol.Handler;
+import remote.api.Warmup;
+import remote.api.commands.Command;
+import remote.api.commands.MouseMove;
+
+/**
+ * Measures the time to the first command of a freshly started server, with
+ * and without {@link Warmup}. Each run starts a new JVM that reads the server
+ * keys from files, optionally warms up, listens on a loopback port and
+ * reports when it has handled a command. This process acts as an already warm
+ * client, and measures from connecting until the server has handled the
+ * command. The start up time from launching the JVM until it listens is also
+ * reported, since the warm-up moves cost there.
+ * <p>
+ * Configured by system properties: bench.runs (JVMs per mode) and
+ * bench.cycles (warm-up cycles per handshake).
+ */
+public class FirstCommandBenchmark {
+	/**
+	 * Reads a file.
+	 * 
+	 * @param file
+	 *            The file.
+	 * @return The content.
+	 * @throws IOException
+	 *             If it fails to read.
+	 */
+	private static byte[] read(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream input = new FileInputStream(file);
+		try {
+			int off = 0;
+			while (off < data.length) {
+				int n = input.read(data, off, data.length - off);
+				if (n < 0) {
+					throw new IOException("Unexpected end of " + file);
+				}
+				off += n;
+			}
+		} finally {
+			input.close();
+		}
+		return data;
+	}
+
+	/**
+	 * Writes a file that is deleted on exit.
+	 * 
+	 * @param data
+	 *            The content.
+	 * @return The file.
+	 * @throws IOException
+	 *             If it fails to write.
+	 */
+	private static File write(byte[] data) throws IOException {
+		File file = File.createTempFile("remote_api", ".key");
+		file.deleteOnExit();
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			output.write(data);
+		} finally {
+			output.close();
+		}
+		return file;
+	}
+
+	/**
+	 * The server side, run in a new JVM. Prints the port when listening and
+	 * a line when the first command has been handled.
+	 * 
+	 * @param publicFile
+	 *            File with the X.509 encoded public key.
+	 * @param privateFile
+	 *            File with the PKCS#8 encoded private key.
+	 * @param cycles
+	 *            Warm-up cycles per handshake, negative for no warm-up.
+	 * @throws Exception
+	 *             If the server fails.
+	 */
+	private static void server(File publicFile, File privateFile, int cycles)
+			throws Exception {
+		KeyFactory factory = KeyFactory
+				.getInstance(Packet.SECURE_ALGORITHM_NAME);
+		PublicKey publicKey = factory.generatePublic(new X509EncodedKeySpec(
+				read(publicFile)));
+		PrivateKey privateKey = factory
+				.generatePrivate(new PKCS8EncodedKeySpec(read(privateFile)));
+		if (cycles >= 0) {
+			Warmup.run(publicKey, privateKey, Warmup.DEFAULT_HANDSHAKES,
+					cycles);
+		}
+		ServerSocket serverSocket = new ServerSocket(0, 1,
+				InetAddress.getByName("127.0.0.1"));
+		System.out.println(serverSocket.getLocalPort());
+		System.out.flush();
+		Socket socket = serverSocket.accept();
+		Handler handler = new Handler() {
+			@Override
+			public boolean authentication(byte[] user, byte[] password) {
+				return true;
+			}
+
+			@Override
+			public void command(Command command) {
+				System.out.println("command");
+				System.out.flush();
+			}
+
+			@Override
+			public void terminate(boolean shutdown) {
+			}
+		};
+		ConnectionHandler connectionHandler = new ConnectionHandler() {
+			@Override
+			public void onAuthenticated() {
+			}
+		};
+		ServerProtocol server = new ServerProtocol(handler,
+				connectionHandler, privateKey, socket.getInputStream(),
+				socket.getOutputStream());
+		Packet packet;
+		while ((packet = server.nextPacket()) != null) {
+			server.process(packet);
+		}
+		socket.close();
+		serverSocket.close();
+	}
+
+	/**
+	 * Starts a server JVM and connects to it.
+	 * 
+	 * @param publicKey
+	 *            The public key of the server.
+	 * @param publicFile
+	 *            File with the public key.
+	 * @param privateFile
+	 *            File with the private key.
+	 * @param cycles
+	 *            Warm-up cycles per handshake, negative for no warm-up.
+	 * @return Start up and first command time in nanoseconds.
+	 * @throws Exception
+	 *             If the run fails.
+	 */
+	private static long[] run(PublicKey publicKey, File publicFile,
+			File privateFile, int cycles) throws Exception {
+		String java = System.getProperty("java.home") + File.separator
+				+ "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp",
+				System.getProperty("java.class.path"),
+				FirstCommandBenchmark.class.getName(),
+				publicFile.getPath(), privateFile.getPath(),
+				Integer.toString(cycles));
+		builder.redirectErrorStream(true);
+		long launch = System.nanoTime();
+		Process process = builder.start();
+		try {
+			BufferedReader lines = new BufferedReader(new InputStreamReader(
+					process.getInputStream()));
+			String line = lines.readLine();
+			long listening = System.nanoTime();
+			int port;
+			try {
+				port = Integer.parseInt(line);
+			} catch (NumberFormatException e) {
+				throw new IllegalStateException("Server failed: " + line);
+			}
+			long start = System.nanoTime();
+			Socket socket = new Socket(InetAddress.getByName("127.0.0.1"),
+					port);
+			ClientProtocol client = new ClientProtocol(publicKey,
+					socket.getInputStream(), socket.getOutputStream());
+			client.authenticate("user".getBytes(), "password".getBytes());
+			client.process(client.nextPacket());
+			client.commandRequest(new MouseMove((short) 1, (short) 1));
+			line = lines.readLine();
+			long end = System.nanoTime();
+			if (!"command".equals(line)) {
+				throw new IllegalStateException("Server failed: " + line);
+			}
+			socket.close();
+			process.waitFor();
+			return new long[] { listening - launch, end - start };
+		} finally {
+			process.destroy();
+		}
+	}
+
+	/**
+	 * Prints the minimum, median and maximum of the times.
+	 * 
+	 * @param name
+	 *            Name of the row.
+	 * @param times
+	 *            The times in nanoseconds.
+	 */
+	private static void print(String name, List<Long> times) {
+		Collections.sort(times);
+		System.out.println(String.format("%-28s %10.1f %10.1f %10.1f", name,
+				times.get(0) / 1e6, times.get(times.size() / 2) / 1e6,
+				times.get(times.size() - 1) / 1e6));
+	}
+
+	/**
+	 * Runs the benchmark, or the server if started with the key files and
+	 * cycles as arguments.
+	 * 
+	 * @param args
+	 *            Nothing, or the arguments of the server.
+	 * @throws Exception
+	 *             If the benchmark fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length == 3) {
+			server(new File(args[0]), new File(args[1]),
+					Integer.parseInt(args[2]));
+			return;
+		}
+		int runs = Integer.getInteger("bench.runs", 5);
+		int cycles = Integer.getInteger("bench.cycles", Warmup.DEFAULT_CYCLES);
+
+		KeyPairGenerator generator = KeyPairGenerator
+				.getInstance(Packet.SECURE_ALGORITHM_NAME);
+		generator.initialize(Packet.SECURE_KEY_SIZE);
+		KeyPair keyPair = generator.generateKeyPair();
+		File publicFile = write(keyPair.getPublic().getEncoded());
+		File privateFile = write(keyPair.getPrivate().getEncoded());
+		// Warm up this side, the client
+		Warmup.run(keyPair.getPublic(), keyPair.getPrivate());
+
+		System.out.println("runs=" + runs + " cycles=" + cycles);
+		System.out.println(String.format("%-28s %10s %10s %10s", "ms", "min",
+				"median", "max"));
+		String[] names = { "cold", "warm" };
+		int[] modes = { -1, cycles };
+		for (int i = 0; i < names.length; i++) {
+			List<Long> startup = new ArrayList<Long>();
+			List<Long> first = new ArrayList<Long>();
+			for (int j = 0; j < runs; j++) {
+				long[] times = run(keyPair.getPublic(), publicFile,
+						privateFile, modes[i]);
+				startup.add(times[0]);
+				first.add(times[1]);
+			}
+			print(names[i] + ".startup", startup);
+			print(names[i] + ".firstCommand", first);
+		}
+	}
+}
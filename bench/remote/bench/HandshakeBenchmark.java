@@ -0,0 +1,270 @@
+package remote.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.crypto.Cipher;
+
+import remote.api.HandshakeStage;
+import remote.api.HandshakeStage.Listener;
+import remote.api.Packet;
+import remote.api.ServerProtocol;
+import remote.api.ServerProtocol.ConnectionHandler;
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.commands.MouseMove;
+import remote.api.messages.AuthenticationRequest;
+import remote.api.messages.CommandRequest;
+
+/**
+ * Measures the latency of authenticated sessions on a single I/O thread while
+ * other clients connect as fast as the server lets them. Each run sends
+ * commands to already authenticated sessions at a fixed rate and measures
+ * from the intended send time until the command has been processed. The
+ * connect storm either runs the handshakes inline on the I/O thread or hands
+ * them to a {@link HandshakeStage}.
+ * <p>
+ * Configured by system properties: bench.mode (idle, inline, staged or all),
+ * bench.duration (seconds per run), bench.rate (commands per second),
+ * bench.sessions (authenticated sessions), bench.storm (handshakes in flight),
+ * bench.threads (handshake workers) and bench.seed.
+ */
+public class HandshakeBenchmark {
+	/**
+	 * Handler that accepts everyone and ignores everything else.
+	 */
+	private static class Accepting implements Handler, ConnectionHandler {
+		@Override
+		public boolean authentication(byte[] user, byte[] password) {
+			return true;
+		}
+
+		@Override
+		public void command(Command command) {
+		}
+
+		@Override
+		public void terminate(boolean shutdown) {
+		}
+
+		@Override
+		public void onAuthenticated() {
+		}
+	}
+
+	/**
+	 * The handler of all sessions.
+	 */
+	private static final Accepting HANDLER = new Accepting();
+
+	/**
+	 * Creates a server protocol.
+	 * 
+	 * @param keyPair
+	 *            The key pair of the server.
+	 * @return The protocol.
+	 * @throws Exception
+	 *             If it cannot be created.
+	 */
+	private static ServerProtocol create(KeyPair keyPair) throws Exception {
+		return new ServerProtocol(HANDLER, HANDLER,
+				keyPair.getPrivate(), new ByteArrayInputStream(new byte[0]),
+				new ByteArrayOutputStream());
+	}
+
+	/**
+	 * Runs one mode.
+	 * 
+	 * @param mode
+	 *            Idle, inline or staged.
+	 * @param keyPair
+	 *            The key pair of the server.
+	 * @param request
+	 *            The encrypted authentication request.
+	 * @param command
+	 *            The encrypted command request.
+	 * @param sessions
+	 *            Number of authenticated sessions.
+	 * @param storm
+	 *            Handshakes in flight.
+	 * @param threads
+	 *            Handshake workers.
+	 * @param rate
+	 *            Commands per second.
+	 * @param duration
+	 *            Length of the run in nanoseconds.
+	 * @param histogram
+	 *            Records the command latencies.
+	 * @return Number of completed handshakes.
+	 * @throws Exception
+	 *             If the run fails.
+	 */
+	private static long run(final String mode, final KeyPair keyPair,
+			final byte[] request, final byte[] command, int sessions,
+			int storm, int threads, int rate, long duration,
+			final Histogram histogram) throws Exception {
+		final ExecutorService loop = Executors.newSingleThreadExecutor();
+		final ServerProtocol[] authenticated = new ServerProtocol[sessions];
+		for (int i = 0; i < sessions; i++) {
+			authenticated[i] = create(keyPair);
+			authenticated[i].process(new Packet(request, true));
+		}
+		HandshakeStage staged = null;
+		if (mode.equals("staged")) {
+			staged = new HandshakeStage(threads, storm);
+		}
+		final HandshakeStage stage = staged;
+		final Semaphore inFlight = new Semaphore(storm);
+		final AtomicLong handshakes = new AtomicLong();
+		final Listener listener = new Listener() {
+			@Override
+			public void authenticated(ServerProtocol protocol) {
+				handshakes.incrementAndGet();
+				inFlight.release();
+			}
+
+			@Override
+			public void failed(ServerProtocol protocol, Exception e) {
+				e.printStackTrace();
+				inFlight.release();
+			}
+		};
+
+		// Connects new clients whenever one of the storm has finished
+		final long end = System.nanoTime() + duration;
+		Thread connector = new Thread("connector") {
+			@Override
+			public void run() {
+				try {
+					while (System.nanoTime() < end) {
+						if (!inFlight.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+							continue;
+						}
+						final ServerProtocol protocol = create(keyPair);
+						loop.execute(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									Packet packet = new Packet(request, true);
+									if (stage == null) {
+										protocol.process(packet);
+										listener.authenticated(protocol);
+									} else {
+										stage.submit(protocol, packet, loop,
+												listener);
+									}
+								} catch (Exception e) {
+									listener.failed(protocol, e);
+								}
+							}
+						});
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		if (!mode.equals("idle")) {
+			connector.start();
+		}
+
+		// Sends commands to the authenticated sessions at a fixed rate
+		long interval = 1000000000L / rate;
+		long start = System.nanoTime();
+		for (int i = 0; start + i * interval < end; i++) {
+			final long sendTime = start + i * interval;
+			long wait;
+			while ((wait = sendTime - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			final ServerProtocol session = authenticated[i % sessions];
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						session.process(new Packet(command, true));
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+					histogram.record(System.nanoTime() - sendTime);
+				}
+			});
+		}
+		connector.join();
+		if (stage != null) {
+			stage.close();
+		}
+		loop.shutdown();
+		loop.awaitTermination(60, TimeUnit.SECONDS);
+		return handshakes.get();
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * 
+	 * @param args
+	 *            Not used.
+	 * @throws Exception
+	 *             If the benchmark fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		String mode = System.getProperty("bench.mode", "all");
+		int seconds = Integer.getInteger("bench.duration", 5);
+		int rate = Integer.getInteger("bench.rate", 1000);
+		int sessions = Integer.getInteger("bench.sessions", 16);
+		int storm = Integer.getInteger("bench.storm", 64);
+		int threads = Integer.getInteger("bench.threads", Runtime
+				.getRuntime().availableProcessors());
+		long seed = Long.getLong("bench.seed", 42L);
+
+		Random random = new Random(seed);
+		byte[] key = new byte[Packet.BLOCK_KEY_SIZE];
+		byte[] iv = new byte[Packet.BLOCK_SIZE];
+		random.nextBytes(key);
+		random.nextBytes(iv);
+		KeyPairGenerator generator = KeyPairGenerator
+				.getInstance(Packet.SECURE_ALGORITHM_NAME);
+		SecureRandom secureRandom = SecureRandom.getInstance("SHA1PRNG");
+		secureRandom.setSeed(seed);
+		generator.initialize(Packet.SECURE_KEY_SIZE, secureRandom);
+		KeyPair keyPair = generator.generateKeyPair();
+		Cipher secure = Cipher.getInstance(Packet.SECURE_ALGORITHM);
+		secure.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+		byte[] request = secure.doFinal(new AuthenticationRequest(key, iv,
+				new byte[0], new byte[0]).pack().getData());
+		byte[] command = CodecBenchmark.cipher(Packet.BLOCK_CIPHER,
+				Cipher.ENCRYPT_MODE, key, iv).doFinal(
+				new CommandRequest(new MouseMove((short) 1, (short) 2))
+						.pack().getData());
+
+		System.out.println("duration=" + seconds + " rate=" + rate
+				+ " sessions=" + sessions + " storm=" + storm + " threads="
+				+ threads);
+		Histogram.printMicrosHeader(System.out);
+		String[] modes = mode.equals("all") ? new String[] { "idle",
+				"inline", "staged" } : new String[] { mode };
+		// A short run of each mode first to warm up
+		for (String name : modes) {
+			run(name, keyPair, request, command, sessions, storm, threads,
+					rate, 1000000000L, new Histogram());
+		}
+		for (String name : modes) {
+			Histogram histogram = new Histogram();
+			long handshakes = run(name, keyPair, request, command, sessions,
+					storm, threads, rate, seconds * 1000000000L, histogram);
+			histogram.printMicros(System.out, name);
+			System.out.println(String.format("%-28s %10.0f handshakes/s",
+					name, handshakes / (double) seconds));
+		}
+	}
+}
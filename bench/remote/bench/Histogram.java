@@ -0,0 +1,246 @@
+package remote.bench;
+
+import java.io.PrintStream;
+
+/**
+ * A histogram of positive long values with a fixed relative precision, in the
+ * style of HdrHistogram. Values are put in buckets by their highest set bit,
+ * and each bucket is split linearly into sub-buckets, which gives a relative
+ * error of at most 1 / {@link #SUB_BUCKETS} over the whole range. Recording is
+ * allocation free. Not thread safe.
+ */
+public class Histogram {
+	/**
+	 * Number of sub-buckets in each bucket, must be a power of two.
+	 */
+	public static final int SUB_BUCKETS = 128;
+	/**
+	 * Number of bits needed for the sub-bucket index.
+	 */
+	private static final int SUB_BUCKET_BITS = Integer
+			.numberOfTrailingZeros(SUB_BUCKETS);
+
+	/**
+	 * Number of values in each slot.
+	 */
+	private final long[] counts;
+	/**
+	 * Total number of values.
+	 */
+	private long count;
+	/**
+	 * Sum of all values.
+	 */
+	private long sum;
+	/**
+	 * Smallest value.
+	 */
+	private long min;
+	/**
+	 * Largest value.
+	 */
+	private long max;
+
+	/**
+	 * Constructs a new empty histogram.
+	 */
+	public Histogram() {
+		counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+		reset();
+	}
+
+	/**
+	 * Removes all values.
+	 */
+	public void reset() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = 0;
+		}
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	/**
+	 * Gets the slot of a value.
+	 * 
+	 * @param value
+	 *            The value.
+	 * @return Index in counts.
+	 */
+	private static int index(long value) {
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		if (shift <= 0) {
+			// Small values are stored exactly
+			return (int) value;
+		}
+		int sub = (int) (value >>> shift) - SUB_BUCKETS;
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Gets the largest value that is stored in a slot.
+	 * 
+	 * @param index
+	 *            Index in counts.
+	 * @return The largest value of the slot.
+	 */
+	private static long highestValue(int index) {
+		int shift = index / SUB_BUCKETS - 1;
+		if (shift <= 0) {
+			return index;
+		}
+		long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * Records a value. Negative values are recorded as zero.
+	 * 
+	 * @param value
+	 *            The value to record.
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts[index(value)]++;
+		count++;
+		sum += value;
+		if (value < min) {
+			min = value;
+		}
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	/**
+	 * Adds all values of another histogram to this one.
+	 * 
+	 * @param other
+	 *            The histogram to add.
+	 */
+	public void add(Histogram other) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * Gets the value at a percentile, within the precision of the histogram.
+	 * 
+	 * @param percentile
+	 *            The percentile, between 0 and 100.
+	 * @return The value at the percentile or 0 if empty.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= target) {
+				return Math.min(highestValue(i), max);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Gets the number of recorded values.
+	 * 
+	 * @return The count.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Gets the mean of the recorded values.
+	 * 
+	 * @return The mean or 0 if empty.
+	 */
+	public double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * Gets the smallest recorded value.
+	 * 
+	 * @return The smallest value or 0 if empty.
+	 */
+	public long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	/**
+	 * Gets the largest recorded value.
+	 * 
+	 * @return The largest value or 0 if empty.
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Prints a summary line of the values divided by a scale.
+	 * 
+	 * @param out
+	 *            Where to print.
+	 * @param name
+	 *            Name of the line.
+	 * @param scale
+	 *            What to divide the values by.
+	 */
+	public void print(PrintStream out, String name, double scale) {
+		out.println(String.format(
+				"%-28s %10d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f", name,
+				count, getMin() / scale, getMean() / scale,
+				getValueAtPercentile(50) / scale,
+				getValueAtPercentile(99) / scale,
+				getValueAtPercentile(99.9) / scale, getMax() / scale));
+	}
+
+	/**
+	 * Prints the header for {@link #print(PrintStream, String, double)}.
+	 * 
+	 * @param out
+	 *            Where to print.
+	 * @param unit
+	 *            Unit of the printed values.
+	 */
+	public static void printHeader(PrintStream out, String unit) {
+		out.println(String.format("%-28s %10s %9s %9s %9s %9s %9s %9s", unit,
+				"count", "min", "mean", "p50", "p99", "p99.9", "max"));
+	}
+
+	/**
+	 * Prints a summary line of nanosecond values in microseconds.
+	 * 
+	 * @param out
+	 *            Where to print.
+	 * @param name
+	 *            Name of the line.
+	 */
+	public void printMicros(PrintStream out, String name) {
+		print(out, name, 1e3);
+	}
+
+	/**
+	 * Prints the header for {@link #printMicros(PrintStream, String)}.
+	 * 
+	 * @param out
+	 *            Where to print.
+	 */
+	public static void printMicrosHeader(PrintStream out) {
+		printHeader(out, "us");
+	}
+}
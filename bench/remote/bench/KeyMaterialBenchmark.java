@@ -0,0 +1,79 @@
+package remote.bench;
+
+import java.security.SecureRandom;
+
+import remote.api.KeyMaterial;
+import remote.api.Packet;
+import remote.api.Utils;
+
+/**
+ * Measures the cost of creating the block key and initialization vector of a
+ * client session: with {@link Utils#generateRandom(int)}, with a new or a
+ * shared {@link SecureRandom} and with {@link KeyMaterial}, both while its
+ * buffer keeps up and when every byte is generated on the calling thread.
+ * <p>
+ * Configured by system properties: bench.warmup, bench.iterations and
+ * bench.time.
+ */
+public class KeyMaterialBenchmark {
+	/**
+	 * Runs the benchmarks.
+	 * 
+	 * @param args
+	 *            Not used.
+	 * @throws Exception
+	 *             If a benchmark fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		final SecureRandom shared = new SecureRandom();
+		final KeyMaterial buffered = new KeyMaterial();
+		final KeyMaterial empty = new KeyMaterial(1);
+		empty.close();
+		BenchmarkRunner runner = BenchmarkRunner.fromProperties();
+		runner.printHeader();
+		runner.run(new Benchmark("utils.generateRandom") {
+			@Override
+			public void run() throws Exception {
+				byte[] key = Utils.generateRandom(Packet.BLOCK_KEY_SIZE);
+				byte[] iv = Utils.generateRandom(Packet.BLOCK_SIZE);
+				BenchmarkRunner.consume(key);
+				BenchmarkRunner.consume(iv);
+			}
+		}, new Benchmark("secureRandom.new") {
+			@Override
+			public void run() throws Exception {
+				SecureRandom random = new SecureRandom();
+				byte[] key = new byte[Packet.BLOCK_KEY_SIZE];
+				byte[] iv = new byte[Packet.BLOCK_SIZE];
+				random.nextBytes(key);
+				random.nextBytes(iv);
+				BenchmarkRunner.consume(key);
+				BenchmarkRunner.consume(iv);
+			}
+		}, new Benchmark("secureRandom.shared") {
+			@Override
+			public void run() throws Exception {
+				byte[] key = new byte[Packet.BLOCK_KEY_SIZE];
+				byte[] iv = new byte[Packet.BLOCK_SIZE];
+				shared.nextBytes(key);
+				shared.nextBytes(iv);
+				BenchmarkRunner.consume(key);
+				BenchmarkRunner.consume(iv);
+			}
+		}, new Benchmark("keyMaterial.buffered") {
+			@Override
+			public void run() throws Exception {
+				BenchmarkRunner.consume(buffered.next(Packet.BLOCK_KEY_SIZE));
+				BenchmarkRunner.consume(buffered.next(Packet.BLOCK_SIZE));
+			}
+		}, new Benchmark("keyMaterial.inline") {
+			@Override
+			public void run() throws Exception {
+				BenchmarkRunner.consume(empty.next(Packet.BLOCK_KEY_SIZE));
+				BenchmarkRunner.consume(empty.next(Packet.BLOCK_SIZE));
+			}
+		});
+		System.out.println("buffered.misses=" + buffered.getMisses());
+		buffered.close();
+	}
+}
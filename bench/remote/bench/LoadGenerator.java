@@ -0,0 +1,542 @@
+package remote.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import remote.api.ClientProtocol;
+import remote.api.Packet;
+import remote.api.ServerProtocol;
+import remote.api.ServerProtocol.ConnectionHandler;
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+
+/**
+ * Simulates many concurrent clients against a server. Each client connects,
+ * authenticates through the RSA handshake and then sends commands with a
+ * random think time between them, and reconnects after a random session
+ * length. All clients share a small scheduler pool, so thousands of clients
+ * need only a few threads. The handshakes block while waiting for the
+ * server, so they run on a separate pool and do not hold back the commands
+ * of the other clients.
+ * <p>
+ * Configured by system properties: bench.clients, bench.threads,
+ * bench.handshakeThreads,
+ * bench.rampup (seconds to start all clients), bench.duration (seconds),
+ * bench.think (mean think time in milliseconds), bench.thinkDistribution
+ * (fixed, uniform or exponential), bench.session (mean session length in
+ * seconds, 0 for no reconnects), bench.mix (see {@link LoopbackBenchmark}),
+ * bench.seed, and bench.server which is either local for an in-process server
+ * or host:port together with bench.publicKey, a file with the X.509 encoded
+ * public key of the server.
+ */
+public class LoadGenerator {
+	/**
+	 * Number of completed handshakes.
+	 */
+	private final AtomicLong handshakes = new AtomicLong();
+	/**
+	 * Number of sent commands.
+	 */
+	private final AtomicLong commands = new AtomicLong();
+	/**
+	 * Number of failed connects, handshakes or writes.
+	 */
+	private final AtomicLong errors = new AtomicLong();
+	/**
+	 * Number of connected clients.
+	 */
+	private final AtomicLong connected = new AtomicLong();
+
+	/**
+	 * Runs the clients.
+	 */
+	private final ScheduledExecutorService scheduler;
+	/**
+	 * Runs the blocking connects and handshakes.
+	 */
+	private final ExecutorService handshaker;
+	/**
+	 * Address of the server.
+	 */
+	private final InetSocketAddress address;
+	/**
+	 * Public key of the server.
+	 */
+	private final PublicKey publicKey;
+	/**
+	 * Mean think time in nanoseconds.
+	 */
+	private final long thinkNanos;
+	/**
+	 * Think time distribution.
+	 */
+	private final String thinkDistribution;
+	/**
+	 * Mean session length in nanoseconds, 0 for no reconnects.
+	 */
+	private final long sessionNanos;
+	/**
+	 * Command mix specification.
+	 */
+	private final String mix;
+	/**
+	 * State if the run is over.
+	 */
+	private volatile boolean stopped;
+
+	/**
+	 * A simulated client. All calls are made from the scheduler or the
+	 * handshake pool, one at a time.
+	 */
+	private class VirtualClient implements Runnable {
+		/**
+		 * Source of randomness for this client.
+		 */
+		private final Random random;
+		/**
+		 * Generates the commands.
+		 */
+		private final LoopbackBenchmark.CommandMix commandMix;
+		/**
+		 * The socket or null if not connected.
+		 */
+		private Socket socket;
+		/**
+		 * The protocol or null if not connected.
+		 */
+		private ClientProtocol protocol;
+		/**
+		 * State if the client is included in the connected count.
+		 */
+		private boolean counted;
+		/**
+		 * When the current session should end.
+		 */
+		private long sessionEnd;
+
+		/**
+		 * Constructs a new client.
+		 * 
+		 * @param seed
+		 *            Seed of the client.
+		 */
+		VirtualClient(long seed) {
+			random = new Random(seed);
+			commandMix = new LoopbackBenchmark.CommandMix(mix, random);
+		}
+
+		@Override
+		public void run() {
+			if (stopped) {
+				disconnect();
+				return;
+			}
+			if (protocol == null
+					|| sessionNanos > 0 && System.nanoTime() > sessionEnd) {
+				// Not connected yet or churn, reconnect right away
+				disconnect();
+				handshake();
+				return;
+			}
+			try {
+				Command command = commandMix.next();
+				protocol.commandRequest(command);
+				commands.incrementAndGet();
+			} catch (Exception e) {
+				errors.incrementAndGet();
+				disconnect();
+			}
+			reschedule();
+		}
+
+		/**
+		 * Connects on the handshake pool and then continues on the scheduler.
+		 */
+		private void handshake() {
+			try {
+				handshaker.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (stopped) {
+							return;
+						}
+						try {
+							connect();
+						} catch (Exception e) {
+							errors.incrementAndGet();
+							disconnect();
+						}
+						reschedule();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Shutting down
+			}
+		}
+
+		/**
+		 * Runs the client again after a think time.
+		 */
+		private void reschedule() {
+			try {
+				scheduler.schedule(this, think(), TimeUnit.NANOSECONDS);
+			} catch (RejectedExecutionException e) {
+				// Shutting down
+				disconnect();
+			}
+		}
+
+		/**
+		 * Connects and authenticates.
+		 * 
+		 * @throws Exception
+		 *             If it fails.
+		 */
+		private void connect() throws Exception {
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.connect(address, 10000);
+			socket.setSoTimeout(10000);
+			protocol = new ClientProtocol(publicKey, socket.getInputStream(),
+					new BufferedOutputStream(socket.getOutputStream()));
+			protocol.authenticate("user".getBytes(), "password".getBytes());
+			Packet packet = protocol.nextPacket();
+			if (packet == null) {
+				throw new IOException("Closed during handshake");
+			}
+			protocol.process(packet);
+			counted = true;
+			connected.incrementAndGet();
+			handshakes.incrementAndGet();
+			if (sessionNanos > 0) {
+				sessionEnd = System.nanoTime() + exponential(sessionNanos);
+			}
+		}
+
+		/**
+		 * Disconnects if connected.
+		 */
+		private void disconnect() {
+			if (counted) {
+				counted = false;
+				connected.decrementAndGet();
+			}
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// Ignore, disconnecting anyway
+				}
+			}
+			socket = null;
+			protocol = null;
+		}
+
+		/**
+		 * Draws a think time.
+		 * 
+		 * @return The think time in nanoseconds.
+		 */
+		private long think() {
+			if (thinkDistribution.equals("fixed")) {
+				return thinkNanos;
+			} else if (thinkDistribution.equals("uniform")) {
+				return (long) (random.nextDouble() * 2 * thinkNanos);
+			}
+			return exponential(thinkNanos);
+		}
+
+		/**
+		 * Draws from an exponential distribution.
+		 * 
+		 * @param mean
+		 *            The mean.
+		 * @return The drawn value.
+		 */
+		private long exponential(long mean) {
+			return (long) (-Math.log(1 - random.nextDouble()) * mean);
+		}
+	}
+
+	/**
+	 * Constructs a new load generator.
+	 * 
+	 * @param threads
+	 *            Number of scheduler threads.
+	 * @param handshakeThreads
+	 *            Number of threads for the connects and handshakes.
+	 * @param address
+	 *            Address of the server.
+	 * @param publicKey
+	 *            Public key of the server.
+	 * @param thinkMillis
+	 *            Mean think time in milliseconds.
+	 * @param thinkDistribution
+	 *            Think time distribution.
+	 * @param sessionSeconds
+	 *            Mean session length in seconds, 0 for no reconnects.
+	 * @param mix
+	 *            Command mix specification.
+	 */
+	public LoadGenerator(int threads, int handshakeThreads,
+			InetSocketAddress address, PublicKey publicKey, long thinkMillis,
+			String thinkDistribution, long sessionSeconds, String mix) {
+		scheduler = Executors.newScheduledThreadPool(threads);
+		handshaker = Executors.newFixedThreadPool(handshakeThreads);
+		this.address = address;
+		this.publicKey = publicKey;
+		thinkNanos = TimeUnit.MILLISECONDS.toNanos(thinkMillis);
+		this.thinkDistribution = thinkDistribution;
+		sessionNanos = TimeUnit.SECONDS.toNanos(sessionSeconds);
+		this.mix = mix;
+		stopped = false;
+	}
+
+	/**
+	 * Runs the load and prints statistics every second.
+	 * 
+	 * @param clients
+	 *            Number of clients.
+	 * @param rampupSeconds
+	 *            Time to start all clients.
+	 * @param durationSeconds
+	 *            Length of the run, including the ramp-up.
+	 * @param seed
+	 *            Seed of the first client.
+	 * @throws InterruptedException
+	 *             If interrupted.
+	 */
+	public void run(int clients, long rampupSeconds, long durationSeconds,
+			long seed) throws InterruptedException {
+		long rampupNanos = TimeUnit.SECONDS.toNanos(rampupSeconds);
+		for (int i = 0; i < clients; i++) {
+			long delay = rampupNanos * i / clients;
+			scheduler.schedule(new VirtualClient(seed + i), delay,
+					TimeUnit.NANOSECONDS);
+		}
+		System.out.println(String.format("%6s %8s %12s %12s %10s %12s", "s",
+				"clients", "handshakes/s", "commands/s", "errors/s",
+				"cpu us/cmd"));
+		long lastHandshakes = 0;
+		long lastCommands = 0;
+		long lastErrors = 0;
+		long lastCpu = processCpuTime();
+		for (int second = 1; second <= durationSeconds; second++) {
+			Thread.sleep(1000);
+			long h = handshakes.get();
+			long c = commands.get();
+			long e = errors.get();
+			long cpu = processCpuTime();
+			String cpuPerCommand = cpu < 0 || c == lastCommands ? "n/a"
+					: String.format("%.1f", (cpu - lastCpu) / 1e3
+							/ (c - lastCommands));
+			System.out.println(String.format("%6d %8d %12d %12d %10d %12s",
+					second, connected.get(), h - lastHandshakes, c
+							- lastCommands, e - lastErrors, cpuPerCommand));
+			lastHandshakes = h;
+			lastCommands = c;
+			lastErrors = e;
+			lastCpu = cpu;
+		}
+		stopped = true;
+		scheduler.shutdown();
+		handshaker.shutdown();
+		scheduler.awaitTermination(10, TimeUnit.SECONDS);
+		handshaker.awaitTermination(10, TimeUnit.SECONDS);
+		System.out.println("total handshakes=" + handshakes.get()
+				+ " commands=" + commands.get() + " errors=" + errors.get());
+	}
+
+	/**
+	 * Gets the CPU time used by the process.
+	 * 
+	 * @return The CPU time in nanoseconds or -1 if not supported.
+	 */
+	private static long processCpuTime() {
+		OperatingSystemMXBean bean = ManagementFactory
+				.getOperatingSystemMXBean();
+		if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) bean)
+					.getProcessCpuTime();
+		}
+		return -1;
+	}
+
+	/**
+	 * Starts an in-process server with one thread per connection, that
+	 * accepts any user.
+	 * 
+	 * @param keyPair
+	 *            The key pair of the server.
+	 * @return The address of the server.
+	 * @throws IOException
+	 *             If it fails to listen.
+	 */
+	static InetSocketAddress startLocalServer(final KeyPair keyPair)
+			throws IOException {
+		final ServerSocket serverSocket = new ServerSocket(0, 1024,
+				InetAddress.getByName("127.0.0.1"));
+		final Handler handler = new Handler() {
+			@Override
+			public boolean authentication(byte[] user, byte[] password) {
+				return true;
+			}
+
+			@Override
+			public void command(Command command) {
+			}
+
+			@Override
+			public void terminate(boolean shutdown) {
+			}
+		};
+		final ConnectionHandler connectionHandler = new ConnectionHandler() {
+			@Override
+			public void onAuthenticated() {
+			}
+		};
+		Thread acceptor = new Thread("local-server") {
+			@Override
+			public void run() {
+				while (true) {
+					final Socket socket;
+					try {
+						socket = serverSocket.accept();
+					} catch (IOException e) {
+						return;
+					}
+					Thread session = new Thread("local-session") {
+						@Override
+						public void run() {
+							try {
+								socket.setTcpNoDelay(true);
+								ServerProtocol server = new ServerProtocol(
+										handler, connectionHandler, keyPair
+												.getPrivate(), socket
+												.getInputStream(),
+										new BufferedOutputStream(socket
+												.getOutputStream()));
+								Packet packet;
+								while ((packet = server.nextPacket()) != null) {
+									server.process(packet);
+								}
+							} catch (Exception e) {
+								// The client went away
+							} finally {
+								try {
+									socket.close();
+								} catch (IOException e) {
+									// Ignore, closing anyway
+								}
+							}
+						}
+					};
+					session.setDaemon(true);
+					session.start();
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return new InetSocketAddress(serverSocket.getInetAddress(),
+				serverSocket.getLocalPort());
+	}
+
+	/**
+	 * Reads a public key from a file.
+	 * 
+	 * @param file
+	 *            File with the X.509 encoded key.
+	 * @return The public key.
+	 * @throws Exception
+	 *             If it fails to read the key.
+	 */
+	static PublicKey readPublicKey(File file) throws Exception {
+		byte[] encoded = new byte[(int) file.length()];
+		FileInputStream input = new FileInputStream(file);
+		try {
+			int off = 0;
+			while (off < encoded.length) {
+				int read = input.read(encoded, off, encoded.length - off);
+				if (read == -1) {
+					throw new IOException("Unexpected end of " + file);
+				}
+				off += read;
+			}
+		} finally {
+			input.close();
+		}
+		return KeyFactory.getInstance(Packet.SECURE_ALGORITHM_NAME)
+				.generatePublic(new X509EncodedKeySpec(encoded));
+	}
+
+	/**
+	 * Runs the load generator.
+	 * 
+	 * @param args
+	 *            Not used.
+	 * @throws Exception
+	 *             If it fails to start.
+	 */
+	public static void main(String[] args) throws Exception {
+		int clients = Integer.getInteger("bench.clients", 2000);
+		int threads = Integer.getInteger("bench.threads", Runtime.getRuntime()
+				.availableProcessors());
+		int handshakeThreads = Integer.getInteger("bench.handshakeThreads",
+				64);
+		long rampup = Long.getLong("bench.rampup", 10L);
+		long duration = Long.getLong("bench.duration", 30L);
+		long think = Long.getLong("bench.think", 50L);
+		String distribution = System.getProperty("bench.thinkDistribution",
+				"exponential");
+		long session = Long.getLong("bench.session", 20L);
+		String mix = System.getProperty("bench.mix",
+				"move:80,wheel:5,button:5,key:5,text:5");
+		long seed = Long.getLong("bench.seed", 42L);
+		String server = System.getProperty("bench.server", "local");
+
+		InetSocketAddress address;
+		PublicKey publicKey;
+		if (server.equals("local")) {
+			KeyPairGenerator generator = KeyPairGenerator
+					.getInstance(Packet.SECURE_ALGORITHM_NAME);
+			generator.initialize(Packet.SECURE_KEY_SIZE);
+			KeyPair keyPair = generator.generateKeyPair();
+			address = startLocalServer(keyPair);
+			publicKey = keyPair.getPublic();
+		} else {
+			int colon = server.lastIndexOf(':');
+			address = new InetSocketAddress(server.substring(0, colon),
+					Integer.parseInt(server.substring(colon + 1)));
+			publicKey = readPublicKey(new File(
+					System.getProperty("bench.publicKey")));
+		}
+		System.out.println("server=" + server + " clients=" + clients
+				+ " threads=" + threads + " handshakeThreads="
+				+ handshakeThreads + " think=" + think + "ms "
+				+ distribution + " session=" + session + "s seed=" + seed);
+		new LoadGenerator(threads, handshakeThreads, address, publicKey, think,
+				distribution, session, mix)
+				.run(clients, rampup, duration, seed);
+	}
+}
@@ -0,0 +1,484 @@
+package remote.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import remote.api.ClientProtocol;
+import remote.api.LocalTransport;
+import remote.api.MemoryTransport;
+import remote.api.Packet;
+import remote.api.ServerProtocol;
+import remote.api.ServerProtocol.ConnectionHandler;
+import remote.api.ServerProtocol.Handler;
+import remote.api.SharedMemoryTransport;
+import remote.api.SharedMemoryTransport.WaitStrategy;
+import remote.api.commands.Command;
+import remote.api.commands.KeyPress;
+import remote.api.commands.KeyRelease;
+import remote.api.commands.MouseMove;
+import remote.api.commands.MousePress;
+import remote.api.commands.MouseRelease;
+import remote.api.commands.MouseWheel;
+import remote.api.commands.TextInput;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * End-to-end benchmark of a {@link ClientProtocol} talking to a
+ * {@link ServerProtocol} over loopback TCP, over a Unix domain socket with the
+ * trusted handshake, over shared memory and in memory. Measures the latency
+ * from sending a command until it reaches {@link Handler#command(Command)},
+ * and the time of the handshake.
+ * <p>
+ * Configured by system properties: bench.transport (tcp, unix, shm, pipe or
+ * all), bench.count (commands per run), bench.rate (commands per second, 0
+ * for as fast as possible), bench.mix (weights as
+ * move:80,wheel:5,button:5,key:5,text:5), bench.wait (spin or park, how the
+ * shared memory ends wait) and bench.seed. With a rate the latency is
+ * measured from the intended send time, so a stalled sender does not hide
+ * the stall.
+ */
+public class LoopbackBenchmark {
+	/**
+	 * A pair of connected streams for each side.
+	 */
+	static class Connection {
+		/**
+		 * Input of the client.
+		 */
+		InputStream clientInput;
+		/**
+		 * Output of the client.
+		 */
+		OutputStream clientOutput;
+		/**
+		 * Input of the server.
+		 */
+		InputStream serverInput;
+		/**
+		 * Output of the server.
+		 */
+		OutputStream serverOutput;
+		/**
+		 * State if the trusted handshake is used.
+		 */
+		boolean trusted;
+		/**
+		 * Time of the handshake in nanoseconds.
+		 */
+		long handshakeNanos;
+		/**
+		 * Resources to close when done.
+		 */
+		Object[] resources;
+
+		/**
+		 * Closes the resources.
+		 */
+		void close() {
+			for (Object resource : resources) {
+				try {
+					if (resource instanceof Socket) {
+						((Socket) resource).close();
+					} else if (resource instanceof ServerSocket) {
+						((ServerSocket) resource).close();
+					} else if (resource instanceof InputStream) {
+						((InputStream) resource).close();
+					} else if (resource instanceof OutputStream) {
+						((OutputStream) resource).close();
+					} else if (resource instanceof Channel) {
+						((Channel) resource).close();
+					} else if (resource instanceof File) {
+						((File) resource).delete();
+					}
+				} catch (IOException e) {
+					// Ignore, shutting down
+				}
+			}
+		}
+	}
+
+	/**
+	 * Generates commands from a weighted mix.
+	 */
+	static class CommandMix {
+		/**
+		 * Names of the command kinds, in the order of the weights.
+		 */
+		private static final String[] KINDS = { "move", "wheel", "button",
+				"key", "text" };
+		/**
+		 * Cumulative weights of the kinds.
+		 */
+		private final int[] cumulative;
+		/**
+		 * Source of randomness.
+		 */
+		private final Random random;
+
+		/**
+		 * Constructs a new command mix.
+		 * 
+		 * @param mix
+		 *            Weights as kind:weight separated by comma.
+		 * @param random
+		 *            Source of randomness.
+		 */
+		CommandMix(String mix, Random random) {
+			this.random = random;
+			int[] weights = new int[KINDS.length];
+			for (String part : mix.split(",")) {
+				String[] kv = part.trim().split(":");
+				for (int i = 0; i < KINDS.length; i++) {
+					if (KINDS[i].equals(kv[0])) {
+						weights[i] = Integer.parseInt(kv[1]);
+					}
+				}
+			}
+			cumulative = new int[KINDS.length];
+			int sum = 0;
+			for (int i = 0; i < KINDS.length; i++) {
+				sum += weights[i];
+				cumulative[i] = sum;
+			}
+			if (sum <= 0) {
+				throw new IllegalArgumentException("Empty command mix: " + mix);
+			}
+		}
+
+		/**
+		 * Generates the next command.
+		 * 
+		 * @return The command.
+		 */
+		Command next() {
+			int r = random.nextInt(cumulative[cumulative.length - 1]);
+			int kind = 0;
+			while (r >= cumulative[kind]) {
+				kind++;
+			}
+			switch (kind) {
+			case 0:
+				return new MouseMove((short) (random.nextInt(21) - 10),
+						(short) (random.nextInt(21) - 10));
+			case 1:
+				return new MouseWheel(random.nextBoolean() ? 1 : -1);
+			case 2:
+				return random.nextBoolean() ? new MousePress(16)
+						: new MouseRelease(16);
+			case 3:
+				int key = 'A' + random.nextInt(26);
+				return random.nextBoolean() ? new KeyPress(key)
+						: new KeyRelease(key);
+			default:
+				byte[] text = new byte[1 + random.nextInt(16)];
+				for (int i = 0; i < text.length; i++) {
+					text[i] = (byte) ('a' + random.nextInt(26));
+				}
+				return new TextInput(text);
+			}
+		}
+	}
+
+	/**
+	 * Connects the sides over loopback TCP.
+	 * 
+	 * @return The connection.
+	 * @throws IOException
+	 *             If it fails to connect.
+	 */
+	static Connection tcp() throws IOException {
+		ServerSocket serverSocket = new ServerSocket(0, 1,
+				InetAddress.getByName("127.0.0.1"));
+		Socket client = new Socket(serverSocket.getInetAddress(),
+				serverSocket.getLocalPort());
+		Socket server = serverSocket.accept();
+		client.setTcpNoDelay(true);
+		server.setTcpNoDelay(true);
+		Connection connection = new Connection();
+		connection.clientInput = client.getInputStream();
+		// Buffered so that each packet is sent as one segment
+		connection.clientOutput = new BufferedOutputStream(
+				client.getOutputStream());
+		connection.serverInput = server.getInputStream();
+		connection.serverOutput = new BufferedOutputStream(
+				server.getOutputStream());
+		connection.resources = new Object[] { client, server, serverSocket };
+		return connection;
+	}
+
+	/**
+	 * Connects the sides over a Unix domain socket with the trusted handshake.
+	 * 
+	 * @return The connection.
+	 * @throws ProtocolException
+	 *             If Unix domain sockets are not supported.
+	 * @throws IOException
+	 *             If it fails to connect.
+	 */
+	static Connection unix() throws ProtocolException, IOException {
+		// Bound in a new directory that only the owner can access
+		File directory = File.createTempFile("loopback", "");
+		directory.delete();
+		File path = new File(directory, "loopback.sock");
+		ServerSocketChannel serverChannel = LocalTransport.bind(path);
+		SocketChannel client = LocalTransport.connect(path, true);
+		SocketChannel server = serverChannel.accept();
+		Connection connection = new Connection();
+		connection.clientInput = LocalTransport.getInputStream(client);
+		connection.clientOutput = LocalTransport.getOutputStream(client);
+		connection.serverInput = LocalTransport.getInputStream(server);
+		connection.serverOutput = LocalTransport.getOutputStream(server);
+		connection.trusted = true;
+		connection.resources = new Object[] { client, server, serverChannel,
+				path, directory };
+		return connection;
+	}
+
+	/**
+	 * Connects the sides through a shared memory file.
+	 * 
+	 * @param waitStrategy
+	 *            How the ends wait.
+	 * @return The connection.
+	 * @throws ProtocolException
+	 *             If shared memory is not supported.
+	 * @throws IOException
+	 *             If it fails to map the file.
+	 */
+	static Connection shm(WaitStrategy waitStrategy)
+			throws ProtocolException, IOException {
+		File file = File.createTempFile("loopback", ".shm");
+		SharedMemoryTransport server = SharedMemoryTransport.create(file,
+				SharedMemoryTransport.DEFAULT_CAPACITY, waitStrategy);
+		SharedMemoryTransport client = SharedMemoryTransport.open(file,
+				waitStrategy);
+		Connection connection = new Connection();
+		connection.clientInput = client.getInputStream();
+		connection.clientOutput = client.getOutputStream();
+		connection.serverInput = server.getInputStream();
+		connection.serverOutput = server.getOutputStream();
+		connection.resources = new Object[] { connection.clientInput,
+				connection.serverInput, file };
+		return connection;
+	}
+
+	/**
+	 * Connects the sides with an in-memory transport.
+	 * 
+	 * @return The connection.
+	 */
+	static Connection pipe() {
+		MemoryTransport transport = new MemoryTransport();
+		Connection connection = new Connection();
+		connection.clientInput = transport.getClient().getInputStream();
+		connection.clientOutput = transport.getClient().getOutputStream();
+		connection.serverInput = transport.getServer().getInputStream();
+		connection.serverOutput = transport.getServer().getOutputStream();
+		connection.resources = new Object[] { connection.clientInput };
+		return connection;
+	}
+
+	/**
+	 * Runs the benchmark over one connection.
+	 * 
+	 * @param name
+	 *            Name of the run.
+	 * @param connection
+	 *            The connection.
+	 * @param keyPair
+	 *            The key pair of the server.
+	 * @param count
+	 *            Number of commands to send.
+	 * @param rate
+	 *            Commands per second or 0 for as fast as possible.
+	 * @param mix
+	 *            The command mix.
+	 * @param histogram
+	 *            Where the latencies are recorded.
+	 * @return The elapsed time in nanoseconds.
+	 * @throws Exception
+	 *             If the run fails.
+	 */
+	static long run(String name, Connection connection, KeyPair keyPair,
+			final int count, int rate, CommandMix mix,
+			final Histogram histogram) throws Exception {
+		final AtomicLongArray sendTimes = new AtomicLongArray(count);
+		final CountDownLatch done = new CountDownLatch(1);
+		Handler handler = new Handler() {
+			private int received = 0;
+
+			@Override
+			public boolean authentication(byte[] user, byte[] password) {
+				return true;
+			}
+
+			@Override
+			public void command(Command command) {
+				long now = System.nanoTime();
+				histogram.record(now - sendTimes.get(received));
+				if (++received == count) {
+					done.countDown();
+				}
+			}
+
+			@Override
+			public void terminate(boolean shutdown) {
+			}
+		};
+		ConnectionHandler connectionHandler = new ConnectionHandler() {
+			@Override
+			public void onAuthenticated() {
+			}
+		};
+		final ServerProtocol server = new ServerProtocol(handler,
+				connectionHandler, keyPair.getPrivate(),
+				connection.serverInput, connection.serverOutput);
+		server.setTrusted(connection.trusted);
+		Thread serverThread = new Thread(name + "-server") {
+			@Override
+			public void run() {
+				try {
+					Packet packet;
+					while ((packet = server.nextPacket()) != null) {
+						server.process(packet);
+					}
+				} catch (Exception e) {
+					if (done.getCount() > 0) {
+						e.printStackTrace();
+					}
+				}
+			}
+		};
+		serverThread.start();
+
+		ClientProtocol client = new ClientProtocol(keyPair.getPublic(),
+				connection.clientInput, connection.clientOutput);
+		client.setTrusted(connection.trusted);
+		long handshake = System.nanoTime();
+		client.authenticate("user".getBytes(), "password".getBytes());
+		client.process(client.nextPacket());
+		connection.handshakeNanos = System.nanoTime() - handshake;
+
+		long interval = rate > 0 ? 1000000000L / rate : 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			Command command = mix.next();
+			long sendTime;
+			if (interval > 0) {
+				sendTime = start + i * interval;
+				while (System.nanoTime() < sendTime) {
+					// Spin until it is time to send
+				}
+			} else {
+				sendTime = System.nanoTime();
+			}
+			sendTimes.set(i, sendTime);
+			client.commandRequest(command);
+		}
+		if (!done.await(60, TimeUnit.SECONDS)) {
+			throw new IllegalStateException(name + " timed out");
+		}
+		long elapsed = System.nanoTime() - start;
+		connection.close();
+		serverThread.join();
+		return elapsed;
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * 
+	 * @param args
+	 *            Not used.
+	 * @throws Exception
+	 *             If the benchmark fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		String transport = System.getProperty("bench.transport", "all");
+		int count = Integer.getInteger("bench.count", 200000);
+		int rate = Integer.getInteger("bench.rate", 0);
+		String mixSpec = System.getProperty("bench.mix",
+				"move:80,wheel:5,button:5,key:5,text:5");
+		long seed = Long.getLong("bench.seed", 42L);
+		int warmup = Integer.getInteger("bench.warmup", 2);
+		int iterations = Integer.getInteger("bench.iterations", 3);
+		// Parks by default, spinning needs a free core for each end
+		WaitStrategy waitStrategy = WaitStrategy.valueOf(System.getProperty(
+				"bench.wait", "park").toUpperCase());
+
+		KeyPairGenerator generator = KeyPairGenerator
+				.getInstance(Packet.SECURE_ALGORITHM_NAME);
+		SecureRandom secureRandom = SecureRandom.getInstance("SHA1PRNG");
+		secureRandom.setSeed(seed);
+		generator.initialize(Packet.SECURE_KEY_SIZE, secureRandom);
+		KeyPair keyPair = generator.generateKeyPair();
+
+		System.out.println("count=" + count + " rate=" + rate + " mix="
+				+ mixSpec + " wait=" + waitStrategy + " seed=" + seed);
+		Histogram.printMicrosHeader(System.out);
+		List<String> transports = new ArrayList<String>();
+		if (!transport.equals("all")) {
+			transports.add(transport);
+		} else {
+			transports.add("tcp");
+			if (LocalTransport.isSupported()) {
+				transports.add("unix");
+			}
+			if (SharedMemoryTransport.isSupported()) {
+				transports.add("shm");
+			}
+			transports.add("pipe");
+		}
+		for (String name : transports) {
+			Histogram total = new Histogram();
+			Histogram histogram = new Histogram();
+			long elapsed = 0;
+			long handshakes = 0;
+			for (int i = 0; i < warmup + iterations; i++) {
+				histogram.reset();
+				Connection connection;
+				if (name.equals("tcp")) {
+					connection = tcp();
+				} else if (name.equals("unix")) {
+					connection = unix();
+				} else if (name.equals("shm")) {
+					connection = shm(waitStrategy);
+				} else {
+					connection = pipe();
+				}
+				// Same seed every iteration, so they send the same commands
+				CommandMix mix = new CommandMix(mixSpec, new Random(seed));
+				long time = run(name, connection, keyPair, count, rate, mix,
+						histogram);
+				if (i >= warmup) {
+					total.add(histogram);
+					elapsed += time;
+					handshakes += connection.handshakeNanos;
+					histogram.printMicros(System.out, name + "#" + (i - warmup));
+				}
+			}
+			total.printMicros(System.out, name);
+			System.out.println(String.format("%-28s %10.0f commands/s", name,
+					total.getCount() * 1e9 / elapsed));
+			System.out.println(String.format("%-28s %10.1f us/handshake",
+					name, handshakes / 1e3 / iterations));
+		}
+	}
+}
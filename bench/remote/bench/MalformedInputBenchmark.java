@@ -0,0 +1,239 @@
+package remote.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+
+import remote.api.Packet;
+import remote.api.ServerProtocol;
+import remote.api.ServerProtocol.ConnectionHandler;
+import remote.api.ServerProtocol.Handler;
+import remote.api.Utils;
+import remote.api.commands.Command;
+import remote.api.exceptions.PacketException;
+import remote.api.exceptions.ProtocolException;
+import remote.api.messages.AuthenticationRequest;
+import remote.api.messages.Message;
+
+/**
+ * Measures how fast an authenticated {@link ServerProtocol} rejects malformed
+ * packets, as sent by a buggy or hostile client. Each kind of garbage is run
+ * with and without stack traces (see
+ * {@link ProtocolException#setStackTraces(boolean)}), and once more reading
+ * the message as a server that logs every rejection would.
+ */
+public class MalformedInputBenchmark {
+	/**
+	 * Number of prepared packets of each kind.
+	 */
+	private static final int PACKETS = 1024;
+	/**
+	 * Seed for the random data.
+	 */
+	private static final long SEED = 42;
+
+	/**
+	 * Passes prepared packets to a server and expects them to be rejected.
+	 */
+	private static class Rejection extends Benchmark {
+		/**
+		 * The server.
+		 */
+		private final ServerProtocol server;
+		/**
+		 * The encrypted packets.
+		 */
+		private final byte[][] packets;
+		/**
+		 * State if the message is read.
+		 */
+		private final boolean message;
+		/**
+		 * Index of the next packet.
+		 */
+		private int next;
+
+		/**
+		 * Constructs a new rejection benchmark.
+		 * 
+		 * @param name
+		 *            Name of the benchmark.
+		 * @param server
+		 *            The server.
+		 * @param packets
+		 *            The encrypted packets.
+		 * @param message
+		 *            True to read the message of the exception.
+		 */
+		Rejection(String name, ServerProtocol server, byte[][] packets,
+				boolean message) {
+			super(name);
+			this.server = server;
+			this.packets = packets;
+			this.message = message;
+			next = 0;
+		}
+
+		@Override
+		public void run() throws Exception {
+			byte[] data = packets[next++ & (packets.length - 1)];
+			try {
+				server.process(new Packet(data, true));
+			} catch (PacketException e) {
+				if (message) {
+					BenchmarkRunner.consume(e.getMessage());
+				} else {
+					BenchmarkRunner.consume(e);
+				}
+				return;
+			}
+			throw new IllegalStateException("Packet was not rejected");
+		}
+	}
+
+	/**
+	 * Encrypts the plaintexts.
+	 * 
+	 * @param cipher
+	 *            The block encryption cipher of the session.
+	 * @param plaintexts
+	 *            The plaintexts.
+	 * @return The encrypted packets.
+	 * @throws Exception
+	 *             If the encryption fails.
+	 */
+	private static byte[][] encrypt(Cipher cipher, byte[][] plaintexts)
+			throws Exception {
+		byte[][] packets = new byte[plaintexts.length][];
+		for (int i = 0; i < plaintexts.length; i++) {
+			packets[i] = cipher.doFinal(plaintexts[i]);
+		}
+		return packets;
+	}
+
+	/**
+	 * The old {@link Utils#toHex(byte[])}, for comparison.
+	 * 
+	 * @param data
+	 *            The data to convert.
+	 * @return The converted data.
+	 */
+	private static String legacyToHex(byte[] data) {
+		StringBuffer sb = new StringBuffer();
+		for (byte b : data) {
+			String hex = Integer.toHexString(0xFF & b);
+			if (hex.length() == 1) {
+				sb.append('0');
+			}
+			sb.append(hex);
+			sb.append(' ');
+		}
+		return sb.toString().toUpperCase().trim();
+	}
+
+	/**
+	 * Runs the benchmarks.
+	 * 
+	 * @param args
+	 *            Not used.
+	 * @throws Exception
+	 *             If a benchmark fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(SEED);
+		byte[] key = new byte[Packet.BLOCK_KEY_SIZE];
+		byte[] iv = new byte[Packet.BLOCK_SIZE];
+		random.nextBytes(key);
+		random.nextBytes(iv);
+		KeyPairGenerator generator = KeyPairGenerator
+				.getInstance(Packet.SECURE_ALGORITHM_NAME);
+		SecureRandom secureRandom = SecureRandom.getInstance("SHA1PRNG");
+		secureRandom.setSeed(SEED);
+		generator.initialize(Packet.SECURE_KEY_SIZE, secureRandom);
+		KeyPair keyPair = generator.generateKeyPair();
+
+		// An authenticated server that ignores valid commands
+		Handler handler = new Handler() {
+			@Override
+			public boolean authentication(byte[] user, byte[] password) {
+				return true;
+			}
+
+			@Override
+			public void command(Command command) {
+			}
+
+			@Override
+			public void terminate(boolean shutdown) {
+			}
+		};
+		ConnectionHandler connectionHandler = new ConnectionHandler() {
+			@Override
+			public void onAuthenticated() {
+			}
+		};
+		ServerProtocol server = new ServerProtocol(handler, connectionHandler,
+				keyPair.getPrivate(), new ByteArrayInputStream(new byte[0]),
+				new ByteArrayOutputStream());
+		Cipher secure = Cipher.getInstance(Packet.SECURE_ALGORITHM);
+		secure.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+		server.process(new Packet(secure.doFinal(new AuthenticationRequest(
+				key, iv, new byte[0], new byte[0]).pack().getData()), true));
+		Cipher encrypt = CodecBenchmark.cipher(Packet.BLOCK_CIPHER,
+				Cipher.ENCRYPT_MODE, key, iv);
+
+		// Random bytes, which almost never have valid padding
+		byte[][] noise = new byte[PACKETS][];
+		// Valid encryption of an unknown message type
+		byte[][] unknown = new byte[PACKETS][];
+		// Valid encryption of a command request with an unknown command
+		byte[][] command = new byte[PACKETS][];
+		for (int i = 0; i < PACKETS; i++) {
+			int length = 8 + random.nextInt(64);
+			noise[i] = new byte[length & ~7];
+			random.nextBytes(noise[i]);
+			unknown[i] = new byte[length];
+			random.nextBytes(unknown[i]);
+			unknown[i][0] = (byte) (Message.USED_CODES + random.nextInt(100));
+			command[i] = new byte[length];
+			random.nextBytes(command[i]);
+			command[i][0] = Message.COMMAND_REQUEST;
+			command[i][1] = (byte) (Command.USED_CODES + random.nextInt(100));
+		}
+		String[] names = { "noise", "unknown", "command" };
+		byte[][][] packets = { noise, encrypt(encrypt, unknown),
+				encrypt(encrypt, command) };
+
+		BenchmarkRunner runner = BenchmarkRunner.fromProperties();
+		runner.printHeader();
+		for (int i = 0; i < names.length; i++) {
+			ProtocolException.setStackTraces(true);
+			runner.run(new Rejection("reject." + names[i], server, packets[i],
+					false), new Rejection("reject." + names[i] + ".message",
+					server, packets[i], true));
+			ProtocolException.setStackTraces(false);
+			runner.run(new Rejection("reject." + names[i] + ".stackless",
+					server, packets[i], false));
+		}
+		ProtocolException.setStackTraces(true);
+
+		final byte[] data = new byte[256];
+		random.nextBytes(data);
+		runner.run(new Benchmark("hex.256") {
+			@Override
+			public void run() throws Exception {
+				BenchmarkRunner.consume(Utils.toHex(data));
+			}
+		}, new Benchmark("hex.256.legacy") {
+			@Override
+			public void run() throws Exception {
+				BenchmarkRunner.consume(legacyToHex(data));
+			}
+		});
+	}
+}
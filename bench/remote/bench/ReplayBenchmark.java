@@ -0,0 +1,116 @@
+package remote.bench;
+
+import java.io.File;
+import java.util.Random;
+
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.journal.JournalReplayer;
+import remote.api.journal.JournalWriter;
+
+/**
+ * Measures the throughput of a {@link Handler} by replaying a journal
+ * recorded with {@link remote.api.journal.JournalHandler} as fast as
+ * possible, or checks how it keeps up with the recorded pace.
+ * <p>
+ * Configured by system properties: bench.journal (the journal to replay, a
+ * journal is generated from bench.count, bench.rate, bench.mix and
+ * bench.seed if not set), bench.handler (class name of the handler, with a
+ * public no-argument constructor, a handler that only consumes the commands
+ * if not set) and bench.realtime (true to keep the recorded pace).
+ */
+public class ReplayBenchmark {
+	/**
+	 * Handler that only consumes the commands.
+	 */
+	static class ConsumingHandler implements Handler {
+		@Override
+		public boolean authentication(byte[] user, byte[] password) {
+			return true;
+		}
+
+		@Override
+		public void command(Command command) {
+			BenchmarkRunner.consume(command);
+		}
+
+		@Override
+		public void terminate(boolean shutdown) {
+		}
+	}
+
+	/**
+	 * Generates a journal.
+	 * 
+	 * @param path
+	 *            Where to write the journal.
+	 * @param count
+	 *            Number of commands.
+	 * @param rate
+	 *            Commands per second of the recorded times.
+	 * @param mix
+	 *            The command mix.
+	 * @throws Exception
+	 *             If it fails to write the journal.
+	 */
+	static void generate(File path, int count, int rate,
+			LoopbackBenchmark.CommandMix mix) throws Exception {
+		JournalWriter writer = new JournalWriter(path);
+		try {
+			long interval = 1000000000L / rate;
+			for (int i = 0; i < count; i++) {
+				writer.append(mix.next(), i * interval);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * 
+	 * @param args
+	 *            Not used.
+	 * @throws Exception
+	 *             If the benchmark fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		String journal = System.getProperty("bench.journal");
+		String handlerClass = System.getProperty("bench.handler");
+		boolean realTime = Boolean.getBoolean("bench.realtime");
+		int warmup = Integer.getInteger("bench.warmup", 2);
+		int iterations = Integer.getInteger("bench.iterations", 5);
+
+		File path;
+		if (journal == null || journal.length() == 0) {
+			int count = Integer.getInteger("bench.count", 1000000);
+			int rate = Integer.getInteger("bench.rate", 1000);
+			String mix = System.getProperty("bench.mix",
+					"move:80,wheel:5,button:5,key:5,text:5");
+			long seed = Long.getLong("bench.seed", 42L);
+			path = File.createTempFile("replay", ".journal");
+			path.deleteOnExit();
+			generate(path, count, rate, new LoopbackBenchmark.CommandMix(mix,
+					new Random(seed)));
+			System.out.println("generated " + count + " commands at " + rate
+					+ "/s mix=" + mix + " seed=" + seed);
+		} else {
+			path = new File(journal);
+		}
+		Handler handler = handlerClass == null ? new ConsumingHandler()
+				: (Handler) Class.forName(handlerClass).newInstance();
+		System.out.println("journal=" + path + " (" + path.length()
+				+ " bytes) handler=" + handler.getClass().getName()
+				+ " realtime=" + realTime);
+
+		JournalReplayer replayer = new JournalReplayer(path);
+		for (int i = 0; i < warmup + iterations; i++) {
+			long start = System.nanoTime();
+			long count = replayer.replay(handler, realTime);
+			long elapsed = System.nanoTime() - start;
+			String name = i < warmup ? "warmup#" + i : "run#" + (i - warmup);
+			System.out.println(String.format("%-10s %12.0f commands/s %10.1f ms",
+					name, count * 1e9 / elapsed, elapsed / 1e6));
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package remote.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import remote.api.ClientProtocol;
+import remote.api.Packet;
+import remote.api.ServerProtocol;
+import remote.api.ServerProtocol.ConnectionHandler;
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.journal.JournalReader;
+import remote.api.messages.CommandRequest;
+
+/**
+ * Measures the bytes on the wire per command with the classic record format
+ * and with the compact record format, see {@link Packet#FORMAT_COMPACT}.
+ * <p>
+ * Configured by system properties: bench.journal (the journal to measure,
+ * commands are generated from bench.count, bench.mix and bench.seed if not
+ * set).
+ */
+public class WireSizeBenchmark {
+	/**
+	 * Handler that accepts everyone and ignores everything else.
+	 */
+	private static class Accepting implements Handler, ConnectionHandler {
+		@Override
+		public boolean authentication(byte[] user, byte[] password) {
+			return true;
+		}
+
+		@Override
+		public void command(Command command) {
+		}
+
+		@Override
+		public void terminate(boolean shutdown) {
+		}
+
+		@Override
+		public void onAuthenticated() {
+		}
+	}
+
+	/**
+	 * Sends the commands from an authenticated client.
+	 * 
+	 * @param keyPair
+	 *            The key pair of the server.
+	 * @param compact
+	 *            True to offer the compact record format.
+	 * @param commands
+	 *            The commands.
+	 * @return The number of bytes written by the client after the handshake.
+	 * @throws Exception
+	 *             If it fails to send.
+	 */
+	private static long measure(KeyPair keyPair, boolean compact,
+			List<Command> commands) throws Exception {
+		Accepting handler = new Accepting();
+		ByteArrayInputStream empty = new ByteArrayInputStream(new byte[0]);
+		ByteArrayOutputStream toServer = new ByteArrayOutputStream();
+		ByteArrayOutputStream toClient = new ByteArrayOutputStream();
+		ClientProtocol client = new ClientProtocol(keyPair.getPublic(), empty,
+				toServer);
+		ServerProtocol server = new ServerProtocol(handler, handler,
+				keyPair.getPrivate(), empty, toClient);
+		client.setCompact(compact);
+		client.authenticate(new byte[0], new byte[0]);
+		server.process(Packet.read(toServer.toByteArray()));
+		client.process(Packet.read(toClient.toByteArray()));
+		if (client.isCompact() != compact) {
+			throw new IllegalStateException("Format not negotiated");
+		}
+		toServer.reset();
+		for (Command command : commands) {
+			client.commandRequest(command);
+		}
+		long bytes = toServer.size();
+		client.close();
+		server.close();
+		return bytes;
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * 
+	 * @param args
+	 *            Not used.
+	 * @throws Exception
+	 *             If the benchmark fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		String journal = System.getProperty("bench.journal");
+		List<Command> commands = new ArrayList<Command>();
+		if (journal == null || journal.length() == 0) {
+			int count = Integer.getInteger("bench.count", 100000);
+			String mix = System.getProperty("bench.mix",
+					"move:80,wheel:5,button:5,key:5,text:5");
+			long seed = Long.getLong("bench.seed", 42L);
+			LoopbackBenchmark.CommandMix generator;
+			generator = new LoopbackBenchmark.CommandMix(mix, new Random(seed));
+			for (int i = 0; i < count; i++) {
+				commands.add(generator.next());
+			}
+			System.out.println("generated " + count + " commands mix=" + mix
+					+ " seed=" + seed);
+		} else {
+			JournalReader reader = new JournalReader(new File(journal));
+			try {
+				Command command;
+				while ((command = reader.next()) != null) {
+					commands.add(command);
+				}
+			} finally {
+				reader.close();
+			}
+			System.out.println("journal=" + journal + " (" + commands.size()
+					+ " commands)");
+		}
+		if (commands.isEmpty()) {
+			return;
+		}
+
+		long plain = 0;
+		for (Command command : commands) {
+			plain += new CommandRequest(command).pack().length();
+		}
+		KeyPairGenerator keys = KeyPairGenerator
+				.getInstance(Packet.SECURE_ALGORITHM_NAME);
+		keys.initialize(Packet.SECURE_KEY_SIZE);
+		KeyPair keyPair = keys.generateKeyPair();
+		long classic = measure(keyPair, false, commands);
+		long compact = measure(keyPair, true, commands);
+		int n = commands.size();
+		System.out.println(String.format("%-10s %12d bytes %8.2f bytes/event",
+				"plain", plain, (double) plain / n));
+		System.out.println(String.format("%-10s %12d bytes %8.2f bytes/event",
+				"classic", classic, (double) classic / n));
+		System.out.println(String.format("%-10s %12d bytes %8.2f bytes/event",
+				"compact", compact, (double) compact / n));
+		System.out.println(String.format("saved %.1f%%",
+				100.0 * (classic - compact) / classic));
+	}
+}
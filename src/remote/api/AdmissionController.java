@@ -0,0 +1,415 @@
+package remote.api;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Semaphore;
+
+import remote.api.exceptions.AuthenticationException;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Decides if an authentication request may be processed before the server
+ * spends a private key decryption on it. Shared by all connections of a
+ * server, each connection is identified by the host address of its client.
+ * It must not include the port, since every new connection has a new port
+ * and would start with a fresh bucket, escaping both the rate limit and the
+ * lockout.
+ * <p>
+ * Each source has a token bucket that limits its rate of attempts, and
+ * repeated failures lock the source out for a time that doubles with every
+ * further failure. The number of requests being processed at the same time is
+ * capped, with part of the cap reserved for sources that have authenticated
+ * before, so that known clients can reconnect while unknown sources flood the
+ * server.
+ * <p>
+ * At most a fixed number of sources is remembered. When a new source comes
+ * and the limit is reached, idle sources among the least recently seen ones
+ * are forgotten, or the least recently seen source if none of them is idle.
+ * A flood from more hosts than the limit can thus make the server forget a
+ * lockout, but it never grows the memory or the cost of an admission.
+ */
+public class AdmissionController {
+	/**
+	 * A granted admission, released when the request has been processed.
+	 */
+	public class Permit {
+		/**
+		 * The source.
+		 */
+		private final Source source;
+		/**
+		 * State if a permit for unknown sources is held.
+		 */
+		private final boolean stranger;
+		/**
+		 * State if released.
+		 */
+		private boolean released;
+
+		/**
+		 * Constructs a new permit.
+		 * 
+		 * @param source
+		 *            The source.
+		 * @param stranger
+		 *            True if a permit for unknown sources is held.
+		 */
+		private Permit(Source source, boolean stranger) {
+			this.source = source;
+			this.stranger = stranger;
+			released = false;
+		}
+
+		/**
+		 * Releases the permit and records the outcome. Only the first call
+		 * has an effect.
+		 * 
+		 * @param authenticated
+		 *            True if the source was authenticated.
+		 */
+		public void release(boolean authenticated) {
+			synchronized (this) {
+				if (released) {
+					return;
+				}
+				released = true;
+			}
+			permits.release();
+			if (stranger) {
+				strangerPermits.release();
+			}
+			source.complete(authenticated, now());
+		}
+	}
+
+	/**
+	 * State of a source.
+	 */
+	private class Source {
+		/**
+		 * Tokens left in the bucket.
+		 */
+		private double tokens;
+		/**
+		 * Time of the last refill.
+		 */
+		private long refilled;
+		/**
+		 * Number of failures since the last success.
+		 */
+		private int failures;
+		/**
+		 * End of the lockout.
+		 */
+		private long lockedUntil;
+		/**
+		 * State if the source has authenticated.
+		 */
+		private boolean authenticated;
+		/**
+		 * Time of the last successful authentication.
+		 */
+		private long authenticatedTime;
+
+		/**
+		 * Constructs a new source with a full bucket.
+		 * 
+		 * @param now
+		 *            The current time.
+		 */
+		private Source(long now) {
+			tokens = burst;
+			refilled = now;
+			failures = 0;
+			lockedUntil = now;
+			authenticated = false;
+			authenticatedTime = 0;
+		}
+
+		/**
+		 * Checks if the source has authenticated recently.
+		 * 
+		 * @param now
+		 *            The current time.
+		 * @return True if known.
+		 */
+		private boolean isKnown(long now) {
+			return authenticated && now - authenticatedTime < KNOWN_NANOS;
+		}
+
+		/**
+		 * Takes a token.
+		 * 
+		 * @param now
+		 *            The current time.
+		 * @return True if the source has authenticated recently.
+		 * @throws AuthenticationException
+		 *             If locked out or out of tokens.
+		 */
+		private synchronized boolean take(long now)
+				throws AuthenticationException {
+			if (now - lockedUntil < 0) {
+				throw new AuthenticationException("Locked out");
+			}
+			tokens = Math.min(burst, tokens + (now - refilled) * refillPerNano);
+			refilled = now;
+			if (tokens < 1) {
+				throw new AuthenticationException("Too many attempts");
+			}
+			tokens -= 1;
+			return isKnown(now);
+		}
+
+		/**
+		 * Gives back a token that was not used.
+		 */
+		private synchronized void untake() {
+			tokens = Math.min(burst, tokens + 1);
+		}
+
+		/**
+		 * Records the outcome of an attempt.
+		 * 
+		 * @param success
+		 *            True if authenticated.
+		 * @param now
+		 *            The current time.
+		 */
+		private synchronized void complete(boolean success, long now) {
+			if (success) {
+				failures = 0;
+				authenticated = true;
+				authenticatedTime = now;
+			} else if (++failures >= lockoutFailures) {
+				int doublings = Math.min(failures - lockoutFailures, 62);
+				long lockout = lockoutNanos << doublings;
+				if (lockout <= 0 || lockout > maxLockoutNanos) {
+					lockout = maxLockoutNanos;
+				}
+				lockedUntil = now + lockout;
+			}
+		}
+
+		/**
+		 * Checks if the source can be forgotten, that is if it is neither
+		 * locked out, known nor short of tokens. Failures that have not led to
+		 * a lockout yet are forgotten with it.
+		 * 
+		 * @param now
+		 *            The current time.
+		 * @return True if idle.
+		 */
+		private synchronized boolean isIdle(long now) {
+			return now - lockedUntil >= 0 && !isKnown(now)
+					&& tokens + (now - refilled) * refillPerNano >= burst;
+		}
+	}
+
+	/**
+	 * How long a source is known after authenticating.
+	 */
+	private static final long KNOWN_NANOS = 24L * 60 * 60 * 1000000000L;
+	/**
+	 * Number of least recently seen sources checked for idle ones when the
+	 * limit is reached.
+	 */
+	private static final int EVICTION_SCAN = 16;
+
+	/**
+	 * Attempts a source may make in a burst.
+	 */
+	private final int burst;
+	/**
+	 * Tokens added per nanosecond.
+	 */
+	private final double refillPerNano;
+	/**
+	 * Consecutive failures before a source is locked out.
+	 */
+	private final int lockoutFailures;
+	/**
+	 * Length of the first lockout.
+	 */
+	private final long lockoutNanos;
+	/**
+	 * Longest lockout.
+	 */
+	private final long maxLockoutNanos;
+	/**
+	 * Largest number of sources to remember.
+	 */
+	private final int maxSources;
+	/**
+	 * Limits requests in progress.
+	 */
+	private final Semaphore permits;
+	/**
+	 * Limits requests in progress from sources that are not known.
+	 */
+	private final Semaphore strangerPermits;
+	/**
+	 * The sources, least recently seen first. Guarded by itself.
+	 */
+	private final LinkedHashMap<InetAddress, Source> sources;
+
+	/**
+	 * Constructs a new admission controller that allows bursts of 5 attempts
+	 * and one more every 10 seconds per source, locks out for 1 second after
+	 * 3 failures doubling up to 15 minutes, and processes one request per
+	 * processor at a time.
+	 * 
+	 * @throws ProtocolException
+	 *             Never with the default values.
+	 */
+	public AdmissionController() throws ProtocolException {
+		this(5, 0.1, 3, 1000, 15 * 60 * 1000, Runtime.getRuntime()
+				.availableProcessors(), 100000);
+	}
+
+	/**
+	 * Constructs a new admission controller.
+	 * 
+	 * @param burst
+	 *            Attempts a source may make in a burst.
+	 * @param rate
+	 *            Attempts per second a source may make after a burst.
+	 * @param lockoutFailures
+	 *            Consecutive failures before a source is locked out.
+	 * @param lockoutMillis
+	 *            Length of the first lockout, doubled for every further
+	 *            failure.
+	 * @param maxLockoutMillis
+	 *            Longest lockout.
+	 * @param maxConcurrent
+	 *            Requests that may be processed at the same time. A quarter,
+	 *            at least one if more than one, is reserved for sources that
+	 *            have authenticated during the last day.
+	 * @param maxSources
+	 *            Largest number of sources to remember.
+	 * @throws ProtocolException
+	 *             If an argument is out of range.
+	 */
+	public AdmissionController(int burst, double rate, int lockoutFailures,
+			long lockoutMillis, long maxLockoutMillis, int maxConcurrent,
+			int maxSources) throws ProtocolException {
+		if (burst < 1) {
+			throw new ProtocolException("Burst must be positive");
+		}
+		if (!(rate > 0)) {
+			throw new ProtocolException("Rate must be positive");
+		}
+		if (lockoutFailures < 1) {
+			throw new ProtocolException("Lockout failures must be positive");
+		}
+		if (lockoutMillis < 0 || maxLockoutMillis < lockoutMillis) {
+			throw new ProtocolException("Invalid lockout");
+		}
+		if (maxConcurrent < 1) {
+			throw new ProtocolException("Concurrency must be positive");
+		}
+		if (maxSources < 1) {
+			throw new ProtocolException("Sources must be positive");
+		}
+		this.burst = burst;
+		refillPerNano = rate / 1e9;
+		this.lockoutFailures = lockoutFailures;
+		lockoutNanos = lockoutMillis * 1000000L;
+		maxLockoutNanos = maxLockoutMillis * 1000000L;
+		this.maxSources = maxSources;
+		permits = new Semaphore(maxConcurrent);
+		int reserved = maxConcurrent > 1 ? Math.max(1, maxConcurrent / 4) : 0;
+		strangerPermits = new Semaphore(maxConcurrent - reserved);
+		// Ordered by access
+		sources = new LinkedHashMap<InetAddress, Source>(16, 0.75f, true);
+	}
+
+	/**
+	 * Gets the current time in nanoseconds.
+	 * 
+	 * @return The current time.
+	 */
+	protected long now() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Admits an authentication request, never blocks.
+	 * 
+	 * @param source
+	 *            The host address of the client, without the port.
+	 * @return A permit that must be released when the request has been
+	 *         processed.
+	 * @throws ProtocolException
+	 *             If source is null.
+	 * @throws AuthenticationException
+	 *             If the source is locked out or has made too many attempts,
+	 *             or if the server is busy.
+	 */
+	public Permit admit(InetAddress source) throws ProtocolException,
+			AuthenticationException {
+		if (source == null) {
+			throw new ProtocolException("Source cannot be null");
+		}
+		long now = now();
+		Source state;
+		synchronized (sources) {
+			state = sources.get(source);
+			if (state == null) {
+				if (sources.size() >= maxSources) {
+					forget(now);
+				}
+				state = new Source(now);
+				sources.put(source, state);
+			}
+		}
+		boolean known = state.take(now);
+		if (!known && !strangerPermits.tryAcquire()) {
+			state.untake();
+			throw new AuthenticationException("Server busy");
+		}
+		if (!permits.tryAcquire()) {
+			if (!known) {
+				strangerPermits.release();
+			}
+			state.untake();
+			throw new AuthenticationException("Server busy");
+		}
+		return new Permit(state, !known);
+	}
+
+	/**
+	 * Makes room for a source by forgetting the idle ones among the least
+	 * recently seen sources, or else the least recently seen one. Must be
+	 * called with the sources locked.
+	 * 
+	 * @param now
+	 *            The current time.
+	 */
+	private void forget(long now) {
+		Iterator<Source> it = sources.values().iterator();
+		boolean forgotten = false;
+		for (int i = 0; i < EVICTION_SCAN && it.hasNext(); i++) {
+			if (it.next().isIdle(now)) {
+				it.remove();
+				forgotten = true;
+			}
+		}
+		if (!forgotten) {
+			it = sources.values().iterator();
+			it.next();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Gets the number of remembered sources.
+	 * 
+	 * @return The number of sources.
+	 */
+	public int getSources() {
+		synchronized (sources) {
+			return sources.size();
+		}
+	}
+}
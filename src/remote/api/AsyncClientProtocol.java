@@ -0,0 +1,369 @@
+package remote.api;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import remote.api.Protocol.PingCallback;
+import remote.api.commands.Command;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Asynchronous facade of a {@link ClientProtocol}, so that a user interface
+ * thread never waits for a slow connection. Requests are queued to a writer
+ * thread and return a {@link Completion} at once. Writes complete when the
+ * packet has been written and flushed, authentication and ping complete on
+ * the reply of the server.
+ * <p>
+ * Replies are only seen if packets are processed through
+ * {@link #process(Packet)}, either by the caller or by the reader thread of
+ * {@link #start()}. Listeners of write completions run on the writer thread
+ * and listeners of replies on the thread that processes packets.
+ */
+public class AsyncClientProtocol {
+	/**
+	 * The protocol.
+	 */
+	private final ClientProtocol protocol;
+	/**
+	 * The writer thread.
+	 */
+	private final ExecutorService writer;
+	/**
+	 * Completes on the authentication response or null if none requested.
+	 */
+	private Completion<Void> authentication;
+	/**
+	 * Completes on the ping response or null if none requested.
+	 */
+	private Completion<Long> ping;
+	/**
+	 * Time of the ping response that has not completed yet or -1 if none.
+	 */
+	private long pingDiff;
+	/**
+	 * The reader thread or null if not started.
+	 */
+	private Thread reader;
+
+	/**
+	 * A write request queued to the writer thread.
+	 */
+	private abstract class Write implements Runnable {
+		/**
+		 * Completes when written.
+		 */
+		private final Completion<Void> completion;
+
+		/**
+		 * Constructs a new write.
+		 */
+		private Write() {
+			completion = new Completion<Void>();
+		}
+
+		/**
+		 * Writes the request.
+		 * 
+		 * @throws Exception
+		 *             If it fails.
+		 */
+		protected abstract void write() throws Exception;
+
+		@Override
+		public void run() {
+			try {
+				write();
+			} catch (Exception e) {
+				completion.fail(e);
+				return;
+			}
+			completion.complete(null);
+		}
+	}
+
+	/**
+	 * Constructs a new facade with a writer thread of its own. Nothing else
+	 * should write to the protocol.
+	 * 
+	 * @param protocol
+	 *            The protocol.
+	 * @throws ProtocolException
+	 *             If protocol is null.
+	 */
+	public AsyncClientProtocol(ClientProtocol protocol)
+			throws ProtocolException {
+		if (protocol == null) {
+			throw new ProtocolException("Protocol cannot be null");
+		}
+		this.protocol = protocol;
+		writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "client-writer");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		authentication = null;
+		ping = null;
+		pingDiff = -1;
+		reader = null;
+	}
+
+	/**
+	 * Gets the protocol.
+	 * 
+	 * @return The protocol.
+	 */
+	public ClientProtocol getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * Queues a write request.
+	 * 
+	 * @param write
+	 *            The request.
+	 * @return The completion of the request.
+	 */
+	private Completion<Void> submit(Write write) {
+		try {
+			writer.execute(write);
+		} catch (RejectedExecutionException e) {
+			write.completion.fail(new ProtocolException("Protocol is closed"));
+		}
+		return write.completion;
+	}
+
+	/**
+	 * Sends an authentication request, see
+	 * {@link ClientProtocol#authenticate(byte[], byte[])}.
+	 * 
+	 * @param user
+	 *            Encoded user to authenticate.
+	 * @param password
+	 *            Encoded password for the user.
+	 * @return Completes when the server has accepted the request, fails if
+	 *         the request cannot be sent, if authentication already has been
+	 *         requested or if the connection ends first.
+	 */
+	public Completion<Void> authenticate(final byte[] user,
+			final byte[] password) {
+		final Completion<Void> completion = new Completion<Void>();
+		synchronized (this) {
+			if (authentication != null) {
+				completion.fail(new ProtocolException(
+						"Authentication already requested"));
+				return completion;
+			}
+			authentication = completion;
+		}
+		submit(new Write() {
+			@Override
+			protected void write() throws Exception {
+				protocol.authenticate(user, password);
+			}
+		}).addListener(new Completion.Listener<Void>() {
+			@Override
+			public void completed(Void value) {
+				// Waits for the response
+			}
+
+			@Override
+			public void failed(Exception e) {
+				synchronized (AsyncClientProtocol.this) {
+					authentication = null;
+				}
+				completion.fail(e);
+			}
+		});
+		return completion;
+	}
+
+	/**
+	 * Sends a command request, see
+	 * {@link ClientProtocol#commandRequest(Command)}.
+	 * 
+	 * @param command
+	 *            The command to request.
+	 * @return Completes when the request has been written.
+	 */
+	public Completion<Void> commandRequest(final Command command) {
+		return submit(new Write() {
+			@Override
+			protected void write() throws Exception {
+				protocol.commandRequest(command);
+			}
+		});
+	}
+
+	/**
+	 * Sends a terminate request, see
+	 * {@link ClientProtocol#terminateRequest(boolean)}.
+	 * 
+	 * @param shutdown
+	 *            If shutdown should be requested.
+	 * @return Completes when the request has been written.
+	 */
+	public Completion<Void> terminateRequest(final boolean shutdown) {
+		return submit(new Write() {
+			@Override
+			protected void write() throws Exception {
+				protocol.terminateRequest(shutdown);
+			}
+		});
+	}
+
+	/**
+	 * Sends a ping request, see {@link Protocol#ping(PingCallback)}.
+	 * 
+	 * @return Completes with the round trip time in nanoseconds when the
+	 *         response has been processed, fails if the request cannot be
+	 *         sent, if a ping already has been requested or if the connection
+	 *         ends first.
+	 */
+	public Completion<Long> ping() {
+		final Completion<Long> completion = new Completion<Long>();
+		synchronized (this) {
+			if (ping != null) {
+				completion.fail(new ProtocolException(
+						"Ping already requested"));
+				return completion;
+			}
+			ping = completion;
+		}
+		submit(new Write() {
+			@Override
+			protected void write() throws Exception {
+				protocol.ping(new PingCallback() {
+					@Override
+					public void run(long diff) {
+						// Completed after processing, outside the protocol
+						synchronized (AsyncClientProtocol.this) {
+							pingDiff = diff;
+						}
+					}
+				});
+			}
+		}).addListener(new Completion.Listener<Void>() {
+			@Override
+			public void completed(Void value) {
+				// Waits for the response
+			}
+
+			@Override
+			public void failed(Exception e) {
+				synchronized (AsyncClientProtocol.this) {
+					ping = null;
+				}
+				completion.fail(e);
+			}
+		});
+		return completion;
+	}
+
+	/**
+	 * Processes a packet from the server and completes the replies it
+	 * carries, see {@link ClientProtocol#process(Packet)}.
+	 * 
+	 * @param packet
+	 *            The packet to process.
+	 * @throws Exception
+	 *             If processing fails, the connection should be closed.
+	 */
+	public void process(Packet packet) throws Exception {
+		protocol.process(packet);
+		// Not under the lock, the ping callback locks in the other order
+		boolean done = protocol.isAuthenticated();
+		Completion<Void> authenticated = null;
+		Completion<Long> pong = null;
+		long diff;
+		synchronized (this) {
+			if (authentication != null && done) {
+				authenticated = authentication;
+			}
+			diff = pingDiff;
+			if (diff >= 0) {
+				pong = ping;
+				ping = null;
+				pingDiff = -1;
+			}
+		}
+		// Outside the lock, the listeners may send more requests
+		if (authenticated != null) {
+			authenticated.complete(null);
+		}
+		if (pong != null) {
+			pong.complete(diff);
+		}
+	}
+
+	/**
+	 * Starts a reader thread that processes packets until the input stream
+	 * ends or fails. Replies that are still pending then fail.
+	 * 
+	 * @throws ProtocolException
+	 *             If already started.
+	 */
+	public synchronized void start() throws ProtocolException {
+		if (reader != null) {
+			throw new ProtocolException("Already started");
+		}
+		reader = new Thread("client-reader") {
+			@Override
+			public void run() {
+				Exception reason = new ProtocolException("Connection closed");
+				try {
+					Packet packet;
+					while ((packet = protocol.nextPacket()) != null) {
+						process(packet);
+					}
+				} catch (Exception e) {
+					reason = e;
+				}
+				failPending(reason);
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Fails the replies that are still pending.
+	 * 
+	 * @param reason
+	 *            The reason.
+	 */
+	private void failPending(Exception reason) {
+		Completion<Void> authenticated;
+		Completion<Long> pong;
+		synchronized (this) {
+			authenticated = authentication;
+			pong = ping;
+			ping = null;
+		}
+		// Does nothing if already authenticated
+		if (authenticated != null) {
+			authenticated.fail(reason);
+		}
+		if (pong != null) {
+			pong.fail(reason);
+		}
+	}
+
+	/**
+	 * Stops the writer thread and closes the protocol, see
+	 * {@link Protocol#close()}. Queued requests and pending replies fail.
+	 * The streams are not closed, close them to stop the reader thread.
+	 */
+	public void close() {
+		writer.shutdown();
+		protocol.close();
+		failPending(new ProtocolException("Protocol is closed"));
+	}
+}
@@ -0,0 +1,298 @@
+package remote.api;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import remote.api.exceptions.ProtocolException;
+import remote.api.metrics.StripedCounter;
+
+/**
+ * Recycles {@link Cipher} objects of closed sessions, so that a new session
+ * does not pay for the provider lookup and set up of
+ * {@link Cipher#getInstance(String)}. A recycled cipher is always initialized
+ * again with the key of its new session before it is used.
+ * <p>
+ * Only symmetric ciphers are kept, and each is initialized with a blank key
+ * when it is returned, so that an idle cipher holds no session key. Pooling
+ * is off until a pool is installed with {@link #setShared(CipherPool)}.
+ * <p>
+ * Idle ciphers are kept in stripes, chosen by thread, that each hold a bounded
+ * number of ciphers per transformation. A thread whose stripe is empty takes
+ * from the other stripes before creating a new cipher.
+ */
+public class CipherPool {
+	/**
+	 * Default number of idle ciphers per stripe and transformation.
+	 */
+	public static final int DEFAULT_CAPACITY = 16;
+
+	/**
+	 * The pool used by the protocols, null to not pool.
+	 */
+	private static volatile CipherPool shared = null;
+	/**
+	 * Key that replaces the session key of a returned cipher.
+	 */
+	private static final byte[] BLANK_KEY = new byte[16];
+
+	/**
+	 * Idle ciphers of one transformation in one stripe.
+	 */
+	private static class Stripe {
+		/**
+		 * The idle ciphers.
+		 */
+		private final Cipher[] ciphers;
+		/**
+		 * Number of idle ciphers.
+		 */
+		private int size;
+
+		/**
+		 * Constructs a new empty stripe.
+		 * 
+		 * @param capacity
+		 *            Maximum number of idle ciphers.
+		 */
+		private Stripe(int capacity) {
+			ciphers = new Cipher[capacity];
+			size = 0;
+		}
+
+		/**
+		 * Takes an idle cipher.
+		 * 
+		 * @return The cipher or null if empty.
+		 */
+		private synchronized Cipher poll() {
+			if (size == 0) {
+				return null;
+			}
+			Cipher cipher = ciphers[--size];
+			ciphers[size] = null;
+			return cipher;
+		}
+
+		/**
+		 * Adds an idle cipher.
+		 * 
+		 * @param cipher
+		 *            The cipher.
+		 * @return False if full.
+		 */
+		private synchronized boolean offer(Cipher cipher) {
+			if (size == ciphers.length) {
+				return false;
+			}
+			ciphers[size++] = cipher;
+			return true;
+		}
+	}
+
+	/**
+	 * Number of stripes, a power of two.
+	 */
+	private final int stripes;
+	/**
+	 * Maximum number of idle ciphers per stripe and transformation.
+	 */
+	private final int capacity;
+	/**
+	 * The stripes of each transformation.
+	 */
+	private final ConcurrentMap<String, Stripe[]> idle;
+	/**
+	 * Number of created ciphers.
+	 */
+	private final StripedCounter created;
+	/**
+	 * Number of reused ciphers.
+	 */
+	private final StripedCounter reused;
+
+	/**
+	 * Constructs a new cipher pool with the default number of stripes and
+	 * capacity.
+	 */
+	public CipherPool() {
+		stripes = StripedCounter.DEFAULT_STRIPES;
+		capacity = DEFAULT_CAPACITY;
+		idle = new ConcurrentHashMap<String, Stripe[]>();
+		created = new StripedCounter();
+		reused = new StripedCounter();
+	}
+
+	/**
+	 * Constructs a new cipher pool.
+	 * 
+	 * @param stripes
+	 *            Number of stripes, rounded up to a power of two.
+	 * @param capacity
+	 *            Maximum number of idle ciphers per stripe and transformation.
+	 * @throws ProtocolException
+	 *             If stripes or capacity is less than one.
+	 */
+	public CipherPool(int stripes, int capacity) throws ProtocolException {
+		if (stripes < 1) {
+			throw new ProtocolException("Stripes must be positive");
+		}
+		if (capacity < 1) {
+			throw new ProtocolException("Capacity must be positive");
+		}
+		int n = 1;
+		while (n < stripes) {
+			n <<= 1;
+		}
+		this.stripes = n;
+		this.capacity = capacity;
+		idle = new ConcurrentHashMap<String, Stripe[]>();
+		created = new StripedCounter();
+		reused = new StripedCounter();
+	}
+
+	/**
+	 * Gets the pool used by the protocols.
+	 * 
+	 * @return The pool or null if ciphers are not pooled.
+	 */
+	public static CipherPool getShared() {
+		return shared;
+	}
+
+	/**
+	 * Sets the pool used by protocols created after the call.
+	 * 
+	 * @param pool
+	 *            The pool or null to not pool ciphers.
+	 */
+	public static void setShared(CipherPool pool) {
+		shared = pool;
+	}
+
+	/**
+	 * Gets the stripes of a transformation.
+	 * 
+	 * @param transformation
+	 *            The transformation.
+	 * @return The stripes.
+	 */
+	private Stripe[] stripes(String transformation) {
+		Stripe[] s = idle.get(transformation);
+		if (s == null) {
+			s = new Stripe[stripes];
+			for (int i = 0; i < s.length; i++) {
+				s[i] = new Stripe(capacity);
+			}
+			Stripe[] existing = idle.putIfAbsent(transformation, s);
+			if (existing != null) {
+				s = existing;
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Gets the stripe of the current thread.
+	 * 
+	 * @return The index of the stripe.
+	 */
+	private int index() {
+		// Spread the thread ids so consecutive threads get separate stripes
+		long id = Thread.currentThread().getId();
+		int h = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+		return h & (stripes - 1);
+	}
+
+	/**
+	 * Gets an uninitialized cipher, recycled if possible.
+	 * 
+	 * @param transformation
+	 *            The transformation, see {@link Cipher#getInstance(String)}.
+	 * @return The cipher, which must be initialized before it is used.
+	 * @throws GeneralSecurityException
+	 *             If the transformation is not available.
+	 */
+	public Cipher get(String transformation) throws GeneralSecurityException {
+		Stripe[] s = idle.get(transformation);
+		if (s != null) {
+			int index = index();
+			for (int i = 0; i < s.length; i++) {
+				Cipher cipher = s[(index + i) & (s.length - 1)].poll();
+				if (cipher != null) {
+					reused.increment();
+					return cipher;
+				}
+			}
+		}
+		created.increment();
+		return Cipher.getInstance(transformation);
+	}
+
+	/**
+	 * Returns a cipher that is no longer used. The caller must not use it
+	 * again. The cipher is initialized with a blank key first, a cipher that
+	 * cannot be, such as an asymmetric one, is not kept.
+	 * 
+	 * @param cipher
+	 *            The cipher or null.
+	 * @return True if the cipher was kept, false if the stripe was full or
+	 *         the cipher is not kept.
+	 */
+	public boolean put(Cipher cipher) {
+		if (cipher == null || !blank(cipher)) {
+			return false;
+		}
+		return stripes(cipher.getAlgorithm())[index()].offer(cipher);
+	}
+
+	/**
+	 * Replaces the key of a symmetric cipher with a blank key.
+	 * 
+	 * @param cipher
+	 *            The cipher.
+	 * @return False if the cipher does not take a secret key.
+	 */
+	private static boolean blank(Cipher cipher) {
+		String transformation = cipher.getAlgorithm();
+		int slash = transformation.indexOf('/');
+		String name = slash < 0 ? transformation : transformation.substring(0,
+				slash);
+		int blockSize = cipher.getBlockSize();
+		try {
+			SecretKeySpec key = new SecretKeySpec(BLANK_KEY, name);
+			if (blockSize > 0 && slash >= 0
+					&& !transformation.startsWith("ECB", slash + 1)) {
+				cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(
+						new byte[blockSize]));
+			} else {
+				cipher.init(Cipher.ENCRYPT_MODE, key);
+			}
+			return true;
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the number of ciphers created by the pool.
+	 * 
+	 * @return The number of created ciphers.
+	 */
+	public long getCreated() {
+		return created.sum();
+	}
+
+	/**
+	 * Gets the number of ciphers that were recycled.
+	 * 
+	 * @return The number of reused ciphers.
+	 */
+	public long getReused() {
+		return reused.sum();
+	}
+}
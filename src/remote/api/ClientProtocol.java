@@ -11,9 +11,11 @@ import remote.api.exceptions.AuthenticationException;
 import remote.api.exceptions.PacketException;
 import remote.api.exceptions.ProtocolException;
 import remote.api.messages.AuthenticationRequest;
+import remote.api.messages.AuthenticationResponse;
 import remote.api.messages.CommandRequest;
 import remote.api.messages.Message;
 import remote.api.messages.Ping;
+import remote.api.messages.Rekey;
 import remote.api.messages.TerminateRequest;
 
 /**
@@ -28,9 +30,19 @@ public class ClientProtocol extends Protocol {
 	 * Initialization vector for block cipher.
 	 */
 	private byte[] iv;
+	/**
+	 * State if the compact record format is offered.
+	 */
+	private boolean compactOffered;
+	/**
+	 * State if the authentication request is sent without the secure
+	 * algorithm.
+	 */
+	private boolean trusted;
 
 	/**
-	 * Constructs a new client protocol.
+	 * Constructs a new client protocol with a block key and initialization
+	 * vector from the shared {@link KeyMaterial}.
 	 * 
 	 * @param publicKey
 	 *            The public key for the secure algorithm.
@@ -51,8 +63,8 @@ public class ClientProtocol extends Protocol {
 	public ClientProtocol(PublicKey publicKey, InputStream input,
 			OutputStream output) throws GeneralSecurityException,
 			ProtocolException, PacketException {
-		this(publicKey, Utils.generateRandom(Packet.BLOCK_KEY_SIZE), Utils
-				.generateRandom(Packet.BLOCK_SIZE), input, output);
+		this(publicKey, KeyMaterial.getShared().next(Packet.BLOCK_KEY_SIZE),
+				KeyMaterial.getShared().next(Packet.BLOCK_SIZE), input, output);
 	}
 
 	/**
@@ -84,6 +96,38 @@ public class ClientProtocol extends Protocol {
 		super(publicKey, key, iv, input, output);
 		this.key = key;
 		this.iv = iv;
+		compactOffered = false;
+		trusted = false;
+	}
+
+	/**
+	 * Sets if the compact record format is offered to the server, see
+	 * {@link Packet#FORMAT_COMPACT}. Servers that do not support it ignore
+	 * the offer, and credentials of the maximum length leave no room for it.
+	 * The format has no integrity protection, so only offer it where the
+	 * connection cannot be changed on the way. Must be set before
+	 * {@link #authenticate(byte[], byte[])}.
+	 * 
+	 * @param offer
+	 *            True to offer the compact record format.
+	 */
+	public synchronized void setCompact(boolean offer) {
+		compactOffered = offer;
+	}
+
+	/**
+	 * Sets if the trusted handshake is used, which sends the authentication
+	 * request without the secure algorithm. Only use it on a connection that
+	 * no one else can read or connect to, see {@link LocalTransport}. The
+	 * server must use it as well, see
+	 * {@link ServerProtocol#setTrusted(boolean)}. Must be set before
+	 * {@link #authenticate(byte[], byte[])}.
+	 * 
+	 * @param trusted
+	 *            True to use the trusted handshake.
+	 */
+	public synchronized void setTrusted(boolean trusted) {
+		this.trusted = trusted;
 	}
 
 	/**
@@ -94,7 +138,7 @@ public class ClientProtocol extends Protocol {
 	 * @param password
 	 *            Encoded password for the user.
 	 * @throws ProtocolException
-	 *             If already authenticated.
+	 *             If closed or already authenticated.
 	 * @throws PacketException
 	 *             If it fails to pack or encrypt the data.
 	 * @throws IOException
@@ -102,10 +146,18 @@ public class ClientProtocol extends Protocol {
 	 */
 	public synchronized void authenticate(byte[] user, byte[] password)
 			throws ProtocolException, PacketException, IOException {
+		checkOpen();
 		if (authenticated) {
 			throw new AuthenticationException("Already authenticated");
 		}
-		writeSecure(new AuthenticationRequest(key, iv, user, password).pack());
+		byte formats = compactOffered ? Packet.FORMAT_COMPACT : 0;
+		Packet packet = new AuthenticationRequest(key, iv, user, password,
+				formats).pack();
+		if (trusted) {
+			writeTrusted(packet);
+		} else {
+			writeSecure(packet);
+		}
 	}
 
 	/**
@@ -145,22 +197,35 @@ public class ClientProtocol extends Protocol {
 	@Override
 	public synchronized void process(Packet packet) throws PacketException,
 			IOException, ProtocolException {
+		checkOpen();
 		if (authenticated) {
-			Message message = packet.decode(blockDecryptCipher);
+			Message message = decode(packet, blockDecryptCipher);
 			byte type = message.getType();
 			switch (type) {
 			case Message.PING:
 				processPing((Ping) message);
 				return;
+			case Message.REKEY:
+				processRekey((Rekey) message);
+				return;
 			}
 			throw new ProtocolException("Unexpected message type: " + type);
 		} else {
 			// Only accept authentication responses
-			Message message = packet.decode(blockDecryptCipher);
+			Message message = decode(packet, blockDecryptCipher);
 			byte type = message.getType();
 			switch (type) {
 			case Message.AUTHENTICATION_RESPONSE:
+				byte format = ((AuthenticationResponse) message).getFormat();
+				if (format != 0 && (format != Packet.FORMAT_COMPACT
+						|| !compactOffered)) {
+					throw new ProtocolException("Unexpected record format: "
+							+ format);
+				}
 				authenticated = true;
+				if (format == Packet.FORMAT_COMPACT) {
+					startCompact();
+				}
 				return;
 			}
 			throw new ProtocolException("Unexpected message type: " + type);
@@ -0,0 +1,273 @@
+package remote.api;
+
+import remote.api.Reactive.Publisher;
+import remote.api.Reactive.Subscriber;
+import remote.api.Reactive.Subscription;
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Publishes the commands that a {@link ServerProtocol} receives to one
+ * subscriber, instead of a loop over {@link Protocol#nextPacket()} and a
+ * {@link Handler#command(Command)} callback. Give the publisher to the
+ * protocol as its handler and {@link #start(ServerProtocol)} it.
+ * <p>
+ * The reader thread only reads the next packet while the subscriber has
+ * requested more commands. When the demand is zero nothing is read, so the
+ * client is held back by the transport instead of commands being buffered,
+ * apart from the read buffer of the {@link PacketScanner}.
+ * Pings and re-keys are not answered meanwhile either. Commands are
+ * published on the reader thread, so the protocol must not use a
+ * {@link CommandQueue}.
+ */
+public class CommandPublisher implements Publisher<Command>, Handler {
+	/**
+	 * Handles authentication and terminate requests.
+	 */
+	private final Handler handler;
+	/**
+	 * The subscription or null if none.
+	 */
+	private CommandSubscription subscription;
+	/**
+	 * The reader thread or null if not started.
+	 */
+	private Thread reader;
+	/**
+	 * A request that was not positive, reported by the reader thread, or
+	 * null.
+	 */
+	private IllegalArgumentException invalid;
+
+	/**
+	 * The subscription of the only subscriber.
+	 */
+	private class CommandSubscription implements Subscription {
+		/**
+		 * The subscriber.
+		 */
+		private final Subscriber<? super Command> subscriber;
+		/**
+		 * Number of commands requested but not yet published.
+		 */
+		private long demand;
+		/**
+		 * State if cancelled or if the stream has ended.
+		 */
+		private boolean cancelled;
+
+		/**
+		 * Constructs a new subscription.
+		 * 
+		 * @param subscriber
+		 *            The subscriber.
+		 */
+		private CommandSubscription(Subscriber<? super Command> subscriber) {
+			this.subscriber = subscriber;
+			demand = 0;
+			cancelled = false;
+		}
+
+		@Override
+		public void request(long n) {
+			synchronized (CommandPublisher.this) {
+				if (cancelled) {
+					return;
+				}
+				if (n <= 0) {
+					// Stops the reader, which reports the error
+					cancelled = true;
+					invalid = new IllegalArgumentException(
+							"Request must be positive: " + n);
+				} else {
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				}
+				CommandPublisher.this.notifyAll();
+			}
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (CommandPublisher.this) {
+				cancelled = true;
+				CommandPublisher.this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Constructs a new publisher.
+	 * 
+	 * @param handler
+	 *            Handles authentication and terminate requests, its
+	 *            {@link Handler#command(Command)} is not called.
+	 * @throws ProtocolException
+	 *             If handler is null.
+	 */
+	public CommandPublisher(Handler handler) throws ProtocolException {
+		if (handler == null) {
+			throw new ProtocolException("Handler cannot be null");
+		}
+		this.handler = handler;
+		subscription = null;
+		reader = null;
+		invalid = null;
+	}
+
+	/**
+	 * Subscribes the only subscriber. Another subscriber receives an
+	 * {@link Subscriber#onError(Throwable)} with a {@link ProtocolException}.
+	 * 
+	 * @param subscriber
+	 *            The subscriber.
+	 * @throws NullPointerException
+	 *             If subscriber is null.
+	 */
+	@Override
+	public void subscribe(Subscriber<? super Command> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException("Subscriber cannot be null");
+		}
+		CommandSubscription created = new CommandSubscription(subscriber);
+		boolean first;
+		synchronized (this) {
+			first = subscription == null;
+			if (first) {
+				subscription = created;
+			}
+		}
+		if (first) {
+			subscriber.onSubscribe(created);
+			return;
+		}
+		created.cancelled = true;
+		subscriber.onSubscribe(created);
+		subscriber.onError(new ProtocolException("Already subscribed"));
+	}
+
+	/**
+	 * Starts the reader thread, which waits for demand before each packet
+	 * and processes it. The subscriber completes when the input stream ends
+	 * and fails when processing fails. Cancelling stops the thread before
+	 * the next packet, close the stream to stop it at once.
+	 * 
+	 * @param protocol
+	 *            The protocol that has this publisher as its handler.
+	 * @throws ProtocolException
+	 *             If protocol is null or if already started.
+	 */
+	public synchronized void start(final ServerProtocol protocol)
+			throws ProtocolException {
+		if (protocol == null) {
+			throw new ProtocolException("Protocol cannot be null");
+		}
+		if (reader != null) {
+			throw new ProtocolException("Already started");
+		}
+		reader = new Thread("command-publisher") {
+			@Override
+			public void run() {
+				read(protocol);
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Reads and processes packets while there is demand.
+	 * 
+	 * @param protocol
+	 *            The protocol.
+	 */
+	private void read(ServerProtocol protocol) {
+		CommandSubscription current = null;
+		try {
+			while (true) {
+				synchronized (this) {
+					while (subscription == null || subscription.demand == 0
+							&& !subscription.cancelled) {
+						wait();
+					}
+					current = subscription;
+					if (current.cancelled) {
+						break;
+					}
+				}
+				Packet packet = protocol.nextPacket();
+				if (packet == null) {
+					finish(current, null);
+					return;
+				}
+				protocol.process(packet);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (Exception e) {
+			// Only thrown after a subscription has been taken
+			finish(current, e);
+			return;
+		}
+		IllegalArgumentException e;
+		synchronized (this) {
+			e = invalid;
+		}
+		if (e != null) {
+			current.subscriber.onError(e);
+		}
+	}
+
+	/**
+	 * Ends the stream unless cancelled.
+	 * 
+	 * @param current
+	 *            The subscription.
+	 * @param e
+	 *            The reason or null if the stream completed.
+	 */
+	private void finish(CommandSubscription current, Exception e) {
+		synchronized (this) {
+			if (current.cancelled) {
+				return;
+			}
+			current.cancelled = true;
+		}
+		if (e != null) {
+			current.subscriber.onError(e);
+		} else {
+			current.subscriber.onComplete();
+		}
+	}
+
+	@Override
+	public boolean authentication(byte[] user, byte[] password) {
+		return handler.authentication(user, password);
+	}
+
+	/**
+	 * Publishes a command, called by the protocol on the reader thread.
+	 * 
+	 * @param command
+	 *            The command.
+	 */
+	@Override
+	public void command(Command command) {
+		CommandSubscription current;
+		synchronized (this) {
+			current = subscription;
+			if (current == null || current.cancelled) {
+				return;
+			}
+			// At most one command per packet, so it never goes below zero
+			current.demand--;
+		}
+		current.subscriber.onNext(command);
+	}
+
+	@Override
+	public void terminate(boolean shutdown) {
+		handler.terminate(shutdown);
+	}
+}
@@ -0,0 +1,420 @@
+package remote.api;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.exceptions.ProtocolException;
+import remote.api.metrics.ProtocolMetrics;
+
+/**
+ * A bounded ring buffer of commands between the reading side of a
+ * {@link ServerProtocol} and {@link Handler#command(Command)}. The reader puts
+ * decoded commands in the queue and a dispatcher takes them out, so a slow
+ * handler cannot make the session buffer an unbounded amount of input.
+ * Discrete commands are never dropped, only motion commands (see
+ * {@link Command#isMotion()}) can be. Terminate requests are queued behind
+ * the commands before them, see {@link #terminate(boolean)}.
+ */
+public class CommandQueue {
+	/**
+	 * What to do when a command is put in a full queue.
+	 */
+	public enum Policy {
+		/**
+		 * Block the reader until there is room in the queue.
+		 */
+		BLOCK,
+		/**
+		 * Drop the oldest queued motion command to make room. If there is no
+		 * queued motion an incoming motion command is dropped instead and an
+		 * incoming discrete command blocks the reader.
+		 */
+		DROP_MOTION,
+		/**
+		 * Fail with a protocol exception so the session is disconnected.
+		 */
+		DISCONNECT
+	}
+
+	/**
+	 * The ring buffer of commands, and of {@link Boolean} shutdown flags for
+	 * terminate requests.
+	 */
+	private final Object[] buffer;
+	/**
+	 * The overflow policy.
+	 */
+	private final Policy policy;
+	/**
+	 * Position of the oldest command in the buffer.
+	 */
+	private int head;
+	/**
+	 * Number of commands in the buffer.
+	 */
+	private int count;
+	/**
+	 * Number of motion commands in the buffer.
+	 */
+	private int motionCount;
+	/**
+	 * Number of commands dropped due to overflow.
+	 */
+	private long dropped;
+	/**
+	 * State if the queue has been closed.
+	 */
+	private boolean closed;
+	/**
+	 * Guards all state of the queue.
+	 */
+	private final ReentrantLock lock;
+	/**
+	 * Signalled when a command is added or the queue is closed.
+	 */
+	private final Condition notEmpty;
+	/**
+	 * Signalled when a command is removed or the queue is closed.
+	 */
+	private final Condition notFull;
+
+	/**
+	 * Constructs a new command queue.
+	 * 
+	 * @param capacity
+	 *            The maximum number of queued commands.
+	 * @param policy
+	 *            What to do when the queue is full.
+	 * @throws ProtocolException
+	 *             If the capacity is less than one or policy is null.
+	 */
+	public CommandQueue(int capacity, Policy policy) throws ProtocolException {
+		if (capacity < 1) {
+			throw new ProtocolException("Capacity must be positive");
+		}
+		if (policy == null) {
+			throw new ProtocolException("Policy cannot be null");
+		}
+		buffer = new Object[capacity];
+		this.policy = policy;
+		head = 0;
+		count = 0;
+		motionCount = 0;
+		dropped = 0;
+		closed = false;
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+		notFull = lock.newCondition();
+	}
+
+	/**
+	 * Adds a command to the queue, applying the overflow policy if full.
+	 * 
+	 * @param command
+	 *            The command to add.
+	 * @return True if the command was queued, false if it was dropped.
+	 * @throws ProtocolException
+	 *             If the queue is closed or full with the
+	 *             {@link Policy#DISCONNECT} policy.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for room.
+	 */
+	public boolean put(Command command) throws ProtocolException,
+			InterruptedException {
+		return add(command);
+	}
+
+	/**
+	 * Adds a terminate request behind the queued commands, so the handler
+	 * sees it after them. It is never dropped, and it waits for room unless
+	 * the policy is {@link Policy#DISCONNECT}. Only
+	 * {@link #dispatch(Handler)} passes it on, {@link #take()} and
+	 * {@link #poll(long, TimeUnit)} skip it.
+	 * 
+	 * @param shutdown
+	 *            If shutdown is requested.
+	 * @throws ProtocolException
+	 *             If the queue is closed or full with the
+	 *             {@link Policy#DISCONNECT} policy.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for room.
+	 */
+	public void terminate(boolean shutdown) throws ProtocolException,
+			InterruptedException {
+		add(Boolean.valueOf(shutdown));
+	}
+
+	/**
+	 * Checks if an entry of the buffer is a motion command.
+	 * 
+	 * @param entry
+	 *            The entry.
+	 * @return True if motion.
+	 */
+	private static boolean isMotion(Object entry) {
+		return entry instanceof Command && ((Command) entry).isMotion();
+	}
+
+	/**
+	 * Adds a command or a terminate request, applying the overflow policy if
+	 * full.
+	 * 
+	 * @param entry
+	 *            The command or the shutdown flag of a terminate request.
+	 * @return True if it was queued, false if it was dropped.
+	 * @throws ProtocolException
+	 *             If the queue is closed or full with the
+	 *             {@link Policy#DISCONNECT} policy.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for room.
+	 */
+	private boolean add(Object entry) throws ProtocolException,
+			InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (count == buffer.length) {
+				if (closed) {
+					break;
+				}
+				if (policy == Policy.DISCONNECT) {
+					throw new ProtocolException("Command queue overflow");
+				} else if (policy == Policy.DROP_MOTION) {
+					if (motionCount > 0) {
+						removeOldestMotion();
+						dropped++;
+						break;
+					} else if (isMotion(entry)) {
+						dropped++;
+						return false;
+					}
+				}
+				notFull.await();
+			}
+			if (closed) {
+				throw new ProtocolException("Command queue is closed");
+			}
+			buffer[(head + count) % buffer.length] = entry;
+			count++;
+			if (isMotion(entry)) {
+				motionCount++;
+			}
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the oldest motion command and closes the gap it leaves. Must be
+	 * called with the lock held and at least one motion command queued.
+	 */
+	private void removeOldestMotion() {
+		int length = buffer.length;
+		int i = 0;
+		while (!isMotion(buffer[(head + i) % length])) {
+			i++;
+		}
+		// Shift the newer commands one step towards the head
+		for (; i < count - 1; i++) {
+			buffer[(head + i) % length] = buffer[(head + i + 1) % length];
+		}
+		buffer[(head + count - 1) % length] = null;
+		count--;
+		motionCount--;
+	}
+
+	/**
+	 * Takes the oldest command from the queue, blocking until one is available.
+	 * Terminate requests are skipped.
+	 * 
+	 * @return The oldest command or null if the queue is closed and empty.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	public Command take() throws InterruptedException {
+		Object entry;
+		do {
+			entry = next();
+		} while (entry instanceof Boolean);
+		return (Command) entry;
+	}
+
+	/**
+	 * Takes the oldest entry from the queue, blocking until one is available.
+	 * 
+	 * @return The oldest command or terminate request, or null if the queue
+	 *         is closed and empty.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	private Object next() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				if (closed) {
+					return null;
+				}
+				notEmpty.await();
+			}
+			return remove();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the oldest command from the queue, waiting at most the given time
+	 * for one to become available. Terminate requests are skipped.
+	 * 
+	 * @param timeout
+	 *            The maximum time to wait.
+	 * @param unit
+	 *            The unit of the timeout.
+	 * @return The oldest command or null if none was available in time or the
+	 *         queue is closed and empty.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	public Command poll(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (true) {
+				while (count == 0) {
+					if (closed || nanos <= 0) {
+						return null;
+					}
+					nanos = notEmpty.awaitNanos(nanos);
+				}
+				Object entry = remove();
+				if (entry instanceof Command) {
+					return (Command) entry;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the head of the queue. Must be called with the lock held and at
+	 * least one entry queued.
+	 * 
+	 * @return The removed command or terminate request.
+	 */
+	private Object remove() {
+		Object entry = buffer[head];
+		buffer[head] = null;
+		head = (head + 1) % buffer.length;
+		count--;
+		if (isMotion(entry)) {
+			motionCount--;
+		}
+		notFull.signal();
+		return entry;
+	}
+
+	/**
+	 * Takes commands and terminate requests from the queue and passes them to
+	 * the handler in order until the queue is closed and empty. Intended to
+	 * be the body of a dispatch thread.
+	 * 
+	 * @param handler
+	 *            The handler to dispatch to.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for commands.
+	 */
+	public void dispatch(Handler handler) throws InterruptedException {
+		Object entry;
+		while ((entry = next()) != null) {
+			if (entry instanceof Boolean) {
+				handler.terminate((Boolean) entry);
+			} else {
+				handler.command((Command) entry);
+			}
+		}
+	}
+
+	/**
+	 * Same as {@link #dispatch(Handler)} but also measures the time the
+	 * handler spends on each command.
+	 * 
+	 * @param handler
+	 *            The handler to dispatch to.
+	 * @param metrics
+	 *            Where the commands are counted.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for commands.
+	 */
+	public void dispatch(Handler handler, ProtocolMetrics metrics)
+			throws InterruptedException {
+		Object entry;
+		while ((entry = next()) != null) {
+			if (entry instanceof Boolean) {
+				handler.terminate((Boolean) entry);
+				continue;
+			}
+			Command command = (Command) entry;
+			long start = System.nanoTime();
+			handler.command(command);
+			metrics.command(command.getType(), System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Closes the queue. Queued commands can still be taken, but no more
+	 * commands can be added and waiting threads are released.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of queued commands and terminate requests.
+	 * 
+	 * @return The number of entries in the queue.
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of commands dropped because the queue was full.
+	 * 
+	 * @return The number of dropped commands.
+	 */
+	public long getDropped() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the overflow policy.
+	 * 
+	 * @return The policy.
+	 */
+	public Policy getPolicy() {
+		return policy;
+	}
+}
@@ -0,0 +1,312 @@
+package remote.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an asynchronous operation, see {@link AsyncClientProtocol}.
+ * Besides waiting with {@link #get()}, listeners can be added and
+ * completions can be chained with {@link #then(Transform)} and
+ * {@link #compose(Transform)}.
+ * <p>
+ * Listeners run on the thread that completes the operation, or on the
+ * thread that adds them if already done, so they should not block.
+ * 
+ * @param <T>
+ *            Type of the result.
+ */
+public class Completion<T> implements Future<T> {
+	/**
+	 * Receives the outcome of a completion.
+	 * 
+	 * @param <T>
+	 *            Type of the result.
+	 */
+	public interface Listener<T> {
+		/**
+		 * Called when the operation succeeded.
+		 * 
+		 * @param value
+		 *            The result.
+		 */
+		public void completed(T value);
+
+		/**
+		 * Called when the operation failed or was cancelled.
+		 * 
+		 * @param e
+		 *            The reason.
+		 */
+		public void failed(Exception e);
+	}
+
+	/**
+	 * Turns the result of one completion into the next.
+	 * 
+	 * @param <T>
+	 *            Type of the input.
+	 * @param <U>
+	 *            Type of the output.
+	 */
+	public interface Transform<T, U> {
+		/**
+		 * Transforms a result.
+		 * 
+		 * @param value
+		 *            The result.
+		 * @return The transformed result.
+		 * @throws Exception
+		 *             If it fails, which fails the next completion.
+		 */
+		public U apply(T value) throws Exception;
+	}
+
+	/**
+	 * State if done.
+	 */
+	private boolean done;
+	/**
+	 * The result if succeeded.
+	 */
+	private T value;
+	/**
+	 * The reason if failed or cancelled.
+	 */
+	private Exception failure;
+	/**
+	 * Listeners waiting for the outcome, null when done.
+	 */
+	private List<Listener<? super T>> listeners;
+
+	/**
+	 * Constructs a new completion that is not done.
+	 */
+	public Completion() {
+		done = false;
+		listeners = new ArrayList<Listener<? super T>>();
+	}
+
+	/**
+	 * Completes successfully, unless already done.
+	 * 
+	 * @param value
+	 *            The result.
+	 * @return True if this call completed it.
+	 */
+	public boolean complete(T value) {
+		return finish(value, null);
+	}
+
+	/**
+	 * Completes with a failure, unless already done.
+	 * 
+	 * @param e
+	 *            The reason.
+	 * @return True if this call completed it.
+	 */
+	public boolean fail(Exception e) {
+		return finish(null, e);
+	}
+
+	/**
+	 * Completes and notifies the listeners.
+	 * 
+	 * @param value
+	 *            The result.
+	 * @param e
+	 *            The reason or null if succeeded.
+	 * @return True if this call completed it.
+	 */
+	private boolean finish(T value, Exception e) {
+		List<Listener<? super T>> notify;
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			done = true;
+			this.value = value;
+			failure = e;
+			notify = listeners;
+			listeners = null;
+			notifyAll();
+		}
+		for (Listener<? super T> listener : notify) {
+			call(listener);
+		}
+		return true;
+	}
+
+	/**
+	 * Calls a listener with the outcome, must be done.
+	 * 
+	 * @param listener
+	 *            The listener.
+	 */
+	private void call(Listener<? super T> listener) {
+		if (failure != null) {
+			listener.failed(failure);
+		} else {
+			listener.completed(value);
+		}
+	}
+
+	/**
+	 * Adds a listener, called at once if already done.
+	 * 
+	 * @param listener
+	 *            The listener.
+	 * @return This completion.
+	 */
+	public Completion<T> addListener(Listener<? super T> listener) {
+		synchronized (this) {
+			if (!done) {
+				listeners.add(listener);
+				return this;
+			}
+		}
+		call(listener);
+		return this;
+	}
+
+	/**
+	 * Chains a transform that runs when this completes successfully.
+	 * 
+	 * @param <U>
+	 *            Type of the next result.
+	 * @param transform
+	 *            Turns the result into the next result.
+	 * @return Completes with the transformed result, or fails if this fails
+	 *         or the transform throws.
+	 */
+	public <U> Completion<U> then(final Transform<? super T, U> transform) {
+		final Completion<U> next = new Completion<U>();
+		addListener(new Listener<T>() {
+			@Override
+			public void completed(T value) {
+				try {
+					next.complete(transform.apply(value));
+				} catch (Exception e) {
+					next.fail(e);
+				}
+			}
+
+			@Override
+			public void failed(Exception e) {
+				next.fail(e);
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * Chains another asynchronous operation that starts when this completes
+	 * successfully.
+	 * 
+	 * @param <U>
+	 *            Type of the next result.
+	 * @param transform
+	 *            Starts the next operation.
+	 * @return Completes with the result of the next operation, or fails if
+	 *         this fails, the transform throws or the next operation fails.
+	 */
+	public <U> Completion<U> compose(
+			final Transform<? super T, Completion<U>> transform) {
+		final Completion<U> next = new Completion<U>();
+		final Listener<U> forward = new Listener<U>() {
+			@Override
+			public void completed(U value) {
+				next.complete(value);
+			}
+
+			@Override
+			public void failed(Exception e) {
+				next.fail(e);
+			}
+		};
+		addListener(new Listener<T>() {
+			@Override
+			public void completed(T value) {
+				try {
+					transform.apply(value).addListener(forward);
+				} catch (Exception e) {
+					next.fail(e);
+				}
+			}
+
+			@Override
+			public void failed(Exception e) {
+				next.fail(e);
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * Fails with a {@link CancellationException}, unless already done. The
+	 * operation itself is not stopped, a queued write is still sent.
+	 * 
+	 * @param mayInterruptIfRunning
+	 *            Ignored.
+	 * @return True if this call cancelled it.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return fail(new CancellationException("Cancelled"));
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return failure instanceof CancellationException;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public synchronized T get() throws InterruptedException,
+			ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return result();
+	}
+
+	@Override
+	public synchronized T get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException,
+			TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!done) {
+			long left = deadline - System.nanoTime();
+			if (left <= 0) {
+				throw new TimeoutException("Not completed in time");
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return result();
+	}
+
+	/**
+	 * Gets the outcome, must be done.
+	 * 
+	 * @return The result.
+	 * @throws ExecutionException
+	 *             If failed.
+	 */
+	private T result() throws ExecutionException {
+		if (failure instanceof CancellationException) {
+			throw (CancellationException) failure;
+		}
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+}
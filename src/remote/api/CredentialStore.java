@@ -0,0 +1,432 @@
+package remote.api;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import remote.api.ServerProtocol.Handler;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Users and passwords for {@link Handler#authentication(byte[], byte[])}.
+ * Passwords are stored as salted PBKDF2 hashes and compared in constant time.
+ * Since the hash is deliberately slow, successful logins are remembered for a
+ * short time under a keyed hash of user and password, so a client that
+ * reconnects does not pay for it again. Lookups never take a shared lock.
+ */
+public class CredentialStore {
+	/**
+	 * The key derivation algorithm.
+	 */
+	public static final String KDF_ALGORITHM = "PBKDF2WithHmacSHA1";
+	/**
+	 * The keyed hash of the cache.
+	 */
+	public static final String CACHE_ALGORITHM = "HmacSHA256";
+	/**
+	 * Size of the salt in bytes.
+	 */
+	public static final int SALT_SIZE = 16;
+	/**
+	 * Size of the hash in bytes.
+	 */
+	public static final int HASH_SIZE = 20;
+
+	/**
+	 * A stored password.
+	 */
+	private static class Entry {
+		/**
+		 * The salt.
+		 */
+		private final byte[] salt;
+		/**
+		 * The hash.
+		 */
+		private final byte[] hash;
+
+		/**
+		 * Constructs a new entry.
+		 * 
+		 * @param salt
+		 *            The salt.
+		 * @param hash
+		 *            The hash.
+		 */
+		private Entry(byte[] salt, byte[] hash) {
+			this.salt = salt;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * A remembered successful login.
+	 */
+	private static class Verified {
+		/**
+		 * The entry that was verified, the login is only valid while it is
+		 * still stored.
+		 */
+		private final Entry entry;
+		/**
+		 * When the login is forgotten.
+		 */
+		private final long expires;
+
+		/**
+		 * Constructs a new verified login.
+		 * 
+		 * @param entry
+		 *            The entry that was verified.
+		 * @param expires
+		 *            When the login is forgotten.
+		 */
+		private Verified(Entry entry, long expires) {
+			this.entry = entry;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Number of hash iterations.
+	 */
+	private final int iterations;
+	/**
+	 * How long a login is remembered in nanoseconds.
+	 */
+	private final long ttlNanos;
+	/**
+	 * Maximum number of remembered logins.
+	 */
+	private final int maxCached;
+	/**
+	 * The users.
+	 */
+	private final ConcurrentMap<ByteBuffer, Entry> users;
+	/**
+	 * The remembered logins by keyed hash.
+	 */
+	private final ConcurrentMap<ByteBuffer, Verified> cache;
+	/**
+	 * Entry that unknown users are checked against, so they take as long as
+	 * known ones.
+	 */
+	private final Entry dummy;
+	/**
+	 * Key of the cache hash, random for each store.
+	 */
+	private final SecretKeySpec cacheKey;
+	/**
+	 * The cache hash of each thread.
+	 */
+	private final ThreadLocal<Mac> macs;
+	/**
+	 * The key derivation of each thread.
+	 */
+	private final ThreadLocal<SecretKeyFactory> factories;
+	/**
+	 * Generates the salts.
+	 */
+	private final KeyMaterial random;
+
+	/**
+	 * Constructs a new credential store with 10000 iterations that remembers
+	 * up to 10000 logins for one minute.
+	 * 
+	 * @throws GeneralSecurityException
+	 *             If the algorithms are not available.
+	 * @throws ProtocolException
+	 *             Never with the default values.
+	 */
+	public CredentialStore() throws GeneralSecurityException,
+			ProtocolException {
+		this(10000, 60000, 10000);
+	}
+
+	/**
+	 * Constructs a new credential store.
+	 * 
+	 * @param iterations
+	 *            Number of hash iterations.
+	 * @param ttlMillis
+	 *            How long a login is remembered, 0 to not remember logins.
+	 * @param maxCached
+	 *            Maximum number of remembered logins.
+	 * @throws GeneralSecurityException
+	 *             If the algorithms are not available.
+	 * @throws ProtocolException
+	 *             If an argument is out of range.
+	 */
+	public CredentialStore(int iterations, long ttlMillis, int maxCached)
+			throws GeneralSecurityException, ProtocolException {
+		if (iterations < 1) {
+			throw new ProtocolException("Iterations must be positive");
+		}
+		if (ttlMillis < 0) {
+			throw new ProtocolException("Time to live cannot be negative");
+		}
+		if (maxCached < 1) {
+			throw new ProtocolException("Cache size must be positive");
+		}
+		this.iterations = iterations;
+		ttlNanos = ttlMillis * 1000000L;
+		this.maxCached = maxCached;
+		users = new ConcurrentHashMap<ByteBuffer, Entry>();
+		cache = new ConcurrentHashMap<ByteBuffer, Verified>();
+		random = KeyMaterial.getShared();
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		cacheKey = new SecretKeySpec(key, CACHE_ALGORITHM);
+		macs = new ThreadLocal<Mac>();
+		factories = new ThreadLocal<SecretKeyFactory>();
+		// Fails early if the algorithms are missing
+		mac();
+		dummy = create(new byte[0]);
+	}
+
+	/**
+	 * Gets the cache hash of this thread.
+	 * 
+	 * @return The initialized hash.
+	 * @throws GeneralSecurityException
+	 *             If the algorithm is not available.
+	 */
+	private Mac mac() throws GeneralSecurityException {
+		Mac mac = macs.get();
+		if (mac == null) {
+			mac = Mac.getInstance(CACHE_ALGORITHM);
+			mac.init(cacheKey);
+			macs.set(mac);
+		}
+		return mac;
+	}
+
+	/**
+	 * Hashes the password.
+	 * 
+	 * @param password
+	 *            The encoded password.
+	 * @param salt
+	 *            The salt.
+	 * @return The hash.
+	 * @throws GeneralSecurityException
+	 *             If the algorithm is not available.
+	 */
+	private byte[] hash(byte[] password, byte[] salt)
+			throws GeneralSecurityException {
+		SecretKeyFactory factory = factories.get();
+		if (factory == null) {
+			factory = SecretKeyFactory.getInstance(KDF_ALGORITHM);
+			factories.set(factory);
+		}
+		// Each byte as one char, so no two passwords give the same chars
+		char[] chars = new char[password.length];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = (char) (password[i] & 0xFF);
+		}
+		PBEKeySpec spec = new PBEKeySpec(chars, salt, iterations,
+				HASH_SIZE * 8);
+		try {
+			return factory.generateSecret(spec).getEncoded();
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+	/**
+	 * Creates an entry with a new salt.
+	 * 
+	 * @param password
+	 *            The encoded password.
+	 * @return The entry.
+	 * @throws GeneralSecurityException
+	 *             If the algorithm is not available.
+	 * @throws ProtocolException
+	 *             Never, the salt is not null.
+	 */
+	private Entry create(byte[] password) throws GeneralSecurityException,
+			ProtocolException {
+		byte[] salt = new byte[SALT_SIZE];
+		random.nextBytes(salt);
+		return new Entry(salt, hash(password, salt));
+	}
+
+	/**
+	 * Adds a user or changes the password of a user. Remembered logins of the
+	 * user are forgotten.
+	 * 
+	 * @param user
+	 *            The encoded user.
+	 * @param password
+	 *            The encoded password.
+	 * @throws ProtocolException
+	 *             If user or password is null.
+	 * @throws GeneralSecurityException
+	 *             If it fails to hash the password.
+	 */
+	public void add(byte[] user, byte[] password) throws ProtocolException,
+			GeneralSecurityException {
+		if (user == null) {
+			throw new ProtocolException("User cannot be null");
+		}
+		if (password == null) {
+			throw new ProtocolException("Password cannot be null");
+		}
+		users.put(ByteBuffer.wrap(user.clone()), create(password));
+	}
+
+	/**
+	 * Removes a user. Remembered logins of the user are forgotten.
+	 * 
+	 * @param user
+	 *            The encoded user.
+	 * @return True if the user was removed.
+	 * @throws ProtocolException
+	 *             If user is null.
+	 */
+	public boolean remove(byte[] user) throws ProtocolException {
+		if (user == null) {
+			throw new ProtocolException("User cannot be null");
+		}
+		return users.remove(ByteBuffer.wrap(user)) != null;
+	}
+
+	/**
+	 * Checks if the user exists.
+	 * 
+	 * @param user
+	 *            The encoded user.
+	 * @return True if the user exists.
+	 */
+	public boolean contains(byte[] user) {
+		return user != null && users.containsKey(ByteBuffer.wrap(user));
+	}
+
+	/**
+	 * Checks the password of a user, suitable to call from
+	 * {@link Handler#authentication(byte[], byte[])}. Unknown users take as
+	 * long as wrong passwords.
+	 * 
+	 * @param user
+	 *            The encoded user.
+	 * @param password
+	 *            The encoded password.
+	 * @return True if the user exists and the password is correct.
+	 */
+	public boolean verify(byte[] user, byte[] password) {
+		if (user == null || password == null) {
+			return false;
+		}
+		Entry entry = users.get(ByteBuffer.wrap(user));
+		try {
+			ByteBuffer key = null;
+			if (ttlNanos > 0 && entry != null) {
+				key = cacheKey(user, password);
+				Verified verified = cache.get(key);
+				if (verified != null) {
+					if (verified.entry == entry
+							&& System.nanoTime() - verified.expires < 0) {
+						return true;
+					}
+					cache.remove(key, verified);
+				}
+			}
+			Entry check = entry != null ? entry : dummy;
+			boolean valid = isEqual(check.hash, hash(password, check.salt));
+			if (!valid || entry == null) {
+				return false;
+			}
+			if (key != null) {
+				remember(key, entry);
+			}
+			return true;
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Computes the cache key of a login.
+	 * 
+	 * @param user
+	 *            The encoded user.
+	 * @param password
+	 *            The encoded password.
+	 * @return The key.
+	 * @throws GeneralSecurityException
+	 *             If the algorithm is not available.
+	 */
+	private ByteBuffer cacheKey(byte[] user, byte[] password)
+			throws GeneralSecurityException {
+		Mac mac = mac();
+		// The length separates user from password
+		mac.update((byte) (user.length >>> 24));
+		mac.update((byte) (user.length >>> 16));
+		mac.update((byte) (user.length >>> 8));
+		mac.update((byte) user.length);
+		mac.update(user);
+		mac.update(password);
+		return ByteBuffer.wrap(mac.doFinal());
+	}
+
+	/**
+	 * Remembers a successful login, if there is room.
+	 * 
+	 * @param key
+	 *            The cache key.
+	 * @param entry
+	 *            The verified entry.
+	 */
+	private void remember(ByteBuffer key, Entry entry) {
+		long now = System.nanoTime();
+		if (cache.size() >= maxCached) {
+			Iterator<Verified> it = cache.values().iterator();
+			while (it.hasNext()) {
+				if (now - it.next().expires >= 0) {
+					it.remove();
+				}
+			}
+			if (cache.size() >= maxCached) {
+				return;
+			}
+		}
+		cache.put(key, new Verified(entry, now + ttlNanos));
+	}
+
+	/**
+	 * Compares two arrays in a time that does not depend on where they
+	 * differ.
+	 * 
+	 * @param a
+	 *            The first array.
+	 * @param b
+	 *            The second array.
+	 * @return True if equal.
+	 */
+	private static boolean isEqual(byte[] a, byte[] b) {
+		if (a.length != b.length) {
+			return false;
+		}
+		int diff = 0;
+		for (int i = 0; i < a.length; i++) {
+			diff |= a[i] ^ b[i];
+		}
+		return diff == 0;
+	}
+
+	/**
+	 * Gets the number of remembered logins.
+	 * 
+	 * @return The number of logins.
+	 */
+	public int getCached() {
+		return cache.size();
+	}
+}
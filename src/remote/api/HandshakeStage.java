@@ -0,0 +1,215 @@
+package remote.api;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import remote.api.ServerProtocol.Handshake;
+import remote.api.exceptions.AuthenticationException;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Runs the slow half of server handshakes, the private key decryption and
+ * {@link ServerProtocol.Handler#authentication(byte[], byte[])}, on a bounded
+ * pool of worker threads, so that a thread that serves many sessions is never
+ * stalled by a connecting client. The fast half, initializing the block cipher
+ * and responding, is handed back to the executor of the session.
+ * <p>
+ * While a handshake is in progress nothing else may be processed for the
+ * session, the caller should stop reading from it until the listener has been
+ * called.
+ */
+public class HandshakeStage {
+	/**
+	 * Receives the outcome of a handshake, called through the executor of the
+	 * session.
+	 */
+	public interface Listener {
+		/**
+		 * Called when the session has been authenticated.
+		 * 
+		 * @param protocol
+		 *            The protocol of the session.
+		 */
+		public void authenticated(ServerProtocol protocol);
+
+		/**
+		 * Called when the handshake failed, the session should be closed.
+		 * 
+		 * @param protocol
+		 *            The protocol of the session.
+		 * @param e
+		 *            The reason.
+		 */
+		public void failed(ServerProtocol protocol, Exception e);
+	}
+
+	/**
+	 * The worker pool.
+	 */
+	private final ThreadPoolExecutor workers;
+
+	/**
+	 * Constructs a new handshake stage with one worker per processor and room
+	 * for 64 waiting handshakes per worker.
+	 * 
+	 * @throws ProtocolException
+	 *             Never with the default values.
+	 */
+	public HandshakeStage() throws ProtocolException {
+		this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime()
+				.availableProcessors() * 64);
+	}
+
+	/**
+	 * Constructs a new handshake stage.
+	 * 
+	 * @param threads
+	 *            Number of worker threads.
+	 * @param capacity
+	 *            Number of handshakes that may wait for a worker.
+	 * @throws ProtocolException
+	 *             If threads or capacity is less than one.
+	 */
+	public HandshakeStage(int threads, int capacity) throws ProtocolException {
+		if (threads < 1) {
+			throw new ProtocolException("Threads must be positive");
+		}
+		if (capacity < 1) {
+			throw new ProtocolException("Capacity must be positive");
+		}
+		final AtomicInteger number = new AtomicInteger();
+		workers = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						capacity), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "handshake-"
+								+ number.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Queues an authentication request, never blocks.
+	 * 
+	 * @param protocol
+	 *            The protocol of the session.
+	 * @param packet
+	 *            The packet that must contain an authentication request.
+	 * @param session
+	 *            Executes the completion on the thread of the session.
+	 * @param listener
+	 *            Receives the outcome.
+	 * @throws ProtocolException
+	 *             If an argument is null or if the stage is closed.
+	 * @throws AuthenticationException
+	 *             If all workers are busy and the queue is full.
+	 */
+	public void submit(final ServerProtocol protocol, final Packet packet,
+			final Executor session, final Listener listener)
+			throws ProtocolException, AuthenticationException {
+		if (protocol == null) {
+			throw new ProtocolException("Protocol cannot be null");
+		}
+		if (packet == null) {
+			throw new ProtocolException("Packet cannot be null");
+		}
+		if (session == null) {
+			throw new ProtocolException("Executor cannot be null");
+		}
+		if (listener == null) {
+			throw new ProtocolException("Listener cannot be null");
+		}
+		if (workers.isShutdown()) {
+			throw new ProtocolException("Handshake stage is closed");
+		}
+		try {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					verify(protocol, packet, session, listener);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			if (workers.isShutdown()) {
+				throw new ProtocolException("Handshake stage is closed");
+			}
+			throw new AuthenticationException("Server busy");
+		}
+	}
+
+	/**
+	 * Verifies the request on a worker and hands the result to the session.
+	 * 
+	 * @param protocol
+	 *            The protocol of the session.
+	 * @param packet
+	 *            The packet.
+	 * @param session
+	 *            Executes the completion.
+	 * @param listener
+	 *            Receives the outcome.
+	 */
+	private static void verify(final ServerProtocol protocol, Packet packet,
+			Executor session, final Listener listener) {
+		Runnable completion;
+		final Handshake handshake;
+		try {
+			handshake = protocol.verify(packet);
+		} catch (final Exception e) {
+			completion = new Runnable() {
+				@Override
+				public void run() {
+					listener.failed(protocol, e);
+				}
+			};
+			try {
+				session.execute(completion);
+			} catch (RejectedExecutionException ignored) {
+				// The session is gone
+			}
+			return;
+		}
+		completion = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					protocol.complete(handshake);
+				} catch (Exception e) {
+					listener.failed(protocol, e);
+					return;
+				}
+				listener.authenticated(protocol);
+			}
+		};
+		try {
+			session.execute(completion);
+		} catch (RejectedExecutionException e) {
+			// The session is gone
+			handshake.cancel();
+		}
+	}
+
+	/**
+	 * Gets the number of handshakes that are waiting or being verified.
+	 * 
+	 * @return The number of handshakes.
+	 */
+	public int getPending() {
+		return workers.getQueue().size() + workers.getActiveCount();
+	}
+
+	/**
+	 * Stops accepting handshakes. Queued handshakes are still verified.
+	 */
+	public void close() {
+		workers.shutdown();
+	}
+}
@@ -0,0 +1,280 @@
+package remote.api;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Hands out random bytes for session keys, initialization vectors and salts
+ * without blocking. The bytes come from a {@link SecureRandom} of
+ * {@link #ALGORITHM}, a deterministic generator that is seeded once from the
+ * non-blocking output of the platform generator and never waits for entropy.
+ * <p>
+ * A low priority background thread keeps a bounded buffer filled, so a burst
+ * of connects takes its bytes from the buffer. If the buffer runs dry the
+ * missing bytes are generated on the calling thread instead of waiting.
+ */
+public class KeyMaterial {
+	/**
+	 * The algorithm of the generator.
+	 */
+	public static final String ALGORITHM = "SHA1PRNG";
+	/**
+	 * Default number of buffered bytes, 256 client keys and vectors.
+	 */
+	public static final int DEFAULT_CAPACITY = 4096;
+	/**
+	 * Bytes generated between reseeds.
+	 */
+	private static final long RESEED_INTERVAL = 1 << 20;
+	/**
+	 * Size of the seed.
+	 */
+	private static final int SEED_SIZE = 32;
+
+	/**
+	 * The key material used by the protocols, created when first needed.
+	 */
+	private static KeyMaterial shared = null;
+
+	/**
+	 * The generator.
+	 */
+	private final SecureRandom random;
+	/**
+	 * The buffered bytes, a ring.
+	 */
+	private final byte[] buffer;
+	/**
+	 * Position of the next buffered byte.
+	 */
+	private int head;
+	/**
+	 * Number of buffered bytes.
+	 */
+	private int size;
+	/**
+	 * Number of bytes generated on a calling thread.
+	 */
+	private long misses;
+	/**
+	 * State if closed.
+	 */
+	private boolean closed;
+
+	/**
+	 * Constructs a new key material buffer with the default capacity and
+	 * starts the refill thread.
+	 * 
+	 * @throws GeneralSecurityException
+	 *             If the algorithm is not available.
+	 * @throws ProtocolException
+	 *             Never with the default values.
+	 */
+	public KeyMaterial() throws GeneralSecurityException, ProtocolException {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructs a new key material buffer and starts the refill thread.
+	 * 
+	 * @param capacity
+	 *            Maximum number of buffered bytes.
+	 * @throws GeneralSecurityException
+	 *             If the algorithm is not available.
+	 * @throws ProtocolException
+	 *             If capacity is less than one.
+	 */
+	public KeyMaterial(int capacity) throws GeneralSecurityException,
+			ProtocolException {
+		if (capacity < 1) {
+			throw new ProtocolException("Capacity must be positive");
+		}
+		random = SecureRandom.getInstance(ALGORITHM);
+		// Seeded before first use, so it never seeds itself
+		random.setSeed(seed());
+		buffer = new byte[capacity];
+		head = 0;
+		size = 0;
+		misses = 0;
+		closed = false;
+		Thread refill = new Thread("key-material") {
+			@Override
+			public void run() {
+				refill();
+			}
+		};
+		refill.setDaemon(true);
+		refill.setPriority(Thread.MIN_PRIORITY);
+		refill.start();
+	}
+
+	/**
+	 * Creates a seed from the platform generator. Its output is used rather
+	 * than {@link SecureRandom#generateSeed(int)}, which may block on entropy.
+	 * 
+	 * @return The seed.
+	 */
+	private static byte[] seed() {
+		byte[] seed = new byte[SEED_SIZE];
+		new SecureRandom().nextBytes(seed);
+		return seed;
+	}
+
+	/**
+	 * Gets the key material used by the protocols, creating it with the
+	 * default capacity if needed.
+	 * 
+	 * @return The key material.
+	 * @throws GeneralSecurityException
+	 *             If the algorithm is not available.
+	 * @throws ProtocolException
+	 *             Never with the default values.
+	 */
+	public static synchronized KeyMaterial getShared()
+			throws GeneralSecurityException, ProtocolException {
+		if (shared == null) {
+			shared = new KeyMaterial();
+		}
+		return shared;
+	}
+
+	/**
+	 * Sets the key material used by the protocols. The previous one is not
+	 * closed.
+	 * 
+	 * @param keyMaterial
+	 *            The key material or null to create a default one when
+	 *            needed.
+	 */
+	public static synchronized void setShared(KeyMaterial keyMaterial) {
+		shared = keyMaterial;
+	}
+
+	/**
+	 * Keeps the buffer filled until closed. Waits until half the buffer has
+	 * been used, so that the generator runs in larger batches.
+	 */
+	private void refill() {
+		long generated = 0;
+		while (true) {
+			int n;
+			synchronized (this) {
+				try {
+					while (!closed && size > buffer.length / 2) {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (closed) {
+					return;
+				}
+				n = buffer.length - size;
+			}
+			if (generated >= RESEED_INTERVAL) {
+				random.setSeed(seed());
+				generated = 0;
+			}
+			byte[] chunk = new byte[n];
+			random.nextBytes(chunk);
+			generated += n;
+			synchronized (this) {
+				n = Math.min(n, buffer.length - size);
+				int tail = (head + size) % buffer.length;
+				int first = Math.min(n, buffer.length - tail);
+				System.arraycopy(chunk, 0, buffer, tail, first);
+				System.arraycopy(chunk, first, buffer, 0, n - first);
+				size += n;
+			}
+			Arrays.fill(chunk, (byte) 0);
+		}
+	}
+
+	/**
+	 * Fills an array with random bytes, from the buffer if possible. Never
+	 * waits for the refill thread.
+	 * 
+	 * @param bytes
+	 *            The array to fill.
+	 * @throws ProtocolException
+	 *             If bytes is null.
+	 */
+	public void nextBytes(byte[] bytes) throws ProtocolException {
+		if (bytes == null) {
+			throw new ProtocolException("Bytes cannot be null");
+		}
+		int off = 0;
+		synchronized (this) {
+			while (off < bytes.length && size > 0) {
+				int n = Math.min(Math.min(size, bytes.length - off),
+						buffer.length - head);
+				System.arraycopy(buffer, head, bytes, off, n);
+				// Handed out bytes are not kept
+				Arrays.fill(buffer, head, head + n, (byte) 0);
+				head = (head + n) % buffer.length;
+				size -= n;
+				off += n;
+			}
+			if (off < bytes.length) {
+				misses += bytes.length - off;
+			}
+			if (size <= buffer.length / 2) {
+				notifyAll();
+			}
+		}
+		if (off < bytes.length) {
+			byte[] rest = new byte[bytes.length - off];
+			random.nextBytes(rest);
+			System.arraycopy(rest, 0, bytes, off, rest.length);
+		}
+	}
+
+	/**
+	 * Creates an array of random bytes, see {@link #nextBytes(byte[])}.
+	 * 
+	 * @param length
+	 *            Length of the array.
+	 * @return The array.
+	 * @throws ProtocolException
+	 *             If length is negative.
+	 */
+	public byte[] next(int length) throws ProtocolException {
+		if (length < 0) {
+			throw new ProtocolException("Length cannot be negative");
+		}
+		byte[] bytes = new byte[length];
+		nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Gets the number of buffered bytes.
+	 * 
+	 * @return The number of bytes.
+	 */
+	public synchronized int getBuffered() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of bytes that were generated on a calling thread since
+	 * the buffer was empty.
+	 * 
+	 * @return The number of bytes.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Stops the refill thread. The buffered bytes are still handed out, after
+	 * that all bytes are generated on the calling thread.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+}
@@ -0,0 +1,600 @@
+package remote.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Connects clients and servers on the same host over Unix domain sockets,
+ * which skip the TCP stack of loopback connections. The sockets need Java 16
+ * or later and are reached by reflection, so the rest of the library still
+ * runs on older versions, see {@link #isSupported()}.
+ * <p>
+ * {@link #bind(File)} creates the socket file in a directory that only its
+ * owner can access, so only the same user can connect. The trusted handshake,
+ * see {@link ClientProtocol#setTrusted(boolean)}, sends the password and the
+ * session key without the secure algorithm, so a client only uses it on a
+ * channel from {@link #connect(File, boolean)} in trusted mode, which checks
+ * that the socket file, its directory and the server belong to the same
+ * user.
+ */
+public class LocalTransport {
+	/**
+	 * Size of the write buffer of a stream.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * The Unix protocol family or null if not supported.
+	 */
+	private static final Object UNIX = unix();
+	/**
+	 * Creates a Unix domain socket address or null if not supported.
+	 */
+	private static final Method ADDRESS = method(
+			"java.net.UnixDomainSocketAddress", "of", String.class);
+	/**
+	 * Permissions of a directory that only its owner can access.
+	 */
+	private static final String OWNER_ONLY = "rwx------";
+	/**
+	 * Name of the class with the file operations.
+	 */
+	private static final String FILES = "java.nio.file.Files";
+	/**
+	 * Name of the class of the options for symbolic links.
+	 */
+	private static final String LINK_OPTION = "java.nio.file.LinkOption";
+
+	/**
+	 * Reads from a socket channel. Unlike the streams of
+	 * {@link java.nio.channels.Channels}, a blocked read does not hold a lock
+	 * that writes of the other direction wait for.
+	 */
+	private static class ChannelInputStream extends InputStream {
+		/**
+		 * The channel.
+		 */
+		private final SocketChannel channel;
+
+		/**
+		 * Constructs a new stream.
+		 * 
+		 * @param channel
+		 *            The channel.
+		 */
+		private ChannelInputStream(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			// A blocking channel reads at least one byte or reaches the end
+			return read(b, 0, 1) <= 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			return channel.read(ByteBuffer.wrap(b, off, len));
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes to a socket channel, buffered until flushed so that each packet
+	 * is written at once.
+	 */
+	private static class ChannelOutputStream extends OutputStream {
+		/**
+		 * The channel.
+		 */
+		private final SocketChannel channel;
+		/**
+		 * The write buffer.
+		 */
+		private final ByteBuffer buffer;
+
+		/**
+		 * Constructs a new stream.
+		 * 
+		 * @param channel
+		 *            The channel.
+		 */
+		private ChannelOutputStream(SocketChannel channel) {
+			this.channel = channel;
+			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+
+		@Override
+		public synchronized void write(int b) throws IOException {
+			if (!buffer.hasRemaining()) {
+				flush();
+			}
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len)
+				throws IOException {
+			if (len > buffer.remaining()) {
+				flush();
+			}
+			if (len > buffer.remaining()) {
+				writeFully(ByteBuffer.wrap(b, off, len));
+			} else {
+				buffer.put(b, off, len);
+			}
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			buffer.flip();
+			try {
+				writeFully(buffer);
+			} finally {
+				buffer.clear();
+			}
+		}
+
+		/**
+		 * Writes all remaining bytes of a buffer.
+		 * 
+		 * @param data
+		 *            The buffer.
+		 * @throws IOException
+		 *             If it fails to write.
+		 */
+		private void writeFully(ByteBuffer data) throws IOException {
+			while (data.hasRemaining()) {
+				channel.write(data);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Only static methods.
+	 */
+	private LocalTransport() {
+	}
+
+	/**
+	 * Looks up the Unix protocol family.
+	 * 
+	 * @return The protocol family or null if not supported.
+	 */
+	private static Object unix() {
+		try {
+			return Class.forName("java.net.StandardProtocolFamily")
+					.getField("UNIX").get(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Looks up a public method.
+	 * 
+	 * @param className
+	 *            Name of the class.
+	 * @param name
+	 *            Name of the method.
+	 * @param parameterTypes
+	 *            The parameter types.
+	 * @return The method or null if not available.
+	 */
+	private static Method method(String className, String name,
+			Class<?>... parameterTypes) {
+		try {
+			return Class.forName(className).getMethod(name, parameterTypes);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Checks if Unix domain sockets are supported by this Java version.
+	 * 
+	 * @return True if supported.
+	 */
+	public static boolean isSupported() {
+		return UNIX != null && ADDRESS != null;
+	}
+
+	/**
+	 * Invokes a method and unwraps the exceptions.
+	 * 
+	 * @param method
+	 *            The method.
+	 * @param target
+	 *            The object or null for a static method.
+	 * @param args
+	 *            The arguments.
+	 * @return The result.
+	 * @throws IOException
+	 *             If the method throws or cannot be invoked.
+	 */
+	private static Object invoke(Method method, Object target, Object... args)
+			throws IOException {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause.toString(), cause);
+		} catch (IllegalAccessException e) {
+			throw new IOException(e.toString(), e);
+		}
+	}
+
+	/**
+	 * Invokes the public method of a class with the given name and number of
+	 * parameters, for the file APIs that are newer than this library.
+	 * 
+	 * @param target
+	 *            The object or null for a static method.
+	 * @param className
+	 *            Name of the class.
+	 * @param name
+	 *            Name of the method.
+	 * @param args
+	 *            The arguments, an array for variable arguments.
+	 * @return The result.
+	 * @throws IOException
+	 *             If the method throws or is not available.
+	 */
+	private static Object call(Object target, String className, String name,
+			Object... args) throws IOException {
+		try {
+			for (Method method : Class.forName(className).getMethods()) {
+				if (method.getName().equals(name)
+						&& method.getParameterTypes().length == args.length) {
+					return invoke(method, target, args);
+				}
+			}
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unix domain sockets are not supported", e);
+		}
+		throw new IOException("Unix domain sockets are not supported");
+	}
+
+	/**
+	 * Creates an array for variable arguments.
+	 * 
+	 * @param className
+	 *            Name of the class of the elements.
+	 * @param elements
+	 *            The elements.
+	 * @return The array.
+	 * @throws IOException
+	 *             If the class is not available.
+	 */
+	private static Object array(String className, Object... elements)
+			throws IOException {
+		try {
+			Object array = Array.newInstance(Class.forName(className),
+					elements.length);
+			for (int i = 0; i < elements.length; i++) {
+				Array.set(array, i, elements[i]);
+			}
+			return array;
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unix domain sockets are not supported", e);
+		}
+	}
+
+	/**
+	 * Gets the current user.
+	 * 
+	 * @param path
+	 *            A path of the file system to look the user up in.
+	 * @return The user principal.
+	 * @throws IOException
+	 *             If the user cannot be looked up.
+	 */
+	private static Object currentUser(Object path) throws IOException {
+		Object fileSystem = call(path, "java.nio.file.Path", "getFileSystem");
+		Object lookup = call(fileSystem, "java.nio.file.FileSystem",
+				"getUserPrincipalLookupService");
+		return call(lookup,
+				"java.nio.file.attribute.UserPrincipalLookupService",
+				"lookupPrincipalByName", System.getProperty("user.name"));
+	}
+
+	/**
+	 * Checks if a file belongs to the current user and neither its group nor
+	 * others have any access to it.
+	 * 
+	 * @param file
+	 *            The file.
+	 * @return True if private.
+	 * @throws IOException
+	 *             If the attributes cannot be read.
+	 */
+	private static boolean isPrivate(File file) throws IOException {
+		Object path = call(file, "java.io.File", "toPath");
+		Object owner = call(null, FILES, "getOwner", path,
+				array(LINK_OPTION));
+		if (!owner.equals(currentUser(path))) {
+			return false;
+		}
+		Set<?> permissions = (Set<?>) call(null, FILES,
+				"getPosixFilePermissions", path, array(LINK_OPTION));
+		for (Object permission : permissions) {
+			String name = permission.toString();
+			if (name.startsWith("GROUP_") || name.startsWith("OTHERS_")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates a directory that only its owner can access, or checks that an
+	 * existing one is private.
+	 * 
+	 * @param directory
+	 *            The directory.
+	 * @throws IOException
+	 *             If it fails to create the directory or if it is not
+	 *             private.
+	 */
+	private static void createPrivate(File directory) throws IOException {
+		if (!directory.exists()) {
+			// Created with the permissions, there is no moment it is open
+			String permissions = "java.nio.file.attribute.PosixFilePermissions";
+			Object attribute = call(null, permissions, "asFileAttribute",
+					call(null, permissions, "fromString", OWNER_ONLY));
+			call(null, FILES, "createDirectory",
+					call(directory, "java.io.File", "toPath"),
+					array("java.nio.file.attribute.FileAttribute", attribute));
+		}
+		if (!isPrivate(directory)) {
+			throw new IOException("Directory is not private: " + directory);
+		}
+	}
+
+	/**
+	 * Checks that the server of a channel runs as the current user.
+	 * 
+	 * @param channel
+	 *            The connected channel.
+	 * @param path
+	 *            The socket file.
+	 * @throws IOException
+	 *             If the server is another user or if its credentials are
+	 *             not available.
+	 */
+	private static void checkPeer(SocketChannel channel, File path)
+			throws IOException {
+		Object option;
+		try {
+			option = Class.forName("jdk.net.ExtendedSocketOptions")
+					.getField("SO_PEERCRED").get(null);
+		} catch (Exception e) {
+			throw new IOException("Peer credentials are not supported", e);
+		}
+		Object principal;
+		try {
+			principal = call(channel, "java.nio.channels.SocketChannel",
+					"getOption", option);
+		} catch (UnsupportedOperationException e) {
+			throw new IOException("Peer credentials are not supported", e);
+		}
+		Object user = call(principal, "jdk.net.UnixDomainPrincipal", "user");
+		if (!user.equals(currentUser(call(path, "java.io.File", "toPath")))) {
+			throw new IOException("Server is another user: " + path);
+		}
+	}
+
+	/**
+	 * Opens a channel of the Unix protocol family.
+	 * 
+	 * @param type
+	 *            {@link SocketChannel} or {@link ServerSocketChannel}.
+	 * @return The channel.
+	 * @throws IOException
+	 *             If it fails to open the channel.
+	 */
+	private static Object open(Class<?> type) throws IOException {
+		try {
+			Class<?> family = Class.forName("java.net.ProtocolFamily");
+			return invoke(type.getMethod("open", family), null, UNIX);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unix domain sockets are not supported", e);
+		} catch (NoSuchMethodException e) {
+			throw new IOException("Unix domain sockets are not supported", e);
+		}
+	}
+
+	/**
+	 * Creates the address of a socket file.
+	 * 
+	 * @param path
+	 *            The socket file.
+	 * @return The address.
+	 * @throws ProtocolException
+	 *             If path is null or if not supported.
+	 * @throws IOException
+	 *             If the address cannot be created.
+	 */
+	private static SocketAddress address(File path) throws ProtocolException,
+			IOException {
+		if (path == null) {
+			throw new ProtocolException("Path cannot be null");
+		}
+		if (!isSupported()) {
+			throw new ProtocolException(
+					"Unix domain sockets are not supported");
+		}
+		return (SocketAddress) invoke(ADDRESS, null, path.getPath());
+	}
+
+	/**
+	 * Binds a server to a new socket file that only its owner can access.
+	 * The directory of the file is created for the owner only if it does not
+	 * exist, and must otherwise belong to the owner without any access for
+	 * its group or others, so nobody else can reach the file before it is
+	 * restricted. The file and the directory are not removed when the channel
+	 * is closed.
+	 * 
+	 * @param path
+	 *            The socket file, which must not exist.
+	 * @return The server channel, accept connections with
+	 *         {@link ServerSocketChannel#accept()}.
+	 * @throws ProtocolException
+	 *             If path is null or if not supported.
+	 * @throws IOException
+	 *             If the directory is not private or if it fails to bind or
+	 *             to restrict the file.
+	 */
+	public static ServerSocketChannel bind(File path)
+			throws ProtocolException, IOException {
+		SocketAddress address = address(path);
+		createPrivate(path.getAbsoluteFile().getParentFile());
+		ServerSocketChannel server = (ServerSocketChannel) open(
+				ServerSocketChannel.class);
+		boolean bound = false;
+		try {
+			Method bind;
+			try {
+				bind = ServerSocketChannel.class.getMethod("bind",
+						SocketAddress.class);
+			} catch (NoSuchMethodException e) {
+				throw new IOException("Unix domain sockets are not supported",
+						e);
+			}
+			invoke(bind, server, address);
+			// Owner only, the same user is the only peer that can connect
+			if (!path.setReadable(false, false)
+					|| !path.setReadable(true, true)
+					|| !path.setWritable(false, false)
+					|| !path.setWritable(true, true)
+					|| !path.setExecutable(false, false)) {
+				path.delete();
+				throw new IOException("Failed to restrict " + path);
+			}
+			bound = true;
+			return server;
+		} finally {
+			if (!bound) {
+				server.close();
+			}
+		}
+	}
+
+	/**
+	 * Connects to a server bound to a socket file. In trusted mode, for the
+	 * trusted handshake, it refuses the file unless it and its directory
+	 * belong to the current user without any access for their group or
+	 * others, and the server must run as the current user.
+	 * 
+	 * @param path
+	 *            The socket file.
+	 * @param trusted
+	 *            True if the trusted handshake is used on the channel.
+	 * @return The connected channel.
+	 * @throws ProtocolException
+	 *             If path is null or if not supported.
+	 * @throws IOException
+	 *             If it fails to connect or, in trusted mode, if the file or
+	 *             the server is not private.
+	 */
+	public static SocketChannel connect(File path, boolean trusted)
+			throws ProtocolException, IOException {
+		SocketAddress address = address(path);
+		if (trusted) {
+			// The directory first, then the file cannot be replaced
+			File directory = path.getAbsoluteFile().getParentFile();
+			if (!isPrivate(directory)) {
+				throw new IOException("Directory is not private: "
+						+ directory);
+			}
+			if (!isPrivate(path)) {
+				throw new IOException("Socket file is not private: " + path);
+			}
+		}
+		SocketChannel channel = (SocketChannel) open(SocketChannel.class);
+		boolean connected = false;
+		try {
+			channel.connect(address);
+			if (trusted) {
+				checkPeer(channel, path);
+			}
+			connected = true;
+			return channel;
+		} finally {
+			if (!connected) {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Gets a stream that reads from a blocking channel, to give to a
+	 * protocol. Closing the stream closes the channel.
+	 * 
+	 * @param channel
+	 *            The channel.
+	 * @return The stream.
+	 * @throws ProtocolException
+	 *             If channel is null.
+	 */
+	public static InputStream getInputStream(SocketChannel channel)
+			throws ProtocolException {
+		if (channel == null) {
+			throw new ProtocolException("Channel cannot be null");
+		}
+		return new ChannelInputStream(channel);
+	}
+
+	/**
+	 * Gets a stream that writes to a blocking channel when flushed, to give
+	 * to a protocol. Closing the stream closes the channel.
+	 * 
+	 * @param channel
+	 *            The channel.
+	 * @return The stream.
+	 * @throws ProtocolException
+	 *             If channel is null.
+	 */
+	public static OutputStream getOutputStream(SocketChannel channel)
+			throws ProtocolException {
+		if (channel == null) {
+			throw new ProtocolException("Channel cannot be null");
+		}
+		return new ChannelOutputStream(channel);
+	}
+}
@@ -0,0 +1,465 @@
+package remote.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Connects a client and a server in the same process through a pair of
+ * bounded byte rings, one per direction. The streams of each end can be
+ * given to a protocol like the streams of a socket, so both sides run on
+ * their own threads without the kernel in between.
+ * <p>
+ * An end is blocking by default: reads wait for data and writes wait for
+ * room. A non-blocking end never waits, so a test can drive both sides from
+ * one thread, see {@link End#setBlocking(boolean)}.
+ */
+public class MemoryTransport {
+	/**
+	 * Default capacity of each ring.
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/**
+	 * A bounded byte ring guarded by its own monitor.
+	 */
+	private static class Ring {
+		/**
+		 * The bytes.
+		 */
+		private final byte[] data;
+		/**
+		 * Total number of bytes published by the writer.
+		 */
+		private long head;
+		/**
+		 * Total number of bytes consumed by the reader.
+		 */
+		private long tail;
+		/**
+		 * State if the ring is closed.
+		 */
+		private boolean closed;
+
+		/**
+		 * Constructs a new ring.
+		 * 
+		 * @param capacity
+		 *            The capacity.
+		 */
+		private Ring(int capacity) {
+			data = new byte[capacity];
+		}
+
+		/**
+		 * Closes the ring and wakes up the waiting threads.
+		 */
+		private synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+
+		/**
+		 * Waits until the other side of the ring changes it.
+		 * 
+		 * @throws InterruptedIOException
+		 *             If the thread is interrupted.
+		 */
+		private void await() throws InterruptedIOException {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting");
+			}
+		}
+	}
+
+	/**
+	 * Reads from a ring.
+	 */
+	private static class RingInputStream extends InputStream {
+		/**
+		 * The end of the stream.
+		 */
+		private final End end;
+		/**
+		 * The ring.
+		 */
+		private final Ring ring;
+
+		/**
+		 * Constructs a new stream.
+		 * 
+		 * @param end
+		 *            The end of the stream.
+		 * @param ring
+		 *            The ring.
+		 */
+		private RingInputStream(End end, Ring ring) {
+			this.end = end;
+			this.ring = ring;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			synchronized (ring) {
+				while (ring.head == ring.tail) {
+					if (ring.closed || !end.blocking) {
+						return -1;
+					}
+					ring.await();
+				}
+				int capacity = ring.data.length;
+				int index = (int) (ring.tail % capacity);
+				int n = (int) Math.min(Math.min(len, ring.head - ring.tail),
+						capacity - index);
+				System.arraycopy(ring.data, index, b, off, n);
+				ring.tail += n;
+				ring.notifyAll();
+				return n;
+			}
+		}
+
+		@Override
+		public int available() {
+			synchronized (ring) {
+				return (int) (ring.head - ring.tail);
+			}
+		}
+
+		@Override
+		public void close() {
+			end.close();
+		}
+	}
+
+	/**
+	 * Writes to a ring, published when flushed.
+	 */
+	private static class RingOutputStream extends OutputStream {
+		/**
+		 * The end of the stream.
+		 */
+		private final End end;
+		/**
+		 * The ring.
+		 */
+		private final Ring ring;
+		/**
+		 * The write position, ahead of the published one until flushed.
+		 */
+		private long position;
+
+		/**
+		 * Constructs a new stream.
+		 * 
+		 * @param end
+		 *            The end of the stream.
+		 * @param ring
+		 *            The ring.
+		 */
+		private RingOutputStream(End end, Ring ring) {
+			this.end = end;
+			this.ring = ring;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized (ring) {
+				int capacity = ring.data.length;
+				if (ring.closed) {
+					throw new IOException("Pipe is closed");
+				}
+				if (!end.blocking && len > capacity - (position - ring.tail)) {
+					throw full();
+				}
+				while (len > 0) {
+					if (ring.closed) {
+						throw new IOException("Pipe is closed");
+					}
+					if (position - ring.tail == capacity) {
+						if (!end.blocking) {
+							throw full();
+						}
+						// Publish what the reader needs to make room
+						publish();
+						ring.await();
+						continue;
+					}
+					int index = (int) (position % capacity);
+					int n = (int) Math.min(Math.min(len, capacity
+							- (position - ring.tail)), capacity - index);
+					System.arraycopy(b, off, ring.data, index, n);
+					position += n;
+					off += n;
+					len -= n;
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			synchronized (ring) {
+				if (ring.closed) {
+					throw new IOException("Pipe is closed");
+				}
+				publish();
+			}
+		}
+
+		/**
+		 * Discards the bytes written since the last flush, the start of a
+		 * packet that does not fit, so that the next flush does not publish
+		 * part of it. Must hold the monitor of the ring.
+		 * 
+		 * @return The exception to throw.
+		 */
+		private IOException full() {
+			position = ring.head;
+			return new IOException("Pipe is full");
+		}
+
+		/**
+		 * Publishes the written bytes to the reader. Must hold the monitor of
+		 * the ring.
+		 */
+		private void publish() {
+			if (ring.head != position) {
+				ring.head = position;
+				ring.notifyAll();
+			}
+		}
+
+		@Override
+		public void close() {
+			end.close();
+		}
+	}
+
+	/**
+	 * One end of the transport, the client or the server.
+	 */
+	public class End {
+		/**
+		 * The stream of the input ring.
+		 */
+		private final RingInputStream inputStream;
+		/**
+		 * The stream of the output ring.
+		 */
+		private final RingOutputStream outputStream;
+		/**
+		 * State if the streams wait, read by the streams under the monitor of
+		 * their ring.
+		 */
+		private volatile boolean blocking;
+
+		/**
+		 * Constructs a new end.
+		 * 
+		 * @param input
+		 *            The ring this end reads from.
+		 * @param output
+		 *            The ring this end writes to.
+		 */
+		private End(Ring input, Ring output) {
+			inputStream = new RingInputStream(this, input);
+			outputStream = new RingOutputStream(this, output);
+			blocking = true;
+		}
+
+		/**
+		 * Sets if the streams of this end wait. When not blocking a read of
+		 * an empty ring returns -1, so {@link PacketScanner#nextPacket()}
+		 * returns null until more is flushed, and a write that does not fit
+		 * in the ring throws an {@link IOException} and discards what was
+		 * written since the last flush, so a packet is published whole or
+		 * not at all. Use {@link #isClosed()} to tell an empty ring from a
+		 * closed one.
+		 * 
+		 * @param blocking
+		 *            True to wait.
+		 */
+		public void setBlocking(boolean blocking) {
+			this.blocking = blocking;
+			// Wakes up the threads that no longer should wait
+			for (Ring ring : rings) {
+				synchronized (ring) {
+					ring.notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Checks if the streams of this end wait.
+		 * 
+		 * @return True if blocking.
+		 */
+		public boolean isBlocking() {
+			return blocking;
+		}
+
+		/**
+		 * Gets the stream that reads what the other end writes.
+		 * 
+		 * @return The input stream.
+		 */
+		public InputStream getInputStream() {
+			return inputStream;
+		}
+
+		/**
+		 * Gets the stream that writes to the other end. Written bytes are only
+		 * seen by the other end after a flush.
+		 * 
+		 * @return The output stream.
+		 */
+		public OutputStream getOutputStream() {
+			return outputStream;
+		}
+
+		/**
+		 * Closes the transport, see {@link MemoryTransport#close()}.
+		 */
+		public void close() {
+			MemoryTransport.this.close();
+		}
+
+		/**
+		 * Checks if the transport is closed.
+		 * 
+		 * @return True if closed.
+		 */
+		public boolean isClosed() {
+			return MemoryTransport.this.isClosed();
+		}
+	}
+
+	/**
+	 * The rings, the client writes to the first.
+	 */
+	private final Ring[] rings;
+	/**
+	 * The client end.
+	 */
+	private final End client;
+	/**
+	 * The server end.
+	 */
+	private final End server;
+
+	/**
+	 * Constructs a new transport with rings of the default capacity.
+	 */
+	public MemoryTransport() {
+		this(new Ring(DEFAULT_CAPACITY), new Ring(DEFAULT_CAPACITY));
+	}
+
+	/**
+	 * Constructs a new transport.
+	 * 
+	 * @param capacity
+	 *            Capacity of each ring.
+	 * @throws ProtocolException
+	 *             If capacity is not positive.
+	 */
+	public MemoryTransport(int capacity) throws ProtocolException {
+		this(ring(capacity), ring(capacity));
+	}
+
+	/**
+	 * Constructs a new transport of two rings.
+	 * 
+	 * @param first
+	 *            The ring the client writes to.
+	 * @param second
+	 *            The ring the server writes to.
+	 */
+	private MemoryTransport(Ring first, Ring second) {
+		rings = new Ring[] { first, second };
+		client = new End(second, first);
+		server = new End(first, second);
+	}
+
+	/**
+	 * Creates a ring.
+	 * 
+	 * @param capacity
+	 *            The capacity.
+	 * @return The ring.
+	 * @throws ProtocolException
+	 *             If capacity is not positive.
+	 */
+	private static Ring ring(int capacity) throws ProtocolException {
+		if (capacity < 1) {
+			throw new ProtocolException("Capacity must be positive");
+		}
+		return new Ring(capacity);
+	}
+
+	/**
+	 * Gets the client end.
+	 * 
+	 * @return The client end.
+	 */
+	public End getClient() {
+		return client;
+	}
+
+	/**
+	 * Gets the server end.
+	 * 
+	 * @return The server end.
+	 */
+	public End getServer() {
+		return server;
+	}
+
+	/**
+	 * Gets the capacity of each ring.
+	 * 
+	 * @return The capacity.
+	 */
+	public int getCapacity() {
+		return rings[0].data.length;
+	}
+
+	/**
+	 * Closes both directions. Each end reads the rest of the flushed data and
+	 * then the end of the stream, and its writes fail.
+	 */
+	public void close() {
+		for (Ring ring : rings) {
+			ring.close();
+		}
+	}
+
+	/**
+	 * Checks if the transport is closed.
+	 * 
+	 * @return True if closed.
+	 */
+	public boolean isClosed() {
+		synchronized (rings[0]) {
+			return rings[0].closed;
+		}
+	}
+}
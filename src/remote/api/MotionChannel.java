@@ -0,0 +1,644 @@
+package remote.api;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import remote.api.commands.Command;
+import remote.api.commands.MouseMove;
+import remote.api.commands.MouseWheel;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Sends motion commands, {@link MouseMove} and {@link MouseWheel}, as
+ * datagrams next to the stream of a {@link Protocol}, so that a lost segment
+ * of the stream does not hold back the moves after it. Key and text input
+ * stay on the stream, where they are never lost or reordered.
+ * <p>
+ * Lost datagrams are not sent again, so each datagram carries the totals of
+ * all moves or all wheel commands sent on the channel instead of the command
+ * itself. The receiver delivers the difference to the totals it has delivered
+ * so far, so the next datagram of a kind makes up for the lost ones before
+ * it, and a datagram that arrives after a later one of its kind is dropped
+ * since its amount has already been delivered. The pointer therefore never
+ * drifts from the position the sender meant, only the steps in between may be
+ * merged. A delivered move is limited to the range of {@link MouseMove}, the
+ * rest is delivered with the next move.
+ * <p>
+ * Each datagram is a sequence number, the totals encrypted with
+ * {@link Packet#COMPACT_CIPHER} and a truncated HMAC of both. The keys of each
+ * direction are derived from the session secret of the protocol. Received
+ * datagrams that fail the HMAC, that have been seen before or that are older
+ * than the replay window are dropped.
+ * <p>
+ * Created with {@link Protocol#openMotionChannel(DatagramSocket,
+ * SocketAddress)}.
+ */
+public class MotionChannel {
+	/**
+	 * Length of the sequence number.
+	 */
+	public static final int SEQUENCE_LENGTH = 8;
+	/**
+	 * Length of the truncated HMAC.
+	 */
+	public static final int MAC_LENGTH = 12;
+	/**
+	 * Number of sequence numbers before the highest received one that are
+	 * accepted once.
+	 */
+	public static final int WINDOW = 64;
+	/**
+	 * Length of the totals of moves, the command type and two ints.
+	 */
+	private static final int MOVE_LENGTH = 9;
+	/**
+	 * Length of the total of wheel commands, the command type and an int.
+	 */
+	private static final int WHEEL_LENGTH = 5;
+	/**
+	 * Maximum length of a datagram.
+	 */
+	public static final int MAX_DATAGRAM_LENGTH = SEQUENCE_LENGTH
+			+ MOVE_LENGTH + MAC_LENGTH;
+	/**
+	 * Label of the datagram keys.
+	 */
+	private static final byte DATAGRAM = 'D';
+	/**
+	 * Highest sequence number, the low byte of the counter is left for the
+	 * blocks of one datagram.
+	 */
+	private static final long MAX_SEQUENCE = (1L << 56) - 1;
+
+	/**
+	 * The socket.
+	 */
+	private final DatagramSocket socket;
+	/**
+	 * Where datagrams are sent or null to only receive.
+	 */
+	private final SocketAddress peer;
+	/**
+	 * Where the ciphers come from and go back to, null if not pooled.
+	 */
+	private final CipherPool cipherPool;
+	/**
+	 * The cipher used to encrypt.
+	 */
+	private Cipher encryptCipher;
+	/**
+	 * The cipher used to decrypt.
+	 */
+	private Cipher decryptCipher;
+	/**
+	 * Key of the encrypting direction.
+	 */
+	private final SecretKeySpec encryptKey;
+	/**
+	 * Key of the decrypting direction.
+	 */
+	private final SecretKeySpec decryptKey;
+	/**
+	 * HMAC of the sending direction.
+	 */
+	private final Mac sendMac;
+	/**
+	 * HMAC of the receiving direction.
+	 */
+	private final Mac receiveMac;
+	/**
+	 * Sequence number of the last sent datagram.
+	 */
+	private long sendSequence;
+	/**
+	 * Total horizontal distance of the sent moves, wrapping around.
+	 */
+	private int sentX;
+	/**
+	 * Total vertical distance of the sent moves, wrapping around.
+	 */
+	private int sentY;
+	/**
+	 * Total amount of the sent wheel commands, wrapping around.
+	 */
+	private int sentWheel;
+	/**
+	 * Total horizontal distance of the delivered moves, wrapping around.
+	 */
+	private int deliveredX;
+	/**
+	 * Total vertical distance of the delivered moves, wrapping around.
+	 */
+	private int deliveredY;
+	/**
+	 * Total amount of the delivered wheel commands, wrapping around.
+	 */
+	private int deliveredWheel;
+	/**
+	 * Sequence number of the last delivered move.
+	 */
+	private long moveSequence;
+	/**
+	 * Sequence number of the last delivered wheel command.
+	 */
+	private long wheelSequence;
+	/**
+	 * Highest received sequence number.
+	 */
+	private long highest;
+	/**
+	 * Received sequence numbers, bit i is set if highest - i has been
+	 * received.
+	 */
+	private long window;
+	/**
+	 * Number of delivered commands.
+	 */
+	private long received;
+	/**
+	 * Number of datagrams dropped as seen before or older than the window.
+	 */
+	private long replayed;
+	/**
+	 * Number of datagrams dropped because a later one of the same kind had
+	 * been delivered.
+	 */
+	private long late;
+	/**
+	 * Number of datagrams dropped as forged or malformed.
+	 */
+	private long rejected;
+	/**
+	 * State if closed.
+	 */
+	private boolean closed;
+
+	/**
+	 * Constructs a new motion channel.
+	 * 
+	 * @param secret
+	 *            The session secret.
+	 * @param client
+	 *            True if this is the client side.
+	 * @param socket
+	 *            The socket.
+	 * @param peer
+	 *            Where datagrams are sent or null to only receive.
+	 * @throws ProtocolException
+	 *             If socket is null or if it fails to derive the keys.
+	 */
+	MotionChannel(byte[] secret, boolean client, DatagramSocket socket,
+			SocketAddress peer) throws ProtocolException {
+		if (socket == null) {
+			throw new ProtocolException("Socket cannot be null");
+		}
+		this.socket = socket;
+		this.peer = peer;
+		cipherPool = CipherPool.getShared();
+		byte[] send = derive(secret, client ? Protocol.CLIENT_TO_SERVER
+				: Protocol.SERVER_TO_CLIENT);
+		byte[] receive = derive(secret, client ? Protocol.SERVER_TO_CLIENT
+				: Protocol.CLIENT_TO_SERVER);
+		encryptKey = new SecretKeySpec(send, 0, Packet.BLOCK_KEY_SIZE,
+				Packet.BLOCK_CIPHER_NAME);
+		decryptKey = new SecretKeySpec(receive, 0, Packet.BLOCK_KEY_SIZE,
+				Packet.BLOCK_CIPHER_NAME);
+		try {
+			encryptCipher = cipher();
+			decryptCipher = cipher();
+			sendMac = Mac.getInstance(Protocol.REKEY_ALGORITHM);
+			sendMac.init(new SecretKeySpec(send, Packet.BLOCK_KEY_SIZE,
+					send.length - Packet.BLOCK_KEY_SIZE,
+					Protocol.REKEY_ALGORITHM));
+			receiveMac = Mac.getInstance(Protocol.REKEY_ALGORITHM);
+			receiveMac.init(new SecretKeySpec(receive, Packet.BLOCK_KEY_SIZE,
+					receive.length - Packet.BLOCK_KEY_SIZE,
+					Protocol.REKEY_ALGORITHM));
+		} catch (GeneralSecurityException e) {
+			throw new ProtocolException("Failed to set datagram keys", e);
+		}
+		Arrays.fill(send, (byte) 0);
+		Arrays.fill(receive, (byte) 0);
+		sendSequence = 0;
+		sentX = 0;
+		sentY = 0;
+		sentWheel = 0;
+		deliveredX = 0;
+		deliveredY = 0;
+		deliveredWheel = 0;
+		moveSequence = 0;
+		wheelSequence = 0;
+		highest = 0;
+		window = 0;
+		received = 0;
+		replayed = 0;
+		late = 0;
+		rejected = 0;
+		closed = false;
+	}
+
+	/**
+	 * Derives the key material of a direction, an HMAC of the datagram label
+	 * and the direction keyed by the session secret.
+	 * 
+	 * @param secret
+	 *            The session secret.
+	 * @param direction
+	 *            Label of the direction.
+	 * @return The cipher key followed by the HMAC key.
+	 * @throws ProtocolException
+	 *             If it fails to derive the keys.
+	 */
+	private static byte[] derive(byte[] secret, byte direction)
+			throws ProtocolException {
+		try {
+			Mac mac = Mac.getInstance(Protocol.REKEY_ALGORITHM);
+			mac.init(new SecretKeySpec(secret, Protocol.REKEY_ALGORITHM));
+			mac.update(DATAGRAM);
+			mac.update(direction);
+			return mac.doFinal();
+		} catch (GeneralSecurityException e) {
+			throw new ProtocolException("Failed to set datagram keys", e);
+		}
+	}
+
+	/**
+	 * Gets a cipher, from the pool if there is one.
+	 * 
+	 * @return The uninitialized cipher.
+	 * @throws GeneralSecurityException
+	 *             If the transformation is not available.
+	 */
+	private Cipher cipher() throws GeneralSecurityException {
+		if (cipherPool == null) {
+			return Cipher.getInstance(Packet.COMPACT_CIPHER);
+		}
+		return cipherPool.get(Packet.COMPACT_CIPHER);
+	}
+
+	/**
+	 * Creates the counter block of a datagram.
+	 * 
+	 * @param sequence
+	 *            The sequence number.
+	 * @return The initialization vector.
+	 */
+	private static IvParameterSpec counter(long sequence) {
+		// The totals fit in one block, the low byte counts the blocks
+		byte[] iv = new byte[Packet.BLOCK_SIZE];
+		writeLong(iv, 0, sequence << 8);
+		return new IvParameterSpec(iv);
+	}
+
+	/**
+	 * Writes a long in big-endian order.
+	 * 
+	 * @param data
+	 *            The array to write to.
+	 * @param offset
+	 *            Start offset in data.
+	 * @param value
+	 *            The value.
+	 */
+	private static void writeLong(byte[] data, int offset, long value) {
+		for (int i = 0; i < 8; i++) {
+			data[offset + i] = (byte) (value >>> (56 - 8 * i));
+		}
+	}
+
+	/**
+	 * Writes an int in big-endian order.
+	 * 
+	 * @param data
+	 *            The array to write to.
+	 * @param offset
+	 *            Start offset in data.
+	 * @param value
+	 *            The value.
+	 */
+	private static void writeInt(byte[] data, int offset, int value) {
+		for (int i = 0; i < 4; i++) {
+			data[offset + i] = (byte) (value >>> (24 - 8 * i));
+		}
+	}
+
+	/**
+	 * Reads an int in big-endian order.
+	 * 
+	 * @param data
+	 *            The array to read from.
+	 * @param offset
+	 *            Start offset in data.
+	 * @return The value.
+	 */
+	private static int readInt(byte[] data, int offset) {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value = (value << 8) | (data[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * Reads a long in big-endian order.
+	 * 
+	 * @param data
+	 *            The array to read from.
+	 * @param offset
+	 *            Start offset in data.
+	 * @return The value.
+	 */
+	private static long readLong(byte[] data, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (data[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * Sends a motion command in one datagram, as the new totals of its kind.
+	 * The datagram may be lost, its amount is then delivered with the next
+	 * datagram of the same kind.
+	 * 
+	 * @param command
+	 *            The command to send.
+	 * @throws ProtocolException
+	 *             If closed, if there is no peer, if the command is null or
+	 *             not a motion command or if it fails to encrypt.
+	 * @throws IOException
+	 *             If it fails to send the datagram.
+	 */
+	public synchronized void send(Command command) throws ProtocolException,
+			IOException {
+		checkOpen();
+		if (peer == null) {
+			throw new ProtocolException("Peer cannot be null");
+		}
+		if (command == null) {
+			throw new ProtocolException("Command cannot be null");
+		}
+		if (!command.isMotion()) {
+			throw new ProtocolException("Not a motion command");
+		}
+		if (sendSequence == MAX_SEQUENCE) {
+			throw new ProtocolException("Sequence exhausted");
+		}
+		long sequence = ++sendSequence;
+		byte[] plain;
+		if (command instanceof MouseMove) {
+			MouseMove mm = (MouseMove) command;
+			sentX += mm.getDx();
+			sentY += mm.getDy();
+			plain = new byte[MOVE_LENGTH];
+			plain[0] = Command.MOUSE_MOVE;
+			writeInt(plain, 1, sentX);
+			writeInt(plain, 5, sentY);
+		} else {
+			sentWheel += ((MouseWheel) command).getWheelAmt();
+			plain = new byte[WHEEL_LENGTH];
+			plain[0] = Command.MOUSE_WHEEL;
+			writeInt(plain, 1, sentWheel);
+		}
+		byte[] data = new byte[SEQUENCE_LENGTH + plain.length + MAC_LENGTH];
+		writeLong(data, 0, sequence);
+		try {
+			encryptCipher.init(Cipher.ENCRYPT_MODE, encryptKey,
+					counter(sequence));
+			encryptCipher.doFinal(plain, 0, plain.length, data,
+					SEQUENCE_LENGTH);
+		} catch (GeneralSecurityException e) {
+			throw new ProtocolException("Failed to encrypt datagram", e);
+		}
+		int length = SEQUENCE_LENGTH + plain.length;
+		sendMac.update(data, 0, length);
+		System.arraycopy(sendMac.doFinal(), 0, data, length, MAC_LENGTH);
+		socket.send(new DatagramPacket(data, data.length, peer));
+	}
+
+	/**
+	 * Waits for the next delivered command. Dropped datagrams are counted and
+	 * skipped. Gives up after the timeout of the socket, see
+	 * {@link DatagramSocket#setSoTimeout(int)}.
+	 * 
+	 * @return The command.
+	 * @throws ProtocolException
+	 *             If closed.
+	 * @throws IOException
+	 *             If it fails to receive or times out.
+	 */
+	public Command receive() throws ProtocolException, IOException {
+		byte[] buffer = new byte[MAX_DATAGRAM_LENGTH + 1];
+		DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+		while (true) {
+			synchronized (this) {
+				checkOpen();
+			}
+			datagram.setLength(buffer.length);
+			socket.receive(datagram);
+			Command command = accept(buffer, datagram.getLength());
+			if (command != null) {
+				return command;
+			}
+		}
+	}
+
+	/**
+	 * Checks a received datagram against the replay window and its HMAC, and
+	 * turns its totals into the command to deliver.
+	 * 
+	 * @param data
+	 *            The datagram.
+	 * @param length
+	 *            Length of the datagram.
+	 * @return The command or null if dropped.
+	 * @throws ProtocolException
+	 *             If closed.
+	 */
+	private synchronized Command accept(byte[] data, int length)
+			throws ProtocolException {
+		checkOpen();
+		int plainLength = length - SEQUENCE_LENGTH - MAC_LENGTH;
+		if (plainLength != MOVE_LENGTH && plainLength != WHEEL_LENGTH) {
+			rejected++;
+			return null;
+		}
+		long sequence = readLong(data, 0);
+		if (sequence < 1 || sequence > MAX_SEQUENCE) {
+			rejected++;
+			return null;
+		}
+		// Cheap check before the HMAC, the window is updated after it
+		if (seen(sequence)) {
+			replayed++;
+			return null;
+		}
+		receiveMac.update(data, 0, SEQUENCE_LENGTH + plainLength);
+		byte[] mac = receiveMac.doFinal();
+		int diff = 0;
+		for (int i = 0; i < MAC_LENGTH; i++) {
+			diff |= mac[i] ^ data[SEQUENCE_LENGTH + plainLength + i];
+		}
+		if (diff != 0) {
+			rejected++;
+			return null;
+		}
+		byte[] plain;
+		try {
+			decryptCipher.init(Cipher.DECRYPT_MODE, decryptKey,
+					counter(sequence));
+			plain = decryptCipher.doFinal(data, SEQUENCE_LENGTH, plainLength);
+		} catch (GeneralSecurityException e) {
+			rejected++;
+			return null;
+		}
+		boolean move = plain[0] == Command.MOUSE_MOVE
+				&& plainLength == MOVE_LENGTH;
+		boolean wheel = plain[0] == Command.MOUSE_WHEEL
+				&& plainLength == WHEEL_LENGTH;
+		if (!move && !wheel) {
+			rejected++;
+			return null;
+		}
+		mark(sequence);
+		// The totals of a later datagram already include this one
+		if (sequence < (move ? moveSequence : wheelSequence)) {
+			late++;
+			return null;
+		}
+		received++;
+		if (!move) {
+			wheelSequence = sequence;
+			int total = readInt(plain, 1);
+			int amount = total - deliveredWheel;
+			deliveredWheel = total;
+			return new MouseWheel(amount);
+		}
+		moveSequence = sequence;
+		short dx = clamp(readInt(plain, 1) - deliveredX);
+		short dy = clamp(readInt(plain, 5) - deliveredY);
+		deliveredX += dx;
+		deliveredY += dy;
+		return new MouseMove(dx, dy);
+	}
+
+	/**
+	 * Limits a distance to the range of a move.
+	 * 
+	 * @param distance
+	 *            The distance.
+	 * @return The distance that can be delivered now.
+	 */
+	private static short clamp(int distance) {
+		return (short) Math.max(Short.MIN_VALUE,
+				Math.min(Short.MAX_VALUE, distance));
+	}
+
+	/**
+	 * Checks if a sequence number has been received or is older than the
+	 * window.
+	 * 
+	 * @param sequence
+	 *            The sequence number.
+	 * @return True if the datagram must be dropped.
+	 */
+	private boolean seen(long sequence) {
+		if (sequence > highest) {
+			return false;
+		}
+		long age = highest - sequence;
+		return age >= WINDOW || (window & (1L << age)) != 0;
+	}
+
+	/**
+	 * Marks a sequence number as received, sliding the window if it is the
+	 * highest.
+	 * 
+	 * @param sequence
+	 *            The sequence number.
+	 */
+	private void mark(long sequence) {
+		if (sequence > highest) {
+			long shift = sequence - highest;
+			window = shift >= WINDOW ? 0 : window << shift;
+			highest = sequence;
+		}
+		window |= 1L << (highest - sequence);
+	}
+
+	/**
+	 * Gets the number of delivered commands.
+	 * 
+	 * @return The number of commands.
+	 */
+	public synchronized long getReceived() {
+		return received;
+	}
+
+	/**
+	 * Gets the number of datagrams dropped as seen before or older than the
+	 * replay window.
+	 * 
+	 * @return The number of datagrams.
+	 */
+	public synchronized long getReplayed() {
+		return replayed;
+	}
+
+	/**
+	 * Gets the number of datagrams dropped because a later one of the same
+	 * kind had been delivered, which included their amount.
+	 * 
+	 * @return The number of datagrams.
+	 */
+	public synchronized long getLate() {
+		return late;
+	}
+
+	/**
+	 * Gets the number of datagrams dropped as forged or malformed.
+	 * 
+	 * @return The number of datagrams.
+	 */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * Closes the channel and returns its ciphers to the pool. The socket is
+	 * not closed.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (cipherPool != null) {
+			cipherPool.put(encryptCipher);
+			cipherPool.put(decryptCipher);
+		}
+		encryptCipher = null;
+		decryptCipher = null;
+	}
+
+	/**
+	 * Checks that the channel has not been closed.
+	 * 
+	 * @throws ProtocolException
+	 *             If closed.
+	 */
+	private void checkOpen() throws ProtocolException {
+		if (closed) {
+			throw new ProtocolException("Channel is closed");
+		}
+	}
+}
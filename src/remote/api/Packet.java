@@ -12,6 +12,7 @@ import remote.api.messages.AuthenticationResponse;
 import remote.api.messages.CommandRequest;
 import remote.api.messages.Message;
 import remote.api.messages.Ping;
+import remote.api.messages.Rekey;
 import remote.api.messages.TerminateRequest;
 
 /**
@@ -48,6 +49,19 @@ public class Packet {
 	 * Block size of the block algorithm.
 	 */
 	public static final int BLOCK_SIZE = 8;
+	/**
+	 * The cipher of the compact record format, the block algorithm as a
+	 * stream so that records are not padded.
+	 */
+	public static final String COMPACT_CIPHER = BLOCK_CIPHER_NAME
+			+ "/CTR/NoPadding";
+	/**
+	 * Format flag of the compact record format, a varint length followed by
+	 * the data encrypted with {@link #COMPACT_CIPHER}. Records carry no MAC,
+	 * so the format has no integrity protection: flipping a bit of a record
+	 * flips the same bit of its plaintext without being detected.
+	 */
+	public static final byte FORMAT_COMPACT = 1;
 
 	/**
 	 * Data of the packet.
@@ -96,7 +110,7 @@ public class Packet {
 	 * @throws PacketException
 	 *             If decryption fails.
 	 */
-	private void decrypt(Cipher cipher) throws PacketException {
+	void decrypt(Cipher cipher) throws PacketException {
 		if (encrypted) {
 			try {
 				data = cipher.doFinal(data);
@@ -115,7 +129,7 @@ public class Packet {
 	 * @throws PacketException
 	 *             If encryption fails.
 	 */
-	private void encrypt(Cipher cipher) throws PacketException {
+	void encrypt(Cipher cipher) throws PacketException {
 		if (!encrypted) {
 			try {
 				data = cipher.doFinal(data);
@@ -126,6 +140,115 @@ public class Packet {
 		}
 	}
 
+	/**
+	 * Encrypts the packet if decrypted, continuing the stream of a
+	 * {@link #COMPACT_CIPHER}. Packets must be encrypted in the order they are
+	 * sent.
+	 * 
+	 * @param cipher
+	 *            Cipher to use for encryption.
+	 * @throws PacketException
+	 *             If encryption fails.
+	 */
+	void encryptStream(Cipher cipher) throws PacketException {
+		if (!encrypted) {
+			data = update(cipher, "Failed to encrypt packet");
+			encrypted = true;
+		}
+	}
+
+	/**
+	 * Decrypts the packet if encrypted, continuing the stream of a
+	 * {@link #COMPACT_CIPHER}. Packets must be decrypted in the order they
+	 * were received.
+	 * 
+	 * @param cipher
+	 *            Cipher to use for decryption.
+	 * @throws PacketException
+	 *             If decryption fails.
+	 */
+	void decryptStream(Cipher cipher) throws PacketException {
+		if (encrypted) {
+			data = update(cipher, "Failed to decrypt packet");
+			encrypted = false;
+		}
+	}
+
+	/**
+	 * Passes the data through a stream cipher.
+	 * 
+	 * @param cipher
+	 *            The cipher.
+	 * @param error
+	 *            Message if it fails.
+	 * @return The output of the cipher.
+	 * @throws PacketException
+	 *             If the cipher did not return all of the data.
+	 */
+	private byte[] update(Cipher cipher, String error) throws PacketException {
+		byte[] output = cipher.update(data);
+		if (output == null || output.length != data.length) {
+			throw new PacketException(error, data);
+		}
+		return output;
+	}
+
+	/**
+	 * Gets the length of the header of a compact record.
+	 * 
+	 * @param length
+	 *            Length of the data.
+	 * @return Number of bytes of the varint length.
+	 */
+	public static int compactHeaderLength(int length) {
+		return length < 0x80 ? 1 : 2;
+	}
+
+	/**
+	 * Attempts to read a compact record from the data, see
+	 * {@link #FORMAT_COMPACT}.
+	 * 
+	 * @param data
+	 *            The data to read from.
+	 * @param off
+	 *            Start position in data.
+	 * @param len
+	 *            Length of the data.
+	 * @return A packet or null if not enough data.
+	 * @throws PacketException
+	 *             If the length is too long or invalid.
+	 */
+	public static Packet readCompact(byte[] data, int off, int len)
+			throws PacketException {
+		if (data.length < off + len) {
+			throw new PacketException("Length less than: " + off + " + " + len,
+					data.clone());
+		}
+		if (len < 1) {
+			return null;
+		}
+		int packetLength = data[off] & 0x7F;
+		int header = 1;
+		if ((data[off] & 0x80) != 0) {
+			if (len < 2) {
+				return null;
+			}
+			packetLength |= (data[off + 1] & 0xFF) << 7;
+			header = 2;
+		}
+		if (packetLength > Message.MAX_LENGTH) {
+			throw new PacketException("Message too long", data.clone());
+		} else if (header != compactHeaderLength(packetLength)) {
+			throw new PacketException("Invalid length", data.clone());
+		} else if (len >= packetLength + header) {
+			byte[] packetData = new byte[packetLength];
+			System.arraycopy(data, header + off, packetData, 0, packetLength);
+			return new Packet(packetData, true);
+		}
+		// Not enough data available
+		return null;
+	}
+
 	/**
 	 * Attempts to read a packet from the data.
 	 * 
@@ -142,11 +265,12 @@ public class Packet {
 	public static Packet read(byte[] data, int off, int len)
 			throws PacketException {
 		int packetLength = ((data[off] & 0xFF) << 8) | (data[off + 1] & 0xFF);
+		// The data is usually a reused buffer, copy it for the lazy message
 		if (packetLength > Message.MAX_LENGTH) {
-			throw new PacketException("Message too long", data);
+			throw new PacketException("Message too long", data.clone());
 		} else if (data.length < off + len) {
 			throw new PacketException("Length less than: " + off + " + " + len,
-					data);
+					data.clone());
 		} else if (len >= packetLength + 2) {
 			// Copy data to new array
 			byte[] packetData = new byte[packetLength];
@@ -195,6 +319,36 @@ public class Packet {
 		output.flush();
 	}
 
+	/**
+	 * Writes the packet as a compact record and encrypts it if needed, see
+	 * {@link #FORMAT_COMPACT}.
+	 * 
+	 * @param cipher
+	 *            The {@link #COMPACT_CIPHER} to use for encryption.
+	 * @param output
+	 *            Output stream where data is written.
+	 * @throws PacketException
+	 *             If it fails to encrypt or if the packet is too long.
+	 * @throws IOException
+	 *             If it fails to write to the output.
+	 */
+	public void writeCompact(Cipher cipher, OutputStream output)
+			throws PacketException, IOException {
+		int length = data.length;
+		if (length > Message.MAX_LENGTH) {
+			throw new PacketException("Message too long", data);
+		}
+		encryptStream(cipher);
+		if (length < 0x80) {
+			output.write(length);
+		} else {
+			output.write(0x80 | (length & 0x7F));
+			output.write(length >>> 7);
+		}
+		output.write(data);
+		output.flush();
+	}
+
 	/**
 	 * Transforms the packet to a message and decrypts if needed.
 	 * 
@@ -218,6 +372,8 @@ public class Packet {
 			return CommandRequest.unpack(data);
 		case Message.TERMINATE_REQUESET:
 			return TerminateRequest.unpack(data);
+		case Message.REKEY:
+			return Rekey.unpack(data);
 		}
 		throw new PacketException("Unknown message", data);
 	}
@@ -38,6 +38,10 @@ public class PacketScanner {
 	 * Bytes left for the scanner.
 	 */
 	private int scanAvailable;
+	/**
+	 * State if compact records are scanned, see {@link Packet#FORMAT_COMPACT}.
+	 */
+	private boolean compact;
 
 	/**
 	 * Constructs a new packet scanner.
@@ -57,6 +61,18 @@ public class PacketScanner {
 		bufferAvailable = buffer.length;
 		scanOffset = 0;
 		scanAvailable = 0;
+		compact = false;
+	}
+
+	/**
+	 * Sets the record format of the following packets. Packets that have
+	 * already been returned are not affected.
+	 * 
+	 * @param compact
+	 *            True to scan compact records, see {@link Packet#FORMAT_COMPACT}.
+	 */
+	public void setCompact(boolean compact) {
+		this.compact = compact;
 	}
 
 	/**
@@ -101,10 +117,19 @@ public class PacketScanner {
 	 *             If it fails while reading the packet.
 	 */
 	private Packet checkForPacket() throws PacketException {
-		Packet packet = Packet.read(buffer, scanOffset, scanAvailable);
+		Packet packet;
+		int header;
+		if (compact) {
+			packet = Packet.readCompact(buffer, scanOffset, scanAvailable);
+			header = packet != null ? Packet.compactHeaderLength(packet
+					.length()) : 0;
+		} else {
+			packet = Packet.read(buffer, scanOffset, scanAvailable);
+			header = 2; // 2 bytes for length
+		}
 		if (packet != null) {
 			// Consume
-			int consumed = packet.length() + 2; // 2 bytes for length
+			int consumed = packet.length() + header;
 			scanOffset += consumed;
 			scanAvailable -= consumed;
 			if (scanAvailable == 0) {
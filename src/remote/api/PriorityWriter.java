@@ -0,0 +1,417 @@
+package remote.api;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import remote.api.commands.Command;
+import remote.api.commands.MouseMove;
+import remote.api.commands.MouseWheel;
+import remote.api.exceptions.PacketException;
+import remote.api.exceptions.ProtocolException;
+import remote.api.messages.CommandRequest;
+import remote.api.messages.Message;
+import remote.api.messages.TerminateRequest;
+
+/**
+ * Writes commands through a {@link ClientProtocol} from two lanes. Discrete
+ * commands and terminate requests go in the high lane, motion commands (see
+ * {@link Command#isMotion()}) go in the low lane where motion is merged with
+ * the newest queued motion if it is of the same kind. The writer empties the
+ * high lane first, so a key press never waits behind a burst of mouse moves.
+ * <p>
+ * Mouse button commands and terminate requests depend on the motion before
+ * them, so they wait until the motion queued before them has been written,
+ * and motion queued after them is not merged into it.
+ */
+public class PriorityWriter implements Runnable {
+	/**
+	 * The protocol to write through.
+	 */
+	private final ClientProtocol protocol;
+	/**
+	 * Maximum number of messages in each lane.
+	 */
+	private final int capacity;
+	/**
+	 * Lane for discrete commands and terminate requests.
+	 */
+	private final ArrayDeque<Message> high;
+	/**
+	 * Lane for motion commands.
+	 */
+	private final ArrayDeque<Message> low;
+	/**
+	 * For each message of the high lane, the number of low lane messages
+	 * that must be taken before it.
+	 */
+	private final ArrayDeque<Long> barriers;
+	/**
+	 * Number of messages added to the low lane, merges excluded.
+	 */
+	private long lowQueued;
+	/**
+	 * Number of messages taken from the low lane.
+	 */
+	private long lowTaken;
+	/**
+	 * Value of {@link #lowQueued} when the newest ordered message was queued.
+	 */
+	private long lastBarrier;
+	/**
+	 * State if the writer has been closed.
+	 */
+	private boolean closed;
+	/**
+	 * The exception that stopped the writer, if any.
+	 */
+	private Exception failure;
+	/**
+	 * Guards the lanes and the state.
+	 */
+	private final ReentrantLock lock;
+	/**
+	 * Signalled when a message is added or the writer is closed.
+	 */
+	private final Condition notEmpty;
+	/**
+	 * Signalled when a message is removed or the writer is closed.
+	 */
+	private final Condition notFull;
+
+	/**
+	 * Constructs a new priority writer.
+	 * 
+	 * @param protocol
+	 *            The protocol to write through.
+	 * @param capacity
+	 *            Maximum number of messages in each lane.
+	 * @throws ProtocolException
+	 *             If protocol is null or capacity is less than one.
+	 */
+	public PriorityWriter(ClientProtocol protocol, int capacity)
+			throws ProtocolException {
+		if (protocol == null) {
+			throw new ProtocolException("Protocol cannot be null");
+		}
+		if (capacity < 1) {
+			throw new ProtocolException("Capacity must be positive");
+		}
+		this.protocol = protocol;
+		this.capacity = capacity;
+		high = new ArrayDeque<Message>(capacity);
+		low = new ArrayDeque<Message>(capacity);
+		barriers = new ArrayDeque<Long>(capacity);
+		lowQueued = 0;
+		lowTaken = 0;
+		lastBarrier = 0;
+		closed = false;
+		failure = null;
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+		notFull = lock.newCondition();
+	}
+
+	/**
+	 * Queues a command. Motion is merged with the newest queued motion of the
+	 * same kind when possible, and mouse buttons wait for the motion queued
+	 * before them. Blocks if the lane is full.
+	 * 
+	 * @param command
+	 *            The command to send.
+	 * @throws PacketException
+	 *             If the command is null.
+	 * @throws ProtocolException
+	 *             If the writer is closed or has failed.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for room.
+	 */
+	public void commandRequest(Command command) throws PacketException,
+			ProtocolException, InterruptedException {
+		CommandRequest request = new CommandRequest(command);
+		lock.lockInterruptibly();
+		try {
+			if (command.isMotion()) {
+				checkOpen();
+				if (merge(command)) {
+					return;
+				}
+				enqueue(low, request);
+				lowQueued++;
+			} else {
+				enqueueHigh(request, isOrdered(command));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a terminate request in the high lane, written after the motion
+	 * queued before it.
+	 * 
+	 * @param shutdown
+	 *            If shutdown should be requested.
+	 * @throws ProtocolException
+	 *             If the writer is closed or has failed.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for room.
+	 */
+	public void terminateRequest(boolean shutdown) throws ProtocolException,
+			InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			enqueueHigh(new TerminateRequest(shutdown), true);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a message to a lane, waiting for room. Must be called with the lock
+	 * held.
+	 * 
+	 * @param lane
+	 *            The lane to add to.
+	 * @param message
+	 *            The message to add.
+	 * @throws ProtocolException
+	 *             If the writer is closed or has failed.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for room.
+	 */
+	private void enqueue(ArrayDeque<Message> lane, Message message)
+			throws ProtocolException, InterruptedException {
+		checkOpen();
+		while (lane.size() >= capacity) {
+			notFull.await();
+			checkOpen();
+		}
+		lane.addLast(message);
+		notEmpty.signal();
+	}
+
+	/**
+	 * Adds a message to the high lane, waiting for room. Must be called with
+	 * the lock held.
+	 * 
+	 * @param message
+	 *            The message to add.
+	 * @param ordered
+	 *            True if the message must be written after the motion queued
+	 *            before it.
+	 * @throws ProtocolException
+	 *             If the writer is closed or has failed.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for room.
+	 */
+	private void enqueueHigh(Message message, boolean ordered)
+			throws ProtocolException, InterruptedException {
+		enqueue(high, message);
+		if (ordered) {
+			barriers.addLast(lowQueued);
+			lastBarrier = lowQueued;
+		} else {
+			barriers.addLast(0L);
+		}
+	}
+
+	/**
+	 * Checks if a discrete command depends on the motion queued before it.
+	 * 
+	 * @param command
+	 *            The command.
+	 * @return True for mouse buttons, which act at the pointer position.
+	 */
+	private static boolean isOrdered(Command command) {
+		return command.getType() == Command.MOUSE_PRESS
+				|| command.getType() == Command.MOUSE_RELEASE;
+	}
+
+	/**
+	 * Merges the motion into the newest queued motion if it is of the same
+	 * kind. Only the back of the lane is merged, so motion of another kind
+	 * queued in between keeps its place, and never motion queued before an
+	 * ordered message. Must be called with the lock held.
+	 * 
+	 * @param command
+	 *            The motion command.
+	 * @return True if it was merged.
+	 */
+	private boolean merge(Command command) {
+		CommandRequest queued = (CommandRequest) low.peekLast();
+		if (queued == null || lowQueued == lastBarrier
+				|| queued.getCommand().getType() != command.getType()) {
+			return false;
+		}
+		Command merged = merge(queued.getCommand(), command);
+		if (merged == null) {
+			return false;
+		}
+		low.pollLast();
+		try {
+			low.addLast(new CommandRequest(merged));
+		} catch (PacketException e) {
+			// Not possible, merged is not null
+		}
+		return true;
+	}
+
+	/**
+	 * Merges two motion commands of the same type.
+	 * 
+	 * @param first
+	 *            The older command.
+	 * @param second
+	 *            The newer command.
+	 * @return The merged command or null if the sum does not fit.
+	 */
+	private static Command merge(Command first, Command second) {
+		if (first.getType() == Command.MOUSE_MOVE) {
+			MouseMove a = (MouseMove) first;
+			MouseMove b = (MouseMove) second;
+			int dx = a.getDx() + b.getDx();
+			int dy = a.getDy() + b.getDy();
+			if (dx < Short.MIN_VALUE || dx > Short.MAX_VALUE
+					|| dy < Short.MIN_VALUE || dy > Short.MAX_VALUE) {
+				return null;
+			}
+			return new MouseMove((short) dx, (short) dy);
+		} else {
+			MouseWheel a = (MouseWheel) first;
+			MouseWheel b = (MouseWheel) second;
+			long amount = (long) a.getWheelAmt() + b.getWheelAmt();
+			if (amount < Integer.MIN_VALUE || amount > Integer.MAX_VALUE) {
+				return null;
+			}
+			return new MouseWheel((int) amount);
+		}
+	}
+
+	/**
+	 * Checks that messages can be queued. Must be called with the lock held.
+	 * 
+	 * @throws ProtocolException
+	 *             If the writer is closed or has failed.
+	 */
+	private void checkOpen() throws ProtocolException {
+		if (failure != null) {
+			throw new ProtocolException("Writer failed", failure);
+		}
+		if (closed) {
+			throw new ProtocolException("Writer is closed");
+		}
+	}
+
+	/**
+	 * Takes the next message, high lane first unless its message waits for
+	 * motion, blocking until one is available.
+	 * 
+	 * @return The next message or null if closed and both lanes are empty.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	private Message take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (high.isEmpty() && low.isEmpty()) {
+				if (closed) {
+					return null;
+				}
+				notEmpty.await();
+			}
+			Message message;
+			if (!high.isEmpty() && barriers.peekFirst() <= lowTaken) {
+				barriers.pollFirst();
+				message = high.pollFirst();
+			} else {
+				// Motion queued before the next ordered message remains
+				message = low.pollFirst();
+				lowTaken++;
+			}
+			notFull.signalAll();
+			return message;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes queued messages until the writer is closed and both lanes are
+	 * empty, or until writing fails. Intended to be the body of a writer
+	 * thread.
+	 */
+	@Override
+	public void run() {
+		try {
+			Message message;
+			while ((message = take()) != null) {
+				if (message.getType() == Message.COMMAND_REQUEST) {
+					protocol.commandRequest(((CommandRequest) message)
+							.getCommand());
+				} else {
+					protocol.terminateRequest(((TerminateRequest) message)
+							.isShutdown());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail(e);
+		} catch (PacketException e) {
+			fail(e);
+		} catch (IOException e) {
+			fail(e);
+		} catch (ProtocolException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Stops the writer because of an exception and releases waiting threads.
+	 * 
+	 * @param e
+	 *            The exception that stopped the writer.
+	 */
+	private void fail(Exception e) {
+		lock.lock();
+		try {
+			failure = e;
+			high.clear();
+			low.clear();
+			barriers.clear();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the writer. Already queued messages are still written, but no
+	 * more messages can be queued.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the exception that stopped the writer.
+	 * 
+	 * @return The exception or null if the writer has not failed.
+	 */
+	public Exception getFailure() {
+		lock.lock();
+		try {
+			return failure;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -3,12 +3,16 @@ package remote.api;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Arrays;
 
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -18,11 +22,34 @@ import remote.api.exceptions.PacketException;
 import remote.api.exceptions.ProtocolException;
 import remote.api.messages.Message;
 import remote.api.messages.Ping;
+import remote.api.messages.Rekey;
+import remote.api.metrics.ProtocolMetrics;
+import remote.api.trace.ProtocolTracer;
+import remote.api.trace.SamplingTracer;
+import remote.api.trace.WireRecorder;
 
 /**
  * A base class for the protocols.
  */
 public abstract class Protocol {
+	/**
+	 * The algorithm that derives the block keys of a re-key from the session
+	 * secret.
+	 */
+	public static final String REKEY_ALGORITHM = "HmacSHA256";
+	/**
+	 * Recorded instead of data that must not be kept.
+	 */
+	private static final byte[] NO_DATA = new byte[0];
+	/**
+	 * Label of the keys from the client to the server.
+	 */
+	static final byte CLIENT_TO_SERVER = 'C';
+	/**
+	 * Label of the keys from the server to the client.
+	 */
+	static final byte SERVER_TO_CLIENT = 'S';
+
 	/**
 	 * An interface to handle ping callbacks.
 	 */
@@ -76,10 +103,82 @@ public abstract class Protocol {
 	 * Initialization vector for the cipher.
 	 */
 	protected byte[] iv;
+	/**
+	 * Where the packets are counted or null if not measured.
+	 */
+	protected ProtocolMetrics metrics;
+	/**
+	 * Where timed events are emitted or null if not traced.
+	 */
+	protected ProtocolTracer tracer;
+	/**
+	 * Where frames are recorded or null if not recorded.
+	 */
+	protected WireRecorder recorder;
+	/**
+	 * Where the ciphers come from and go back to, null if not pooled.
+	 */
+	private final CipherPool cipherPool;
+	/**
+	 * State if closed.
+	 */
+	private boolean closed;
+	/**
+	 * State if this is the client side.
+	 */
+	private final boolean client;
+	/**
+	 * Secret that the next key of the sending direction is derived from.
+	 */
+	private byte[] sendSecret;
+	/**
+	 * Secret that the next key of the receiving direction is derived from.
+	 */
+	private byte[] receiveSecret;
+	/**
+	 * Number of re-keys of the sending direction.
+	 */
+	private int sendEpoch;
+	/**
+	 * Number of re-keys of the receiving direction.
+	 */
+	private int receiveEpoch;
+	/**
+	 * Bytes sent with one key before a re-key, zero if not limited.
+	 */
+	private long rekeyBytes;
+	/**
+	 * Nanoseconds a key is used for sending before a re-key, zero if not
+	 * limited.
+	 */
+	private long rekeyNanos;
+	/**
+	 * Bytes sent with the current key.
+	 */
+	private long sentBytes;
+	/**
+	 * When the current key started to be used for sending.
+	 */
+	private long sendKeyTime;
+	/**
+	 * State if the compact record format is used.
+	 */
+	private boolean compact;
+	/**
+	 * Secret that the keys of motion channels are derived from, the first
+	 * session secret, which re-keys do not replace.
+	 */
+	private byte[] datagramSecret;
+	/**
+	 * State if a motion channel has been opened.
+	 */
+	private boolean motionChannelOpened;
 
 	/**
 	 * Constructs a new protocol.
 	 * 
+	 * @param client
+	 *            True if this is the client side.
 	 * @param iv
 	 *            The initialization vector for the block cipher.
 	 * @param input
@@ -91,8 +190,8 @@ public abstract class Protocol {
 	 * @throws PacketException
 	 *             See {@link PacketScanner#PacketScanner(InputStream)}
 	 */
-	private Protocol(byte[] iv, InputStream input, OutputStream output)
-			throws ProtocolException, PacketException {
+	private Protocol(boolean client, byte[] iv, InputStream input,
+			OutputStream output) throws ProtocolException, PacketException {
 		if (iv == null) {
 			throw new ProtocolException("Iv cannot be null");
 		}
@@ -108,6 +207,22 @@ public abstract class Protocol {
 		this.output = output;
 		packetScanner = new PacketScanner(input);
 		authenticated = false;
+		metrics = null;
+		tracer = null;
+		recorder = null;
+		cipherPool = CipherPool.getShared();
+		closed = false;
+		this.client = client;
+		sendSecret = null;
+		receiveSecret = null;
+		sendEpoch = 0;
+		receiveEpoch = 0;
+		rekeyBytes = 0;
+		rekeyNanos = 0;
+		sentBytes = 0;
+		sendKeyTime = 0;
+		compact = false;
+		datagramSecret = null;
 	}
 
 	/**
@@ -134,7 +249,7 @@ public abstract class Protocol {
 	protected Protocol(PublicKey publicKey, byte[] key, byte[] iv,
 			InputStream input, OutputStream output)
 			throws GeneralSecurityException, ProtocolException, PacketException {
-		this(iv, input, output);
+		this(true, iv, input, output);
 		if (key == null) {
 			throw new InvalidKeyException("Key cannot be null");
 		}
@@ -170,7 +285,7 @@ public abstract class Protocol {
 	protected Protocol(PrivateKey privateKey, InputStream input,
 			OutputStream output) throws GeneralSecurityException,
 			ProtocolException, PacketException {
-		this(new byte[Packet.BLOCK_SIZE], input, output);
+		this(false, new byte[Packet.BLOCK_SIZE], input, output);
 		blockDecryptCipher = null;
 		blockEncryptCipher = null;
 		secureCipher = Cipher.getInstance(Packet.SECURE_ALGORITHM);
@@ -178,7 +293,46 @@ public abstract class Protocol {
 	}
 
 	/**
-	 * Initializes the block cipher given a key.
+	 * Gets a cipher from the pool, or a new one if not pooled.
+	 * 
+	 * @param transformation
+	 *            The transformation.
+	 * @return The uninitialized cipher.
+	 * @throws GeneralSecurityException
+	 *             If the transformation is not available.
+	 */
+	private Cipher cipher(String transformation)
+			throws GeneralSecurityException {
+		if (cipherPool == null) {
+			return Cipher.getInstance(transformation);
+		}
+		return cipherPool.get(transformation);
+	}
+
+	/**
+	 * Returns a cipher to the pool, if pooled.
+	 * 
+	 * @param cipher
+	 *            The cipher or null.
+	 */
+	private void release(Cipher cipher) {
+		if (cipherPool != null) {
+			cipherPool.put(cipher);
+		}
+	}
+
+	/**
+	 * Drops the secure cipher when it is no longer needed. It is never pooled
+	 * since it holds the private key of a server.
+	 */
+	protected void releaseSecureCipher() {
+		secureCipher = null;
+	}
+
+	/**
+	 * Initializes the block cipher given a key. The key and the
+	 * initialization vector also become the session secret that later keys
+	 * are derived from, see {@link #rekey()}.
 	 * 
 	 * @param secretKey
 	 *            The key to use for the block cipher.
@@ -187,15 +341,356 @@ public abstract class Protocol {
 	 */
 	protected void blockCipherInit(SecretKey secretKey)
 			throws ProtocolException {
+		long start = System.nanoTime();
 		try {
 			IvParameterSpec ivSpec = new IvParameterSpec(iv);
-			blockDecryptCipher = Cipher.getInstance(Packet.BLOCK_CIPHER);
+			// Ciphers of a previous key are initialized again
+			if (blockDecryptCipher == null) {
+				blockDecryptCipher = cipher(Packet.BLOCK_CIPHER);
+			}
 			blockDecryptCipher.init(Cipher.DECRYPT_MODE, secretKey, ivSpec);
-			blockEncryptCipher = Cipher.getInstance(Packet.BLOCK_CIPHER);
+			if (blockEncryptCipher == null) {
+				blockEncryptCipher = cipher(Packet.BLOCK_CIPHER);
+			}
 			blockEncryptCipher.init(Cipher.ENCRYPT_MODE, secretKey, ivSpec);
 		} catch (GeneralSecurityException e) {
 			throw new ProtocolException("Failed to set block cipher", e);
 		}
+		byte[] key = secretKey.getEncoded();
+		byte[] secret = new byte[key.length + iv.length];
+		System.arraycopy(key, 0, secret, 0, key.length);
+		System.arraycopy(iv, 0, secret, key.length, iv.length);
+		sendSecret = secret;
+		receiveSecret = secret.clone();
+		datagramSecret = secret.clone();
+		sendEpoch = 0;
+		receiveEpoch = 0;
+		sentBytes = 0;
+		sendKeyTime = System.nanoTime();
+		ProtocolTracer tracer = this.tracer;
+		if (tracer != null) {
+			tracer.cipherInit(Packet.BLOCK_CIPHER, start, System.nanoTime()
+					- start);
+		}
+	}
+
+	/**
+	 * Derives the next key of a direction and initializes a cipher with it.
+	 * The key and the initialization vector are taken from an HMAC of the
+	 * direction and epoch keyed by the secret, the rest of the HMAC becomes
+	 * the next secret, so earlier keys cannot be derived from later ones.
+	 * 
+	 * @param cipher
+	 *            The cipher of the direction.
+	 * @param mode
+	 *            The cipher mode.
+	 * @param secret
+	 *            The current secret of the direction.
+	 * @param direction
+	 *            Label of the direction.
+	 * @param epoch
+	 *            The epoch of the next key.
+	 * @return The next secret of the direction.
+	 * @throws ProtocolException
+	 *             If it fails to derive the key or to initialize the cipher.
+	 */
+	private byte[] nextKey(Cipher cipher, int mode, byte[] secret,
+			byte direction, int epoch) throws ProtocolException {
+		long start = System.nanoTime();
+		byte[] next;
+		try {
+			Mac mac = Mac.getInstance(REKEY_ALGORITHM);
+			mac.init(new SecretKeySpec(secret, REKEY_ALGORITHM));
+			mac.update(direction);
+			for (int shift = 24; shift >= 0; shift -= 8) {
+				mac.update((byte) (epoch >>> shift));
+			}
+			next = mac.doFinal();
+			SecretKey secretKey = new SecretKeySpec(next, 0,
+					Packet.BLOCK_KEY_SIZE, Packet.BLOCK_CIPHER_NAME);
+			cipher.init(mode, secretKey, new IvParameterSpec(next,
+					Packet.BLOCK_KEY_SIZE, Packet.BLOCK_SIZE));
+		} catch (GeneralSecurityException e) {
+			throw new ProtocolException("Failed to derive block cipher", e);
+		}
+		ProtocolTracer tracer = this.tracer;
+		if (tracer != null) {
+			tracer.cipherInit(cipher.getAlgorithm(), start, System.nanoTime()
+					- start);
+		}
+		return Arrays.copyOfRange(next, Packet.BLOCK_KEY_SIZE
+				+ Packet.BLOCK_SIZE, next.length);
+	}
+
+	/**
+	 * Switches both directions to the compact record format, see
+	 * {@link Packet#FORMAT_COMPACT}. Each direction gets a stream cipher with
+	 * its own key derived from the session secret, since the two directions
+	 * must never share a key stream. Called by both sides right after the
+	 * authentication response, the last block cipher record.
+	 * 
+	 * @throws ProtocolException
+	 *             If it fails to initialize the ciphers.
+	 */
+	protected void startCompact() throws ProtocolException {
+		Cipher encrypt;
+		Cipher decrypt;
+		try {
+			encrypt = cipher(Packet.COMPACT_CIPHER);
+			decrypt = cipher(Packet.COMPACT_CIPHER);
+		} catch (GeneralSecurityException e) {
+			throw new ProtocolException("Failed to set block cipher", e);
+		}
+		// Epoch zero is never used by a re-key
+		sendSecret = nextKey(encrypt, Cipher.ENCRYPT_MODE, sendSecret,
+				client ? CLIENT_TO_SERVER : SERVER_TO_CLIENT, 0);
+		receiveSecret = nextKey(decrypt, Cipher.DECRYPT_MODE, receiveSecret,
+				client ? SERVER_TO_CLIENT : CLIENT_TO_SERVER, 0);
+		release(blockEncryptCipher);
+		release(blockDecryptCipher);
+		blockEncryptCipher = encrypt;
+		blockDecryptCipher = decrypt;
+		packetScanner.setCompact(true);
+		compact = true;
+		sentBytes = 0;
+		sendKeyTime = System.nanoTime();
+	}
+
+	/**
+	 * Checks if the compact record format is used.
+	 * 
+	 * @return True if compact records are sent and received.
+	 */
+	public synchronized boolean isCompact() {
+		return compact;
+	}
+
+	/**
+	 * Gets the length of a packet on the wire.
+	 * 
+	 * @param packet
+	 *            The encrypted packet.
+	 * @return Length of the packet and its header.
+	 */
+	private int frameLength(Packet packet) {
+		int length = packet.length();
+		return length + (compact ? Packet.compactHeaderLength(length) : 2);
+	}
+
+	/**
+	 * Sets when the key of the sending direction is replaced, checked before
+	 * each message is sent. Both sides must support re-keys, so it is off
+	 * unless set.
+	 * 
+	 * @param bytes
+	 *            Bytes sent with one key, zero for no limit.
+	 * @param millis
+	 *            Milliseconds one key is used, zero for no limit.
+	 * @throws ProtocolException
+	 *             If bytes or millis is negative.
+	 */
+	public synchronized void setRekeyPolicy(long bytes, long millis)
+			throws ProtocolException {
+		if (bytes < 0) {
+			throw new ProtocolException("Bytes cannot be negative");
+		}
+		if (millis < 0) {
+			throw new ProtocolException("Time cannot be negative");
+		}
+		rekeyBytes = bytes;
+		rekeyNanos = millis * 1000000L;
+	}
+
+	/**
+	 * Replaces the key of the sending direction without a round trip. A
+	 * re-key message is sent with the old key and everything after it with
+	 * the next key, and the other side switches its decryption when it
+	 * processes the re-key message. Since each direction switches on its own
+	 * at a known point in the stream, no frame is decrypted with the wrong key
+	 * and neither side waits for the other.
+	 * 
+	 * @throws PacketException
+	 *             If it fails to deliver the packet.
+	 * @throws IOException
+	 *             If it fails to write to the output stream.
+	 * @throws ProtocolException
+	 *             If not authenticated, closed or if it fails to derive the
+	 *             key.
+	 */
+	public synchronized void rekey() throws PacketException, IOException,
+			ProtocolException {
+		checkOpen();
+		if (!authenticated) {
+			throw new AuthenticationException("Expecting authentication");
+		}
+		sendRekey();
+	}
+
+	/**
+	 * Sends a re-key message and switches the sending key.
+	 * 
+	 * @throws PacketException
+	 *             If it fails to deliver the packet.
+	 * @throws IOException
+	 *             If it fails to write to the output stream.
+	 * @throws ProtocolException
+	 *             If it fails to derive the key.
+	 */
+	private void sendRekey() throws PacketException, IOException,
+			ProtocolException {
+		int epoch = sendEpoch + 1;
+		send(new Rekey((byte) epoch).pack());
+		sendSecret = nextKey(blockEncryptCipher, Cipher.ENCRYPT_MODE,
+				sendSecret, client ? CLIENT_TO_SERVER : SERVER_TO_CLIENT,
+				epoch);
+		sendEpoch = epoch;
+		sentBytes = 0;
+		sendKeyTime = System.nanoTime();
+	}
+
+	/**
+	 * Checks the re-key policy.
+	 * 
+	 * @return True if the sending key has been used for too many bytes or for
+	 *         too long.
+	 */
+	private boolean isRekeyDue() {
+		if (rekeyBytes > 0 && sentBytes >= rekeyBytes) {
+			return true;
+		}
+		return rekeyNanos > 0 && System.nanoTime() - sendKeyTime >= rekeyNanos;
+	}
+
+	/**
+	 * Handles a re-key message by switching the receiving key.
+	 * 
+	 * @param rekey
+	 *            The re-key message.
+	 * @throws ProtocolException
+	 *             If the epoch is not the next one or if it fails to derive
+	 *             the key.
+	 */
+	protected void processRekey(Rekey rekey) throws ProtocolException {
+		int epoch = receiveEpoch + 1;
+		if (rekey.getEpoch() != (byte) epoch) {
+			throw new ProtocolException("Unexpected rekey epoch: "
+					+ rekey.getEpoch());
+		}
+		receiveSecret = nextKey(blockDecryptCipher, Cipher.DECRYPT_MODE,
+				receiveSecret, client ? SERVER_TO_CLIENT : CLIENT_TO_SERVER,
+				epoch);
+		receiveEpoch = epoch;
+	}
+
+	/**
+	 * Opens a channel that sends motion commands as datagrams, with keys
+	 * derived from the secret of this session. The other side opens its
+	 * channel the same way, the sockets are set up by the application. Only
+	 * one channel can be opened per session, since another one would use the
+	 * same keys and sequence numbers again.
+	 * 
+	 * @param socket
+	 *            The socket to send and receive on.
+	 * @param peer
+	 *            Where datagrams are sent or null to only receive.
+	 * @return The channel.
+	 * @throws ProtocolException
+	 *             If not authenticated, closed, if a channel has already been
+	 *             opened, if socket is null or if it fails to derive the keys.
+	 */
+	public synchronized MotionChannel openMotionChannel(DatagramSocket socket,
+			SocketAddress peer) throws ProtocolException {
+		checkOpen();
+		if (!authenticated) {
+			throw new AuthenticationException("Expecting authentication");
+		}
+		if (motionChannelOpened) {
+			throw new ProtocolException("Motion channel already opened");
+		}
+		MotionChannel channel = new MotionChannel(datagramSecret, client,
+				socket, peer);
+		motionChannelOpened = true;
+		return channel;
+	}
+
+	/**
+	 * Gets the number of times the sending key has been replaced.
+	 * 
+	 * @return The epoch of the sending key.
+	 */
+	public synchronized int getSendEpoch() {
+		return sendEpoch;
+	}
+
+	/**
+	 * Gets the number of times the receiving key has been replaced.
+	 * 
+	 * @return The epoch of the receiving key.
+	 */
+	public synchronized int getReceiveEpoch() {
+		return receiveEpoch;
+	}
+
+	/**
+	 * Sets where packets, handshakes and commands of this session are counted.
+	 * Give each session its own metrics with a shared parent to aggregate
+	 * them, see {@link ProtocolMetrics#ProtocolMetrics(ProtocolMetrics)}.
+	 * 
+	 * @param metrics
+	 *            The metrics or null to stop measuring.
+	 */
+	public synchronized void setMetrics(ProtocolMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Gets the metrics of this session.
+	 * 
+	 * @return The metrics or null if not measured.
+	 */
+	public synchronized ProtocolMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets where timed events of this session are emitted, for example to
+	 * attribute pauses to decryption or to the handler. Use a
+	 * {@link SamplingTracer} to only trace some of the frames.
+	 * 
+	 * @param tracer
+	 *            The tracer or null to stop tracing.
+	 */
+	public synchronized void setTracer(ProtocolTracer tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Gets the tracer of this session.
+	 * 
+	 * @return The tracer or null if not traced.
+	 */
+	public synchronized ProtocolTracer getTracer() {
+		return tracer;
+	}
+
+	/**
+	 * Sets where the frames of this session are recorded, so that the last
+	 * frames can be inspected when something goes wrong.
+	 * 
+	 * @param recorder
+	 *            The recorder or null to stop recording.
+	 */
+	public synchronized void setRecorder(WireRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Gets the recorder of this session.
+	 * 
+	 * @return The recorder or null if not recorded.
+	 */
+	public synchronized WireRecorder getRecorder() {
+		return recorder;
 	}
 
 	/**
@@ -255,7 +750,8 @@ public abstract class Protocol {
 	}
 
 	/**
-	 * Delivers a block cipher message, checks if authenticated.
+	 * Delivers a block cipher message, checks if authenticated. The sending
+	 * key is replaced first if the re-key policy says so.
 	 * 
 	 * @param message
 	 *            The message to deliver.
@@ -264,14 +760,33 @@ public abstract class Protocol {
 	 * @throws IOException
 	 *             If it fails to write to the output stream.
 	 * @throws ProtocolException
-	 *             If not authenticated.
+	 *             If not authenticated or closed.
 	 */
 	protected void deliver(Message message) throws PacketException,
 			IOException, ProtocolException {
+		checkOpen();
 		if (!authenticated) {
 			throw new AuthenticationException("Expecting authentication");
 		}
-		message.pack().write(blockEncryptCipher, output);
+		if (isRekeyDue()) {
+			sendRekey();
+		}
+		send(message.pack());
+	}
+
+	/**
+	 * Writes a block cipher packet and counts the bytes sent with the key.
+	 * 
+	 * @param packet
+	 *            The packet to write.
+	 * @throws PacketException
+	 *             If it fails to encrypt the packet.
+	 * @throws IOException
+	 *             If it fails to write to the output stream.
+	 */
+	private void send(Packet packet) throws PacketException, IOException {
+		write(packet, blockEncryptCipher);
+		sentBytes += frameLength(packet);
 	}
 
 	/**
@@ -286,7 +801,236 @@ public abstract class Protocol {
 	 */
 	protected void writeSecure(Packet packet) throws PacketException,
 			IOException {
-		packet.write(secureCipher, output);
+		write(packet, secureCipher);
+	}
+
+	/**
+	 * Writes a packet of the trusted handshake as it is, without any checks.
+	 * 
+	 * @param packet
+	 *            The packet to write.
+	 * @throws PacketException
+	 *             If it fails to pack the packet.
+	 * @throws IOException
+	 *             If it fails to write to the output stream.
+	 */
+	protected void writeTrusted(Packet packet) throws PacketException,
+			IOException {
+		// Marked as encrypted so that it is not encrypted
+		write(new Packet(packet.getData(), true), null);
+	}
+
+	/**
+	 * Writes a packet to the output and counts, traces or records it if
+	 * enabled.
+	 * 
+	 * @param packet
+	 *            The packet to write.
+	 * @param cipher
+	 *            The cipher to use for encryption.
+	 * @throws PacketException
+	 *             If it fails to encrypt the packet.
+	 * @throws IOException
+	 *             If it fails to write to the output stream.
+	 */
+	private void write(Packet packet, Cipher cipher) throws PacketException,
+			IOException {
+		ProtocolMetrics metrics = this.metrics;
+		ProtocolTracer tracer = this.tracer;
+		WireRecorder recorder = this.recorder;
+		if (metrics == null && tracer == null && recorder == null) {
+			if (compact) {
+				packet.writeCompact(cipher, output);
+			} else {
+				packet.write(cipher, output);
+			}
+			return;
+		}
+		byte[] plaintext = packet.getData();
+		byte type = plaintext.length > 0 ? plaintext[0] : -1;
+		long start = System.nanoTime();
+		try {
+			if (compact) {
+				packet.encryptStream(cipher);
+			} else {
+				packet.encrypt(cipher);
+			}
+		} catch (PacketException e) {
+			if (recorder != null) {
+				recorder.record(WireRecorder.FAILED, plaintext.length + 2,
+						plaintext, start);
+			}
+			throw e;
+		}
+		long nanos = System.nanoTime() - start;
+		int length = frameLength(packet);
+		if (recorder != null) {
+			recorder.record(0, length, plaintext, start);
+		}
+		if (compact) {
+			packet.writeCompact(cipher, output);
+		} else {
+			packet.write(cipher, output);
+		}
+		if (metrics != null) {
+			metrics.packetOut(length, nanos);
+		}
+		if (tracer != null) {
+			tracer.frame(false, length, type, start, nanos);
+		}
+	}
+
+	/**
+	 * Decodes a received packet and counts, traces or records it if enabled.
+	 * 
+	 * @param packet
+	 *            The packet to decode.
+	 * @param cipher
+	 *            The cipher used to decrypt the data.
+	 * @return The decoded message.
+	 * @throws PacketException
+	 *             See {@link Packet#decode(Cipher)}
+	 */
+	protected Message decode(Packet packet, Cipher cipher)
+			throws PacketException {
+		return decode(packet, cipher, false);
+	}
+
+	/**
+	 * Decodes a received authentication request like
+	 * {@link #decode(Packet, Cipher)}, except that the data of the packet is
+	 * not recorded if it cannot be decrypted. It may be the plaintext of a
+	 * client that uses the trusted handshake by mistake.
+	 * 
+	 * @param packet
+	 *            The packet to decode.
+	 * @param cipher
+	 *            The cipher used to decrypt the data.
+	 * @return The decoded message.
+	 * @throws PacketException
+	 *             See {@link Packet#decode(Cipher)}
+	 */
+	protected Message decodeHandshake(Packet packet, Cipher cipher)
+			throws PacketException {
+		return decode(packet, cipher, true);
+	}
+
+	/**
+	 * Decodes a received packet and counts, traces or records it if enabled.
+	 * 
+	 * @param packet
+	 *            The packet to decode.
+	 * @param cipher
+	 *            The cipher used to decrypt the data.
+	 * @param handshake
+	 *            True to not record the data if it cannot be decrypted.
+	 * @return The decoded message.
+	 * @throws PacketException
+	 *             See {@link Packet#decode(Cipher)}
+	 */
+	private Message decode(Packet packet, Cipher cipher, boolean handshake)
+			throws PacketException {
+		ProtocolMetrics metrics = this.metrics;
+		ProtocolTracer tracer = this.tracer;
+		WireRecorder recorder = this.recorder;
+		if (metrics == null && tracer == null && recorder == null) {
+			if (compact) {
+				packet.decryptStream(cipher);
+			}
+			return packet.decode(cipher);
+		}
+		int length = frameLength(packet);
+		long start = System.nanoTime();
+		boolean decrypted = false;
+		try {
+			if (compact) {
+				packet.decryptStream(cipher);
+			} else {
+				packet.decrypt(cipher);
+			}
+			decrypted = true;
+			if (metrics != null) {
+				metrics.packetIn(length, System.nanoTime() - start);
+			}
+			Message message = packet.decode(cipher);
+			if (recorder != null) {
+				recorder.record(WireRecorder.INBOUND, length, packet.getData(),
+						start);
+			}
+			if (tracer != null) {
+				tracer.frame(true, length, message.getType(), start,
+						System.nanoTime() - start);
+			}
+			return message;
+		} catch (PacketException e) {
+			if (metrics != null) {
+				metrics.decodeFailure(e.getReason());
+			}
+			if (tracer != null) {
+				tracer.frame(true, length, (byte) -1, start,
+						System.nanoTime() - start);
+			}
+			if (recorder != null) {
+				int flags = WireRecorder.INBOUND | WireRecorder.FAILED;
+				byte[] data = packet.getData();
+				if (!decrypted) {
+					flags |= WireRecorder.ENCRYPTED;
+					if (handshake) {
+						data = NO_DATA;
+					}
+				}
+				recorder.record(flags, length, data, start);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the protocol and returns its ciphers to the pool, see
+	 * {@link CipherPool}. The streams are not closed. Nothing can be sent or
+	 * processed afterwards.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		release(blockDecryptCipher);
+		release(blockEncryptCipher);
+		blockDecryptCipher = null;
+		blockEncryptCipher = null;
+		secureCipher = null;
+	}
+
+	/**
+	 * Checks if the protocol has been closed.
+	 * 
+	 * @return True if closed.
+	 */
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Checks if the handshake has completed. On the client this happens when
+	 * the authentication response is processed.
+	 * 
+	 * @return True if authenticated.
+	 */
+	public synchronized boolean isAuthenticated() {
+		return authenticated;
+	}
+
+	/**
+	 * Checks that the protocol has not been closed.
+	 * 
+	 * @throws ProtocolException
+	 *             If closed.
+	 */
+	protected void checkOpen() throws ProtocolException {
+		if (closed) {
+			throw new ProtocolException("Protocol is closed");
+		}
 	}
 
 	/**
@@ -0,0 +1,91 @@
+package remote.api;
+
+/**
+ * Interfaces of demand-driven streams, the same as those of
+ * {@code java.util.concurrent.Flow} in Java 9, which this library cannot
+ * depend on. A subscriber receives at most as many items as it has requested,
+ * so a slow subscriber holds back the publisher instead of buffering.
+ */
+public class Reactive {
+	/**
+	 * Produces items to one or more subscribers.
+	 * 
+	 * @param <T>
+	 *            Type of the items.
+	 */
+	public interface Publisher<T> {
+		/**
+		 * Adds a subscriber. It is given a subscription through
+		 * {@link Subscriber#onSubscribe(Subscription)} before anything else,
+		 * or it receives an error if it cannot subscribe.
+		 * 
+		 * @param subscriber
+		 *            The subscriber.
+		 */
+		public void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * Receives the items of a publisher. The methods are called one at a
+	 * time for a subscription.
+	 * 
+	 * @param <T>
+	 *            Type of the items.
+	 */
+	public interface Subscriber<T> {
+		/**
+		 * Called first, nothing is received until items are requested.
+		 * 
+		 * @param subscription
+		 *            The subscription.
+		 */
+		public void onSubscribe(Subscription subscription);
+
+		/**
+		 * Called for each requested item.
+		 * 
+		 * @param item
+		 *            The item.
+		 */
+		public void onNext(T item);
+
+		/**
+		 * Called when the stream fails, nothing is received afterwards.
+		 * 
+		 * @param throwable
+		 *            The reason.
+		 */
+		public void onError(Throwable throwable);
+
+		/**
+		 * Called when the stream ends, nothing is received afterwards.
+		 */
+		public void onComplete();
+	}
+
+	/**
+	 * Links a publisher to a subscriber.
+	 */
+	public interface Subscription {
+		/**
+		 * Adds to the number of items that may be received. Requests that
+		 * are not positive fail the stream.
+		 * 
+		 * @param n
+		 *            The number of items.
+		 */
+		public void request(long n);
+
+		/**
+		 * Stops the stream, although items already on their way may still be
+		 * received.
+		 */
+		public void cancel();
+	}
+
+	/**
+	 * Only interfaces.
+	 */
+	private Reactive() {
+	}
+}
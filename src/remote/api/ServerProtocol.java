@@ -2,10 +2,13 @@ package remote.api;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 
+import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -18,7 +21,10 @@ import remote.api.messages.AuthenticationResponse;
 import remote.api.messages.CommandRequest;
 import remote.api.messages.Message;
 import remote.api.messages.Ping;
+import remote.api.messages.Rekey;
 import remote.api.messages.TerminateRequest;
+import remote.api.metrics.ProtocolMetrics;
+import remote.api.trace.ProtocolTracer;
 
 /**
  * Server side of the protocol.
@@ -66,6 +72,91 @@ public class ServerProtocol extends Protocol {
 		public void onAuthenticated();
 	}
 
+	/**
+	 * An authentication request that has been verified by
+	 * {@link ServerProtocol#verify(Packet)} but not yet completed.
+	 */
+	public static class Handshake {
+		/**
+		 * The protocol that verified the request.
+		 */
+		private final ServerProtocol protocol;
+		/**
+		 * The block key.
+		 */
+		private final byte[] key;
+		/**
+		 * The initialization vector.
+		 */
+		private final byte[] iv;
+		/**
+		 * When the verification started.
+		 */
+		private final long start;
+		/**
+		 * The admission permit or null.
+		 */
+		private final AdmissionController.Permit permit;
+		/**
+		 * The record formats offered by the client.
+		 */
+		private final byte formats;
+		/**
+		 * State if completed or cancelled.
+		 */
+		private boolean taken;
+
+		/**
+		 * Constructs a new handshake.
+		 * 
+		 * @param protocol
+		 *            The protocol that verified the request.
+		 * @param key
+		 *            The block key.
+		 * @param iv
+		 *            The initialization vector.
+		 * @param start
+		 *            When the verification started.
+		 * @param permit
+		 *            The admission permit or null.
+		 * @param formats
+		 *            The record formats offered by the client.
+		 */
+		private Handshake(ServerProtocol protocol, byte[] key, byte[] iv,
+				long start, AdmissionController.Permit permit, byte formats) {
+			this.protocol = protocol;
+			this.key = key;
+			this.iv = iv;
+			this.start = start;
+			this.permit = permit;
+			this.formats = formats;
+			taken = false;
+		}
+
+		/**
+		 * Marks the handshake as used.
+		 * 
+		 * @return True if it was not used before.
+		 */
+		private synchronized boolean take() {
+			if (taken) {
+				return false;
+			}
+			taken = true;
+			return true;
+		}
+
+		/**
+		 * Abandons the handshake if it has not been completed, releasing the
+		 * admission permit as a failure.
+		 */
+		void cancel() {
+			if (take() && permit != null) {
+				permit.release(false);
+			}
+		}
+	}
+
 	/**
 	 * The handler.
 	 */
@@ -76,6 +167,39 @@ public class ServerProtocol extends Protocol {
 	 */
 	private ConnectionHandler connectionHandler;
 
+	/**
+	 * Queue between the reader and the handler, null if commands are
+	 * dispatched directly.
+	 */
+	private CommandQueue commandQueue;
+
+	/**
+	 * Admission control for authentication requests, null if all are
+	 * processed.
+	 */
+	private AdmissionController admission;
+
+	/**
+	 * The source given to the admission control.
+	 */
+	private InetAddress admissionSource;
+
+	/**
+	 * State if an authentication request is being verified.
+	 */
+	private boolean verifying;
+
+	/**
+	 * State if the compact record format is accepted when offered.
+	 */
+	private boolean compactAccepted;
+
+	/**
+	 * State if the authentication request is expected without the secure
+	 * algorithm.
+	 */
+	private boolean trusted;
+
 	/**
 	 * Constructs a new server protocol.
 	 * 
@@ -110,53 +234,330 @@ public class ServerProtocol extends Protocol {
 		}
 		this.handler = handler;
 		this.connectionHandler = connectionHandler;
+		commandQueue = null;
+		admission = null;
+		admissionSource = null;
+		verifying = false;
+		compactAccepted = true;
+		trusted = false;
 	}
 
+	/**
+	 * Sets if the compact record format is accepted when the client offers
+	 * it, see {@link Packet#FORMAT_COMPACT}. It is accepted by default, since
+	 * only clients that support it offer it. Refuse it where records could be
+	 * changed on the way, the format has no integrity protection.
+	 * 
+	 * @param accept
+	 *            True to accept the compact record format.
+	 */
+	public synchronized void setCompact(boolean accept) {
+		compactAccepted = accept;
+	}
+
+	/**
+	 * Sets if the trusted handshake is expected, where the authentication
+	 * request is not encrypted with the secure algorithm. The client must use
+	 * it as well, see {@link ClientProtocol#setTrusted(boolean)}, any other
+	 * request fails. Only use it on a connection that no one else can read or
+	 * connect to, see {@link LocalTransport}. Must be set before the
+	 * authentication request is processed.
+	 * 
+	 * @param trusted
+	 *            True to expect the trusted handshake.
+	 */
+	public synchronized void setTrusted(boolean trusted) {
+		this.trusted = trusted;
+	}
+
+	/**
+	 * Sets a queue that decouples reading commands from handling them. Commands
+	 * are put in the queue instead of being passed to
+	 * {@link Handler#command(Command)}, and someone else has to take them out,
+	 * for example with {@link CommandQueue#dispatch(Handler)}. Terminate
+	 * requests are queued behind the commands before them and only reach the
+	 * handler through the dispatch methods. Command times are then only
+	 * measured if the dispatcher measures them, see
+	 * {@link CommandQueue#dispatch(Handler, ProtocolMetrics)}.
+	 * 
+	 * @param commandQueue
+	 *            The queue or null to dispatch commands directly.
+	 */
+	public synchronized void setCommandQueue(CommandQueue commandQueue) {
+		this.commandQueue = commandQueue;
+	}
+
+	/**
+	 * Sets the admission control of authentication requests. Requests that are
+	 * not admitted are rejected with an {@link AuthenticationException} before
+	 * they are decrypted, and the outcome of admitted requests is reported
+	 * back to the admission control.
+	 * 
+	 * @param admission
+	 *            The admission control, typically shared by all connections
+	 *            of the server, or null to process all requests.
+	 * @param source
+	 *            The host address of the client, for example
+	 *            {@link java.net.Socket#getInetAddress()}, without the port.
+	 * @throws ProtocolException
+	 *             If admission is set and source is null.
+	 */
+	public synchronized void setAdmission(AdmissionController admission,
+			InetAddress source) throws ProtocolException {
+		if (admission != null && source == null) {
+			throw new ProtocolException("Source cannot be null");
+		}
+		this.admission = admission;
+		this.admissionSource = admission != null ? source : null;
+	}
+
+	/**
+	 * Processes a packet. With a command queue, commands and terminate
+	 * requests are queued without holding the lock of the protocol, so a
+	 * reader blocked by a full queue does not stall {@link #close()} or other
+	 * calls. Packets of a session must be processed by one thread at a time.
+	 */
 	@Override
-	public synchronized void process(Packet packet) throws PacketException,
-			IOException, ProtocolException {
-		if (authenticated) {
-			Message message = packet.decode(blockDecryptCipher);
+	public void process(Packet packet) throws PacketException, IOException,
+			ProtocolException {
+		boolean handshake;
+		synchronized (this) {
+			checkOpen();
+			handshake = !authenticated;
+		}
+		if (handshake) {
+			complete(verify(packet));
+			return;
+		}
+		CommandQueue queue;
+		Message message;
+		synchronized (this) {
+			checkOpen();
+			message = decode(packet, blockDecryptCipher);
 			byte type = message.getType();
 			switch (type) {
 			case Message.PING:
 				processPing((Ping) message);
 				return;
-			case Message.COMMAND_REQUEST:
-				handler.command(((CommandRequest) message).getCommand());
+			case Message.REKEY:
+				processRekey((Rekey) message);
 				return;
+			case Message.COMMAND_REQUEST:
 			case Message.TERMINATE_REQUESET:
-				handler.terminate(((TerminateRequest) message).isShutdown());
+				break;
+			default:
+				throw new ProtocolException("Unexpected message type: "
+						+ type);
+			}
+			queue = commandQueue;
+			if (queue == null) {
+				if (type == Message.COMMAND_REQUEST) {
+					dispatch(((CommandRequest) message).getCommand());
+				} else {
+					handler.terminate(((TerminateRequest) message)
+							.isShutdown());
+				}
 				return;
 			}
-			throw new ProtocolException("Unexpected message type: " + type);
-		} else {
+		}
+		try {
+			if (message.getType() == Message.COMMAND_REQUEST) {
+				queue.put(((CommandRequest) message).getCommand());
+			} else {
+				// Behind the commands before it
+				queue.terminate(((TerminateRequest) message).isShutdown());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while queueing command");
+		}
+	}
+
+	/**
+	 * Decrypts an authentication request and checks the user, the slow half
+	 * of the handshake. It may run on another thread than the one that reads
+	 * from the session, see {@link HandshakeStage}, as long as nothing else is
+	 * processed for the session until the handshake has been completed with
+	 * {@link #complete(Handshake)}.
+	 * <p>
+	 * The protocol is not locked during the private key decryption and the
+	 * {@link Handler#authentication(byte[], byte[])} call, so the session can
+	 * be closed or queried meanwhile. The secure cipher is held by the
+	 * verification until it is done, and is returned to the pool then if the
+	 * protocol has been closed.
+	 * 
+	 * @param packet
+	 *            The packet that must contain an authentication request.
+	 * @return The verified handshake.
+	 * @throws PacketException
+	 *             If the packet cannot be decoded.
+	 * @throws ProtocolException
+	 *             If closed or already authenticated, if another request is
+	 *             being verified, if the packet is not an authentication
+	 *             request or if the user is not allowed.
+	 */
+	public Handshake verify(Packet packet) throws PacketException,
+			ProtocolException {
+		AdmissionController admission;
+		InetAddress admissionSource;
+		boolean trusted;
+		Cipher cipher;
+		ProtocolTracer tracer;
+		synchronized (this) {
+			checkOpen();
+			if (authenticated) {
+				throw new ProtocolException("Already authenticated");
+			}
+			if (verifying) {
+				throw new ProtocolException("Already verifying");
+			}
+			admission = this.admission;
+			admissionSource = this.admissionSource;
+			trusted = this.trusted;
+			tracer = this.tracer;
+			// Taken so that closing does not pool it while in use
+			cipher = secureCipher;
+			secureCipher = null;
+			verifying = true;
+		}
+		AdmissionController.Permit permit = null;
+		boolean success = false;
+		try {
+			if (admission != null) {
+				permit = admission.admit(admissionSource);
+			}
 			// Only accept authentication requests
-			Message message = packet.decode(secureCipher);
+			long start = System.nanoTime();
+			Message message;
+			if (trusted) {
+				message = decodeHandshake(new Packet(packet.getData()), null);
+			} else {
+				message = decodeHandshake(packet, cipher);
+			}
 			byte type = message.getType();
-			switch (type) {
-			case Message.AUTHENTICATION_REQUEST:
-				AuthenticationRequest authentication = (AuthenticationRequest) message;
-				// Check if user is allowed
-				if (handler.authentication(authentication.getUser(),
-						authentication.getPassword())) {
-					// Set the block key
-					byte[] key = authentication.getKey();
-					// Change initialization vector
-					iv = authentication.getIv();
-					SecretKey secretKey = new SecretKeySpec(key,
-							Packet.BLOCK_CIPHER_NAME);
-					// Initialize the block cipher
-					blockCipherInit(secretKey);
-					authenticated = true;
-					deliver(new AuthenticationResponse());
-					connectionHandler.onAuthenticated();
-				} else {
-					throw new AuthenticationException("Bad login");
+			if (type != Message.AUTHENTICATION_REQUEST) {
+				throw new ProtocolException("Unexpected message type: "
+						+ type);
+			}
+			AuthenticationRequest request = (AuthenticationRequest) message;
+			// Check if user is allowed
+			if (!handler.authentication(request.getUser(),
+					request.getPassword())) {
+				if (tracer != null) {
+					tracer.handshake(false, start, System.nanoTime() - start);
 				}
-				return;
+				throw new AuthenticationException("Bad login");
+			}
+			Handshake handshake = new Handshake(this, request.getKey(),
+					request.getIv(), start, permit, request.getFormats());
+			synchronized (this) {
+				checkOpen();
+				success = true;
+				return handshake;
+			}
+		} finally {
+			synchronized (this) {
+				verifying = false;
+				secureCipher = cipher;
+				if (isClosed()) {
+					releaseSecureCipher();
+				}
+			}
+			if (!success && permit != null) {
+				permit.release(false);
+			}
+		}
+	}
+
+	/**
+	 * Initializes the block cipher from a verified handshake and responds to
+	 * the client, the fast half of the handshake. It should run on the thread
+	 * that reads from the session.
+	 * 
+	 * @param handshake
+	 *            The handshake returned by {@link #verify(Packet)}.
+	 * @throws PacketException
+	 *             If it fails to respond.
+	 * @throws IOException
+	 *             If it fails to respond.
+	 * @throws ProtocolException
+	 *             If handshake is null, belongs to another protocol or has
+	 *             already been completed, if closed or already authenticated
+	 *             or if it fails to initialize the block cipher.
+	 */
+	public synchronized void complete(Handshake handshake)
+			throws PacketException, IOException, ProtocolException {
+		if (handshake == null) {
+			throw new ProtocolException("Handshake cannot be null");
+		}
+		if (handshake.protocol != this) {
+			throw new ProtocolException("Handshake of another protocol");
+		}
+		if (isClosed()) {
+			handshake.cancel();
+			throw new ProtocolException("Protocol is closed");
+		}
+		if (authenticated) {
+			handshake.cancel();
+			throw new ProtocolException("Already authenticated");
+		}
+		if (!handshake.take()) {
+			throw new ProtocolException("Handshake already completed");
+		}
+		try {
+			// Change initialization vector
+			iv = handshake.iv;
+			SecretKey secretKey = new SecretKeySpec(handshake.key,
+					Packet.BLOCK_CIPHER_NAME);
+			// Initialize the block cipher
+			blockCipherInit(secretKey);
+			authenticated = true;
+			// Only needed for the handshake
+			releaseSecureCipher();
+			boolean compact = compactAccepted
+					&& (handshake.formats & Packet.FORMAT_COMPACT) != 0;
+			deliver(new AuthenticationResponse(compact ? Packet.FORMAT_COMPACT
+					: 0));
+			if (compact) {
+				// Everything after the response
+				startCompact();
+			}
+			connectionHandler.onAuthenticated();
+			long duration = System.nanoTime() - handshake.start;
+			if (metrics != null) {
+				metrics.handshake(duration);
+			}
+			if (tracer != null) {
+				tracer.handshake(true, handshake.start, duration);
+			}
+		} finally {
+			if (handshake.permit != null) {
+				handshake.permit.release(authenticated);
+			}
+		}
+	}
+
+	/**
+	 * Passes the command to the handler directly, measuring it if needed.
+	 * Must be called with the lock held.
+	 * 
+	 * @param command
+	 *            The command to dispatch.
+	 */
+	private void dispatch(Command command) {
+		if (metrics == null && tracer == null) {
+			handler.command(command);
+		} else {
+			long start = System.nanoTime();
+			handler.command(command);
+			long duration = System.nanoTime() - start;
+			if (metrics != null) {
+				metrics.command(command.getType(), duration);
+			}
+			if (tracer != null) {
+				tracer.command(command, start, duration);
 			}
-			throw new ProtocolException("Unexpected message type: " + type);
 		}
 	}
 }
@@ -0,0 +1,657 @@
+package remote.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Connects a client and a server on the same host through a memory-mapped
+ * file, for the lowest latency between co-located processes. The file holds
+ * one single-producer single-consumer ring buffer per direction, and the
+ * streams of each end can be given to a protocol like the streams of a
+ * socket: {@link Packet#write(javax.crypto.Cipher, OutputStream)} fills the
+ * ring and the flush at the end of each packet publishes it, and the
+ * {@link PacketScanner} reads from the other ring.
+ * <p>
+ * The positions of the rings are read and written through the mapped buffer,
+ * ordered against the data by a volatile field, so that polling neither
+ * allocates nor needs internal classes. Only one thread may read and one
+ * thread may write each end at a time, which the protocols already ensure.
+ * <p>
+ * The server creates the file with {@link #create(File, int, WaitStrategy)}
+ * and the client maps it with {@link #open(File, WaitStrategy)}. The file is
+ * created for its owner only, but is not protected in any other way, so put
+ * it in a directory that only the owner can access.
+ */
+public class SharedMemoryTransport {
+	/**
+	 * How a reader waits for data and a writer waits for room.
+	 */
+	public enum WaitStrategy {
+		/**
+		 * Poll without pause. The lowest latency, but the waiting thread
+		 * keeps a core busy, so each end needs a core of its own.
+		 */
+		SPIN,
+		/**
+		 * Poll a while and then park between polls. The other process cannot
+		 * unpark the thread, so it sleeps for the shortest park the platform
+		 * offers, which costs latency but not a core.
+		 */
+		PARK
+	}
+
+	/**
+	 * Default capacity of each ring.
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+	/**
+	 * Identifies the file, "RMSH".
+	 */
+	private static final int MAGIC = 0x524D5348;
+	/**
+	 * Size of a cache line, so the positions of the two ends are not
+	 * written to the same line.
+	 */
+	private static final int LINE = 64;
+	/**
+	 * Offset of the magic number in the file.
+	 */
+	private static final int MAGIC_OFFSET = 0;
+	/**
+	 * Offset of the capacity in the file.
+	 */
+	private static final int CAPACITY_OFFSET = 4;
+	/**
+	 * Offset of the write position in the control block of a ring.
+	 */
+	private static final int HEAD = 0;
+	/**
+	 * Offset of the read position in the control block of a ring.
+	 */
+	private static final int TAIL = LINE;
+	/**
+	 * Offset of the closed flag in the control block of a ring.
+	 */
+	private static final int CLOSED = 2 * LINE;
+	/**
+	 * Size of the control block of a ring.
+	 */
+	private static final int CONTROL = 3 * LINE;
+	/**
+	 * Number of polls before parking.
+	 */
+	private static final int SPINS = 1000;
+	/**
+	 * Nanoseconds to park between polls.
+	 */
+	private static final long PARK_NANOS = 1000;
+
+	/**
+	 * Permissions of a new file, for the owner only.
+	 */
+	private static final String OWNER_ONLY = "rw-------";
+
+	/**
+	 * Accessed around the positions of the rings, so that the data is
+	 * written before a position is published and read after it is seen.
+	 */
+	private static volatile int fence;
+
+	/**
+	 * One direction of the file.
+	 */
+	private static class Ring {
+		/**
+		 * View of the whole file, positioned by its single user.
+		 */
+		private final ByteBuffer view;
+		/**
+		 * Offset of the data in the file.
+		 */
+		private final int data;
+		/**
+		 * Offset of the write position in the file.
+		 */
+		private final int head;
+		/**
+		 * Offset of the read position in the file.
+		 */
+		private final int tail;
+		/**
+		 * Offset of the closed flag in the file.
+		 */
+		private final int closed;
+
+		/**
+		 * Constructs a new ring.
+		 * 
+		 * @param buffer
+		 *            The mapped file.
+		 * @param offset
+		 *            Offset of the control block of the ring.
+		 */
+		private Ring(MappedByteBuffer buffer, int offset) {
+			view = buffer.duplicate();
+			data = offset + CONTROL;
+			head = offset + HEAD;
+			tail = offset + TAIL;
+			closed = offset + CLOSED;
+		}
+	}
+
+	/**
+	 * Reads from a ring.
+	 */
+	private class RingInputStream extends InputStream {
+		/**
+		 * The ring.
+		 */
+		private final Ring ring;
+		/**
+		 * The read position.
+		 */
+		private long position;
+		/**
+		 * The last seen write position.
+		 */
+		private long limit;
+
+		/**
+		 * Constructs a new stream.
+		 * 
+		 * @param ring
+		 *            The ring.
+		 */
+		private RingInputStream(Ring ring) {
+			this.ring = ring;
+			position = getVolatile(ring.view, ring.tail);
+			limit = position;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			int spins = 0;
+			while (position == limit) {
+				boolean closed = getVolatile(ring.view, ring.closed) != 0;
+				// Read after the flag, so data written before closing is seen
+				limit = getVolatile(ring.view, ring.head);
+				if (position == limit) {
+					if (closed) {
+						return -1;
+					}
+					spins = await(spins);
+				}
+			}
+			int index = (int) (position & (capacity - 1));
+			int n = (int) Math.min(Math.min(len, limit - position), capacity
+					- index);
+			ring.view.position(ring.data + index);
+			ring.view.get(b, off, n);
+			position += n;
+			putVolatile(ring.view, ring.tail, position);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int) (getVolatile(ring.view, ring.head) - position);
+		}
+
+		@Override
+		public void close() throws IOException {
+			SharedMemoryTransport.this.close();
+		}
+	}
+
+	/**
+	 * Writes to a ring, published when flushed.
+	 */
+	private class RingOutputStream extends OutputStream {
+		/**
+		 * The ring.
+		 */
+		private final Ring ring;
+		/**
+		 * The write position, ahead of the published one until flushed.
+		 */
+		private long position;
+		/**
+		 * The last seen read position.
+		 */
+		private long tail;
+
+		/**
+		 * Constructs a new stream.
+		 * 
+		 * @param ring
+		 *            The ring.
+		 */
+		private RingOutputStream(Ring ring) {
+			this.ring = ring;
+			position = getVolatile(ring.view, ring.head);
+			tail = getVolatile(ring.view, ring.tail);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len)
+				throws IOException {
+			while (len > 0) {
+				if (position - tail == capacity) {
+					// Publish what the reader needs to make room
+					flush();
+					int spins = 0;
+					tail = getVolatile(ring.view, ring.tail);
+					while (position - tail == capacity) {
+						if (getVolatile(ring.view, ring.closed) != 0) {
+							throw new IOException("Transport is closed");
+						}
+						spins = await(spins);
+						tail = getVolatile(ring.view, ring.tail);
+					}
+				}
+				int index = (int) (position & (capacity - 1));
+				int n = (int) Math.min(Math.min(len, capacity
+						- (position - tail)), capacity - index);
+				ring.view.position(ring.data + index);
+				ring.view.put(b, off, n);
+				position += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			if (getVolatile(ring.view, ring.closed) != 0) {
+				throw new IOException("Transport is closed");
+			}
+			putVolatile(ring.view, ring.head, position);
+		}
+
+		@Override
+		public void close() throws IOException {
+			SharedMemoryTransport.this.close();
+		}
+	}
+
+	/**
+	 * The mapped file, referenced so that it stays mapped.
+	 */
+	private final MappedByteBuffer buffer;
+	/**
+	 * Capacity of each ring, a power of two.
+	 */
+	private final int capacity;
+	/**
+	 * How to wait.
+	 */
+	private final WaitStrategy waitStrategy;
+	/**
+	 * The ring this end reads from.
+	 */
+	private final Ring input;
+	/**
+	 * The ring this end writes to.
+	 */
+	private final Ring output;
+	/**
+	 * The stream of the input ring.
+	 */
+	private final RingInputStream inputStream;
+	/**
+	 * The stream of the output ring.
+	 */
+	private final RingOutputStream outputStream;
+
+	/**
+	 * Constructs a new end of a mapped file.
+	 * 
+	 * @param buffer
+	 *            The mapped file.
+	 * @param capacity
+	 *            Capacity of each ring.
+	 * @param server
+	 *            True if this is the server end.
+	 * @param waitStrategy
+	 *            How to wait.
+	 */
+	private SharedMemoryTransport(MappedByteBuffer buffer, int capacity,
+			boolean server, WaitStrategy waitStrategy) {
+		this.buffer = buffer;
+		this.capacity = capacity;
+		this.waitStrategy = waitStrategy;
+		// The client writes to the first ring
+		Ring first = new Ring(buffer, LINE);
+		Ring second = new Ring(buffer, LINE + CONTROL + capacity);
+		input = server ? first : second;
+		output = server ? second : first;
+		inputStream = new RingInputStream(input);
+		outputStream = new RingOutputStream(output);
+	}
+
+	/**
+	 * Checks if shared memory is supported by this Java version. The rings
+	 * only need a mapped buffer, so it is supported by all of them.
+	 * 
+	 * @return True if supported.
+	 */
+	public static boolean isSupported() {
+		return true;
+	}
+
+	/**
+	 * Gets the size of a file with rings of a capacity.
+	 * 
+	 * @param capacity
+	 *            Capacity of each ring.
+	 * @return The size in bytes.
+	 */
+	private static int size(int capacity) {
+		return LINE + 2 * (CONTROL + capacity);
+	}
+
+	/**
+	 * Maps a file.
+	 * 
+	 * @param file
+	 *            The file.
+	 * @param size
+	 *            Size to map, or zero for the size of the file.
+	 * @return The mapped file.
+	 * @throws IOException
+	 *             If it fails to map the file.
+	 */
+	private static MappedByteBuffer map(File file, int size)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (size > 0) {
+				raf.setLength(size);
+			}
+			// The mapping stays valid after the file is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Creates a new file that only its owner can access. It is created with
+	 * these permissions where {@code java.nio.file} is available, and
+	 * restricted right after it is created otherwise.
+	 * 
+	 * @param file
+	 *            The file, which must not exist.
+	 * @throws IOException
+	 *             If it fails to create or to restrict the file.
+	 */
+	private static void createOwnerOnly(File file) throws IOException {
+		Method createFile;
+		Object path;
+		Object attributes;
+		try {
+			Class<?> permissions = Class
+					.forName("java.nio.file.attribute.PosixFilePermissions");
+			Class<?> attribute = Class
+					.forName("java.nio.file.attribute.FileAttribute");
+			path = File.class.getMethod("toPath").invoke(file);
+			attributes = Array.newInstance(attribute, 1);
+			Object owner = permissions.getMethod("fromString", String.class)
+					.invoke(null, OWNER_ONLY);
+			Array.set(attributes, 0, permissions.getMethod("asFileAttribute",
+					Set.class).invoke(null, owner));
+			createFile = Class.forName("java.nio.file.Files").getMethod(
+					"createFile", Class.forName("java.nio.file.Path"),
+					attributes.getClass());
+		} catch (Exception e) {
+			// Older than Java 7
+			if (!file.createNewFile() || !file.setReadable(false, false)
+					|| !file.setReadable(true, true)
+					|| !file.setWritable(false, false)
+					|| !file.setWritable(true, true)) {
+				throw new IOException("Failed to create " + file);
+			}
+			return;
+		}
+		try {
+			createFile.invoke(null, path, attributes);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException("Failed to create " + file, cause);
+		} catch (IllegalAccessException e) {
+			throw new IOException("Failed to create " + file, e);
+		}
+	}
+
+	/**
+	 * Creates a new file with empty rings and maps it as the server end. An
+	 * existing file is removed first rather than truncated, since a peer may
+	 * still have it mapped, and the new file is only accessible by its owner.
+	 * 
+	 * @param file
+	 *            The file.
+	 * @param capacity
+	 *            Capacity of each ring, a power of two.
+	 * @param waitStrategy
+	 *            How to wait.
+	 * @return The server end.
+	 * @throws ProtocolException
+	 *             If file or wait strategy is null, if capacity is not a
+	 *             power of two or if not supported.
+	 * @throws IOException
+	 *             If it fails to remove, create or map the file.
+	 */
+	public static SharedMemoryTransport create(File file, int capacity,
+			WaitStrategy waitStrategy) throws ProtocolException, IOException {
+		check(file, waitStrategy);
+		if (capacity < 1 || capacity > 1 << 29
+				|| (capacity & (capacity - 1)) != 0) {
+			throw new ProtocolException("Capacity must be a power of two");
+		}
+		// A peer keeps its mapping of the old file, which is not resized
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Failed to remove " + file);
+		}
+		createOwnerOnly(file);
+		// A new file is zero filled, so the rings are empty
+		MappedByteBuffer buffer = map(file, size(capacity));
+		buffer.putInt(CAPACITY_OFFSET, capacity);
+		buffer.force();
+		// Published last, the client checks it before the capacity
+		buffer.putInt(MAGIC_OFFSET, MAGIC);
+		return new SharedMemoryTransport(buffer, capacity, true, waitStrategy);
+	}
+
+	/**
+	 * Maps a file created by {@link #create(File, int, WaitStrategy)} as the
+	 * client end.
+	 * 
+	 * @param file
+	 *            The file.
+	 * @param waitStrategy
+	 *            How to wait.
+	 * @return The client end.
+	 * @throws ProtocolException
+	 *             If file or wait strategy is null, if the file does not hold
+	 *             rings or if not supported.
+	 * @throws IOException
+	 *             If it fails to map the file.
+	 */
+	public static SharedMemoryTransport open(File file,
+			WaitStrategy waitStrategy) throws ProtocolException, IOException {
+		check(file, waitStrategy);
+		if (!file.isFile()) {
+			throw new ProtocolException("Not a shared memory file");
+		}
+		MappedByteBuffer buffer = map(file, 0);
+		if (buffer.capacity() < size(1)
+				|| buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+			throw new ProtocolException("Not a shared memory file");
+		}
+		int capacity = buffer.getInt(CAPACITY_OFFSET);
+		if (capacity < 1 || (capacity & (capacity - 1)) != 0
+				|| buffer.capacity() != size(capacity)) {
+			throw new ProtocolException("Not a shared memory file");
+		}
+		return new SharedMemoryTransport(buffer, capacity, false,
+				waitStrategy);
+	}
+
+	/**
+	 * Checks the common arguments.
+	 * 
+	 * @param file
+	 *            The file.
+	 * @param waitStrategy
+	 *            How to wait.
+	 * @throws ProtocolException
+	 *             If file or wait strategy is null or if not supported.
+	 */
+	private static void check(File file, WaitStrategy waitStrategy)
+			throws ProtocolException {
+		if (file == null) {
+			throw new ProtocolException("File cannot be null");
+		}
+		if (waitStrategy == null) {
+			throw new ProtocolException("Wait strategy cannot be null");
+		}
+		if (!isSupported()) {
+			throw new ProtocolException("Shared memory is not supported");
+		}
+	}
+
+	/**
+	 * Reads a position, before anything read after it.
+	 * 
+	 * @param view
+	 *            View of the file.
+	 * @param offset
+	 *            Offset of the position.
+	 * @return The position.
+	 */
+	private static long getVolatile(ByteBuffer view, int offset) {
+		long value = view.getLong(offset);
+		// Later reads of the data cannot move before the volatile read
+		return fence == 0 ? value : value;
+	}
+
+	/**
+	 * Writes a position, after everything written before it.
+	 * 
+	 * @param view
+	 *            View of the file.
+	 * @param offset
+	 *            Offset of the position.
+	 * @param value
+	 *            The position.
+	 */
+	private static void putVolatile(ByteBuffer view, int offset, long value) {
+		// The volatile write is a full fence, the data is written before it
+		fence = 0;
+		view.putLong(offset, value);
+	}
+
+	/**
+	 * Waits once according to the wait strategy.
+	 * 
+	 * @param spins
+	 *            Number of polls so far.
+	 * @return Number of polls including this one.
+	 * @throws InterruptedIOException
+	 *             If the thread is interrupted.
+	 */
+	private int await(int spins) throws InterruptedIOException {
+		if (Thread.interrupted()) {
+			throw new InterruptedIOException("Interrupted while waiting");
+		}
+		if (waitStrategy == WaitStrategy.PARK && spins >= SPINS) {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+		return spins + 1;
+	}
+
+	/**
+	 * Gets the stream that reads what the other end writes.
+	 * 
+	 * @return The input stream.
+	 */
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	/**
+	 * Gets the stream that writes to the other end. Written bytes are only
+	 * seen by the other end after a flush.
+	 * 
+	 * @return The output stream.
+	 */
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	/**
+	 * Gets the capacity of each ring.
+	 * 
+	 * @return The capacity in bytes.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Closes both directions. The other end reads the rest of the data and
+	 * then the end of the stream, and its writes fail. The file is not
+	 * removed.
+	 * 
+	 * @throws IOException
+	 *             If the rings cannot be written.
+	 */
+	public void close() throws IOException {
+		putVolatile(input.view, input.closed, 1);
+		putVolatile(output.view, output.closed, 1);
+	}
+
+	/**
+	 * Checks if either end has closed the transport.
+	 * 
+	 * @return True if closed.
+	 * @throws IOException
+	 *             If the rings cannot be read.
+	 */
+	public boolean isClosed() throws IOException {
+		return getVolatile(input.view, input.closed) != 0
+				|| getVolatile(output.view, output.closed) != 0;
+	}
+}
@@ -6,6 +6,12 @@ import java.util.Random;
  * A class containing various utilities.
  */
 public class Utils {
+	/**
+	 * Digits used by {@link #toHex(byte[])}.
+	 */
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF"
+			.toCharArray();
+
 	/**
 	 * Converts the data to a hex string.
 	 * 
@@ -18,16 +24,19 @@ public class Utils {
 		if (data == null) {
 			return "null";
 		}
-		StringBuffer sb = new StringBuffer();
-		for (byte b : data) {
-			String hex = Integer.toHexString(0xFF & b);
-			if (hex.length() == 1) {
-				sb.append('0');
+		if (data.length == 0) {
+			return "";
+		}
+		char[] hex = new char[data.length * 3 - 1];
+		for (int i = 0, j = 0; i < data.length; i++, j += 3) {
+			int b = data[i] & 0xFF;
+			hex[j] = HEX_DIGITS[b >>> 4];
+			hex[j + 1] = HEX_DIGITS[b & 0x0F];
+			if (j + 2 < hex.length) {
+				hex[j + 2] = ' ';
 			}
-			sb.append(hex);
-			sb.append(' ');
 		}
-		return sb.toString().toUpperCase().trim();
+		return new String(hex);
 	}
 
 	/**
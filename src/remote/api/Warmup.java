@@ -0,0 +1,201 @@
+package remote.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import javax.crypto.Cipher;
+
+import remote.api.ServerProtocol.ConnectionHandler;
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.commands.KeyPress;
+import remote.api.commands.KeyRelease;
+import remote.api.commands.MouseMove;
+import remote.api.commands.MousePress;
+import remote.api.commands.MouseRelease;
+import remote.api.commands.MouseWheel;
+import remote.api.commands.TextInput;
+import remote.api.exceptions.PacketException;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Prepares a freshly started process for its first connection. The first
+ * handshake otherwise pays for the security provider lookups, the key parsing
+ * and running the codec in the interpreter. Call {@link #run(PublicKey,
+ * PrivateKey)} before the server starts listening, or before the client
+ * connects.
+ */
+public class Warmup {
+	/**
+	 * Default number of handshakes.
+	 */
+	public static final int DEFAULT_HANDSHAKES = 4;
+	/**
+	 * Default number of message rounds after each handshake.
+	 */
+	public static final int DEFAULT_CYCLES = 2500;
+
+	/**
+	 * Accepts any user and ignores everything else.
+	 */
+	private static class Accepting implements Handler, ConnectionHandler {
+		@Override
+		public boolean authentication(byte[] user, byte[] password) {
+			return true;
+		}
+
+		@Override
+		public void command(Command command) {
+		}
+
+		@Override
+		public void terminate(boolean shutdown) {
+		}
+
+		@Override
+		public void onAuthenticated() {
+		}
+	}
+
+	/**
+	 * Only static methods.
+	 */
+	private Warmup() {
+	}
+
+	/**
+	 * Warms up with the default number of handshakes and cycles.
+	 * 
+	 * @param publicKey
+	 *            The public key of the server.
+	 * @param privateKey
+	 *            The private key of the server.
+	 * @return The time it took in nanoseconds.
+	 * @throws GeneralSecurityException
+	 *             If the algorithms or keys cannot be used.
+	 * @throws ProtocolException
+	 *             If the keys do not match.
+	 */
+	public static long run(PublicKey publicKey, PrivateKey privateKey)
+			throws GeneralSecurityException, ProtocolException {
+		return run(publicKey, privateKey, DEFAULT_HANDSHAKES, DEFAULT_CYCLES);
+	}
+
+	/**
+	 * Runs handshakes between an in-memory client and server, each followed
+	 * by cycles that send every command, a ping and a terminate request, so
+	 * that every message type is encoded, encrypted, decrypted and decoded.
+	 * 
+	 * @param publicKey
+	 *            The public key of the server.
+	 * @param privateKey
+	 *            The private key of the server.
+	 * @param handshakes
+	 *            Number of handshakes.
+	 * @param cycles
+	 *            Number of message rounds after each handshake.
+	 * @return The time it took in nanoseconds.
+	 * @throws GeneralSecurityException
+	 *             If the algorithms or keys cannot be used.
+	 * @throws ProtocolException
+	 *             If a key is null, if handshakes is less than one, if cycles
+	 *             is negative or if the keys do not match.
+	 */
+	public static long run(PublicKey publicKey, PrivateKey privateKey,
+			int handshakes, int cycles) throws GeneralSecurityException,
+			ProtocolException {
+		if (publicKey == null) {
+			throw new ProtocolException("Public key cannot be null");
+		}
+		if (privateKey == null) {
+			throw new ProtocolException("Private key cannot be null");
+		}
+		if (handshakes < 1) {
+			throw new ProtocolException("Handshakes must be positive");
+		}
+		if (cycles < 0) {
+			throw new ProtocolException("Cycles cannot be negative");
+		}
+		long start = System.nanoTime();
+		// Provider lookups and key parsing
+		Cipher.getInstance(Packet.SECURE_ALGORITHM);
+		Cipher.getInstance(Packet.BLOCK_CIPHER);
+		KeyFactory factory = KeyFactory
+				.getInstance(Packet.SECURE_ALGORITHM_NAME);
+		factory.generatePublic(new X509EncodedKeySpec(publicKey.getEncoded()));
+		if ("PKCS#8".equals(privateKey.getFormat())) {
+			factory.generatePrivate(new PKCS8EncodedKeySpec(privateKey
+					.getEncoded()));
+		}
+		Command[] commands = { new MouseMove((short) 1, (short) -1),
+				new MousePress(1), new MouseRelease(1), new MouseWheel(-1),
+				new KeyPress(65), new KeyRelease(65),
+				new TextInput("warmup".getBytes()) };
+		Accepting handler = new Accepting();
+		try {
+			for (int i = 0; i < handshakes; i++) {
+				ByteArrayOutputStream toServer = new ByteArrayOutputStream();
+				ByteArrayOutputStream toClient = new ByteArrayOutputStream();
+				ByteArrayInputStream empty = new ByteArrayInputStream(
+						new byte[0]);
+				ServerProtocol server = new ServerProtocol(handler, handler,
+						privateKey, empty, toClient);
+				ClientProtocol client = new ClientProtocol(publicKey, empty,
+						toServer);
+				client.authenticate(new byte[0], new byte[0]);
+				transfer(toServer, server);
+				transfer(toClient, client);
+				for (int j = 0; j < cycles; j++) {
+					for (Command command : commands) {
+						client.commandRequest(command);
+					}
+					client.ping(null);
+					client.terminateRequest(false);
+					transfer(toServer, server);
+					transfer(toClient, client);
+				}
+				// Leaves the ciphers in the pool for the first sessions
+				server.close();
+				client.close();
+			}
+		} catch (IOException e) {
+			throw new ProtocolException("Warmup failed", e);
+		} catch (PacketException e) {
+			throw new ProtocolException("Warmup failed", e);
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Passes everything written to a stream to a protocol.
+	 * 
+	 * @param output
+	 *            The stream, which is emptied.
+	 * @param protocol
+	 *            The receiving protocol.
+	 * @throws IOException
+	 *             If the protocol fails to respond.
+	 * @throws PacketException
+	 *             If a packet is malformed.
+	 * @throws ProtocolException
+	 *             If the protocol rejects a packet.
+	 */
+	private static void transfer(ByteArrayOutputStream output,
+			Protocol protocol) throws IOException, PacketException,
+			ProtocolException {
+		PacketScanner scanner = new PacketScanner(new ByteArrayInputStream(
+				output.toByteArray()));
+		output.reset();
+		Packet packet;
+		while ((packet = scanner.nextPacket()) != null) {
+			protocol.process(packet);
+		}
+	}
+}
@@ -68,4 +68,16 @@ public abstract class Command implements Comparable<Command> {
 	 * @return A byte identifying the command.
 	 */
 	public abstract byte getType();
+
+	/**
+	 * Checks if the command is continuous motion, that is a mouse move or a
+	 * mouse wheel. Motion may be dropped or merged under load, discrete
+	 * commands may not.
+	 * 
+	 * @return True if the command is a motion command.
+	 */
+	public boolean isMotion() {
+		byte type = getType();
+		return type == MOUSE_MOVE || type == MOUSE_WHEEL;
+	}
 }
@@ -3,7 +3,8 @@ package remote.api.exceptions;
 import remote.api.Utils;
 
 /**
- * Packet exception, mostly for Packet class.
+ * Packet exception, mostly for Packet class. The message including the data
+ * is only formatted when asked for, so rejecting bad packets stays cheap.
  */
 public class PacketException extends Exception {
 	/**
@@ -11,16 +12,33 @@ public class PacketException extends Exception {
 	 */
 	private static final long serialVersionUID = 1111551034114570738L;
 
+	/**
+	 * The message without the data.
+	 */
+	private final String reason;
+	/**
+	 * The data that caused the exception, not copied.
+	 */
+	private final byte[] data;
+	/**
+	 * The formatted message or null if not formatted yet.
+	 */
+	private String message;
+
 	/**
 	 * Constructs a new packet exception.
 	 * 
 	 * @param message
 	 *            Message of the exception.
 	 * @param data
-	 *            The data that caused the exception.
+	 *            The data that caused the exception, must not be changed
+	 *            afterwards.
 	 */
 	public PacketException(String message, byte[] data) {
-		super((message + " " + Utils.toHex(data)).trim());
+		super();
+		reason = message;
+		this.data = data;
+		this.message = null;
 	}
 
 	/**
@@ -29,12 +47,48 @@ public class PacketException extends Exception {
 	 * @param message
 	 *            Message of the exception.
 	 * @param data
-	 *            The data that caused the exception.
+	 *            The data that caused the exception, must not be changed
+	 *            afterwards.
 	 * @param t
 	 *            The Throwable that triggered the exception.
 	 */
 	public PacketException(String message, byte[] data, Throwable t) {
-		super((message + " " + Utils.toHex(data)).trim() + "\n"
-				+ t.getMessage(), t);
+		super(t);
+		reason = message;
+		this.data = data;
+		this.message = null;
+	}
+
+	@Override
+	public String getMessage() {
+		// Formatting twice from different threads gives the same result
+		String message = this.message;
+		if (message == null) {
+			message = (reason + " " + Utils.toHex(data)).trim();
+			Throwable cause = getCause();
+			if (cause != null) {
+				message += "\n" + cause.getMessage();
+			}
+			this.message = message;
+		}
+		return message;
+	}
+
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		if (ProtocolException.stackTraces) {
+			return super.fillInStackTrace();
+		}
+		return this;
+	}
+
+	/**
+	 * Gets the message without the data, suitable for grouping exceptions by
+	 * cause.
+	 * 
+	 * @return The message given to the constructor.
+	 */
+	public String getReason() {
+		return reason;
 	}
-}
\ No newline at end of file
+}
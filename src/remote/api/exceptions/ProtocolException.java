@@ -9,6 +9,11 @@ public class ProtocolException extends Exception {
 	 */
 	private static final long serialVersionUID = 2303375486057235648L;
 
+	/**
+	 * State if exceptions of this package capture stack traces.
+	 */
+	static volatile boolean stackTraces = true;
+
 	/**
 	 * Constructs a new protocol exception.
 	 * 
@@ -30,4 +35,25 @@ public class ProtocolException extends Exception {
 	public ProtocolException(String message, Throwable t) {
 		super(message + "\n" + t.getMessage(), t);
 	}
+
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		if (stackTraces) {
+			return super.fillInStackTrace();
+		}
+		return this;
+	}
+
+	/**
+	 * Sets if protocol and packet exceptions capture stack traces. Capturing
+	 * the stack is the main cost of throwing, and a client sending garbage
+	 * makes the server throw for every packet. The exceptions are only used
+	 * to reject the packet or connection, so servers may turn it off.
+	 * 
+	 * @param enabled
+	 *            True to capture stack traces, which is the default.
+	 */
+	public static void setStackTraces(boolean enabled) {
+		stackTraces = enabled;
+	}
 }
@@ -0,0 +1,80 @@
+package remote.api.journal;
+
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * A handler that appends every command to a journal before passing it on.
+ * Authentication and terminate requests are passed on without being
+ * recorded. If the journal fails, recording stops but commands are still
+ * passed on, see {@link #getFailure()}.
+ */
+public class JournalHandler implements Handler {
+	/**
+	 * The handler to pass on to.
+	 */
+	private final Handler handler;
+	/**
+	 * The journal to append to.
+	 */
+	private final JournalWriter journal;
+	/**
+	 * The exception that stopped the recording, if any.
+	 */
+	private volatile Exception failure;
+
+	/**
+	 * Constructs a new journal handler.
+	 * 
+	 * @param handler
+	 *            The handler to pass on to.
+	 * @param journal
+	 *            The journal to append to.
+	 * @throws ProtocolException
+	 *             If handler or journal is null.
+	 */
+	public JournalHandler(Handler handler, JournalWriter journal)
+			throws ProtocolException {
+		if (handler == null) {
+			throw new ProtocolException("Handler cannot be null");
+		}
+		if (journal == null) {
+			throw new ProtocolException("Journal cannot be null");
+		}
+		this.handler = handler;
+		this.journal = journal;
+		failure = null;
+	}
+
+	@Override
+	public boolean authentication(byte[] user, byte[] password) {
+		return handler.authentication(user, password);
+	}
+
+	@Override
+	public void command(Command command) {
+		if (failure == null) {
+			try {
+				journal.append(command, System.nanoTime());
+			} catch (Exception e) {
+				failure = e;
+			}
+		}
+		handler.command(command);
+	}
+
+	@Override
+	public void terminate(boolean shutdown) {
+		handler.terminate(shutdown);
+	}
+
+	/**
+	 * Gets the exception that stopped the recording.
+	 * 
+	 * @return The exception or null if the journal has not failed.
+	 */
+	public Exception getFailure() {
+		return failure;
+	}
+}
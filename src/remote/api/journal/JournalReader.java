@@ -0,0 +1,163 @@
+package remote.api.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import remote.api.commands.Command;
+import remote.api.exceptions.PacketException;
+import remote.api.exceptions.ProtocolException;
+import remote.api.messages.CommandRequest;
+import remote.api.messages.Message;
+
+/**
+ * Reads the commands of a journal written by {@link JournalWriter}, in the
+ * order they were appended.
+ */
+public class JournalReader {
+	/**
+	 * The journal file.
+	 */
+	private final RandomAccessFile file;
+	/**
+	 * Channel of the file.
+	 */
+	private final FileChannel channel;
+	/**
+	 * Length of the file.
+	 */
+	private final long length;
+	/**
+	 * Size of the mapped regions.
+	 */
+	private final int regionSize;
+	/**
+	 * The current region.
+	 */
+	private MappedByteBuffer region;
+	/**
+	 * File position of the current region.
+	 */
+	private long regionPosition;
+	/**
+	 * Time of the last read command.
+	 */
+	private long time;
+
+	/**
+	 * Opens a journal.
+	 * 
+	 * @param path
+	 *            The file to read.
+	 * @throws ProtocolException
+	 *             If path is null or the file is not a journal.
+	 * @throws IOException
+	 *             If it fails to read the file.
+	 */
+	public JournalReader(File path) throws ProtocolException, IOException {
+		if (path == null) {
+			throw new ProtocolException("Path cannot be null");
+		}
+		file = new RandomAccessFile(path, "r");
+		try {
+			channel = file.getChannel();
+			length = channel.size();
+			if (length < JournalWriter.HEADER_LENGTH) {
+				throw new ProtocolException("Not a journal");
+			}
+			region = map(0, JournalWriter.HEADER_LENGTH);
+			if (region.getInt() != JournalWriter.MAGIC) {
+				throw new ProtocolException("Not a journal");
+			}
+			if (region.getInt() != JournalWriter.VERSION) {
+				throw new ProtocolException("Unsupported journal version");
+			}
+			regionSize = region.getInt();
+			if (regionSize < JournalWriter.HEADER_LENGTH) {
+				throw new ProtocolException("Not a journal");
+			}
+		} catch (ProtocolException e) {
+			file.close();
+			throw e;
+		}
+		regionPosition = 0;
+		region = map(0, regionSize);
+		region.position(JournalWriter.HEADER_LENGTH);
+		time = 0;
+	}
+
+	/**
+	 * Maps a region of the file, shortened to the end of the file.
+	 * 
+	 * @param position
+	 *            Start of the region.
+	 * @param size
+	 *            Size of the region.
+	 * @return The mapped region.
+	 * @throws IOException
+	 *             If it fails to map the region.
+	 */
+	private MappedByteBuffer map(long position, int size) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, position,
+				Math.min(size, length - position));
+	}
+
+	/**
+	 * Reads the next command.
+	 * 
+	 * @return The command or null at the end of the journal.
+	 * @throws PacketException
+	 *             If the command is corrupt.
+	 * @throws IOException
+	 *             If it fails to map the next region.
+	 */
+	public Command next() throws PacketException, IOException {
+		while (true) {
+			if (region.remaining() >= JournalWriter.RECORD_HEADER_LENGTH) {
+				int recordLength = region.getShort(region.position());
+				if (recordLength > 0) {
+					int remaining = region.remaining()
+							- JournalWriter.RECORD_HEADER_LENGTH;
+					if (recordLength > Message.MAX_LENGTH
+							|| recordLength > remaining) {
+						throw new PacketException("Corrupt journal record",
+								new byte[0]);
+					}
+					region.getShort();
+					time = region.getLong();
+					byte[] data = new byte[recordLength];
+					region.get(data);
+					return CommandRequest.unpack(data).getCommand();
+				}
+			}
+			// The rest of the region is unused
+			if (regionPosition + regionSize >= length) {
+				return null;
+			}
+			regionPosition += regionSize;
+			region = map(regionPosition, regionSize);
+		}
+	}
+
+	/**
+	 * Gets the time of the last read command.
+	 * 
+	 * @return The time from {@link System#nanoTime()} when it was appended.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Closes the journal.
+	 * 
+	 * @throws IOException
+	 *             If it fails to close the file.
+	 */
+	public void close() throws IOException {
+		region = null;
+		file.close();
+	}
+}
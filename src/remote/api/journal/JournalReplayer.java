@@ -0,0 +1,106 @@
+package remote.api.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.exceptions.PacketException;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Feeds the commands of a journal to a handler, either with the recorded
+ * spacing or as fast as possible. Replaying as fast as possible measures the
+ * throughput of a handler with real traffic.
+ */
+public class JournalReplayer {
+	/**
+	 * Waits shorter than this are spun instead of parked, since parking
+	 * usually oversleeps by tens of microseconds.
+	 */
+	private static final long SPIN_NANOS = 100000;
+
+	/**
+	 * The journal file.
+	 */
+	private final File path;
+
+	/**
+	 * Constructs a new replayer.
+	 * 
+	 * @param path
+	 *            The journal file.
+	 * @throws ProtocolException
+	 *             If path is null.
+	 */
+	public JournalReplayer(File path) throws ProtocolException {
+		if (path == null) {
+			throw new ProtocolException("Path cannot be null");
+		}
+		this.path = path;
+	}
+
+	/**
+	 * Replays the journal.
+	 * 
+	 * @param handler
+	 *            The handler to feed.
+	 * @param realTime
+	 *            True to keep the recorded time between commands, false to
+	 *            replay as fast as possible.
+	 * @return The number of replayed commands.
+	 * @throws ProtocolException
+	 *             If the file is not a journal.
+	 * @throws PacketException
+	 *             If a command is corrupt.
+	 * @throws IOException
+	 *             If it fails to read the journal.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the next command.
+	 */
+	public long replay(Handler handler, boolean realTime)
+			throws ProtocolException, PacketException, IOException,
+			InterruptedException {
+		JournalReader reader = new JournalReader(path);
+		try {
+			long count = 0;
+			long start = System.nanoTime();
+			long first = 0;
+			Command command;
+			while ((command = reader.next()) != null) {
+				if (realTime) {
+					if (count == 0) {
+						first = reader.getTime();
+					}
+					await(start + reader.getTime() - first);
+				}
+				handler.command(command);
+				count++;
+			}
+			return count;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Waits until the given time.
+	 * 
+	 * @param deadline
+	 *            The time from {@link System#nanoTime()}.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	private static void await(long deadline) throws InterruptedException {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (remaining > SPIN_NANOS) {
+				LockSupport.parkNanos(remaining - SPIN_NANOS);
+			}
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package remote.api.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import remote.api.commands.Command;
+import remote.api.exceptions.PacketException;
+import remote.api.exceptions.ProtocolException;
+import remote.api.messages.CommandRequest;
+import remote.api.messages.Message;
+
+/**
+ * Appends commands with their time to a journal file. The file is written
+ * through memory mapped regions, so an append is a copy into memory and the
+ * operating system writes the pages in the background.
+ * <p>
+ * The file starts with {@link #MAGIC}, {@link #VERSION} and the region size.
+ * Each record is the length of the command as a short, the time from
+ * {@link System#nanoTime()} as a long and the command as written in a
+ * {@link CommandRequest}. Records never cross a region, the rest of a region
+ * that is too small for the next record is left as zeros.
+ */
+public class JournalWriter {
+	/**
+	 * First four bytes of a journal, RJNL.
+	 */
+	public static final int MAGIC = 0x524A4E4C;
+	/**
+	 * Version of the journal format.
+	 */
+	public static final int VERSION = 1;
+	/**
+	 * Length of the file header.
+	 */
+	public static final int HEADER_LENGTH = 12;
+	/**
+	 * Length of the record header.
+	 */
+	public static final int RECORD_HEADER_LENGTH = 10;
+	/**
+	 * Default size of the mapped regions.
+	 */
+	public static final int DEFAULT_REGION_SIZE = 1 << 20;
+
+	/**
+	 * The journal file.
+	 */
+	private final RandomAccessFile file;
+	/**
+	 * Channel of the file.
+	 */
+	private final FileChannel channel;
+	/**
+	 * Size of the mapped regions.
+	 */
+	private final int regionSize;
+	/**
+	 * The current region.
+	 */
+	private MappedByteBuffer region;
+	/**
+	 * File position of the current region.
+	 */
+	private long regionPosition;
+	/**
+	 * Scratch space for the command bytes.
+	 */
+	private final byte[] data;
+	/**
+	 * Number of appended commands.
+	 */
+	private long count;
+	/**
+	 * State if the writer has been closed.
+	 */
+	private boolean closed;
+
+	/**
+	 * Creates a journal with the default region size, replacing the file if
+	 * it exists.
+	 * 
+	 * @param path
+	 *            The file to write.
+	 * @throws ProtocolException
+	 *             See {@link #JournalWriter(File, int)}
+	 * @throws IOException
+	 *             See {@link #JournalWriter(File, int)}
+	 */
+	public JournalWriter(File path) throws ProtocolException, IOException {
+		this(path, DEFAULT_REGION_SIZE);
+	}
+
+	/**
+	 * Creates a journal, replacing the file if it exists.
+	 * 
+	 * @param path
+	 *            The file to write.
+	 * @param regionSize
+	 *            Size of the mapped regions.
+	 * @throws ProtocolException
+	 *             If path is null or the region cannot hold a record.
+	 * @throws IOException
+	 *             If it fails to create the file.
+	 */
+	public JournalWriter(File path, int regionSize) throws ProtocolException,
+			IOException {
+		if (path == null) {
+			throw new ProtocolException("Path cannot be null");
+		}
+		if (regionSize < HEADER_LENGTH + RECORD_HEADER_LENGTH
+				+ Message.MAX_LENGTH) {
+			throw new ProtocolException("Region size too small");
+		}
+		this.regionSize = regionSize;
+		file = new RandomAccessFile(path, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		data = new byte[Message.MAX_LENGTH];
+		count = 0;
+		closed = false;
+		regionPosition = 0;
+		region = channel.map(FileChannel.MapMode.READ_WRITE, 0, regionSize);
+		region.putInt(MAGIC);
+		region.putInt(VERSION);
+		region.putInt(regionSize);
+	}
+
+	/**
+	 * Appends a command.
+	 * 
+	 * @param command
+	 *            The command.
+	 * @param time
+	 *            The time from {@link System#nanoTime()}.
+	 * @throws ProtocolException
+	 *             If the writer is closed.
+	 * @throws PacketException
+	 *             If it fails to write the command.
+	 * @throws IOException
+	 *             If it fails to map the next region.
+	 */
+	public synchronized void append(Command command, long time)
+			throws ProtocolException, PacketException, IOException {
+		if (closed) {
+			throw new ProtocolException("Journal is closed");
+		}
+		int length = CommandRequest.STATIC_LENGTH + command.getLength();
+		if (length > data.length) {
+			throw new PacketException("Command too long", new byte[0]);
+		}
+		data[0] = Message.COMMAND_REQUEST;
+		command.write(data, CommandRequest.STATIC_LENGTH);
+		if (region.remaining() < RECORD_HEADER_LENGTH + length) {
+			regionPosition += regionSize;
+			region = channel.map(FileChannel.MapMode.READ_WRITE,
+					regionPosition, regionSize);
+		}
+		region.putShort((short) length);
+		region.putLong(time);
+		region.put(data, 0, length);
+		count++;
+	}
+
+	/**
+	 * Gets the number of appended commands.
+	 * 
+	 * @return The number of commands.
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Writes the journal to disk and truncates the file after the last
+	 * record. Does nothing if already closed.
+	 * 
+	 * @throws IOException
+	 *             If it fails to write or truncate the file.
+	 */
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		region.force();
+		long length = regionPosition + region.position();
+		region = null;
+		try {
+			channel.truncate(length);
+		} finally {
+			file.close();
+		}
+	}
+}
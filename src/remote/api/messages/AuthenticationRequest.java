@@ -34,6 +34,10 @@ public class AuthenticationRequest extends Message {
 	 * Encoded password for the user.
 	 */
 	private byte[] password;
+	/**
+	 * Record formats offered by the client, zero for none.
+	 */
+	private byte formats;
 
 	/**
 	 * Constructs a new authentication request.
@@ -51,6 +55,31 @@ public class AuthenticationRequest extends Message {
 	 */
 	public AuthenticationRequest(byte[] key, byte[] iv, byte[] user,
 			byte[] password) throws PacketException {
+		this(key, iv, user, password, (byte) 0);
+	}
+
+	/**
+	 * Constructs a new authentication request that offers record formats.
+	 * The formats are sent after the password, where servers that do not know
+	 * them ignore them. They are left out of a request that has no room for
+	 * them, which then offers none.
+	 * 
+	 * @param key
+	 *            Key to use for the block cipher.
+	 * @param iv
+	 *            Initialization vector for the block cipher.
+	 * @param user
+	 *            Encoded user to authenticate.
+	 * @param password
+	 *            Encoded password for the user.
+	 * @param formats
+	 *            The offered formats, for example
+	 *            {@link Packet#FORMAT_COMPACT}, or zero for none.
+	 * @throws PacketException
+	 *             If any of the arguments is null or the key has wrong length.
+	 */
+	public AuthenticationRequest(byte[] key, byte[] iv, byte[] user,
+			byte[] password, byte formats) throws PacketException {
 		if (key == null) {
 			throw new PacketException("Key is null", key);
 		}
@@ -70,6 +99,7 @@ public class AuthenticationRequest extends Message {
 		this.iv = iv;
 		this.user = user;
 		this.password = password;
+		this.formats = formats;
 	}
 
 	/**
@@ -100,6 +130,11 @@ public class AuthenticationRequest extends Message {
 		if (size > MAX_LENGTH) {
 			throw new PacketException("Length sum too big " + size, null);
 		}
+		// The offer is optional, the credentials are not
+		boolean offer = formats != 0 && size < MAX_LENGTH;
+		if (offer) {
+			size++;
+		}
 		byte[] data = new byte[size];
 
 		int pos = 0;
@@ -124,6 +159,11 @@ public class AuthenticationRequest extends Message {
 		System.arraycopy(password, 0, data, pos, passwordLength);
 		pos += passwordLength;
 
+		// Write formats
+		if (offer) {
+			data[pos++] = formats;
+		}
+
 		return new Packet(data);
 	}
 
@@ -160,7 +200,8 @@ public class AuthenticationRequest extends Message {
 		// One byte with password length
 		int passwordLength = data[pos++] & 0xFF;
 		// Check length
-		if (calculateSize(userLength, passwordLength) > MAX_LENGTH) {
+		int size = calculateSize(userLength, passwordLength);
+		if (size > MAX_LENGTH) {
 			throw new PacketException("Length sum too big", data);
 		}
 
@@ -175,7 +216,13 @@ public class AuthenticationRequest extends Message {
 		System.arraycopy(data, pos, password, 0, passwordLength);
 		pos += passwordLength;
 
-		return new AuthenticationRequest(key, iv, user, password);
+		// Optional formats, anything after them is ignored
+		byte formats = 0;
+		if (length > size) {
+			formats = data[pos++];
+		}
+
+		return new AuthenticationRequest(key, iv, user, password, formats);
 	}
 
 	@Override
@@ -219,6 +266,15 @@ public class AuthenticationRequest extends Message {
 		return password;
 	}
 
+	/**
+	 * Gets the record formats offered by the client.
+	 * 
+	 * @return The formats, zero for none.
+	 */
+	public byte getFormats() {
+		return formats;
+	}
+
 	@Override
 	public int compareTo(Message o) {
 		AuthenticationRequest other = (AuthenticationRequest) o;
@@ -229,6 +285,9 @@ public class AuthenticationRequest extends Message {
 				cmp = Utils.compare(user, other.user);
 				if (cmp == 0) {
 					cmp = Utils.compare(password, other.password);
+					if (cmp == 0) {
+						cmp = formats - other.formats;
+					}
 				}
 			}
 		}
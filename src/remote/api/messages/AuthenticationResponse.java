@@ -13,10 +13,38 @@ public class AuthenticationResponse extends Message {
 	 */
 	public static final int LENGTH = 1;
 
+	/**
+	 * The record format accepted by the server, zero to keep the default.
+	 */
+	private byte format;
+
+	/**
+	 * Constructs a new authentication response that keeps the default record
+	 * format.
+	 */
+	public AuthenticationResponse() {
+		this((byte) 0);
+	}
+
+	/**
+	 * Constructs a new authentication response. Only send a format that the
+	 * client offered, other clients expect a response of {@link #LENGTH}.
+	 * 
+	 * @param format
+	 *            The record format accepted by the server, zero to keep the
+	 *            default.
+	 */
+	public AuthenticationResponse(byte format) {
+		this.format = format;
+	}
+
 	@Override
 	public Packet pack() throws PacketException {
-		byte[] data = new byte[LENGTH];
+		byte[] data = new byte[format != 0 ? LENGTH + 1 : LENGTH];
 		data[0] = AUTHENTICATION_RESPONSE;
+		if (format != 0) {
+			data[1] = format;
+		}
 		return new Packet(data);
 	}
 
@@ -31,10 +59,11 @@ public class AuthenticationResponse extends Message {
 	 */
 	public static AuthenticationResponse unpack(byte[] data)
 			throws PacketException {
-		if (data.length != LENGTH) {
+		if (data.length != LENGTH && data.length != LENGTH + 1) {
 			throw new PacketException("Unexpected length", data);
 		}
-		return new AuthenticationResponse();
+		return new AuthenticationResponse(data.length > LENGTH ? data[1]
+				: 0);
 	}
 
 	@Override
@@ -42,10 +71,18 @@ public class AuthenticationResponse extends Message {
 		return AUTHENTICATION_RESPONSE;
 	}
 
+	/**
+	 * Gets the record format accepted by the server.
+	 * 
+	 * @return The format, zero for the default.
+	 */
+	public byte getFormat() {
+		return format;
+	}
+
 	@Override
 	public int compareTo(Message o) {
 		AuthenticationResponse other = (AuthenticationResponse) o;
-		other.getType(); // Dummy to create null pointer exception
-		return 0;
+		return format - other.format;
 	}
 }
@@ -11,7 +11,7 @@ public abstract class Message implements Comparable<Message> {
 	 * Number of type codes used for messages. This number has to be increased
 	 * when adding new messages.
 	 */
-	public static final int USED_CODES = 5;
+	public static final int USED_CODES = 6;
 
 	/**
 	 * Type code for authentication request.
@@ -33,6 +33,10 @@ public abstract class Message implements Comparable<Message> {
 	 * Type code for terminate request.
 	 */
 	public static final byte TERMINATE_REQUESET = 4;
+	/**
+	 * Type code for re-key.
+	 */
+	public static final byte REKEY = 5;
 
 	/**
 	 * Packet will throw exception if this length is exceeded.
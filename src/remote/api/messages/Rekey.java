@@ -0,0 +1,75 @@
+package remote.api.messages;
+
+import remote.api.exceptions.PacketException;
+import remote.api.Packet;
+
+/**
+ * A class for a re-key message. It is the last message encrypted with the old
+ * block key of its direction, everything after it is encrypted with the next
+ * key derived from the session secret.
+ */
+public class Rekey extends Message {
+	/**
+	 * Number of bytes needed by the message.
+	 */
+	public static final int LENGTH = 2;
+
+	/**
+	 * The lowest byte of the key epoch that is switched to.
+	 */
+	private byte epoch;
+
+	/**
+	 * Constructs a new re-key message.
+	 * 
+	 * @param epoch
+	 *            The lowest byte of the key epoch that is switched to.
+	 */
+	public Rekey(byte epoch) {
+		this.epoch = epoch;
+	}
+
+	@Override
+	public Packet pack() throws PacketException {
+		byte[] data = new byte[LENGTH];
+		data[0] = REKEY;
+		data[1] = epoch;
+		return new Packet(data);
+	}
+
+	/**
+	 * Attempts to read a re-key message from data.
+	 * 
+	 * @param data
+	 *            The data to read from.
+	 * @return The re-key message read.
+	 * @throws PacketException
+	 *             If the length is incorrect.
+	 */
+	public static Rekey unpack(byte[] data) throws PacketException {
+		if (data.length != LENGTH) {
+			throw new PacketException("Unexpected length", data);
+		}
+		return new Rekey(data[1]);
+	}
+
+	@Override
+	public byte getType() {
+		return REKEY;
+	}
+
+	/**
+	 * Gets the key epoch that is switched to.
+	 * 
+	 * @return The lowest byte of the epoch.
+	 */
+	public byte getEpoch() {
+		return epoch;
+	}
+
+	@Override
+	public int compareTo(Message o) {
+		Rekey other = (Rekey) o;
+		return epoch - other.epoch;
+	}
+}
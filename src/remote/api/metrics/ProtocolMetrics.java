@@ -0,0 +1,379 @@
+package remote.api.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import remote.api.commands.Command;
+
+/**
+ * Counters for one or more protocol sessions. A session records into its own
+ * metrics, which also record into a parent so that one instance can aggregate
+ * all sessions of a server. The parent uses {@link StripedCounter}s with many
+ * stripes to keep concurrent sessions from contending, the sessions use a
+ * single stripe. Values can be pulled with {@link #getSnapshot()} or published
+ * as a platform MBean with {@link #register(String)}.
+ */
+public class ProtocolMetrics implements ProtocolMetricsMBean {
+	/**
+	 * Domain of the registered MBeans.
+	 */
+	public static final String DOMAIN = "remote.api";
+	/**
+	 * Names of the command types, indexed by type.
+	 */
+	private static final String[] COMMAND_NAMES = { "MouseMove", "MousePress",
+			"MouseRelease", "MouseWheel", "KeyPress", "KeyRelease",
+			"TextInput" };
+
+	/**
+	 * The aggregating parent or null.
+	 */
+	private final ProtocolMetrics parent;
+	/**
+	 * Number of stripes of each counter.
+	 */
+	private final int stripes;
+	/**
+	 * Number of received packets.
+	 */
+	private final StripedCounter packetsIn;
+	/**
+	 * Number of sent packets.
+	 */
+	private final StripedCounter packetsOut;
+	/**
+	 * Number of received bytes.
+	 */
+	private final StripedCounter bytesIn;
+	/**
+	 * Number of sent bytes.
+	 */
+	private final StripedCounter bytesOut;
+	/**
+	 * Time spent decrypting.
+	 */
+	private final StripedCounter decryptNanos;
+	/**
+	 * Time spent encrypting.
+	 */
+	private final StripedCounter encryptNanos;
+	/**
+	 * Decode failures by reason.
+	 */
+	private final ConcurrentMap<String, StripedCounter> decodeFailures;
+	/**
+	 * Number of completed handshakes.
+	 */
+	private final StripedCounter handshakes;
+	/**
+	 * Time spent in completed handshakes.
+	 */
+	private final StripedCounter handshakeNanos;
+	/**
+	 * Number of handled commands by type.
+	 */
+	private final StripedCounter[] commands;
+	/**
+	 * Time spent handling commands by type.
+	 */
+	private final StripedCounter[] commandNanos;
+	/**
+	 * Name the MBean is registered with or null.
+	 */
+	private ObjectName objectName;
+
+	/**
+	 * Constructs new metrics that aggregate sessions.
+	 */
+	public ProtocolMetrics() {
+		this(null, StripedCounter.DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Constructs new metrics for a session.
+	 * 
+	 * @param parent
+	 *            The metrics to aggregate into, may be null.
+	 */
+	public ProtocolMetrics(ProtocolMetrics parent) {
+		this(parent, 1);
+	}
+
+	/**
+	 * Constructs new metrics.
+	 * 
+	 * @param parent
+	 *            The metrics to aggregate into, may be null.
+	 * @param stripes
+	 *            Number of stripes of each counter.
+	 */
+	private ProtocolMetrics(ProtocolMetrics parent, int stripes) {
+		this.parent = parent;
+		this.stripes = stripes;
+		packetsIn = new StripedCounter(stripes);
+		packetsOut = new StripedCounter(stripes);
+		bytesIn = new StripedCounter(stripes);
+		bytesOut = new StripedCounter(stripes);
+		decryptNanos = new StripedCounter(stripes);
+		encryptNanos = new StripedCounter(stripes);
+		decodeFailures = new ConcurrentHashMap<String, StripedCounter>();
+		handshakes = new StripedCounter(stripes);
+		handshakeNanos = new StripedCounter(stripes);
+		commands = new StripedCounter[Command.USED_CODES];
+		commandNanos = new StripedCounter[Command.USED_CODES];
+		for (int i = 0; i < Command.USED_CODES; i++) {
+			commands[i] = new StripedCounter(stripes);
+			commandNanos[i] = new StripedCounter(stripes);
+		}
+		objectName = null;
+	}
+
+	/**
+	 * Records a received packet.
+	 * 
+	 * @param bytes
+	 *            Size of the packet including the length bytes.
+	 * @param nanos
+	 *            Time spent decrypting the packet.
+	 */
+	public void packetIn(int bytes, long nanos) {
+		packetsIn.increment();
+		bytesIn.add(bytes);
+		decryptNanos.add(nanos);
+		if (parent != null) {
+			parent.packetIn(bytes, nanos);
+		}
+	}
+
+	/**
+	 * Records a sent packet.
+	 * 
+	 * @param bytes
+	 *            Size of the packet including the length bytes.
+	 * @param nanos
+	 *            Time spent encrypting the packet.
+	 */
+	public void packetOut(int bytes, long nanos) {
+		packetsOut.increment();
+		bytesOut.add(bytes);
+		encryptNanos.add(nanos);
+		if (parent != null) {
+			parent.packetOut(bytes, nanos);
+		}
+	}
+
+	/**
+	 * Records a packet that failed to decrypt or decode.
+	 * 
+	 * @param reason
+	 *            The reason of the failure.
+	 */
+	public void decodeFailure(String reason) {
+		StripedCounter counter = decodeFailures.get(reason);
+		if (counter == null) {
+			StripedCounter created = new StripedCounter(stripes);
+			counter = decodeFailures.putIfAbsent(reason, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.increment();
+		if (parent != null) {
+			parent.decodeFailure(reason);
+		}
+	}
+
+	/**
+	 * Records a completed handshake.
+	 * 
+	 * @param nanos
+	 *            Time spent in the handshake.
+	 */
+	public void handshake(long nanos) {
+		handshakes.increment();
+		handshakeNanos.add(nanos);
+		if (parent != null) {
+			parent.handshake(nanos);
+		}
+	}
+
+	/**
+	 * Records a handled command.
+	 * 
+	 * @param type
+	 *            Type of the command.
+	 * @param nanos
+	 *            Time spent handling the command.
+	 */
+	public void command(byte type, long nanos) {
+		commands[type].increment();
+		commandNanos[type].add(nanos);
+		if (parent != null) {
+			parent.command(type, nanos);
+		}
+	}
+
+	@Override
+	public long getPacketsIn() {
+		return packetsIn.sum();
+	}
+
+	@Override
+	public long getPacketsOut() {
+		return packetsOut.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getDecryptNanos() {
+		return decryptNanos.sum();
+	}
+
+	@Override
+	public long getEncryptNanos() {
+		return encryptNanos.sum();
+	}
+
+	@Override
+	public long getDecodeFailures() {
+		long sum = 0;
+		for (StripedCounter counter : decodeFailures.values()) {
+			sum += counter.sum();
+		}
+		return sum;
+	}
+
+	/**
+	 * Gets the number of decode failures with a reason.
+	 * 
+	 * @param reason
+	 *            The reason.
+	 * @return The number of failures.
+	 */
+	public long getDecodeFailures(String reason) {
+		StripedCounter counter = decodeFailures.get(reason);
+		return counter == null ? 0 : counter.sum();
+	}
+
+	@Override
+	public long getHandshakes() {
+		return handshakes.sum();
+	}
+
+	@Override
+	public long getHandshakeNanos() {
+		return handshakeNanos.sum();
+	}
+
+	@Override
+	public long getCommands() {
+		long sum = 0;
+		for (StripedCounter counter : commands) {
+			sum += counter.sum();
+		}
+		return sum;
+	}
+
+	/**
+	 * Gets the number of handled commands of a type.
+	 * 
+	 * @param type
+	 *            The command type.
+	 * @return The number of commands.
+	 */
+	public long getCommands(byte type) {
+		return commands[type].sum();
+	}
+
+	@Override
+	public long getCommandNanos() {
+		long sum = 0;
+		for (StripedCounter counter : commandNanos) {
+			sum += counter.sum();
+		}
+		return sum;
+	}
+
+	/**
+	 * Gets the time spent handling commands of a type.
+	 * 
+	 * @param type
+	 *            The command type.
+	 * @return The time in nanoseconds.
+	 */
+	public long getCommandNanos(byte type) {
+		return commandNanos[type].sum();
+	}
+
+	@Override
+	public Map<String, Long> getSnapshot() {
+		Map<String, Long> snapshot = new TreeMap<String, Long>();
+		snapshot.put("packetsIn", getPacketsIn());
+		snapshot.put("packetsOut", getPacketsOut());
+		snapshot.put("bytesIn", getBytesIn());
+		snapshot.put("bytesOut", getBytesOut());
+		snapshot.put("decryptNanos", getDecryptNanos());
+		snapshot.put("encryptNanos", getEncryptNanos());
+		snapshot.put("handshakes", getHandshakes());
+		snapshot.put("handshakeNanos", getHandshakeNanos());
+		snapshot.put("decodeFailures", getDecodeFailures());
+		for (Map.Entry<String, StripedCounter> entry : decodeFailures
+				.entrySet()) {
+			snapshot.put("decodeFailures." + entry.getKey(), entry.getValue()
+					.sum());
+		}
+		for (byte type = 0; type < Command.USED_CODES; type++) {
+			snapshot.put("commands." + COMMAND_NAMES[type], getCommands(type));
+			snapshot.put("commandNanos." + COMMAND_NAMES[type],
+					getCommandNanos(type));
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Registers the metrics as an MBean in the platform MBean server, with the
+	 * name remote.api:type=ProtocolMetrics,name=[name].
+	 * 
+	 * @param name
+	 *            The name of the metrics.
+	 * @throws JMException
+	 *             If the registration fails.
+	 */
+	public synchronized void register(String name) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName(DOMAIN
+				+ ":type=ProtocolMetrics,name=" + ObjectName.quote(name));
+		server.registerMBean(this, objectName);
+		this.objectName = objectName;
+	}
+
+	/**
+	 * Unregisters the MBean if registered.
+	 * 
+	 * @throws JMException
+	 *             If the unregistration fails.
+	 */
+	public synchronized void unregister() throws JMException {
+		if (objectName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					objectName);
+			objectName = null;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package remote.api.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link ProtocolMetrics}. Times are in nanoseconds.
+ */
+public interface ProtocolMetricsMBean {
+	/**
+	 * Gets the number of received packets.
+	 * 
+	 * @return The number of packets.
+	 */
+	public long getPacketsIn();
+
+	/**
+	 * Gets the number of sent packets.
+	 * 
+	 * @return The number of packets.
+	 */
+	public long getPacketsOut();
+
+	/**
+	 * Gets the number of received bytes, including the length bytes.
+	 * 
+	 * @return The number of bytes.
+	 */
+	public long getBytesIn();
+
+	/**
+	 * Gets the number of sent bytes, including the length bytes.
+	 * 
+	 * @return The number of bytes.
+	 */
+	public long getBytesOut();
+
+	/**
+	 * Gets the total time spent decrypting received packets.
+	 * 
+	 * @return The time in nanoseconds.
+	 */
+	public long getDecryptNanos();
+
+	/**
+	 * Gets the total time spent encrypting sent packets.
+	 * 
+	 * @return The time in nanoseconds.
+	 */
+	public long getEncryptNanos();
+
+	/**
+	 * Gets the number of packets that failed to decrypt or decode.
+	 * 
+	 * @return The number of failures.
+	 */
+	public long getDecodeFailures();
+
+	/**
+	 * Gets the number of completed handshakes.
+	 * 
+	 * @return The number of handshakes.
+	 */
+	public long getHandshakes();
+
+	/**
+	 * Gets the total time spent in completed handshakes.
+	 * 
+	 * @return The time in nanoseconds.
+	 */
+	public long getHandshakeNanos();
+
+	/**
+	 * Gets the number of handled commands.
+	 * 
+	 * @return The number of commands.
+	 */
+	public long getCommands();
+
+	/**
+	 * Gets the total time spent handling commands.
+	 * 
+	 * @return The time in nanoseconds.
+	 */
+	public long getCommandNanos();
+
+	/**
+	 * Gets all values, including decode failures by reason and commands by
+	 * type.
+	 * 
+	 * @return The values by name.
+	 */
+	public Map<String, Long> getSnapshot();
+}
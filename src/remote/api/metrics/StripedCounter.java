@@ -0,0 +1,102 @@
+package remote.api.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter split into padded stripes, so that threads updating it at the same
+ * time rarely touch the same cache line. The stripe is chosen by thread, and
+ * the value is the sum of all stripes.
+ */
+public class StripedCounter {
+	/**
+	 * Distance between stripes in longs, to keep them on separate cache lines.
+	 */
+	private static final int PADDING = 8;
+	/**
+	 * Default number of stripes.
+	 */
+	public static final int DEFAULT_STRIPES = stripes(Runtime.getRuntime()
+			.availableProcessors() * 2);
+
+	/**
+	 * The stripes.
+	 */
+	private final AtomicLongArray cells;
+	/**
+	 * Mask to select a stripe.
+	 */
+	private final int mask;
+
+	/**
+	 * Constructs a new counter with the default number of stripes.
+	 */
+	public StripedCounter() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Constructs a new counter.
+	 * 
+	 * @param stripes
+	 *            The number of stripes, rounded up to a power of two. Use one
+	 *            for a counter that is mostly updated by a single thread.
+	 */
+	public StripedCounter(int stripes) {
+		int n = stripes(stripes);
+		cells = new AtomicLongArray(n == 1 ? 1 : n * PADDING);
+		mask = n - 1;
+	}
+
+	/**
+	 * Rounds up to a power of two.
+	 * 
+	 * @param n
+	 *            The number to round.
+	 * @return The power of two, at least one.
+	 */
+	private static int stripes(int n) {
+		int stripes = 1;
+		while (stripes < n) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+
+	/**
+	 * Adds to the counter.
+	 * 
+	 * @param x
+	 *            The value to add.
+	 */
+	public void add(long x) {
+		if (mask == 0) {
+			cells.addAndGet(0, x);
+		} else {
+			// Spread the thread ids so consecutive threads get separate stripes
+			int h = (int) (Thread.currentThread().getId()
+					* 0x9E3779B97F4A7C15L >>> 32);
+			cells.addAndGet((h & mask) * PADDING, x);
+		}
+	}
+
+	/**
+	 * Adds one to the counter.
+	 */
+	public void increment() {
+		add(1);
+	}
+
+	/**
+	 * Gets the value of the counter. Not an atomic snapshot if the counter is
+	 * updated at the same time.
+	 * 
+	 * @return The sum of all stripes.
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < cells.length(); i += PADDING) {
+			sum += cells.get(i);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,65 @@
+package remote.api.trace;
+
+import remote.api.commands.Command;
+
+/**
+ * Receives timed events from a protocol, for example to forward them to a
+ * profiler or flight recorder. A protocol without a tracer emits nothing and
+ * only pays for a null check. Start times are from {@link System#nanoTime()}
+ * and durations are in nanoseconds. Events are emitted on the thread that
+ * does the work, so implementations must be thread safe and fast.
+ */
+public interface ProtocolTracer {
+	/**
+	 * Called when a frame has been decrypted or encrypted.
+	 * 
+	 * @param inbound
+	 *            True if received, false if sent.
+	 * @param length
+	 *            Length of the frame including the length bytes.
+	 * @param type
+	 *            The message type or -1 if it failed to decode.
+	 * @param start
+	 *            When the decryption or encryption started.
+	 * @param duration
+	 *            Time spent decrypting and decoding, or encrypting.
+	 */
+	public void frame(boolean inbound, int length, byte type, long start,
+			long duration);
+
+	/**
+	 * Called when the block ciphers have been initialized.
+	 * 
+	 * @param algorithm
+	 *            The cipher algorithm.
+	 * @param start
+	 *            When the initialization started.
+	 * @param duration
+	 *            Time spent initializing.
+	 */
+	public void cipherInit(String algorithm, long start, long duration);
+
+	/**
+	 * Called when a server has processed an authentication request.
+	 * 
+	 * @param success
+	 *            True if the client was authenticated.
+	 * @param start
+	 *            When the request was received.
+	 * @param duration
+	 *            Time spent on the request including the response.
+	 */
+	public void handshake(boolean success, long start, long duration);
+
+	/**
+	 * Called when a server has passed a command to the handler.
+	 * 
+	 * @param command
+	 *            The command.
+	 * @param start
+	 *            When the handler was called.
+	 * @param duration
+	 *            Time spent in the handler.
+	 */
+	public void command(Command command, long start, long duration);
+}
@@ -0,0 +1,71 @@
+package remote.api.trace;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import remote.api.commands.Command;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * A tracer that only forwards every n:th frame event, to keep the volume of
+ * events down on busy sessions. Other events are always forwarded.
+ */
+public class SamplingTracer implements ProtocolTracer {
+	/**
+	 * The tracer to forward to.
+	 */
+	private final ProtocolTracer tracer;
+	/**
+	 * Forward one in this many frames.
+	 */
+	private final int interval;
+	/**
+	 * Number of seen frames.
+	 */
+	private final AtomicLong frames;
+
+	/**
+	 * Constructs a new sampling tracer.
+	 * 
+	 * @param tracer
+	 *            The tracer to forward to.
+	 * @param interval
+	 *            Forward one in this many frames, 1 forwards all.
+	 * @throws ProtocolException
+	 *             If tracer is null or interval is not positive.
+	 */
+	public SamplingTracer(ProtocolTracer tracer, int interval)
+			throws ProtocolException {
+		if (tracer == null) {
+			throw new ProtocolException("Tracer cannot be null");
+		}
+		if (interval <= 0) {
+			throw new ProtocolException("Interval must be positive");
+		}
+		this.tracer = tracer;
+		this.interval = interval;
+		frames = new AtomicLong();
+	}
+
+	@Override
+	public void frame(boolean inbound, int length, byte type, long start,
+			long duration) {
+		if (frames.getAndIncrement() % interval == 0) {
+			tracer.frame(inbound, length, type, start, duration);
+		}
+	}
+
+	@Override
+	public void cipherInit(String algorithm, long start, long duration) {
+		tracer.cipherInit(algorithm, start, duration);
+	}
+
+	@Override
+	public void handshake(boolean success, long start, long duration) {
+		tracer.handshake(success, start, duration);
+	}
+
+	@Override
+	public void command(Command command, long start, long duration) {
+		tracer.command(command, start, duration);
+	}
+}
@@ -0,0 +1,287 @@
+package remote.api.trace;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import remote.api.Utils;
+import remote.api.exceptions.ProtocolException;
+import remote.api.messages.Message;
+
+/**
+ * A flight recorder for the frames of a session. The most recent frames are
+ * kept in a fixed-size ring of records outside the heap: time, direction,
+ * length, message type, command type and optionally the first bytes of the
+ * plaintext. Recording claims a slot with a single atomic increment and
+ * allocates nothing, so it can stay enabled in production. The ring can be
+ * dumped on demand or automatically when a frame fails to decode.
+ * <p>
+ * The plaintext of authentication requests and re-keys is never kept, since
+ * it holds the user, the password and the key material of the session. Only
+ * their type and length are recorded.
+ * <p>
+ * Dumping while frames are recorded is best effort, records that are being
+ * overwritten are skipped.
+ */
+public class WireRecorder {
+	/**
+	 * Default number of records.
+	 */
+	public static final int DEFAULT_RECORDS = 256;
+	/**
+	 * Maximum number of plaintext bytes per record.
+	 */
+	public static final int MAX_PLAINTEXT = 255;
+	/**
+	 * Flag set for received frames.
+	 */
+	public static final int INBOUND = 1;
+	/**
+	 * Flag set for frames that failed to encrypt, decrypt or decode.
+	 */
+	public static final int FAILED = 2;
+	/**
+	 * Flag set if the recorded bytes are the ciphertext.
+	 */
+	public static final int ENCRYPTED = 4;
+
+	/**
+	 * Offset of the sequence number plus one, zero while written.
+	 */
+	private static final int SEQUENCE = 0;
+	/**
+	 * Offset of the time.
+	 */
+	private static final int TIME = 8;
+	/**
+	 * Offset of the flags.
+	 */
+	private static final int FLAGS = 16;
+	/**
+	 * Offset of the message type.
+	 */
+	private static final int MESSAGE_TYPE = 17;
+	/**
+	 * Offset of the command type.
+	 */
+	private static final int COMMAND_TYPE = 18;
+	/**
+	 * Offset of the number of recorded plaintext bytes.
+	 */
+	private static final int PLAINTEXT_LENGTH = 19;
+	/**
+	 * Offset of the frame length.
+	 */
+	private static final int LENGTH = 20;
+	/**
+	 * Offset of the plaintext.
+	 */
+	private static final int PLAINTEXT = 24;
+
+	/**
+	 * The records.
+	 */
+	private final ByteBuffer buffer;
+	/**
+	 * Size of a record in bytes.
+	 */
+	private final int recordSize;
+	/**
+	 * Number of records, a power of two.
+	 */
+	private final int records;
+	/**
+	 * Number of plaintext bytes to keep per record.
+	 */
+	private final int plaintextBytes;
+	/**
+	 * The next sequence number.
+	 */
+	private final AtomicLong sequence;
+	/**
+	 * Wall clock time when constructed.
+	 */
+	private final long baseMillis;
+	/**
+	 * Nano time when constructed.
+	 */
+	private final long baseNanos;
+	/**
+	 * Where the ring is dumped when a frame fails, or null.
+	 */
+	private volatile PrintStream errorOutput;
+
+	/**
+	 * Constructs a new recorder with the default number of records and
+	 * without plaintext.
+	 */
+	public WireRecorder() {
+		records = DEFAULT_RECORDS;
+		plaintextBytes = 0;
+		recordSize = PLAINTEXT;
+		buffer = ByteBuffer.allocateDirect(records * recordSize);
+		sequence = new AtomicLong();
+		baseMillis = System.currentTimeMillis();
+		baseNanos = System.nanoTime();
+		errorOutput = null;
+	}
+
+	/**
+	 * Constructs a new recorder.
+	 * 
+	 * @param records
+	 *            Number of records to keep, rounded up to a power of two.
+	 * @param plaintextBytes
+	 *            Number of plaintext bytes to keep per record, at most
+	 *            {@link #MAX_PLAINTEXT}, none for authentication requests and
+	 *            re-keys.
+	 * @throws ProtocolException
+	 *             If records is not positive or plaintextBytes out of range.
+	 */
+	public WireRecorder(int records, int plaintextBytes)
+			throws ProtocolException {
+		if (records <= 0) {
+			throw new ProtocolException("Records must be positive");
+		}
+		if (plaintextBytes < 0 || plaintextBytes > MAX_PLAINTEXT) {
+			throw new ProtocolException("Plaintext bytes out of range");
+		}
+		int n = 1;
+		while (n < records) {
+			n <<= 1;
+		}
+		this.records = n;
+		this.plaintextBytes = plaintextBytes;
+		// Keep the longs of each record aligned
+		recordSize = (PLAINTEXT + plaintextBytes + 7) & ~7;
+		buffer = ByteBuffer.allocateDirect(n * recordSize);
+		sequence = new AtomicLong();
+		baseMillis = System.currentTimeMillis();
+		baseNanos = System.nanoTime();
+		errorOutput = null;
+	}
+
+	/**
+	 * Sets where the ring is dumped when a failed frame is recorded.
+	 * 
+	 * @param errorOutput
+	 *            The output or null to not dump.
+	 */
+	public void setErrorOutput(PrintStream errorOutput) {
+		this.errorOutput = errorOutput;
+	}
+
+	/**
+	 * Records a frame.
+	 * 
+	 * @param flags
+	 *            Combination of {@link #INBOUND}, {@link #FAILED} and
+	 *            {@link #ENCRYPTED}.
+	 * @param length
+	 *            Length of the frame including the length bytes.
+	 * @param data
+	 *            The plaintext, or the ciphertext if it could not be
+	 *            decrypted. Nothing of it is kept for authentication requests
+	 *            and re-keys.
+	 * @param time
+	 *            The time from {@link System#nanoTime()}.
+	 */
+	public void record(int flags, int length, byte[] data, long time) {
+		long seq = sequence.getAndIncrement();
+		int offset = (int) (seq & (records - 1)) * recordSize;
+		buffer.putLong(offset + SEQUENCE, 0);
+		buffer.putLong(offset + TIME, time);
+		buffer.put(offset + FLAGS, (byte) flags);
+		byte messageType = -1;
+		byte commandType = -1;
+		if ((flags & ENCRYPTED) == 0 && data.length > 0) {
+			messageType = data[0];
+			if (messageType == Message.COMMAND_REQUEST && data.length > 1) {
+				commandType = data[1];
+			}
+		}
+		buffer.put(offset + MESSAGE_TYPE, messageType);
+		buffer.put(offset + COMMAND_TYPE, commandType);
+		int n = 0;
+		if (messageType != Message.AUTHENTICATION_REQUEST
+				&& messageType != Message.REKEY) {
+			n = Math.min(plaintextBytes, data.length);
+		}
+		buffer.put(offset + PLAINTEXT_LENGTH, (byte) n);
+		buffer.putInt(offset + LENGTH, length);
+		for (int i = 0; i < n; i++) {
+			buffer.put(offset + PLAINTEXT + i, data[i]);
+		}
+		buffer.putLong(offset + SEQUENCE, seq + 1);
+		if ((flags & FAILED) != 0) {
+			PrintStream errorOutput = this.errorOutput;
+			if (errorOutput != null) {
+				dump(errorOutput);
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of recorded frames, including overwritten ones.
+	 * 
+	 * @return The number of frames.
+	 */
+	public long getRecorded() {
+		return sequence.get();
+	}
+
+	/**
+	 * Prints the kept records, oldest first, one per line.
+	 * 
+	 * @param out
+	 *            Where to print.
+	 */
+	public void dump(PrintStream out) {
+		long end = sequence.get();
+		long begin = Math.max(0, end - records);
+		SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+		StringBuilder sb = new StringBuilder();
+		for (long seq = begin; seq < end; seq++) {
+			int offset = (int) (seq & (records - 1)) * recordSize;
+			if (buffer.getLong(offset + SEQUENCE) != seq + 1) {
+				continue;
+			}
+			long time = buffer.getLong(offset + TIME);
+			int flags = buffer.get(offset + FLAGS);
+			byte messageType = buffer.get(offset + MESSAGE_TYPE);
+			byte commandType = buffer.get(offset + COMMAND_TYPE);
+			int n = buffer.get(offset + PLAINTEXT_LENGTH) & 0xFF;
+			int length = buffer.getInt(offset + LENGTH);
+			byte[] data = new byte[n];
+			for (int i = 0; i < n; i++) {
+				data[i] = buffer.get(offset + PLAINTEXT + i);
+			}
+			if (buffer.getLong(offset + SEQUENCE) != seq + 1) {
+				// Overwritten while reading
+				continue;
+			}
+			long nanos = time - baseNanos;
+			sb.setLength(0);
+			sb.append(seq).append(' ');
+			sb.append(format.format(new Date(baseMillis + nanos / 1000000)));
+			sb.append(String.format("%03d", (nanos / 1000) % 1000));
+			sb.append((flags & INBOUND) != 0 ? " in  " : " out ");
+			sb.append(length);
+			sb.append(" message=").append(messageType);
+			if (commandType >= 0) {
+				sb.append(" command=").append(commandType);
+			}
+			if ((flags & FAILED) != 0) {
+				sb.append(" FAILED");
+			}
+			if (n > 0) {
+				sb.append((flags & ENCRYPTED) != 0 ? " encrypted=" : " data=");
+				sb.append(Utils.toHex(data));
+			}
+			out.println(sb);
+		}
+		out.flush();
+	}
+}
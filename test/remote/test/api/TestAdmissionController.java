@@ -0,0 +1,381 @@
+package remote.test.api;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+import remote.api.AdmissionController;
+import remote.api.AdmissionController.Permit;
+import remote.api.exceptions.AuthenticationException;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Test class for {@link AdmissionController}.
+ */
+public class TestAdmissionController {
+	/**
+	 * A source.
+	 */
+	private static final InetAddress A = host(1);
+	/**
+	 * Another source.
+	 */
+	private static final InetAddress B = host(2);
+	/**
+	 * Another source.
+	 */
+	private static final InetAddress C = host(3);
+	/**
+	 * Another source.
+	 */
+	private static final InetAddress D = host(4);
+	/**
+	 * Another source.
+	 */
+	private static final InetAddress E = host(5);
+	/**
+	 * Another source.
+	 */
+	private static final InetAddress F = host(6);
+	/**
+	 * A source that authenticates.
+	 */
+	private static final InetAddress KNOWN = host(100);
+
+	/**
+	 * Creates the address of a host.
+	 * 
+	 * @param n
+	 *            The last byte of the address.
+	 * @return The address 192.0.2.n.
+	 */
+	private static InetAddress host(int n) {
+		try {
+			return InetAddress.getByAddress(new byte[] { (byte) 192, 0, 2,
+					(byte) n });
+		} catch (UnknownHostException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Admission controller with a clock that only moves when told to.
+	 */
+	private static class ManualAdmissionController extends
+			AdmissionController {
+		/**
+		 * The current time.
+		 */
+		private long now = 0;
+
+		/**
+		 * Constructs a new admission controller.
+		 * 
+		 * @param burst
+		 *            Attempts a source may make in a burst.
+		 * @param rate
+		 *            Attempts per second after a burst.
+		 * @param lockoutFailures
+		 *            Consecutive failures before a lockout.
+		 * @param lockoutMillis
+		 *            Length of the first lockout.
+		 * @param maxLockoutMillis
+		 *            Longest lockout.
+		 * @param maxConcurrent
+		 *            Requests processed at the same time.
+		 * @param maxSources
+		 *            Number of sources to remember.
+		 * @throws ProtocolException
+		 *             If an argument is out of range.
+		 */
+		ManualAdmissionController(int burst, double rate,
+				int lockoutFailures, long lockoutMillis,
+				long maxLockoutMillis, int maxConcurrent, int maxSources)
+				throws ProtocolException {
+			super(burst, rate, lockoutFailures, lockoutMillis,
+					maxLockoutMillis, maxConcurrent, maxSources);
+		}
+
+		/**
+		 * Moves the clock forward.
+		 * 
+		 * @param millis
+		 *            Milliseconds to move.
+		 */
+		void advance(long millis) {
+			now += millis * 1000000L;
+		}
+
+		@Override
+		protected long now() {
+			return now;
+		}
+	}
+
+	/**
+	 * Checks that the source is rejected with the message.
+	 * 
+	 * @param admission
+	 *            The admission controller.
+	 * @param source
+	 *            The source.
+	 * @param message
+	 *            The expected message.
+	 * @throws Exception
+	 *             If something else went wrong.
+	 */
+	private static void assertRejected(AdmissionController admission,
+			InetAddress source, String message) throws Exception {
+		try {
+			admission.admit(source);
+			fail("Did not throw an exception");
+		} catch (AuthenticationException e) {
+			AuthenticationException ex = new AuthenticationException(message);
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link AdmissionController#AdmissionController(int, double, int, long, long, int, int)}
+	 * .
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testAdmissionController() throws Exception {
+		new AdmissionController();
+		new AdmissionController(1, 0.1, 1, 0, 0, 1, 1);
+		try {
+			new AdmissionController(0, 0.1, 1, 0, 0, 1, 1);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Burst must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			new AdmissionController(1, 0, 1, 0, 0, 1, 1);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Rate must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			new AdmissionController(1, Double.NaN, 1, 0, 0, 1, 1);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Rate must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			new AdmissionController(1, 0.1, 0, 0, 0, 1, 1);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Lockout failures must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			new AdmissionController(1, 0.1, 1, -1, 0, 1, 1);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException("Invalid lockout");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			new AdmissionController(1, 0.1, 1, 10, 5, 1, 1);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException("Invalid lockout");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			new AdmissionController(1, 0.1, 1, 0, 0, 0, 1);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Concurrency must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			new AdmissionController(1, 0.1, 1, 0, 0, 1, 0);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Sources must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Test method for {@link AdmissionController#admit(InetAddress)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testAdmit() throws Exception {
+		ManualAdmissionController admission = new ManualAdmissionController(
+				3, 1, 10, 1000, 1000, 4, 100);
+		try {
+			admission.admit(null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Source cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		// The burst is used up
+		for (int i = 0; i < 3; i++) {
+			admission.admit(A).release(false);
+		}
+		assertRejected(admission, A, "Too many attempts");
+		// Other sources have their own bucket
+		admission.admit(B).release(false);
+		// One token per second
+		admission.advance(999);
+		assertRejected(admission, A, "Too many attempts");
+		admission.advance(1);
+		admission.admit(A).release(false);
+		assertRejected(admission, A, "Too many attempts");
+		// The bucket does not grow beyond the burst
+		admission.advance(60000);
+		for (int i = 0; i < 3; i++) {
+			admission.admit(A).release(true);
+		}
+		assertRejected(admission, A, "Too many attempts");
+	}
+
+	/**
+	 * Test method for {@link Permit#release(boolean)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testLockout() throws Exception {
+		ManualAdmissionController admission = new ManualAdmissionController(
+				100, 100, 3, 1000, 3000, 4, 100);
+		// Two failures are allowed
+		admission.admit(A).release(false);
+		admission.admit(A).release(false);
+		admission.admit(A).release(false);
+		assertRejected(admission, A, "Locked out");
+		admission.advance(999);
+		assertRejected(admission, A, "Locked out");
+		admission.advance(1);
+		// The lockout doubles
+		admission.admit(A).release(false);
+		admission.advance(1999);
+		assertRejected(admission, A, "Locked out");
+		admission.advance(1);
+		// Up to the longest lockout
+		admission.admit(A).release(false);
+		admission.advance(2999);
+		assertRejected(admission, A, "Locked out");
+		admission.advance(1);
+		// A success resets the failures
+		admission.admit(A).release(true);
+		admission.admit(A).release(false);
+		admission.admit(A).release(false);
+		admission.admit(A).release(true);
+		// Only the first release counts
+		Permit permit = admission.admit(A);
+		permit.release(false);
+		permit.release(false);
+		permit.release(false);
+		admission.admit(A).release(false);
+		admission.admit(A).release(true);
+	}
+
+	/**
+	 * Test method for {@link AdmissionController#admit(InetAddress)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testConcurrency() throws Exception {
+		ManualAdmissionController admission = new ManualAdmissionController(
+				100, 100, 100, 1000, 1000, 4, 100);
+		// Known source
+		admission.admit(KNOWN).release(true);
+		// Unknown sources get three of the four permits
+		Permit a = admission.admit(A);
+		Permit b = admission.admit(B);
+		Permit c = admission.admit(C);
+		assertRejected(admission, D, "Server busy");
+		assertRejected(admission, A, "Server busy");
+		// The known source can still reconnect
+		Permit known = admission.admit(KNOWN);
+		assertRejected(admission, KNOWN, "Server busy");
+		a.release(false);
+		Permit d = admission.admit(D);
+		known.release(true);
+		admission.admit(KNOWN).release(true);
+		b.release(false);
+		c.release(false);
+		d.release(false);
+		// Rejected attempts do not use tokens
+		admission = new ManualAdmissionController(1, 1, 100, 1000, 1000, 1,
+				100);
+		Permit e = admission.admit(E);
+		assertRejected(admission, F, "Server busy");
+		e.release(false);
+		admission.admit(F).release(false);
+		// A known source is no longer known after a day
+		admission = new ManualAdmissionController(100, 100, 100, 1000,
+				1000, 2, 100);
+		admission.admit(KNOWN).release(true);
+		a = admission.admit(A);
+		admission.advance(24L * 60 * 60 * 1000);
+		assertRejected(admission, KNOWN, "Server busy");
+		a.release(false);
+	}
+
+	/**
+	 * Test method for {@link AdmissionController#getSources()}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testGetSources() throws Exception {
+		ManualAdmissionController admission = new ManualAdmissionController(
+				2, 1, 1, 1000, 1000, 2, 3);
+		assertEquals(0, admission.getSources());
+		admission.admit(A).release(false);
+		admission.admit(B).release(true);
+		admission.admit(C).release(false);
+		admission.advance(500);
+		assertRejected(admission, C, "Locked out");
+		// Nothing is idle, so the least recently seen source is forgotten
+		admission.admit(D).release(false);
+		assertEquals(3, admission.getSources());
+		assertRejected(admission, C, "Locked out");
+		assertRejected(admission, D, "Locked out");
+		admission.admit(A).release(true);
+		assertEquals(3, admission.getSources());
+		// Sources that have been quiet for a while are forgotten first
+		admission.advance(60000);
+		admission.admit(E).release(false);
+		assertEquals(2, admission.getSources());
+		// The known source is still known
+		Permit permit = admission.admit(host(200));
+		admission.admit(A).release(true);
+		assertRejected(admission, F, "Server busy");
+		permit.release(false);
+		// A flood of locked out sources does not grow the map
+		for (int i = 0; i < 100; i++) {
+			admission.admit(host(10 + i)).release(false);
+		}
+		assertEquals(3, admission.getSources());
+	}
+}
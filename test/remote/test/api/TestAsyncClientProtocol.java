@@ -0,0 +1,286 @@
+package remote.test.api;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import remote.api.AsyncClientProtocol;
+import remote.api.ClientProtocol;
+import remote.api.Completion;
+import remote.api.Completion.Transform;
+import remote.api.MemoryTransport;
+import remote.api.Packet;
+import remote.api.ServerProtocol;
+import remote.api.ServerProtocol.ConnectionHandler;
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.commands.MouseMove;
+import remote.api.exceptions.AuthenticationException;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Test class for {@link AsyncClientProtocol}.
+ */
+public class TestAsyncClientProtocol {
+	/**
+	 * Handler that accepts everyone and collects the commands.
+	 */
+	private static class Collecting implements Handler, ConnectionHandler {
+		/**
+		 * The received commands.
+		 */
+		private final BlockingQueue<Command> commands;
+		/**
+		 * The received terminate requests.
+		 */
+		private final BlockingQueue<Boolean> terminates;
+
+		/**
+		 * Constructs a new handler.
+		 */
+		private Collecting() {
+			commands = new ArrayBlockingQueue<Command>(10);
+			terminates = new ArrayBlockingQueue<Boolean>(10);
+		}
+
+		@Override
+		public boolean authentication(byte[] user, byte[] password) {
+			return true;
+		}
+
+		@Override
+		public void command(Command command) {
+			commands.add(command);
+		}
+
+		@Override
+		public void terminate(boolean shutdown) {
+			terminates.add(shutdown);
+		}
+
+		@Override
+		public void onAuthenticated() {
+		}
+	}
+
+	/**
+	 * The transport between the sides.
+	 */
+	private MemoryTransport transport;
+	/**
+	 * The server handler.
+	 */
+	private Collecting handler;
+	/**
+	 * Processes packets of the server.
+	 */
+	private Thread server;
+	/**
+	 * The facade under test.
+	 */
+	private AsyncClientProtocol async;
+
+	/**
+	 * Starts a server on its own thread.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		transport = new MemoryTransport();
+		handler = new Collecting();
+		final ServerProtocol sp = new ServerProtocol(handler, handler,
+				Misc.privateKey, transport.getServer().getInputStream(),
+				transport.getServer().getOutputStream());
+		server = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Packet packet;
+					while ((packet = sp.nextPacket()) != null) {
+						sp.process(packet);
+					}
+				} catch (Exception e) {
+					// Closed
+				}
+			}
+		};
+		server.start();
+		ClientProtocol cp = new ClientProtocol(Misc.publicKey, Misc.key,
+				Misc.iv, transport.getClient().getInputStream(), transport
+						.getClient().getOutputStream());
+		async = new AsyncClientProtocol(cp);
+	}
+
+	/**
+	 * Closes the transport and waits for the server.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@After
+	public void tearDown() throws Exception {
+		async.close();
+		transport.close();
+		server.join(5000);
+		assertFalse(server.isAlive());
+	}
+
+	/**
+	 * Asserts that a completion failed.
+	 * 
+	 * @param completion
+	 *            The completion.
+	 * @param ex
+	 *            The expected reason.
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	private static void assertFailed(Completion<?> completion, Exception ex)
+			throws Exception {
+		try {
+			completion.get(5, TimeUnit.SECONDS);
+			fail("Did not throw an exception");
+		} catch (ExecutionException e) {
+			assertEquals(ex.getClass(), e.getCause().getClass());
+			assertEquals(ex.getMessage(), e.getCause().getMessage());
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link AsyncClientProtocol#AsyncClientProtocol(ClientProtocol)}.
+	 */
+	@Test
+	public void testAsyncClientProtocol() {
+		try {
+			new AsyncClientProtocol(null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Protocol cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Test method for {@link AsyncClientProtocol#authenticate(byte[], byte[])}
+	 * and the requests that follow.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testRequests() throws Exception {
+		async.start();
+		try {
+			async.start();
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException("Already started");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		MouseMove early = new MouseMove((short) 0, (short) 0);
+		assertFailed(async.commandRequest(early), new AuthenticationException(
+				"Expecting authentication"));
+
+		final MouseMove mm = new MouseMove((short) 1, (short) 2);
+		Completion<Void> sent = async.authenticate(Misc.getSequence(10, 10),
+				Misc.getSequence(5, 5)).compose(
+				new Transform<Void, Completion<Void>>() {
+					@Override
+					public Completion<Void> apply(Void value) {
+						return async.commandRequest(mm);
+					}
+				});
+		assertFailed(async.authenticate(Misc.getSequence(10, 10),
+				Misc.getSequence(5, 5)), new ProtocolException(
+				"Authentication already requested"));
+		assertNull(sent.get(5, TimeUnit.SECONDS));
+		assertTrue(async.getProtocol().isAuthenticated());
+		assertEquals(0, mm.compareTo(handler.commands.poll(5,
+				TimeUnit.SECONDS)));
+
+		Completion<Long> ping = async.ping();
+		assertTrue(ping.get(5, TimeUnit.SECONDS) >= 0);
+		ping = async.ping();
+		assertTrue(ping.get(5, TimeUnit.SECONDS) >= 0);
+
+		async.terminateRequest(true).get(5, TimeUnit.SECONDS);
+		assertEquals(Boolean.TRUE,
+				handler.terminates.poll(5, TimeUnit.SECONDS));
+
+		async.close();
+		assertFailed(async.commandRequest(mm), new ProtocolException(
+				"Protocol is closed"));
+		assertFailed(async.ping(), new ProtocolException("Protocol is closed"));
+	}
+
+	/**
+	 * Test method for {@link AsyncClientProtocol#ping()} and
+	 * {@link AsyncClientProtocol#process(Packet)} without a reader thread.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testProcess() throws Exception {
+		ClientProtocol cp = async.getProtocol();
+		Completion<Void> authenticated = async.authenticate(
+				Misc.getSequence(10, 10), Misc.getSequence(5, 5));
+		async.process(cp.nextPacket());
+		assertTrue(authenticated.isDone());
+		Completion<Long> ping = async.ping();
+		assertFailed(async.ping(), new ProtocolException(
+				"Ping already requested"));
+		assertFalse(ping.isDone());
+		async.process(cp.nextPacket());
+		assertTrue(ping.get() >= 0);
+	}
+
+	/**
+	 * Test method for pending replies when the connection ends.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testConnectionClosed() throws Exception {
+		// No server answers
+		MemoryTransport silent = new MemoryTransport();
+		ClientProtocol cp = new ClientProtocol(Misc.publicKey, Misc.key,
+				Misc.iv, silent.getClient().getInputStream(), silent
+						.getClient().getOutputStream());
+		AsyncClientProtocol client = new AsyncClientProtocol(cp);
+		Completion<Void> authenticated = client.authenticate(
+				Misc.getSequence(10, 10), Misc.getSequence(5, 5));
+		Completion<Void> ready = authenticated
+				.compose(new Transform<Void, Completion<Void>>() {
+					@Override
+					public Completion<Void> apply(Void value) {
+						fail("Did not fail");
+						return null;
+					}
+				});
+		client.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (silent.getServer().getInputStream().available() == 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertFalse(authenticated.isDone());
+		silent.close();
+		assertFailed(authenticated, new ProtocolException(
+				"Connection closed"));
+		assertFailed(ready, new ProtocolException("Connection closed"));
+		client.close();
+	}
+}
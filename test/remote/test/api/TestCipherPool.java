@@ -0,0 +1,142 @@
+package remote.test.api;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.junit.Test;
+
+import remote.api.CipherPool;
+import remote.api.Packet;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Test class for {@link CipherPool}.
+ */
+public class TestCipherPool {
+	/**
+	 * Test method for {@link CipherPool#CipherPool(int, int)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testCipherPool() throws Exception {
+		new CipherPool();
+		new CipherPool(3, 1);
+		try {
+			new CipherPool(0, 1);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Stripes must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			new CipherPool(1, 0);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Capacity must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Test method for {@link CipherPool#get(String)} and
+	 * {@link CipherPool#put(Cipher)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testGetPut() throws Exception {
+		CipherPool pool = new CipherPool(1, 2);
+		Cipher a = pool.get(Packet.BLOCK_CIPHER);
+		Cipher b = pool.get(Packet.BLOCK_CIPHER);
+		Cipher c = pool.get(Packet.BLOCK_CIPHER);
+		assertNotSame(a, b);
+		assertEquals(3, pool.getCreated());
+		assertEquals(0, pool.getReused());
+		assertFalse(pool.put(null));
+		assertTrue(pool.put(a));
+		assertTrue(pool.put(b));
+		// Full
+		assertFalse(pool.put(c));
+		Cipher d = pool.get(Packet.BLOCK_CIPHER);
+		assertTrue(d == a || d == b);
+		assertEquals(1, pool.getReused());
+		// Asymmetric ciphers are never kept
+		Cipher secure = pool.get(Packet.SECURE_ALGORITHM);
+		assertEquals(Packet.SECURE_ALGORITHM, secure.getAlgorithm());
+		assertEquals(4, pool.getCreated());
+		secure.init(Cipher.DECRYPT_MODE, Misc.privateKey);
+		assertFalse(pool.put(secure));
+		assertNotSame(secure, pool.get(Packet.SECURE_ALGORITHM));
+		assertEquals(5, pool.getCreated());
+		Cipher e = pool.get(Packet.BLOCK_CIPHER);
+		assertTrue(e == a || e == b);
+		assertNotSame(d, e);
+		pool.get(Packet.BLOCK_CIPHER);
+		assertEquals(6, pool.getCreated());
+		assertEquals(2, pool.getReused());
+
+		// A recycled cipher works with a new key
+		Cipher encrypt = pool.get(Packet.BLOCK_CIPHER);
+		encrypt.init(Cipher.ENCRYPT_MODE, Misc.secretKey, new IvParameterSpec(
+				Misc.iv));
+		byte[] data = encrypt.doFinal(new byte[] { 1, 2, 3 });
+		pool.put(encrypt);
+		Cipher decrypt = pool.get(Packet.BLOCK_CIPHER);
+		assertSame(encrypt, decrypt);
+		// The key of the last session is gone
+		assertFalse(Arrays.equals(new byte[] { 1, 2, 3 }, decrypt
+				.doFinal(data)));
+		decrypt.init(Cipher.DECRYPT_MODE, Misc.secretKey, new IvParameterSpec(
+				Misc.iv));
+		assertArrayEquals(new byte[] { 1, 2, 3 }, decrypt.doFinal(data));
+	}
+
+	/**
+	 * Test method for {@link CipherPool#get(String)} from many threads.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testConcurrent() throws Exception {
+		final CipherPool pool = new CipherPool(4, 4);
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 1000; i++) {
+							Cipher cipher = pool.get(Packet.BLOCK_CIPHER);
+							cipher.init(Cipher.ENCRYPT_MODE, Misc.secretKey,
+									new IvParameterSpec(Misc.iv));
+							if (cipher.doFinal(new byte[8]).length != 16) {
+								errors.incrementAndGet();
+							}
+							pool.put(cipher);
+						}
+					} catch (Exception e) {
+						errors.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, errors.get());
+		assertEquals(8000, pool.getCreated() + pool.getReused());
+	}
+}
@@ -1,8 +1,15 @@
 package remote.test.api;
 
 import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.startsWith;
 
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
 
 import org.junit.Test;
 
@@ -13,8 +20,14 @@ import remote.api.ServerProtocol.ConnectionHandler;
 import remote.api.ServerProtocol.Handler;
 import remote.api.commands.Command;
 import remote.api.commands.MouseMove;
+import remote.api.exceptions.AuthenticationException;
+import remote.api.exceptions.PacketException;
+import remote.api.exceptions.ProtocolException;
+import remote.api.messages.AuthenticationRequest;
+import remote.api.messages.AuthenticationResponse;
 import remote.api.messages.CommandRequest;
 import remote.api.messages.Message;
+import remote.api.messages.Rekey;
 import remote.api.messages.TerminateRequest;
 
 /**
@@ -126,4 +139,367 @@ public class TestClientServer {
 		clientInput.close();
 		serverInput.close();
 	}
+
+	/**
+	 * Tests re-keys in both directions while commands and pings are
+	 * exchanged.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testRekey() throws Exception {
+		ByteArrayOutputStream clientOutput = new ByteArrayOutputStream();
+		ByteArrayOutputStream serverOutput = new ByteArrayOutputStream();
+		MagicInputStream clientInput = new MagicInputStream(serverOutput);
+		MagicInputStream serverInput = new MagicInputStream(clientOutput);
+		final List<Command> commands = new ArrayList<Command>();
+		Handler handler = new Handler() {
+			@Override
+			public boolean authentication(byte[] user, byte[] password) {
+				return true;
+			}
+
+			@Override
+			public void command(Command command) {
+				commands.add(command);
+			}
+
+			@Override
+			public void terminate(boolean shutdown) {
+			}
+		};
+		ClientProtocol cp = new ClientProtocol(Misc.publicKey, Misc.key,
+				Misc.iv, clientInput, clientOutput);
+		ServerProtocol sp = new ServerProtocol(handler, connectionHandler,
+				Misc.privateKey, serverInput, serverOutput);
+		try {
+			cp.rekey();
+			fail("Did not throw an exception");
+		} catch (AuthenticationException e) {
+			AuthenticationException ex = new AuthenticationException(
+					"Expecting authentication");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			cp.setRekeyPolicy(-1, 0);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Bytes cannot be negative");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			cp.setRekeyPolicy(0, -1);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Time cannot be negative");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		cp.authenticate(Misc.getSequence(10, 10), Misc.getSequence(5, 5));
+		serverInput.update();
+		sp.process(sp.nextPacket());
+		clientInput.update();
+		cp.process(cp.nextPacket());
+
+		// A re-key every 100 bytes, that is every ten commands
+		cp.setRekeyPolicy(100, 0);
+		for (int i = 0; i < 50; i++) {
+			cp.commandRequest(new MouseMove((short) i, (short) -i));
+		}
+		cp.ping(null);
+		// The server switches on its own
+		sp.rekey();
+		sp.rekey();
+		serverInput.update();
+		Packet p;
+		while ((p = sp.nextPacket()) != null) {
+			sp.process(p);
+		}
+		clientInput.update();
+		while ((p = cp.nextPacket()) != null) {
+			cp.process(p);
+		}
+		assertEquals(50, commands.size());
+		for (int i = 0; i < 50; i++) {
+			assertEquals(0, new MouseMove((short) i, (short) -i)
+					.compareTo(commands.get(i)));
+		}
+		assertEquals(5, cp.getSendEpoch());
+		assertEquals(5, sp.getReceiveEpoch());
+		// The server responded to the ping with its third key
+		assertEquals(2, sp.getSendEpoch());
+		assertEquals(2, cp.getReceiveEpoch());
+
+		// The old key of a direction no longer decrypts it
+		cp.commandRequest(new MouseMove((short) 1, (short) 1));
+		serverInput.update();
+		p = sp.nextPacket();
+		byte[] data = p.getData().clone();
+		Cipher decrypt = Cipher.getInstance(Packet.BLOCK_CIPHER);
+		decrypt.init(Cipher.DECRYPT_MODE, Misc.secretKey, new IvParameterSpec(
+				Misc.iv));
+		try {
+			Message message = new Packet(data, true).decode(decrypt);
+			assertFalse(message instanceof CommandRequest);
+		} catch (PacketException e) {
+			// Usually bad padding
+		}
+		sp.process(p);
+
+		// Time based
+		cp.setRekeyPolicy(0, 1);
+		Thread.sleep(5);
+		cp.commandRequest(new MouseMove((short) 2, (short) 2));
+		serverInput.update();
+		while ((p = sp.nextPacket()) != null) {
+			sp.process(p);
+		}
+		assertEquals(6, cp.getSendEpoch());
+		assertEquals(6, sp.getReceiveEpoch());
+		assertEquals(52, commands.size());
+
+		// An epoch out of order
+		ServerProtocol other = new ServerProtocol(handler, connectionHandler,
+				Misc.privateKey, serverInput, serverOutput);
+		other.process(Misc.encryptSecure(new AuthenticationRequest(Misc.key,
+				Misc.iv, new byte[0], new byte[0]).pack()));
+		try {
+			other.process(Misc.encryptBlock(new Rekey((byte) 2).pack()));
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Unexpected rekey epoch: 2");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Tests the negotiation and use of the compact record format.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testCompact() throws Exception {
+		ByteArrayOutputStream clientOutput = new ByteArrayOutputStream();
+		ByteArrayOutputStream serverOutput = new ByteArrayOutputStream();
+		MagicInputStream clientInput = new MagicInputStream(serverOutput);
+		MagicInputStream serverInput = new MagicInputStream(clientOutput);
+		final List<Command> commands = new ArrayList<Command>();
+		Handler handler = new Handler() {
+			@Override
+			public boolean authentication(byte[] user, byte[] password) {
+				return true;
+			}
+
+			@Override
+			public void command(Command command) {
+				commands.add(command);
+			}
+
+			@Override
+			public void terminate(boolean shutdown) {
+			}
+		};
+		ClientProtocol cp = new ClientProtocol(Misc.publicKey, Misc.key,
+				Misc.iv, clientInput, clientOutput);
+		ServerProtocol sp = new ServerProtocol(handler, connectionHandler,
+				Misc.privateKey, serverInput, serverOutput);
+		cp.setCompact(true);
+		cp.authenticate(Misc.getSequence(10, 10), Misc.getSequence(5, 5));
+		serverInput.update();
+		sp.process(sp.nextPacket());
+		assertTrue(sp.isCompact());
+		// The response is the last regular packet
+		clientInput.update();
+		cp.process(cp.nextPacket());
+		assertTrue(cp.isCompact());
+
+		// One byte of length and no padding
+		cp.commandRequest(new MouseMove((short) 1, (short) 2));
+		assertEquals(7, clientOutput.size());
+		for (int i = 0; i < 20; i++) {
+			cp.commandRequest(new MouseMove((short) i, (short) -i));
+			if (i == 10) {
+				cp.rekey();
+			}
+		}
+		cp.ping(null);
+		sp.ping(null);
+		sp.rekey();
+		serverInput.update();
+		Packet p;
+		while ((p = sp.nextPacket()) != null) {
+			sp.process(p);
+		}
+		clientInput.update();
+		while ((p = cp.nextPacket()) != null) {
+			cp.process(p);
+		}
+		// Ping response of the client
+		serverInput.update();
+		sp.process(sp.nextPacket());
+		assertEquals(null, sp.nextPacket());
+		assertEquals(21, commands.size());
+		for (int i = 0; i < 20; i++) {
+			assertEquals(0, new MouseMove((short) i, (short) -i)
+					.compareTo(commands.get(i + 1)));
+		}
+		assertEquals(1, sp.getReceiveEpoch());
+		assertEquals(1, cp.getReceiveEpoch());
+
+		// A server that does not accept it
+		cp = new ClientProtocol(Misc.publicKey, Misc.key, Misc.iv,
+				clientInput, clientOutput);
+		sp = new ServerProtocol(handler, connectionHandler, Misc.privateKey,
+				serverInput, serverOutput);
+		cp.setCompact(true);
+		sp.setCompact(false);
+		cp.authenticate(Misc.getSequence(10, 10), Misc.getSequence(5, 5));
+		serverInput.update();
+		sp.process(sp.nextPacket());
+		clientInput.update();
+		cp.process(cp.nextPacket());
+		assertFalse(sp.isCompact());
+		assertFalse(cp.isCompact());
+		cp.commandRequest(new MouseMove((short) 1, (short) 2));
+		assertEquals(10, clientOutput.size());
+		serverInput.update();
+		sp.process(sp.nextPacket());
+		assertEquals(22, commands.size());
+
+		// A client that did not offer it
+		cp = new ClientProtocol(Misc.publicKey, Misc.key, Misc.iv,
+				clientInput, clientOutput);
+		cp.authenticate(Misc.getSequence(10, 10), Misc.getSequence(5, 5));
+		try {
+			cp.process(Misc.encryptBlock(new AuthenticationResponse(
+					Packet.FORMAT_COMPACT).pack()));
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Unexpected record format: " + Packet.FORMAT_COMPACT);
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		assertFalse(cp.isCompact());
+
+		// Credentials of the maximum length leave no room for the offer
+		clientOutput.reset();
+		cp = new ClientProtocol(Misc.publicKey, Misc.key, Misc.iv,
+				clientInput, clientOutput);
+		sp = new ServerProtocol(handler, connectionHandler, Misc.privateKey,
+				serverInput, serverOutput);
+		cp.setCompact(true);
+		cp.authenticate(Misc.getSequence(10, 100), Misc.getSequence(5,
+				142 - (Packet.BLOCK_KEY_SIZE + Packet.BLOCK_SIZE)));
+		serverInput.update();
+		sp.process(sp.nextPacket());
+		clientInput.update();
+		cp.process(cp.nextPacket());
+		assertTrue(sp.isAuthenticated());
+		assertFalse(sp.isCompact());
+		assertFalse(cp.isCompact());
+	}
+
+	/**
+	 * Tests the trusted handshake.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testTrusted() throws Exception {
+		ByteArrayOutputStream clientOutput = new ByteArrayOutputStream();
+		ByteArrayOutputStream serverOutput = new ByteArrayOutputStream();
+		MagicInputStream clientInput = new MagicInputStream(serverOutput);
+		MagicInputStream serverInput = new MagicInputStream(clientOutput);
+		final List<Command> commands = new ArrayList<Command>();
+		Handler handler = new Handler() {
+			@Override
+			public boolean authentication(byte[] user, byte[] password) {
+				return true;
+			}
+
+			@Override
+			public void command(Command command) {
+				commands.add(command);
+			}
+
+			@Override
+			public void terminate(boolean shutdown) {
+			}
+		};
+		byte[] user = Misc.getSequence(10, 10);
+		byte[] password = Misc.getSequence(5, 5);
+		ClientProtocol cp = new ClientProtocol(Misc.publicKey, Misc.key,
+				Misc.iv, clientInput, clientOutput);
+		ServerProtocol sp = new ServerProtocol(handler, connectionHandler,
+				Misc.privateKey, serverInput, serverOutput);
+		cp.setTrusted(true);
+		sp.setTrusted(true);
+		cp.authenticate(user, password);
+		// The request is sent as it is
+		byte[] request = new AuthenticationRequest(Misc.key, Misc.iv, user,
+				password).pack().getData();
+		byte[] sent = clientOutput.toByteArray();
+		assertEquals(request.length + 2, sent.length);
+		assertArrayEquals(request, Arrays.copyOfRange(sent, 2, sent.length));
+		serverInput.update();
+		sp.process(sp.nextPacket());
+		clientInput.update();
+		cp.process(cp.nextPacket());
+		MouseMove mm = new MouseMove((short) 1, (short) 2);
+		cp.commandRequest(mm);
+		serverInput.update();
+		sp.process(sp.nextPacket());
+		assertEquals(1, commands.size());
+		assertEquals(0, mm.compareTo(commands.get(0)));
+		Packet p;
+
+		// A server that expects the secure algorithm
+		cp = new ClientProtocol(Misc.publicKey, Misc.key, Misc.iv,
+				clientInput, clientOutput);
+		sp = new ServerProtocol(handler, connectionHandler, Misc.privateKey,
+				serverInput, serverOutput);
+		cp.setTrusted(true);
+		cp.authenticate(user, password);
+		serverInput.update();
+		p = sp.nextPacket();
+		try {
+			sp.process(p);
+			fail("Did not throw an exception");
+		} catch (PacketException e) {
+			PacketException ex = new PacketException(
+					"Failed to decrypt packet", p.getData());
+			assertThat(e.getMessage(), startsWith(ex.getMessage()));
+		}
+
+		// A server that expects the trusted handshake
+		cp = new ClientProtocol(Misc.publicKey, Misc.key, Misc.iv,
+				clientInput, clientOutput);
+		sp = new ServerProtocol(handler, connectionHandler, Misc.privateKey,
+				serverInput, serverOutput);
+		sp.setTrusted(true);
+		cp.authenticate(user, password);
+		serverInput.update();
+		p = sp.nextPacket();
+		try {
+			sp.process(p);
+			fail("Did not throw an exception");
+		} catch (PacketException e) {
+			// Not an authentication request
+		} catch (ProtocolException e) {
+			// Not an authentication request
+		}
+		try {
+			sp.ping(null);
+			fail("Did not throw an exception");
+		} catch (AuthenticationException e) {
+			AuthenticationException ex = new AuthenticationException(
+					"Expecting authentication");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
 }
@@ -0,0 +1,280 @@
+package remote.test.api;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import remote.api.ClientProtocol;
+import remote.api.CommandPublisher;
+import remote.api.MemoryTransport;
+import remote.api.Reactive.Subscriber;
+import remote.api.Reactive.Subscription;
+import remote.api.ServerProtocol;
+import remote.api.ServerProtocol.ConnectionHandler;
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.commands.MouseMove;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Test class for {@link CommandPublisher}.
+ */
+public class TestCommandPublisher {
+	/**
+	 * Handler that accepts everyone.
+	 */
+	private static class Accepting implements Handler, ConnectionHandler {
+		@Override
+		public boolean authentication(byte[] user, byte[] password) {
+			return true;
+		}
+
+		@Override
+		public void command(Command command) {
+			fail("Not published");
+		}
+
+		@Override
+		public void terminate(boolean shutdown) {
+		}
+
+		@Override
+		public void onAuthenticated() {
+		}
+	}
+
+	/**
+	 * Subscriber that records the signals.
+	 */
+	private static class Recording implements Subscriber<Command> {
+		/**
+		 * The subscription.
+		 */
+		private Subscription subscription;
+		/**
+		 * The received commands.
+		 */
+		private final BlockingQueue<Command> commands;
+		/**
+		 * The error or completion, null for completion.
+		 */
+		private final BlockingQueue<Object> ends;
+
+		/**
+		 * Constructs a new subscriber.
+		 */
+		private Recording() {
+			commands = new ArrayBlockingQueue<Command>(1000);
+			ends = new ArrayBlockingQueue<Object>(10);
+		}
+
+		@Override
+		public void onSubscribe(Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(Command item) {
+			commands.add(item);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			ends.add(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			ends.add("complete");
+		}
+	}
+
+	/**
+	 * The transport between the sides.
+	 */
+	private MemoryTransport transport;
+	/**
+	 * The publisher under test.
+	 */
+	private CommandPublisher publisher;
+	/**
+	 * The server protocol.
+	 */
+	private ServerProtocol sp;
+	/**
+	 * The client protocol.
+	 */
+	private ClientProtocol cp;
+
+	/**
+	 * Connects a client to a server that publishes its commands.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		transport = new MemoryTransport();
+		Accepting handler = new Accepting();
+		publisher = new CommandPublisher(handler);
+		sp = new ServerProtocol(publisher, handler, Misc.privateKey,
+				transport.getServer().getInputStream(), transport.getServer()
+						.getOutputStream());
+		cp = new ClientProtocol(Misc.publicKey, Misc.key, Misc.iv, transport
+				.getClient().getInputStream(), transport.getClient()
+				.getOutputStream());
+	}
+
+	/**
+	 * Closes the transport.
+	 */
+	@After
+	public void tearDown() {
+		transport.close();
+	}
+
+	/**
+	 * Test method for {@link CommandPublisher#CommandPublisher(Handler)} and
+	 * {@link CommandPublisher#start(ServerProtocol)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testCommandPublisher() throws Exception {
+		try {
+			new CommandPublisher(null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Handler cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			publisher.start(null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Protocol cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		publisher.start(sp);
+		try {
+			publisher.start(sp);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException("Already started");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			publisher.subscribe(null);
+			fail("Did not throw an exception");
+		} catch (NullPointerException e) {
+			// Expected
+		}
+		Recording first = new Recording();
+		publisher.subscribe(first);
+		assertNotNull(first.subscription);
+		Recording second = new Recording();
+		publisher.subscribe(second);
+		assertNotNull(second.subscription);
+		Object end = second.ends.poll(5, TimeUnit.SECONDS);
+		assertTrue(end instanceof ProtocolException);
+		assertEquals("Already subscribed", ((Exception) end).getMessage());
+
+		// Not positive
+		first.subscription.request(0);
+		end = first.ends.poll(5, TimeUnit.SECONDS);
+		assertTrue(end instanceof IllegalArgumentException);
+		first.subscription.request(1);
+		assertNull(first.ends.poll(50, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Test method for {@link Subscription#request(long)} holding back the
+	 * reads.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testDemand() throws Exception {
+		Recording subscriber = new Recording();
+		publisher.subscribe(subscriber);
+		publisher.start(sp);
+		subscriber.subscription.request(2);
+		// The handshake does not take any demand
+		cp.authenticate(Misc.getSequence(10, 10), Misc.getSequence(5, 5));
+		cp.process(cp.nextPacket());
+		// More than the read buffer of the scanner
+		int count = 500;
+		for (int i = 0; i < count; i++) {
+			cp.commandRequest(new MouseMove((short) i, (short) 0));
+		}
+		for (int i = 0; i < 2; i++) {
+			MouseMove mm = new MouseMove((short) i, (short) 0);
+			Command command = subscriber.commands.poll(5, TimeUnit.SECONDS);
+			assertEquals(0, mm.compareTo(command));
+		}
+		// The rest is left in the transport
+		assertNull(subscriber.commands.poll(50, TimeUnit.MILLISECONDS));
+		assertTrue(transport.getServer().getInputStream().available() > 0);
+
+		subscriber.subscription.request(Long.MAX_VALUE);
+		subscriber.subscription.request(Long.MAX_VALUE);
+		for (int i = 2; i < count; i++) {
+			MouseMove mm = new MouseMove((short) i, (short) 0);
+			Command command = subscriber.commands.poll(5, TimeUnit.SECONDS);
+			assertEquals(0, mm.compareTo(command));
+		}
+		assertEquals(0, transport.getServer().getInputStream().available());
+		transport.close();
+		assertEquals("complete", subscriber.ends.poll(5, TimeUnit.SECONDS));
+		assertTrue(subscriber.commands.isEmpty());
+	}
+
+	/**
+	 * Test method for {@link Subscription#cancel()} and failures.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testCancel() throws Exception {
+		Recording subscriber = new Recording();
+		publisher.subscribe(subscriber);
+		publisher.start(sp);
+		subscriber.subscription.request(10);
+		cp.authenticate(Misc.getSequence(10, 10), Misc.getSequence(5, 5));
+		cp.process(cp.nextPacket());
+		MouseMove mm = new MouseMove((short) 1, (short) 1);
+		cp.commandRequest(mm);
+		Command command = subscriber.commands.poll(5, TimeUnit.SECONDS);
+		assertEquals(0, mm.compareTo(command));
+		subscriber.subscription.cancel();
+		// Already waiting for the next packet, which is not published
+		cp.commandRequest(mm);
+		cp.commandRequest(mm);
+		Thread.sleep(50);
+		assertTrue(subscriber.commands.isEmpty());
+		transport.close();
+		assertNull(subscriber.ends.poll(50, TimeUnit.MILLISECONDS));
+
+		// Processing fails
+		setUp();
+		subscriber = new Recording();
+		publisher.subscribe(subscriber);
+		publisher.start(sp);
+		subscriber.subscription.request(1);
+		cp.setTrusted(true);
+		cp.authenticate(Misc.getSequence(10, 10), Misc.getSequence(5, 5));
+		Object end = subscriber.ends.poll(5, TimeUnit.SECONDS);
+		assertTrue(end instanceof Exception);
+	}
+}
@@ -0,0 +1,165 @@
+package remote.test.api;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import remote.api.CommandQueue;
+import remote.api.CommandQueue.Policy;
+import remote.api.commands.Command;
+import remote.api.commands.KeyPress;
+import remote.api.commands.KeyRelease;
+import remote.api.commands.MouseMove;
+import remote.api.commands.MouseWheel;
+import remote.api.commands.TextInput;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Test class for {@link CommandQueue}.
+ */
+public class TestCommandQueue {
+	/**
+	 * Test method for {@link CommandQueue#CommandQueue(int, Policy)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testCommandQueue() throws Exception {
+		try {
+			new CommandQueue(0, Policy.BLOCK);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Capacity must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			new CommandQueue(1, null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Policy cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		// Valid construction
+		CommandQueue queue = new CommandQueue(1, Policy.BLOCK);
+		assertEquals(Policy.BLOCK, queue.getPolicy());
+		assertEquals(0, queue.size());
+	}
+
+	/**
+	 * Test method for {@link CommandQueue#put(Command)} and
+	 * {@link CommandQueue#take()} ordering across the ring.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testPutTake() throws Exception {
+		CommandQueue queue = new CommandQueue(3, Policy.BLOCK);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(queue.put(new KeyPress(i)));
+			assertTrue(queue.put(new KeyRelease(i)));
+			assertEquals(0, new KeyPress(i).compareTo(queue.take()));
+			assertEquals(0, new KeyRelease(i).compareTo(queue.take()));
+		}
+		assertEquals(0, queue.size());
+		assertEquals(null, queue.poll(1, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Test method for {@link Policy#DROP_MOTION}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testDropMotion() throws Exception {
+		CommandQueue queue = new CommandQueue(3, Policy.DROP_MOTION);
+		queue.put(new KeyPress(1));
+		queue.put(new MouseMove((short) 1, (short) 1));
+		queue.put(new MouseWheel(1));
+		// Drops the oldest motion
+		assertTrue(queue.put(new TextInput(new byte[] { 1 })));
+		assertEquals(1, queue.getDropped());
+		// Drops the next motion
+		assertTrue(queue.put(new MouseMove((short) 2, (short) 2)));
+		assertEquals(2, queue.getDropped());
+		// Drops the oldest motion again, even though it is the newest
+		assertTrue(queue.put(new KeyRelease(1)));
+		assertEquals(3, queue.getDropped());
+		// Only discrete commands left, so incoming motion is dropped
+		assertFalse(queue.put(new MouseMove((short) 3, (short) 3)));
+		assertEquals(4, queue.getDropped());
+
+		assertEquals(0, new KeyPress(1).compareTo(queue.take()));
+		assertEquals(0,
+				new TextInput(new byte[] { 1 }).compareTo(queue.take()));
+		assertEquals(0, new KeyRelease(1).compareTo(queue.take()));
+		assertEquals(0, queue.size());
+	}
+
+	/**
+	 * Test method for {@link Policy#DISCONNECT}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testDisconnect() throws Exception {
+		CommandQueue queue = new CommandQueue(1, Policy.DISCONNECT);
+		queue.put(new MouseMove((short) 1, (short) 1));
+		try {
+			queue.put(new KeyPress(1));
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Command queue overflow");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		assertEquals(1, queue.size());
+	}
+
+	/**
+	 * Test method for {@link Policy#BLOCK} and {@link CommandQueue#close()}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testBlock() throws Exception {
+		final CommandQueue queue = new CommandQueue(1, Policy.BLOCK);
+		queue.put(new KeyPress(1));
+		// A full queue blocks discrete commands as well
+		Thread taker = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+					queue.take();
+				} catch (InterruptedException e) {
+					// Ends the thread
+				}
+			}
+		};
+		taker.start();
+		queue.put(new KeyPress(2));
+		taker.join();
+		assertEquals(0, new KeyPress(2).compareTo(queue.take()));
+
+		// Closing releases the reader and rejects new commands
+		queue.close();
+		assertEquals(null, queue.take());
+		try {
+			queue.put(new KeyPress(3));
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Command queue is closed");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package remote.test.api;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import remote.api.Completion;
+import remote.api.Completion.Listener;
+import remote.api.Completion.Transform;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Test class for {@link Completion}.
+ */
+public class TestCompletion {
+	/**
+	 * Listener that records the outcomes.
+	 */
+	private static class Recording implements Listener<Object> {
+		/**
+		 * The outcomes in order, values and exceptions.
+		 */
+		private final List<Object> outcomes;
+
+		/**
+		 * Constructs a new listener.
+		 */
+		private Recording() {
+			outcomes = new ArrayList<Object>();
+		}
+
+		@Override
+		public void completed(Object value) {
+			outcomes.add(value);
+		}
+
+		@Override
+		public void failed(Exception e) {
+			outcomes.add(e);
+		}
+	}
+
+	/**
+	 * Test method for {@link Completion#complete(Object)} and
+	 * {@link Completion#fail(Exception)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testComplete() throws Exception {
+		Completion<Integer> completion = new Completion<Integer>();
+		Recording before = new Recording();
+		completion.addListener(before);
+		assertFalse(completion.isDone());
+		try {
+			completion.get(1, TimeUnit.MILLISECONDS);
+			fail("Did not throw an exception");
+		} catch (TimeoutException e) {
+			// Expected
+		}
+		assertTrue(before.outcomes.isEmpty());
+		assertTrue(completion.complete(1));
+		assertFalse(completion.complete(2));
+		assertFalse(completion.fail(new ProtocolException("Too late")));
+		assertTrue(completion.isDone());
+		assertFalse(completion.isCancelled());
+		assertEquals(Integer.valueOf(1), completion.get());
+		assertEquals(Integer.valueOf(1), completion.get(0, TimeUnit.SECONDS));
+		Recording after = new Recording();
+		completion.addListener(after);
+		assertEquals(1, before.outcomes.size());
+		assertEquals(1, before.outcomes.get(0));
+		assertEquals(before.outcomes, after.outcomes);
+
+		ProtocolException reason = new ProtocolException("Failed");
+		completion = new Completion<Integer>();
+		completion.addListener(before);
+		assertTrue(completion.fail(reason));
+		assertSame(reason, before.outcomes.get(1));
+		try {
+			completion.get();
+			fail("Did not throw an exception");
+		} catch (ExecutionException e) {
+			assertSame(reason, e.getCause());
+		}
+
+		completion = new Completion<Integer>();
+		assertTrue(completion.cancel(true));
+		assertFalse(completion.cancel(true));
+		assertTrue(completion.isCancelled());
+		try {
+			completion.get();
+			fail("Did not throw an exception");
+		} catch (CancellationException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Test method for {@link Completion#get()} from another thread.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testGet() throws Exception {
+		final Completion<String> completion = new Completion<String>();
+		Thread completer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					// Completes anyway
+				}
+				completion.complete("done");
+			}
+		};
+		completer.start();
+		assertEquals("done", completion.get(5, TimeUnit.SECONDS));
+		completer.join();
+	}
+
+	/**
+	 * Test method for {@link Completion#then(Transform)} and
+	 * {@link Completion#compose(Transform)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testChain() throws Exception {
+		Completion<Integer> first = new Completion<Integer>();
+		final Completion<String> second = new Completion<String>();
+		Completion<Integer> doubled = first
+				.then(new Transform<Integer, Integer>() {
+					@Override
+					public Integer apply(Integer value) {
+						return value * 2;
+					}
+				});
+		Completion<String> composed = doubled
+				.compose(new Transform<Integer, Completion<String>>() {
+					@Override
+					public Completion<String> apply(Integer value) {
+						assertEquals(Integer.valueOf(42), value);
+						return second;
+					}
+				});
+		first.complete(21);
+		assertEquals(Integer.valueOf(42), doubled.get());
+		assertFalse(composed.isDone());
+		second.complete("next");
+		assertEquals("next", composed.get());
+
+		// Failures pass through the chain
+		final ProtocolException reason = new ProtocolException("Failed");
+		first = new Completion<Integer>();
+		composed = first.then(new Transform<Integer, Integer>() {
+			@Override
+			public Integer apply(Integer value) throws Exception {
+				throw reason;
+			}
+		}).compose(new Transform<Integer, Completion<String>>() {
+			@Override
+			public Completion<String> apply(Integer value) {
+				fail("Did not stop the chain");
+				return null;
+			}
+		});
+		first.complete(1);
+		try {
+			composed.get();
+			fail("Did not throw an exception");
+		} catch (ExecutionException e) {
+			assertSame(reason, e.getCause());
+		}
+		first = new Completion<Integer>();
+		composed = first.compose(new Transform<Integer, Completion<String>>() {
+			@Override
+			public Completion<String> apply(Integer value) {
+				Completion<String> failed = new Completion<String>();
+				failed.fail(reason);
+				return failed;
+			}
+		});
+		first.complete(1);
+		try {
+			composed.get();
+			fail("Did not throw an exception");
+		} catch (ExecutionException e) {
+			assertSame(reason, e.getCause());
+		}
+	}
+}
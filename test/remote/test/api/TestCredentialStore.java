@@ -0,0 +1,221 @@
+package remote.test.api;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import remote.api.CredentialStore;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Test class for {@link CredentialStore}.
+ */
+public class TestCredentialStore {
+	/**
+	 * Test method for {@link CredentialStore#CredentialStore(int, long, int)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testCredentialStore() throws Exception {
+		new CredentialStore();
+		new CredentialStore(1, 0, 1);
+		try {
+			new CredentialStore(0, 0, 1);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Iterations must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			new CredentialStore(1, -1, 1);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Time to live cannot be negative");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			new CredentialStore(1, 0, 0);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Cache size must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Test method for {@link CredentialStore#add(byte[], byte[])} and
+	 * {@link CredentialStore#remove(byte[])}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testAddRemove() throws Exception {
+		CredentialStore store = new CredentialStore(1, 60000, 10);
+		try {
+			store.add(null, new byte[0]);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"User cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			store.add(new byte[0], null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Password cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			store.remove(null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"User cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		byte[] user = "user".getBytes();
+		assertFalse(store.contains(user));
+		assertFalse(store.contains(null));
+		store.add(user, "password".getBytes());
+		// The store keeps its own copy
+		user[0] = 'x';
+		assertFalse(store.contains(user));
+		assertTrue(store.contains("user".getBytes()));
+		assertFalse(store.remove(user));
+		assertTrue(store.remove("user".getBytes()));
+		assertFalse(store.contains("user".getBytes()));
+	}
+
+	/**
+	 * Test method for {@link CredentialStore#verify(byte[], byte[])}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testVerify() throws Exception {
+		CredentialStore store = new CredentialStore(1, 60000, 10);
+		byte[] user = "user".getBytes();
+		byte[] password = "password".getBytes();
+		store.add(user, password);
+		assertTrue(store.verify(user, password));
+		assertFalse(store.verify(user, "passwore".getBytes()));
+		assertFalse(store.verify(user, new byte[0]));
+		assertFalse(store.verify("other".getBytes(), password));
+		assertFalse(store.verify(null, password));
+		assertFalse(store.verify(user, null));
+		// Bytes that are not text
+		byte[] binary = new byte[] { (byte) 0xFF, 0, (byte) 0x80 };
+		store.add(binary, binary);
+		assertTrue(store.verify(binary, binary));
+		assertFalse(store.verify(binary, new byte[] { (byte) 0xFF, 0,
+				(byte) 0x81 }));
+		// The same bytes split differently are another login
+		store.add("ab".getBytes(), "c".getBytes());
+		assertTrue(store.verify("ab".getBytes(), "c".getBytes()));
+		assertFalse(store.verify("a".getBytes(), "bc".getBytes()));
+	}
+
+	/**
+	 * Test method for {@link CredentialStore#getCached()}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testCache() throws Exception {
+		CredentialStore store = new CredentialStore(1, 60000, 2);
+		byte[] user = "user".getBytes();
+		byte[] password = "password".getBytes();
+		store.add(user, password);
+		assertEquals(0, store.getCached());
+		assertTrue(store.verify(user, password));
+		assertEquals(1, store.getCached());
+		assertTrue(store.verify(user, password));
+		assertEquals(1, store.getCached());
+		// Failures are not cached
+		assertFalse(store.verify(user, new byte[0]));
+		assertFalse(store.verify("other".getBytes(), password));
+		assertEquals(1, store.getCached());
+
+		// A changed password is not accepted from the cache
+		store.add(user, "changed".getBytes());
+		assertFalse(store.verify(user, password));
+		assertTrue(store.verify(user, "changed".getBytes()));
+		// Neither is a removed user
+		store.remove(user);
+		assertFalse(store.verify(user, "changed".getBytes()));
+
+		// Full cache
+		for (int i = 0; i < 3; i++) {
+			store.add(new byte[] { (byte) i }, password);
+			assertTrue(store.verify(new byte[] { (byte) i }, password));
+		}
+		assertEquals(2, store.getCached());
+
+		// Expired logins make room
+		store = new CredentialStore(1, 1, 1);
+		store.add(user, password);
+		store.add(new byte[0], password);
+		assertTrue(store.verify(user, password));
+		Thread.sleep(5);
+		assertTrue(store.verify(user, password));
+		Thread.sleep(5);
+		assertTrue(store.verify(new byte[0], password));
+		assertEquals(1, store.getCached());
+
+		// No caching
+		store = new CredentialStore(1, 0, 1);
+		store.add(user, password);
+		assertTrue(store.verify(user, password));
+		assertEquals(0, store.getCached());
+	}
+
+	/**
+	 * Test method for {@link CredentialStore#verify(byte[], byte[])} from
+	 * many threads.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testConcurrent() throws Exception {
+		final CredentialStore store = new CredentialStore(100, 60000, 1000);
+		for (int i = 0; i < 10; i++) {
+			store.add(new byte[] { (byte) i }, new byte[] { (byte) i });
+		}
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 200; i++) {
+						byte b = (byte) (i % 10);
+						if (!store.verify(new byte[] { b }, new byte[] { b })
+								|| store.verify(new byte[] { b },
+										new byte[] { (byte) (b + 1) })) {
+							errors.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, errors.get());
+		assertEquals(10, store.getCached());
+	}
+}
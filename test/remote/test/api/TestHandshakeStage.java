@@ -0,0 +1,311 @@
+package remote.test.api;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import remote.api.HandshakeStage;
+import remote.api.HandshakeStage.Listener;
+import remote.api.Packet;
+import remote.api.ServerProtocol;
+import remote.api.ServerProtocol.ConnectionHandler;
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.exceptions.AuthenticationException;
+import remote.api.exceptions.ProtocolException;
+import remote.api.messages.AuthenticationRequest;
+
+/**
+ * Test class for {@link HandshakeStage}.
+ */
+public class TestHandshakeStage {
+	/**
+	 * State to force authentication to fail.
+	 */
+	private volatile boolean authenticationFail = false;
+	/**
+	 * Blocks the authentication until counted down, if set.
+	 */
+	private volatile CountDownLatch gate = null;
+	/**
+	 * Thread that ran the last authentication.
+	 */
+	private volatile Thread authenticationThread = null;
+	/**
+	 * The handler.
+	 */
+	private Handler handler = new Handler() {
+		@Override
+		public boolean authentication(byte[] user, byte[] password) {
+			authenticationThread = Thread.currentThread();
+			CountDownLatch latch = gate;
+			if (latch != null) {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return !authenticationFail;
+		}
+
+		@Override
+		public void command(Command command) {
+		}
+
+		@Override
+		public void terminate(boolean shutdown) {
+		}
+	};
+	/**
+	 * The connection handler.
+	 */
+	private ConnectionHandler connectionHandler = new ConnectionHandler() {
+		@Override
+		public void onAuthenticated() {
+		}
+	};
+	/**
+	 * Outcomes reported to the listener, with the thread that reported them.
+	 */
+	private BlockingQueue<Object[]> outcomes;
+	/**
+	 * The listener.
+	 */
+	private Listener listener = new Listener() {
+		@Override
+		public void authenticated(ServerProtocol protocol) {
+			outcomes.add(new Object[] { protocol, null,
+					Thread.currentThread() });
+		}
+
+		@Override
+		public void failed(ServerProtocol protocol, Exception e) {
+			outcomes.add(new Object[] { protocol, e, Thread.currentThread() });
+		}
+	};
+	/**
+	 * Executor of the sessions.
+	 */
+	private ExecutorService session;
+	/**
+	 * Thread of the session executor.
+	 */
+	private Thread sessionThread;
+	/**
+	 * The authentication request.
+	 */
+	private Packet request;
+
+	/**
+	 * Starts the session executor.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		outcomes = new LinkedBlockingQueue<Object[]>();
+		session = Executors.newSingleThreadExecutor();
+		sessionThread = session.submit(new Callable<Thread>() {
+			@Override
+			public Thread call() {
+				return Thread.currentThread();
+			}
+		}).get();
+		request = Misc.encryptSecure(new AuthenticationRequest(Misc.key,
+				Misc.iv, new byte[0], new byte[0]).pack());
+	}
+
+	/**
+	 * Stops the session executor.
+	 */
+	@After
+	public void tearDown() {
+		session.shutdownNow();
+	}
+
+	/**
+	 * Creates a server protocol.
+	 * 
+	 * @return The protocol.
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	private ServerProtocol create() throws Exception {
+		return new ServerProtocol(handler, connectionHandler,
+				Misc.privateKey, new ByteArrayInputStream(new byte[0]),
+				new ByteArrayOutputStream());
+	}
+
+	/**
+	 * Waits for the next outcome.
+	 * 
+	 * @return The outcome.
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	private Object[] next() throws Exception {
+		Object[] outcome = outcomes.poll(10, TimeUnit.SECONDS);
+		assertNotNull(outcome);
+		return outcome;
+	}
+
+	/**
+	 * Test method for {@link HandshakeStage#HandshakeStage(int, int)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testHandshakeStage() throws Exception {
+		new HandshakeStage().close();
+		try {
+			new HandshakeStage(0, 1);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Threads must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			new HandshakeStage(1, 0);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Capacity must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link HandshakeStage#submit(ServerProtocol, Packet, java.util.concurrent.Executor, Listener)}
+	 * .
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testSubmit() throws Exception {
+		HandshakeStage stage = new HandshakeStage(1, 1);
+		ServerProtocol sp = create();
+		try {
+			stage.submit(null, request, session, listener);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Protocol cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			stage.submit(sp, null, session, listener);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Packet cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			stage.submit(sp, request, null, listener);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Executor cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			stage.submit(sp, request, session, null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Listener cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+
+		// Verified on a worker, completed on the session
+		stage.submit(sp, request, session, listener);
+		Object[] outcome = next();
+		assertSame(sp, outcome[0]);
+		assertNull(outcome[1]);
+		assertSame(sessionThread, outcome[2]);
+		assertNotSame(sessionThread, authenticationThread);
+		assertNotSame(Thread.currentThread(), authenticationThread);
+
+		// Already authenticated
+		stage.submit(sp, request, session, listener);
+		outcome = next();
+		assertSame(sp, outcome[0]);
+		ProtocolException ex = new ProtocolException("Already authenticated");
+		assertEquals(ex.getMessage(), ((Exception) outcome[1]).getMessage());
+		assertSame(sessionThread, outcome[2]);
+
+		// Bad login
+		authenticationFail = true;
+		ServerProtocol bad = create();
+		stage.submit(bad, request, session, listener);
+		outcome = next();
+		assertSame(bad, outcome[0]);
+		assertTrue(outcome[1] instanceof AuthenticationException);
+		ex = new AuthenticationException("Bad login");
+		assertEquals(ex.getMessage(), ((Exception) outcome[1]).getMessage());
+		authenticationFail = false;
+
+		stage.close();
+		try {
+			stage.submit(create(), request, session, listener);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ex = new ProtocolException("Handshake stage is closed");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link HandshakeStage#submit(ServerProtocol, Packet, java.util.concurrent.Executor, Listener)}
+	 * when the stage is full.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testBusy() throws Exception {
+		HandshakeStage stage = new HandshakeStage(1, 1);
+		gate = new CountDownLatch(1);
+		ServerProtocol first = create();
+		ServerProtocol second = create();
+		stage.submit(first, request, session, listener);
+		// Wait for the worker to take the first
+		while (authenticationThread == null) {
+			Thread.sleep(1);
+		}
+		stage.submit(second, request, session, listener);
+		try {
+			stage.submit(create(), request, session, listener);
+			fail("Did not throw an exception");
+		} catch (AuthenticationException e) {
+			AuthenticationException ex = new AuthenticationException(
+					"Server busy");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		assertEquals(2, stage.getPending());
+		gate.countDown();
+		assertNull(next()[1]);
+		assertNull(next()[1]);
+		assertEquals(0, outcomes.size());
+		stage.close();
+	}
+}
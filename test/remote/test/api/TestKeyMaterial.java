@@ -0,0 +1,151 @@
+package remote.test.api;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNot.not;
+
+import org.junit.Test;
+
+import remote.api.KeyMaterial;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Test class for {@link KeyMaterial}.
+ */
+public class TestKeyMaterial {
+	/**
+	 * Waits until the buffer holds a number of bytes.
+	 * 
+	 * @param keyMaterial
+	 *            The key material.
+	 * @param bytes
+	 *            The number of bytes.
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	private static void awaitBuffered(KeyMaterial keyMaterial, int bytes)
+			throws Exception {
+		for (int i = 0; i < 500 && keyMaterial.getBuffered() != bytes; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(bytes, keyMaterial.getBuffered());
+	}
+
+	/**
+	 * Test method for {@link KeyMaterial#KeyMaterial(int)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testKeyMaterial() throws Exception {
+		new KeyMaterial().close();
+		new KeyMaterial(1).close();
+		try {
+			new KeyMaterial(0);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Capacity must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Test method for {@link KeyMaterial#next(int)} and
+	 * {@link KeyMaterial#nextBytes(byte[])}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testNext() throws Exception {
+		KeyMaterial keyMaterial = new KeyMaterial(16);
+		try {
+			assertEquals(0, keyMaterial.next(0).length);
+			assertEquals(100, keyMaterial.next(100).length);
+			// Normally they should not match...
+			byte[] data = keyMaterial.next(32);
+			assertThat(data, not(equalTo(keyMaterial.next(32))));
+			try {
+				keyMaterial.next(-1);
+				fail("Did not throw an exception");
+			} catch (ProtocolException e) {
+				ProtocolException ex = new ProtocolException(
+						"Length cannot be negative");
+				assertEquals(ex.getMessage(), e.getMessage());
+			}
+			try {
+				keyMaterial.nextBytes(null);
+				fail("Did not throw an exception");
+			} catch (ProtocolException e) {
+				ProtocolException ex = new ProtocolException(
+						"Bytes cannot be null");
+				assertEquals(ex.getMessage(), e.getMessage());
+			}
+		} finally {
+			keyMaterial.close();
+		}
+	}
+
+	/**
+	 * Test method for {@link KeyMaterial#getBuffered()} and
+	 * {@link KeyMaterial#getMisses()}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testRefill() throws Exception {
+		KeyMaterial keyMaterial = new KeyMaterial(64);
+		try {
+			awaitBuffered(keyMaterial, 64);
+			// Not refilled until half is used
+			keyMaterial.next(16);
+			assertEquals(48, keyMaterial.getBuffered());
+			assertEquals(0, keyMaterial.getMisses());
+			keyMaterial.next(40);
+			awaitBuffered(keyMaterial, 64);
+			assertEquals(0, keyMaterial.getMisses());
+			// More than buffered is generated on this thread
+			assertEquals(100, keyMaterial.next(100).length);
+			assertEquals(36, keyMaterial.getMisses());
+			awaitBuffered(keyMaterial, 64);
+		} finally {
+			keyMaterial.close();
+		}
+		// The buffered bytes are still used, but not refilled
+		keyMaterial.next(64);
+		assertEquals(36, keyMaterial.getMisses());
+		keyMaterial.next(8);
+		assertEquals(44, keyMaterial.getMisses());
+		Thread.sleep(50);
+		assertEquals(0, keyMaterial.getBuffered());
+	}
+
+	/**
+	 * Test method for {@link KeyMaterial#getShared()} and
+	 * {@link KeyMaterial#setShared(KeyMaterial)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testShared() throws Exception {
+		KeyMaterial previous = KeyMaterial.getShared();
+		assertNotNull(previous);
+		assertSame(previous, KeyMaterial.getShared());
+		KeyMaterial keyMaterial = new KeyMaterial(16);
+		try {
+			KeyMaterial.setShared(keyMaterial);
+			assertSame(keyMaterial, KeyMaterial.getShared());
+			KeyMaterial.setShared(null);
+			KeyMaterial created = KeyMaterial.getShared();
+			assertNotSame(keyMaterial, created);
+			created.close();
+		} finally {
+			KeyMaterial.setShared(previous);
+			keyMaterial.close();
+		}
+	}
+}
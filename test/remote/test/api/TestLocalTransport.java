@@ -0,0 +1,258 @@
+package remote.test.api;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import remote.api.ClientProtocol;
+import remote.api.LocalTransport;
+import remote.api.Packet;
+import remote.api.ServerProtocol;
+import remote.api.ServerProtocol.ConnectionHandler;
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.commands.MouseMove;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Test class for {@link LocalTransport}.
+ */
+public class TestLocalTransport {
+	/**
+	 * The directory of the socket file.
+	 */
+	private File directory;
+	/**
+	 * The socket file.
+	 */
+	private File path;
+
+	/**
+	 * Picks a socket file in a directory that does not exist.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("remote", "");
+		assertTrue(directory.delete());
+		path = new File(directory, "remote.sock");
+	}
+
+	/**
+	 * Removes the socket file and its directory.
+	 */
+	@After
+	public void tearDown() {
+		path.delete();
+		directory.delete();
+	}
+
+	/**
+	 * Test method for {@link LocalTransport#bind(File)} and
+	 * {@link LocalTransport#connect(File, boolean)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testBindConnect() throws Exception {
+		try {
+			LocalTransport.bind(null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException("Path cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			LocalTransport.getInputStream(null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Channel cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			LocalTransport.getOutputStream(null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Channel cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		if (!LocalTransport.isSupported()) {
+			try {
+				LocalTransport.bind(path);
+				fail("Did not throw an exception");
+			} catch (ProtocolException e) {
+				ProtocolException ex = new ProtocolException(
+						"Unix domain sockets are not supported");
+				assertEquals(ex.getMessage(), e.getMessage());
+			}
+			return;
+		}
+		ServerSocketChannel server = LocalTransport.bind(path);
+		assertTrue(path.exists());
+		SocketChannel client = LocalTransport.connect(path, false);
+		SocketChannel accepted = server.accept();
+		OutputStream output = LocalTransport.getOutputStream(client);
+		InputStream input = LocalTransport.getInputStream(accepted);
+		output.write(1);
+		output.write(new byte[] { 2, 3 });
+		output.flush();
+		assertEquals(1, input.read());
+		byte[] data = new byte[2];
+		assertEquals(2, input.read(data));
+		assertArrayEquals(new byte[] { 2, 3 }, data);
+		byte[] large = Misc.getSequence(0, 20000);
+		output.write(large);
+		output.flush();
+		int read = 0;
+		byte[] received = new byte[large.length];
+		while (read < received.length) {
+			read += input.read(received, read, received.length - read);
+		}
+		assertArrayEquals(large, received);
+		output.close();
+		assertEquals(-1, input.read());
+		input.close();
+		server.close();
+
+		// The file already exists
+		try {
+			LocalTransport.bind(path);
+			fail("Did not throw an exception");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Test method for {@link LocalTransport#bind(File)} and
+	 * {@link LocalTransport#connect(File, boolean)} refusing files that
+	 * others can access.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testPrivate() throws Exception {
+		if (!LocalTransport.isSupported()) {
+			return;
+		}
+		ServerSocketChannel server = LocalTransport.bind(path);
+		// The file can be reached by its group and others
+		assertTrue(path.setReadable(true, false));
+		assertTrue(path.setWritable(true, false));
+		try {
+			LocalTransport.connect(path, true);
+			fail("Did not throw an exception");
+		} catch (IOException e) {
+			IOException ex = new IOException("Socket file is not private: "
+					+ path);
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		// Still connects when not trusted
+		LocalTransport.connect(path, false).close();
+		server.close();
+		assertTrue(path.delete());
+
+		// The directory can be read by others
+		assertTrue(directory.setReadable(true, false));
+		try {
+			LocalTransport.bind(path);
+			fail("Did not throw an exception");
+		} catch (IOException e) {
+			IOException ex = new IOException("Directory is not private: "
+					+ directory.getAbsoluteFile());
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		assertFalse(path.exists());
+	}
+
+	/**
+	 * Test method for a client and server with the trusted handshake over a
+	 * Unix domain socket.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testTrusted() throws Exception {
+		if (!LocalTransport.isSupported()) {
+			return;
+		}
+		final BlockingQueue<Command> commands;
+		commands = new ArrayBlockingQueue<Command>(10);
+		Handler handler = new Handler() {
+			@Override
+			public boolean authentication(byte[] user, byte[] password) {
+				return true;
+			}
+
+			@Override
+			public void command(Command command) {
+				commands.add(command);
+			}
+
+			@Override
+			public void terminate(boolean shutdown) {
+			}
+		};
+		ConnectionHandler connectionHandler = new ConnectionHandler() {
+			@Override
+			public void onAuthenticated() {
+			}
+		};
+		ServerSocketChannel serverChannel = LocalTransport.bind(path);
+		SocketChannel client = LocalTransport.connect(path, true);
+		SocketChannel accepted = serverChannel.accept();
+		final ServerProtocol sp = new ServerProtocol(handler,
+				connectionHandler, Misc.privateKey,
+				LocalTransport.getInputStream(accepted),
+				LocalTransport.getOutputStream(accepted));
+		sp.setTrusted(true);
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Packet packet;
+					while ((packet = sp.nextPacket()) != null) {
+						sp.process(packet);
+					}
+				} catch (Exception e) {
+					// Closed
+				}
+			}
+		};
+		reader.start();
+		ClientProtocol cp = new ClientProtocol(Misc.publicKey, Misc.key,
+				Misc.iv, LocalTransport.getInputStream(client),
+				LocalTransport.getOutputStream(client));
+		cp.setTrusted(true);
+		cp.authenticate(Misc.getSequence(10, 10), Misc.getSequence(5, 5));
+		cp.process(cp.nextPacket());
+		MouseMove mm = new MouseMove((short) 1, (short) 2);
+		cp.commandRequest(mm);
+		Command command = commands.poll(5, TimeUnit.SECONDS);
+		assertEquals(0, mm.compareTo(command));
+		client.close();
+		reader.join(5000);
+		assertFalse(reader.isAlive());
+		accepted.close();
+		serverChannel.close();
+	}
+}
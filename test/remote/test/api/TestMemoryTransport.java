@@ -0,0 +1,315 @@
+package remote.test.api;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import remote.api.ClientProtocol;
+import remote.api.MemoryTransport;
+import remote.api.MemoryTransport.End;
+import remote.api.Packet;
+import remote.api.PacketScanner;
+import remote.api.ServerProtocol;
+import remote.api.ServerProtocol.ConnectionHandler;
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.commands.MouseMove;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Test class for {@link MemoryTransport}.
+ */
+public class TestMemoryTransport {
+	/**
+	 * Handler that accepts everyone and collects the commands.
+	 */
+	private static class Collecting implements Handler, ConnectionHandler {
+		/**
+		 * The received commands.
+		 */
+		private final BlockingQueue<Command> commands;
+
+		/**
+		 * Constructs a new handler.
+		 */
+		private Collecting() {
+			commands = new ArrayBlockingQueue<Command>(10);
+		}
+
+		@Override
+		public boolean authentication(byte[] user, byte[] password) {
+			return true;
+		}
+
+		@Override
+		public void command(Command command) {
+			commands.add(command);
+		}
+
+		@Override
+		public void terminate(boolean shutdown) {
+		}
+
+		@Override
+		public void onAuthenticated() {
+		}
+	}
+
+	/**
+	 * Test method for {@link MemoryTransport#MemoryTransport(int)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testMemoryTransport() throws Exception {
+		int[] capacities = { 0, -1 };
+		for (int capacity : capacities) {
+			try {
+				new MemoryTransport(capacity);
+				fail("Did not throw an exception");
+			} catch (ProtocolException e) {
+				ProtocolException ex = new ProtocolException(
+						"Capacity must be positive");
+				assertEquals(ex.getMessage(), e.getMessage());
+			}
+		}
+		assertEquals(MemoryTransport.DEFAULT_CAPACITY,
+				new MemoryTransport().getCapacity());
+		MemoryTransport transport = new MemoryTransport(5);
+		assertEquals(5, transport.getCapacity());
+		End client = transport.getClient();
+		End server = transport.getServer();
+		assertTrue(client.isBlocking());
+		OutputStream output = client.getOutputStream();
+		InputStream input = server.getInputStream();
+		output.write(1);
+		output.write(new byte[] { 2, 3 });
+		// Not seen before the flush
+		assertEquals(0, input.available());
+		output.flush();
+		assertEquals(3, input.available());
+		assertEquals(1, input.read());
+		byte[] data = new byte[2];
+		assertEquals(2, input.read(data));
+		assertArrayEquals(new byte[] { 2, 3 }, data);
+		// The other direction, wrapping around
+		server.getOutputStream().write(new byte[] { 4, 5, 6, 7 });
+		server.getOutputStream().flush();
+		data = new byte[4];
+		assertEquals(4, client.getInputStream().read(data));
+		server.getOutputStream().write(new byte[] { 8, 9, 10 });
+		server.getOutputStream().flush();
+		assertEquals(1, client.getInputStream().read(data));
+		assertEquals(8, data[0]);
+		assertEquals(2, client.getInputStream().read(data));
+		assertEquals(9, data[0]);
+		assertEquals(10, data[1]);
+
+		// Closing ends the stream after the remaining data
+		output.write(11);
+		output.flush();
+		client.close();
+		assertTrue(server.isClosed());
+		assertEquals(11, input.read());
+		assertEquals(-1, input.read());
+		try {
+			server.getOutputStream().write(1);
+			fail("Did not throw an exception");
+		} catch (IOException e) {
+			IOException ex = new IOException("Pipe is closed");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Test method for {@link End#setBlocking(boolean)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testNonBlocking() throws Exception {
+		MemoryTransport transport = new MemoryTransport(4);
+		End client = transport.getClient();
+		End server = transport.getServer();
+		client.setBlocking(false);
+		server.setBlocking(false);
+		assertFalse(client.isBlocking());
+		// Empty but not closed
+		assertEquals(-1, server.getInputStream().read());
+		assertFalse(server.isClosed());
+		OutputStream output = client.getOutputStream();
+		output.write(new byte[] { 1, 2 });
+		output.flush();
+		// Does not fit, nothing of it is written
+		try {
+			output.write(new byte[] { 3, 4, 5 });
+			fail("Did not throw an exception");
+		} catch (IOException e) {
+			IOException ex = new IOException("Pipe is full");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		output.write(new byte[] { 3, 4 });
+		output.flush();
+		try {
+			output.write(5);
+			fail("Did not throw an exception");
+		} catch (IOException e) {
+			IOException ex = new IOException("Pipe is full");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		output.flush();
+		byte[] data = new byte[8];
+		assertEquals(4, server.getInputStream().read(data));
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 },
+				Arrays.copyOf(data, 4));
+		assertEquals(-1, server.getInputStream().read(data));
+
+		// A blocked reader returns when the end stops blocking
+		server.setBlocking(true);
+		final InputStream input = server.getInputStream();
+		final BlockingQueue<Integer> result;
+		result = new ArrayBlockingQueue<Integer>(1);
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					result.add(input.read());
+				} catch (IOException e) {
+					// Fails the poll
+				}
+			}
+		};
+		reader.start();
+		Thread.sleep(50);
+		assertTrue(result.isEmpty());
+		server.setBlocking(false);
+		assertEquals(Integer.valueOf(-1), result.poll(5, TimeUnit.SECONDS));
+		reader.join();
+	}
+
+
+	/**
+	 * Test method for a non-blocking end writing a packet that does not fit.
+	 * Its length header must not be published before the next packet.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testNonBlockingPacket() throws Exception {
+		MemoryTransport transport = new MemoryTransport(20);
+		transport.getClient().setBlocking(false);
+		transport.getServer().setBlocking(false);
+		OutputStream output = transport.getClient().getOutputStream();
+		PacketScanner scanner = new PacketScanner(transport.getServer()
+				.getInputStream());
+		Packet first = new Packet(Misc.getSequence(1, 14), true);
+		Packet second = new Packet(Misc.getSequence(20, 8), true);
+		first.write(null, output);
+		try {
+			second.write(null, output);
+			fail("Did not throw an exception");
+		} catch (IOException e) {
+			IOException ex = new IOException("Pipe is full");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		output.flush();
+		assertArrayEquals(Misc.getSequence(1, 14), scanner.nextPacket()
+				.getData());
+		assertNull(scanner.nextPacket());
+		second.write(null, output);
+		assertArrayEquals(Misc.getSequence(20, 8), scanner.nextPacket()
+				.getData());
+		transport.close();
+	}
+
+	/**
+	 * Test method for a client and server driven from one thread over
+	 * non-blocking ends.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testSingleThread() throws Exception {
+		MemoryTransport transport = new MemoryTransport();
+		End client = transport.getClient();
+		End server = transport.getServer();
+		client.setBlocking(false);
+		server.setBlocking(false);
+		Collecting handler = new Collecting();
+		ClientProtocol cp = new ClientProtocol(Misc.publicKey, Misc.key,
+				Misc.iv, client.getInputStream(), client.getOutputStream());
+		ServerProtocol sp = new ServerProtocol(handler, handler,
+				Misc.privateKey, server.getInputStream(),
+				server.getOutputStream());
+		assertNull(sp.nextPacket());
+		cp.authenticate(Misc.getSequence(10, 10), Misc.getSequence(5, 5));
+		sp.process(sp.nextPacket());
+		cp.process(cp.nextPacket());
+		assertNull(cp.nextPacket());
+		MouseMove mm = new MouseMove((short) 1, (short) 2);
+		cp.commandRequest(mm);
+		sp.process(sp.nextPacket());
+		assertEquals(0, mm.compareTo(handler.commands.poll()));
+		assertNull(sp.nextPacket());
+		cp.close();
+		sp.close();
+	}
+
+	/**
+	 * Test method for a client and server on their own threads over blocking
+	 * ends.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testThreads() throws Exception {
+		// Smaller than the handshake, so writes wait for the reader
+		MemoryTransport transport = new MemoryTransport(64);
+		End client = transport.getClient();
+		End server = transport.getServer();
+		Collecting handler = new Collecting();
+		final ServerProtocol sp = new ServerProtocol(handler, handler,
+				Misc.privateKey, server.getInputStream(),
+				server.getOutputStream());
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Packet packet;
+					while ((packet = sp.nextPacket()) != null) {
+						sp.process(packet);
+					}
+				} catch (Exception e) {
+					// Closed
+				}
+			}
+		};
+		reader.start();
+		ClientProtocol cp = new ClientProtocol(Misc.publicKey, Misc.key,
+				Misc.iv, client.getInputStream(), client.getOutputStream());
+		cp.authenticate(Misc.getSequence(10, 10), Misc.getSequence(5, 5));
+		cp.process(cp.nextPacket());
+		for (int i = 0; i < 5; i++) {
+			MouseMove mm = new MouseMove((short) i, (short) -i);
+			cp.commandRequest(mm);
+			assertEquals(0,
+					mm.compareTo(handler.commands.poll(5, TimeUnit.SECONDS)));
+		}
+		transport.close();
+		reader.join(5000);
+		assertFalse(reader.isAlive());
+	}
+}
@@ -0,0 +1,384 @@
+package remote.test.api;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import remote.api.ClientProtocol;
+import remote.api.MotionChannel;
+import remote.api.ServerProtocol;
+import remote.api.ServerProtocol.ConnectionHandler;
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.commands.KeyPress;
+import remote.api.commands.MouseMove;
+import remote.api.commands.MouseWheel;
+import remote.api.exceptions.AuthenticationException;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Test class for {@link MotionChannel}.
+ */
+public class TestMotionChannel {
+	/**
+	 * Handler that accepts everyone and ignores everything else.
+	 */
+	private static class Accepting implements Handler, ConnectionHandler {
+		@Override
+		public boolean authentication(byte[] user, byte[] password) {
+			return true;
+		}
+
+		@Override
+		public void command(Command command) {
+		}
+
+		@Override
+		public void terminate(boolean shutdown) {
+		}
+
+		@Override
+		public void onAuthenticated() {
+		}
+	}
+
+	/**
+	 * The client protocol.
+	 */
+	private ClientProtocol cp;
+	/**
+	 * The server protocol.
+	 */
+	private ServerProtocol sp;
+	/**
+	 * Socket of the client.
+	 */
+	private DatagramSocket clientSocket;
+	/**
+	 * Socket of the server.
+	 */
+	private DatagramSocket serverSocket;
+	/**
+	 * Socket between the client and the server that loses, reorders,
+	 * duplicates and corrupts datagrams as told.
+	 */
+	private DatagramSocket shimSocket;
+
+	/**
+	 * Authenticates a client and a server and opens the sockets.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		ByteArrayOutputStream clientOutput = new ByteArrayOutputStream();
+		ByteArrayOutputStream serverOutput = new ByteArrayOutputStream();
+		MagicInputStream clientInput = new MagicInputStream(serverOutput);
+		MagicInputStream serverInput = new MagicInputStream(clientOutput);
+		Accepting handler = new Accepting();
+		cp = new ClientProtocol(Misc.publicKey, Misc.key, Misc.iv,
+				clientInput, clientOutput);
+		sp = new ServerProtocol(handler, handler, Misc.privateKey,
+				serverInput, serverOutput);
+		cp.authenticate(Misc.getSequence(10, 10), Misc.getSequence(5, 5));
+		serverInput.update();
+		sp.process(sp.nextPacket());
+		clientInput.update();
+		cp.process(cp.nextPacket());
+
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		clientSocket = new DatagramSocket(0, loopback);
+		serverSocket = new DatagramSocket(0, loopback);
+		shimSocket = new DatagramSocket(0, loopback);
+		clientSocket.setSoTimeout(5000);
+		serverSocket.setSoTimeout(5000);
+		shimSocket.setSoTimeout(5000);
+	}
+
+	/**
+	 * Closes the protocols and sockets.
+	 */
+	@After
+	public void tearDown() {
+		cp.close();
+		sp.close();
+		clientSocket.close();
+		serverSocket.close();
+		shimSocket.close();
+	}
+
+	/**
+	 * Takes the datagrams sent to the shim.
+	 * 
+	 * @param count
+	 *            Number of datagrams.
+	 * @return The datagrams in the order they arrived.
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	private List<byte[]> capture(int count) throws Exception {
+		List<byte[]> datagrams = new ArrayList<byte[]>();
+		byte[] buffer = new byte[MotionChannel.MAX_DATAGRAM_LENGTH];
+		for (int i = 0; i < count; i++) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			shimSocket.receive(packet);
+			byte[] data = new byte[packet.getLength()];
+			System.arraycopy(buffer, 0, data, 0, data.length);
+			datagrams.add(data);
+		}
+		return datagrams;
+	}
+
+	/**
+	 * Passes a datagram from the shim to the server.
+	 * 
+	 * @param data
+	 *            The datagram.
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	private void forward(byte[] data) throws Exception {
+		shimSocket.send(new DatagramPacket(data, data.length, serverSocket
+				.getLocalSocketAddress()));
+	}
+
+	/**
+	 * Test method for
+	 * {@link remote.api.Protocol#openMotionChannel(DatagramSocket, java.net.SocketAddress)}
+	 * .
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testOpenMotionChannel() throws Exception {
+		try {
+			cp.openMotionChannel(null, null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Socket cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		ClientProtocol unauthenticated = new ClientProtocol(Misc.publicKey,
+				Misc.key, Misc.iv, new MagicInputStream(
+						new ByteArrayOutputStream()),
+				new ByteArrayOutputStream());
+		try {
+			unauthenticated.openMotionChannel(clientSocket, null);
+			fail("Did not throw an exception");
+		} catch (AuthenticationException e) {
+			AuthenticationException ex = new AuthenticationException(
+					"Expecting authentication");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		unauthenticated.close();
+		cp.close();
+		try {
+			cp.openMotionChannel(clientSocket, null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException("Protocol is closed");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Test method for {@link MotionChannel#send(Command)} and
+	 * {@link MotionChannel#receive()}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testSendReceive() throws Exception {
+		MotionChannel client = cp.openMotionChannel(clientSocket,
+				serverSocket.getLocalSocketAddress());
+		MotionChannel server = sp.openMotionChannel(serverSocket,
+				clientSocket.getLocalSocketAddress());
+		MouseMove mm = new MouseMove((short) 123, (short) -456);
+		client.send(mm);
+		assertEquals(0, mm.compareTo(server.receive()));
+		MouseWheel mw = new MouseWheel(-3);
+		client.send(mw);
+		assertEquals(0, mw.compareTo(server.receive()));
+		// The other direction has its own keys
+		server.send(mm);
+		assertEquals(0, mm.compareTo(client.receive()));
+		assertEquals(2, server.getReceived());
+		assertEquals(1, client.getReceived());
+
+		try {
+			client.send(null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Command cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			client.send(new KeyPress(65));
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Not a motion command");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		// Another channel would use the same keys and sequence numbers
+		try {
+			cp.openMotionChannel(clientSocket, null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Motion channel already opened");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		client.close();
+		client.close();
+		try {
+			client.send(mm);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException("Channel is closed");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			client.receive();
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException("Channel is closed");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		server.close();
+	}
+
+	/**
+	 * Test method for {@link MotionChannel#receive()} with lost, late,
+	 * duplicated and corrupted datagrams.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testLoss() throws Exception {
+		MotionChannel client = cp.openMotionChannel(clientSocket,
+				shimSocket.getLocalSocketAddress());
+		MotionChannel server = sp.openMotionChannel(serverSocket, null);
+		try {
+			server.send(new MouseMove((short) 1, (short) 0));
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException("Peer cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		for (int i = 1; i <= 6; i++) {
+			client.send(new MouseMove((short) i, (short) 0));
+		}
+		List<byte[]> moves = capture(6);
+		byte[] corrupt = moves.get(5).clone();
+		corrupt[MotionChannel.SEQUENCE_LENGTH] ^= 1;
+		// 4 is lost, 3 is late, 5 is duplicated and 6 corrupted once
+		forward(moves.get(0));
+		forward(moves.get(1));
+		forward(moves.get(4));
+		forward(moves.get(2));
+		forward(moves.get(4));
+		forward(corrupt);
+		forward(moves.get(5));
+		// The lost and late moves are made up for by the next one
+		short[] expected = { 1, 2, 3 + 4 + 5, 6 };
+		for (short dx : expected) {
+			MouseMove mm = new MouseMove(dx, (short) 0);
+			assertEquals(0, mm.compareTo(server.receive()));
+		}
+		assertEquals(4, server.getReceived());
+		assertEquals(1, server.getLate());
+		assertEquals(1, server.getReplayed());
+		assertEquals(1, server.getRejected());
+
+		// So are late wheel commands
+		client.send(new MouseWheel(1));
+		client.send(new MouseWheel(2));
+		List<byte[]> wheels = capture(2);
+		forward(wheels.get(1));
+		forward(wheels.get(0));
+		forward(wheels.get(0));
+		assertEquals(0, new MouseWheel(3).compareTo(server.receive()));
+
+		// Older than the window
+		client.send(new MouseWheel(3));
+		byte[] old = capture(1).get(0);
+		for (int i = 0; i < MotionChannel.WINDOW; i++) {
+			client.send(new MouseMove((short) 0, (short) 1));
+		}
+		List<byte[]> later = capture(MotionChannel.WINDOW);
+		forward(later.get(MotionChannel.WINDOW - 1));
+		forward(old);
+		forward(later.get(0));
+		MouseMove last = new MouseMove((short) 0,
+				(short) MotionChannel.WINDOW);
+		assertEquals(0, last.compareTo(server.receive()));
+		forward(moves.get(0));
+		MouseMove mm7 = new MouseMove((short) 7, (short) 7);
+		client.send(mm7);
+		forward(capture(1).get(0));
+		assertEquals(0, mm7.compareTo(server.receive()));
+		assertEquals(7, server.getReceived());
+		assertEquals(3, server.getLate());
+		assertEquals(4, server.getReplayed());
+		assertEquals(1, server.getRejected());
+
+		// Too short
+		forward(new byte[] { 1, 2, 3 });
+		MouseMove mm8 = new MouseMove((short) 8, (short) 8);
+		client.send(mm8);
+		forward(capture(1).get(0));
+		assertEquals(0, mm8.compareTo(server.receive()));
+		assertEquals(2, server.getRejected());
+
+		// The dropped wheel command comes with the next one
+		client.send(new MouseWheel(4));
+		forward(capture(1).get(0));
+		assertEquals(0, new MouseWheel(3 + 4).compareTo(server.receive()));
+		client.close();
+		server.close();
+	}
+
+	/**
+	 * Test method for {@link MotionChannel#receive()} with a lost distance
+	 * that does not fit in one move.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testLargeLoss() throws Exception {
+		MotionChannel client = cp.openMotionChannel(clientSocket,
+				shimSocket.getLocalSocketAddress());
+		MotionChannel server = sp.openMotionChannel(serverSocket, null);
+		client.send(new MouseMove((short) 30000, (short) -30000));
+		client.send(new MouseMove((short) 30000, (short) -30000));
+		client.send(new MouseMove((short) 0, (short) 0));
+		List<byte[]> moves = capture(3);
+		forward(moves.get(1));
+		assertEquals(0, new MouseMove(Short.MAX_VALUE, Short.MIN_VALUE)
+				.compareTo(server.receive()));
+		// The rest is delivered with the next move
+		forward(moves.get(2));
+		assertEquals(0, new MouseMove((short) (60000 - Short.MAX_VALUE),
+				(short) (-60000 - Short.MIN_VALUE))
+				.compareTo(server.receive()));
+		client.close();
+		server.close();
+	}
+}
@@ -7,6 +7,9 @@ import static org.hamcrest.core.IsEqual.equalTo;
 
 import java.io.ByteArrayOutputStream;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+
 import org.junit.Test;
 
 import remote.api.Packet;
@@ -18,6 +21,7 @@ import remote.api.messages.AuthenticationResponse;
 import remote.api.messages.CommandRequest;
 import remote.api.messages.Message;
 import remote.api.messages.Ping;
+import remote.api.messages.Rekey;
 import remote.api.messages.TerminateRequest;
 
 /**
@@ -194,6 +198,80 @@ public class TestPacket {
 				((AuthenticationRequest) message).getPassword());
 	}
 
+	/**
+	 * Test method for {@link Packet#writeCompact(Cipher, java.io.OutputStream)}
+	 * and {@link Packet#readCompact(byte[], int, int)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testCompact() throws Exception {
+		assertEquals(1, Packet.compactHeaderLength(0));
+		assertEquals(1, Packet.compactHeaderLength(127));
+		assertEquals(2, Packet.compactHeaderLength(128));
+		assertEquals(2, Packet.compactHeaderLength(Message.MAX_LENGTH));
+		Cipher encrypt = Cipher.getInstance(Packet.COMPACT_CIPHER);
+		encrypt.init(Cipher.ENCRYPT_MODE, Misc.secretKey, new IvParameterSpec(
+				Misc.iv));
+		Cipher decrypt = Cipher.getInstance(Packet.COMPACT_CIPHER);
+		decrypt.init(Cipher.DECRYPT_MODE, Misc.secretKey, new IvParameterSpec(
+				Misc.iv));
+		byte[][] messages = { new Ping(true).pack().getData(),
+				new CommandRequest(new MouseRelease(1)).pack().getData(),
+				Misc.getSequence(0, 127), Misc.getSequence(0, 128),
+				Misc.getSequence(0, Message.MAX_LENGTH) };
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		int size = 0;
+		for (byte[] message : messages) {
+			new Packet(message.clone()).writeCompact(encrypt, output);
+			size += Packet.compactHeaderLength(message.length)
+					+ message.length;
+		}
+		byte[] data = output.toByteArray();
+		// No padding, a ping costs three bytes
+		assertEquals(size, data.length);
+		assertEquals(2, data[0]);
+		int off = 0;
+		for (byte[] message : messages) {
+			int header = Packet.compactHeaderLength(message.length);
+			// Not enough data
+			assertNull(Packet.readCompact(data, off, header - 1));
+			assertNull(Packet.readCompact(data, off, header + message.length
+					- 1));
+			Packet packet = Packet.readCompact(data, off, data.length - off);
+			assertEquals(message.length, packet.length());
+			// The stream continues across records
+			assertArrayEquals(message, decrypt.update(packet.getData()));
+			off += header + message.length;
+		}
+
+		data = new byte[] { (byte) 0x81, 0x02 };
+		try {
+			Packet.readCompact(data, 0, data.length);
+			fail("Did not throw an exception");
+		} catch (PacketException e) {
+			PacketException ex = new PacketException("Message too long", data);
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		data = new byte[] { (byte) 0x80, 0x00 };
+		try {
+			Packet.readCompact(data, 0, data.length);
+			fail("Did not throw an exception");
+		} catch (PacketException e) {
+			PacketException ex = new PacketException("Invalid length", data);
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		data = new byte[Message.MAX_LENGTH + 1];
+		try {
+			new Packet(data).writeCompact(encrypt, output);
+			fail("Did not throw an exception");
+		} catch (PacketException e) {
+			PacketException ex = new PacketException("Message too long", data);
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
 	/**
 	 * Test method for when encoding fails in {@link Packet}.
 	 * 
@@ -307,6 +385,21 @@ public class TestPacket {
 		assertEquals(0, tr.compareTo(message));
 	}
 
+	/**
+	 * Test method for {@link Packet#decode(javax.crypto.Cipher)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testDecodeRekey() throws Exception {
+		Rekey r = new Rekey((byte) 3);
+		Message message = new Packet(r.pack().getData()).decode(null);
+		assertEquals(Rekey.class, message.getClass());
+		assertEquals(Message.REKEY, message.getType());
+		assertEquals(0, r.compareTo(message));
+	}
+
 	/**
 	 * Test method for {@link Packet#decode(javax.crypto.Cipher)}.
 	 */
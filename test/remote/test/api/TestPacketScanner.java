@@ -36,6 +36,45 @@ public class TestPacketScanner {
 		new PacketScanner(new ByteArrayInputStream(new byte[0]));
 	}
 
+	/**
+	 * Test method for {@link PacketScanner#setCompact(boolean)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testSetCompact() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		MagicInputStream input = new MagicInputStream(output);
+		PacketScanner ps = new PacketScanner(input);
+
+		// A regular packet followed by compact records
+		Ping ping = new Ping(true);
+		ping.pack().write(Misc.blockEncrypt, output);
+		int count = PacketScanner.BUFFER_SIZE / 100;
+		for (int i = 0; i < count; i++) {
+			output.write(i);
+			output.write(Misc.getSequence(i, i));
+			// Two byte length
+			output.write(0x80 | 100);
+			output.write(1);
+			output.write(Misc.getSequence(i, 228));
+		}
+		input.update();
+		Packet p = ps.nextPacket();
+		assertEquals(0, ping.compareTo(p.decode(Misc.blockDecrypt)));
+		ps.setCompact(true);
+		for (int i = 0; i < count; i++) {
+			assertArrayEquals(Misc.getSequence(i, i), ps.nextPacket()
+					.getData());
+			assertArrayEquals(Misc.getSequence(i, 228), ps.nextPacket()
+					.getData());
+		}
+		assertEquals(null, ps.nextPacket());
+		input.close();
+		output.close();
+	}
+
 	/**
 	 * Test method for {@link PacketScanner#nextPacket()}.
 	 * 
@@ -0,0 +1,244 @@
+package remote.test.api;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+import remote.api.ClientProtocol;
+import remote.api.PacketScanner;
+import remote.api.PriorityWriter;
+import remote.api.commands.Command;
+import remote.api.commands.KeyPress;
+import remote.api.commands.MouseMove;
+import remote.api.commands.MousePress;
+import remote.api.commands.MouseRelease;
+import remote.api.commands.MouseWheel;
+import remote.api.exceptions.ProtocolException;
+import remote.api.messages.AuthenticationResponse;
+import remote.api.messages.CommandRequest;
+import remote.api.messages.Message;
+import remote.api.messages.TerminateRequest;
+
+/**
+ * Test class for {@link PriorityWriter}.
+ */
+public class TestPriorityWriter {
+	/**
+	 * Creates an authenticated client protocol.
+	 * 
+	 * @param output
+	 *            The output of the protocol.
+	 * @return The client protocol.
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	private static ClientProtocol authenticated(ByteArrayOutputStream output)
+			throws Exception {
+		ClientProtocol cp = new ClientProtocol(Misc.publicKey, Misc.key,
+				Misc.iv, new ByteArrayInputStream(new byte[0]), output);
+		cp.process(Misc.encryptBlock(new AuthenticationResponse().pack()));
+		return cp;
+	}
+
+	/**
+	 * Test method for {@link PriorityWriter#PriorityWriter(ClientProtocol, int)}
+	 * .
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testPriorityWriter() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try {
+			new PriorityWriter(null, 1);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Protocol cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			new PriorityWriter(authenticated(output), 0);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Capacity must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		// Valid construction
+		new PriorityWriter(authenticated(output), 1);
+	}
+
+	/**
+	 * Test method for {@link PriorityWriter#run()}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testRun() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		PriorityWriter writer = new PriorityWriter(authenticated(output), 4);
+		for (int i = 0; i < 10; i++) {
+			writer.commandRequest(new MouseMove((short) 1, (short) -2));
+		}
+		writer.commandRequest(new MouseWheel(3));
+		writer.commandRequest(new MouseWheel(4));
+		writer.commandRequest(new KeyPress(65));
+		writer.terminateRequest(true);
+		writer.close();
+		// Writes everything queued and then stops
+		writer.run();
+		assertEquals(null, writer.getFailure());
+
+		PacketScanner ps = new PacketScanner(new ByteArrayInputStream(
+				output.toByteArray()));
+		// High lane first
+		Command command = ((CommandRequest) ps.nextPacket().decode(
+				Misc.blockDecrypt)).getCommand();
+		assertEquals(0, new KeyPress(65).compareTo(command));
+		// Then the merged motion
+		command = ((CommandRequest) ps.nextPacket().decode(Misc.blockDecrypt))
+				.getCommand();
+		assertEquals(0,
+				new MouseMove((short) 10, (short) -20).compareTo(command));
+		command = ((CommandRequest) ps.nextPacket().decode(Misc.blockDecrypt))
+				.getCommand();
+		assertEquals(0, new MouseWheel(7).compareTo(command));
+		// Terminate waits for the motion queued before it
+		TerminateRequest terminate = (TerminateRequest) ps.nextPacket()
+				.decode(Misc.blockDecrypt);
+		assertEquals(true, terminate.isShutdown());
+		assertEquals(null, ps.nextPacket());
+
+		try {
+			writer.commandRequest(new KeyPress(1));
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException("Writer is closed");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Test that motion is not merged when the sum does not fit.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testMergeOverflow() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		PriorityWriter writer = new PriorityWriter(authenticated(output), 4);
+		writer.commandRequest(new MouseMove(Short.MAX_VALUE, (short) 0));
+		writer.commandRequest(new MouseMove((short) 1, (short) 0));
+		writer.close();
+		writer.run();
+
+		PacketScanner ps = new PacketScanner(new ByteArrayInputStream(
+				output.toByteArray()));
+		Message message = ps.nextPacket().decode(Misc.blockDecrypt);
+		assertEquals(0,
+				new MouseMove(Short.MAX_VALUE, (short) 0)
+						.compareTo(((CommandRequest) message).getCommand()));
+		message = ps.nextPacket().decode(Misc.blockDecrypt);
+		assertEquals(0, new MouseMove((short) 1, (short) 0)
+				.compareTo(((CommandRequest) message).getCommand()));
+		assertEquals(null, ps.nextPacket());
+	}
+
+	/**
+	 * Test that motion is only merged with the newest queued motion, so motion
+	 * of another kind in between keeps its place.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testMergeOrder() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		PriorityWriter writer = new PriorityWriter(authenticated(output), 4);
+		writer.commandRequest(new MouseMove((short) 1, (short) 0));
+		writer.commandRequest(new MouseWheel(3));
+		writer.commandRequest(new MouseMove((short) 2, (short) 0));
+		writer.commandRequest(new MouseMove((short) 4, (short) 0));
+		writer.close();
+		writer.run();
+
+		PacketScanner ps = new PacketScanner(new ByteArrayInputStream(
+				output.toByteArray()));
+		Message message = ps.nextPacket().decode(Misc.blockDecrypt);
+		assertEquals(0, new MouseMove((short) 1, (short) 0)
+				.compareTo(((CommandRequest) message).getCommand()));
+		message = ps.nextPacket().decode(Misc.blockDecrypt);
+		assertEquals(0,
+				new MouseWheel(3).compareTo(((CommandRequest) message)
+						.getCommand()));
+		message = ps.nextPacket().decode(Misc.blockDecrypt);
+		assertEquals(0, new MouseMove((short) 6, (short) 0)
+				.compareTo(((CommandRequest) message).getCommand()));
+		assertEquals(null, ps.nextPacket());
+	}
+
+	/**
+	 * Test that mouse buttons are written after the motion queued before
+	 * them, and that motion after a button is not merged into motion before
+	 * it.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testButtonOrder() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		PriorityWriter writer = new PriorityWriter(authenticated(output), 4);
+		writer.commandRequest(new MouseMove((short) 1, (short) 0));
+		writer.commandRequest(new MouseMove((short) 2, (short) 0));
+		writer.commandRequest(new MousePress(16));
+		writer.commandRequest(new MouseMove((short) 4, (short) 0));
+		writer.commandRequest(new MouseRelease(16));
+		writer.commandRequest(new KeyPress(65));
+		writer.close();
+		writer.run();
+
+		Command[] expected = { new MouseMove((short) 3, (short) 0),
+				new MousePress(16), new MouseMove((short) 4, (short) 0),
+				new MouseRelease(16), new KeyPress(65) };
+		PacketScanner ps = new PacketScanner(new ByteArrayInputStream(
+				output.toByteArray()));
+		for (Command command : expected) {
+			Message message = ps.nextPacket().decode(Misc.blockDecrypt);
+			assertEquals(0, command.compareTo(((CommandRequest) message)
+					.getCommand()));
+		}
+		assertEquals(null, ps.nextPacket());
+	}
+
+	/**
+	 * Test that a failed write stops the writer.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testFailure() throws Exception {
+		// Not authenticated, so writing fails
+		ClientProtocol cp = new ClientProtocol(Misc.publicKey, Misc.key,
+				Misc.iv, new ByteArrayInputStream(new byte[0]),
+				new ByteArrayOutputStream());
+		PriorityWriter writer = new PriorityWriter(cp, 1);
+		writer.commandRequest(new KeyPress(1));
+		writer.run();
+		assertNotNull(writer.getFailure());
+		try {
+			writer.commandRequest(new KeyPress(1));
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			assertTrue(e.getMessage().startsWith("Writer failed"));
+		}
+	}
+}
@@ -11,8 +11,12 @@ import javax.crypto.SecretKey;
 
 import org.junit.Test;
 
+import remote.api.CipherPool;
+import remote.api.ClientProtocol;
 import remote.api.Packet;
 import remote.api.Protocol;
+import remote.api.commands.MouseMove;
+import remote.api.messages.Ping;
 import remote.api.exceptions.PacketException;
 import remote.api.exceptions.ProtocolException;
 
@@ -50,4 +54,74 @@ public class TestProtocol {
 			assertThat(e.getMessage(), startsWith(ex.getMessage()));
 		}
 	}
+
+	/**
+	 * Test method for {@link Protocol#close()}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testClose() throws Exception {
+		CipherPool shared = CipherPool.getShared();
+		CipherPool pool = new CipherPool(1, 4);
+		CipherPool.setShared(pool);
+		try {
+			ByteArrayInputStream input = new ByteArrayInputStream(new byte[0]);
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			ClientProtocol cp = new ClientProtocol(Misc.publicKey, Misc.key,
+					Misc.iv, input, output);
+			// The secure cipher is not pooled
+			assertEquals(2, pool.getCreated());
+			assertEquals(0, pool.getReused());
+			assertFalse(cp.isClosed());
+			cp.close();
+			assertTrue(cp.isClosed());
+			// Closing again does nothing
+			cp.close();
+			try {
+				cp.authenticate(new byte[0], new byte[0]);
+				fail("Did not throw an exception");
+			} catch (ProtocolException e) {
+				ProtocolException ex = new ProtocolException(
+						"Protocol is closed");
+				assertEquals(ex.getMessage(), e.getMessage());
+			}
+			try {
+				cp.commandRequest(new MouseMove((short) 1, (short) 2));
+				fail("Did not throw an exception");
+			} catch (ProtocolException e) {
+				ProtocolException ex = new ProtocolException(
+						"Protocol is closed");
+				assertEquals(ex.getMessage(), e.getMessage());
+			}
+			try {
+				cp.process(Misc.encryptBlock(new Ping(true).pack()));
+				fail("Did not throw an exception");
+			} catch (ProtocolException e) {
+				ProtocolException ex = new ProtocolException(
+						"Protocol is closed");
+				assertEquals(ex.getMessage(), e.getMessage());
+			}
+			assertArrayEquals(new byte[0], output.toByteArray());
+
+			// The next session reuses the ciphers with its own keys
+			cp = new ClientProtocol(Misc.publicKey, Misc.key, Misc.iv, input,
+					output);
+			assertEquals(2, pool.getCreated());
+			assertEquals(2, pool.getReused());
+			cp.authenticate(new byte[0], new byte[0]);
+			assertTrue(output.size() > 0);
+			cp.close();
+
+			// Without a pool nothing is reused
+			CipherPool.setShared(null);
+			new ClientProtocol(Misc.publicKey, Misc.key, Misc.iv, input,
+					output).close();
+			assertEquals(2, pool.getCreated());
+			assertEquals(2, pool.getReused());
+		} finally {
+			CipherPool.setShared(shared);
+		}
+	}
 }
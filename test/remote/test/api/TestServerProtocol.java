@@ -5,12 +5,22 @@ import static org.junit.Assert.*;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
+import remote.api.AdmissionController;
+import remote.api.CommandQueue;
+import remote.api.CommandQueue.Policy;
 import remote.api.Packet;
 import remote.api.ServerProtocol;
+import remote.api.ServerProtocol.Handshake;
 import remote.api.Protocol.PingCallback;
 import remote.api.ServerProtocol.ConnectionHandler;
 import remote.api.ServerProtocol.Handler;
@@ -24,6 +34,7 @@ import remote.api.messages.CommandRequest;
 import remote.api.messages.Message;
 import remote.api.messages.Ping;
 import remote.api.messages.TerminateRequest;
+import remote.api.trace.ProtocolTracer;
 
 /**
  * Test class for {@link ServerProtocol}.
@@ -248,6 +259,182 @@ public class TestServerProtocol {
 		command = null;
 	}
 
+	/**
+	 * Test method for {@link ServerProtocol#setCommandQueue(CommandQueue)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testCommandQueue() throws Exception {
+		ByteArrayInputStream input = new ByteArrayInputStream(new byte[0]);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ServerProtocol sp = new ServerProtocol(handler, connectionHandler,
+				Misc.privateKey, input, output);
+		CommandQueue queue = new CommandQueue(1, Policy.DISCONNECT);
+		sp.setCommandQueue(queue);
+		// Authenticate
+		sp.process(Misc.encryptSecure(new AuthenticationRequest(Misc.key,
+				Misc.iv, new byte[0], new byte[0]).pack()));
+
+		// The command is queued instead of handled
+		MouseMove mm = new MouseMove((short) 1, (short) 2);
+		sp.process(Misc.encryptBlock(new CommandRequest(mm).pack()));
+		assertEquals(null, command);
+		assertEquals(1, queue.size());
+
+		// The queue is full
+		try {
+			sp.process(Misc.encryptBlock(new CommandRequest(mm).pack()));
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Command queue overflow");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+
+		// Dispatch the queued command
+		queue.close();
+		queue.dispatch(handler);
+		assertEquals(0, mm.compareTo(command));
+		command = null;
+	}
+
+	/**
+	 * Test method for {@link ServerProtocol#setCommandQueue(CommandQueue)}
+	 * with a full {@link Policy#BLOCK} queue and a terminate request.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testCommandQueueBlock() throws Exception {
+		final List<String> events = new ArrayList<String>();
+		final Handler recording = new Handler() {
+			@Override
+			public boolean authentication(byte[] user, byte[] password) {
+				return true;
+			}
+
+			@Override
+			public void command(Command command) {
+				events.add("command");
+			}
+
+			@Override
+			public void terminate(boolean shutdown) {
+				events.add("terminate " + shutdown);
+			}
+		};
+		final ServerProtocol sp = new ServerProtocol(recording,
+				connectionHandler, Misc.privateKey, new ByteArrayInputStream(
+						new byte[0]), new ByteArrayOutputStream());
+		final CommandQueue queue = new CommandQueue(1, Policy.BLOCK);
+		sp.setCommandQueue(queue);
+		sp.process(Misc.encryptSecure(new AuthenticationRequest(Misc.key,
+				Misc.iv, new byte[0], new byte[0]).pack()));
+		MouseMove mm = new MouseMove((short) 1, (short) 2);
+		sp.process(Misc.encryptBlock(new CommandRequest(mm).pack()));
+		final Packet terminate = Misc.encryptBlock(new TerminateRequest(true)
+				.pack());
+		final Exception[] failure = new Exception[1];
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					sp.process(terminate);
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		};
+		reader.start();
+		// The reader waits for room without holding the protocol
+		while (reader.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+		assertFalse(sp.isClosed());
+		assertTrue(events.isEmpty());
+
+		// The terminate request is handled after the queued command
+		Thread dispatcher = new Thread() {
+			@Override
+			public void run() {
+				try {
+					queue.dispatch(recording);
+				} catch (InterruptedException e) {
+					// Ends the thread
+				}
+			}
+		};
+		dispatcher.start();
+		reader.join(5000);
+		assertFalse(reader.isAlive());
+		assertEquals(null, failure[0]);
+		queue.close();
+		dispatcher.join(5000);
+		assertEquals(Arrays.asList("command", "terminate true"), events);
+		sp.close();
+	}
+
+	/**
+	 * Test method for {@link ServerProtocol#setTracer(ProtocolTracer)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testTracer() throws Exception {
+		ByteArrayInputStream input = new ByteArrayInputStream(new byte[0]);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ServerProtocol sp = new ServerProtocol(handler, connectionHandler,
+				Misc.privateKey, input, output);
+		final List<String> events = new ArrayList<String>();
+		sp.setTracer(new ProtocolTracer() {
+			@Override
+			public void frame(boolean inbound, int length, byte type,
+					long start, long duration) {
+				events.add("frame " + inbound + " " + type);
+			}
+
+			@Override
+			public void cipherInit(String algorithm, long start, long duration) {
+				events.add("cipherInit " + algorithm);
+			}
+
+			@Override
+			public void handshake(boolean success, long start, long duration) {
+				events.add("handshake " + success);
+			}
+
+			@Override
+			public void command(Command command, long start, long duration) {
+				events.add("command " + command.getType());
+			}
+		});
+		// Authenticate
+		sp.process(Misc.encryptSecure(new AuthenticationRequest(Misc.key,
+				Misc.iv, new byte[0], new byte[0]).pack()));
+		assertEquals(Arrays.asList("frame true "
+				+ Message.AUTHENTICATION_REQUEST, "cipherInit "
+				+ Packet.BLOCK_CIPHER, "frame false "
+				+ Message.AUTHENTICATION_RESPONSE, "handshake true"), events);
+
+		events.clear();
+		MouseMove mm = new MouseMove((short) 1, (short) 2);
+		sp.process(Misc.encryptBlock(new CommandRequest(mm).pack()));
+		assertEquals(Arrays.asList("frame true " + Message.COMMAND_REQUEST,
+				"command " + Command.MOUSE_MOVE), events);
+		command = null;
+
+		// Nothing is traced when disabled
+		events.clear();
+		sp.setTracer(null);
+		sp.process(Misc.encryptBlock(new CommandRequest(mm).pack()));
+		assertEquals(0, events.size());
+		command = null;
+	}
+
 	/**
 	 * Test method for handling terminate requests in {@link ServerProtocol}.
 	 * 
@@ -298,6 +485,213 @@ public class TestServerProtocol {
 		assertArrayEquals(new byte[0], output.toByteArray());
 	}
 
+	/**
+	 * Test method for
+	 * {@link ServerProtocol#setAdmission(AdmissionController, InetAddress)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testAdmission() throws Exception {
+		ByteArrayInputStream input = new ByteArrayInputStream(new byte[0]);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ServerProtocol sp = new ServerProtocol(handler, connectionHandler,
+				Misc.privateKey, input, output);
+		AdmissionController admission = new AdmissionController(5, 0.001, 2,
+				60000, 60000, 4, 100);
+		try {
+			sp.setAdmission(admission, null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Source cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		InetAddress source = InetAddress
+				.getByAddress(new byte[] { 10, 0, 0, 1 });
+		sp.setAdmission(admission, source);
+		Packet request = Misc.encryptSecure(new AuthenticationRequest(
+				Misc.key, Misc.iv, new byte[0], new byte[0]).pack());
+
+		// Two failures lock the source out
+		authenticationFail = true;
+		for (int i = 0; i < 2; i++) {
+			try {
+				sp.process(request);
+				fail("Did not throw an exception");
+			} catch (AuthenticationException e) {
+				AuthenticationException ex = new AuthenticationException(
+						"Bad login");
+				assertEquals(ex.getMessage(), e.getMessage());
+			}
+		}
+		authenticationFail = false;
+		try {
+			sp.process(request);
+			fail("Did not throw an exception");
+		} catch (AuthenticationException e) {
+			AuthenticationException ex = new AuthenticationException(
+					"Locked out");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		assertFalse(onAuthenticatedCalled);
+		assertArrayEquals(new byte[0], output.toByteArray());
+
+		// Other sources are not affected
+		sp.setAdmission(admission,
+				InetAddress.getByAddress(new byte[] { 10, 0, 0, 2 }));
+		sp.process(request);
+		assertTrue(onAuthenticatedCalled);
+		assertEquals(2, admission.getSources());
+
+		// Removing the admission control processes all requests
+		sp = new ServerProtocol(handler, connectionHandler, Misc.privateKey,
+				input, output);
+		sp.setAdmission(admission, source);
+		sp.setAdmission(null, null);
+		onAuthenticatedCalled = false;
+		sp.process(request);
+		assertTrue(onAuthenticatedCalled);
+	}
+
+	/**
+	 * Test method for {@link ServerProtocol#verify(Packet)} and
+	 * {@link ServerProtocol#complete(Handshake)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testVerify() throws Exception {
+		ByteArrayInputStream input = new ByteArrayInputStream(new byte[0]);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ServerProtocol sp = new ServerProtocol(handler, connectionHandler,
+				Misc.privateKey, input, output);
+		ServerProtocol other = new ServerProtocol(handler, connectionHandler,
+				Misc.privateKey, input, new ByteArrayOutputStream());
+		Packet request = Misc.encryptSecure(new AuthenticationRequest(
+				Misc.key, Misc.iv, new byte[0], new byte[0]).pack());
+		Handshake handshake = sp.verify(request);
+		// Nothing happens until completed
+		assertFalse(onAuthenticatedCalled);
+		assertArrayEquals(new byte[0], output.toByteArray());
+		try {
+			sp.complete(null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Handshake cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			other.complete(handshake);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Handshake of another protocol");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		sp.complete(handshake);
+		assertTrue(onAuthenticatedCalled);
+		assertTrue(output.size() > 0);
+		try {
+			sp.complete(handshake);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Already authenticated");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			sp.verify(request);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Already authenticated");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		// Verifying the same request again is allowed until completed
+		Handshake first = other.verify(request);
+		Handshake second = other.verify(request);
+		other.complete(second);
+		try {
+			other.complete(first);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Already authenticated");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Test that {@link ServerProtocol#verify(Packet)} does not lock the
+	 * protocol while the handler checks the user.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testVerifyUnlocked() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		Handler slow = new Handler() {
+			@Override
+			public boolean authentication(byte[] user, byte[] password) {
+				entered.countDown();
+				try {
+					proceed.await();
+				} catch (InterruptedException e) {
+					return false;
+				}
+				return true;
+			}
+
+			@Override
+			public void command(Command command) {
+			}
+
+			@Override
+			public void terminate(boolean shutdown) {
+			}
+		};
+		final ServerProtocol sp = new ServerProtocol(slow, connectionHandler,
+				Misc.privateKey, new ByteArrayInputStream(new byte[0]),
+				new ByteArrayOutputStream());
+		final Packet request = Misc.encryptSecure(new AuthenticationRequest(
+				Misc.key, Misc.iv, new byte[0], new byte[0]).pack());
+		final Exception[] failure = new Exception[1];
+		Thread worker = new Thread() {
+			@Override
+			public void run() {
+				try {
+					sp.verify(request);
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		};
+		worker.start();
+		assertTrue(entered.await(5, TimeUnit.SECONDS));
+		// Not blocked by the verification
+		assertFalse(sp.isAuthenticated());
+		try {
+			sp.verify(request);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException("Already verifying");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		sp.close();
+		assertTrue(sp.isClosed());
+		proceed.countDown();
+		worker.join(5000);
+		assertFalse(worker.isAlive());
+		assertTrue(failure[0] instanceof ProtocolException);
+		assertEquals("Protocol is closed", failure[0].getMessage());
+	}
+
 	/**
 	 * Test method for {@link ServerProtocol#process(Packet)}.
 	 * 
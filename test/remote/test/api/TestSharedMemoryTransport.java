@@ -0,0 +1,276 @@
+package remote.test.api;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import remote.api.ClientProtocol;
+import remote.api.Packet;
+import remote.api.ServerProtocol;
+import remote.api.ServerProtocol.ConnectionHandler;
+import remote.api.ServerProtocol.Handler;
+import remote.api.SharedMemoryTransport;
+import remote.api.SharedMemoryTransport.WaitStrategy;
+import remote.api.commands.Command;
+import remote.api.commands.MouseMove;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Test class for {@link SharedMemoryTransport}.
+ */
+public class TestSharedMemoryTransport {
+	/**
+	 * The shared file.
+	 */
+	private File file;
+
+	/**
+	 * Picks a file that does not exist.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("remote", ".shm");
+		assertTrue(file.delete());
+	}
+
+	/**
+	 * Removes the shared file.
+	 */
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	/**
+	 * Test method for
+	 * {@link SharedMemoryTransport#create(File, int, WaitStrategy)} and
+	 * {@link SharedMemoryTransport#open(File, WaitStrategy)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testCreateOpen() throws Exception {
+		if (!SharedMemoryTransport.isSupported()) {
+			return;
+		}
+		try {
+			SharedMemoryTransport.create(null, 64, WaitStrategy.SPIN);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException("File cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			SharedMemoryTransport.create(file, 64, null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Wait strategy cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		int[] capacities = { 0, -64, 100 };
+		for (int capacity : capacities) {
+			try {
+				SharedMemoryTransport.create(file, capacity, WaitStrategy.SPIN);
+				fail("Did not throw an exception");
+			} catch (ProtocolException e) {
+				ProtocolException ex = new ProtocolException(
+						"Capacity must be a power of two");
+				assertEquals(ex.getMessage(), e.getMessage());
+			}
+		}
+		try {
+			SharedMemoryTransport.open(file, WaitStrategy.SPIN);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Not a shared memory file");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		FileOutputStream garbage = new FileOutputStream(file);
+		garbage.write(new byte[1024]);
+		garbage.close();
+		try {
+			SharedMemoryTransport.open(file, WaitStrategy.SPIN);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Not a shared memory file");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+
+		SharedMemoryTransport server = SharedMemoryTransport.create(file,
+				64, WaitStrategy.SPIN);
+		SharedMemoryTransport client = SharedMemoryTransport.open(file,
+				WaitStrategy.SPIN);
+		assertEquals(64, server.getCapacity());
+		assertEquals(64, client.getCapacity());
+		OutputStream output = client.getOutputStream();
+		InputStream input = server.getInputStream();
+		output.write(1);
+		output.write(new byte[] { 2, 3 });
+		// Not seen before the flush
+		assertEquals(0, input.available());
+		output.flush();
+		assertEquals(3, input.available());
+		assertEquals(1, input.read());
+		byte[] data = new byte[2];
+		assertEquals(2, input.read(data));
+		assertArrayEquals(new byte[] { 2, 3 }, data);
+		// The other direction
+		server.getOutputStream().write(new byte[] { 4, 5 });
+		server.getOutputStream().flush();
+		assertEquals(4, client.getInputStream().read());
+		assertEquals(5, client.getInputStream().read());
+
+		// Closing ends the stream after the remaining data
+		output.write(6);
+		output.flush();
+		client.close();
+		assertTrue(server.isClosed());
+		assertEquals(6, input.read());
+		assertEquals(-1, input.read());
+		try {
+			server.getOutputStream().flush();
+			fail("Did not throw an exception");
+		} catch (IOException e) {
+			IOException ex = new IOException("Transport is closed");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+
+		// A new file resets the rings, the old file stays mapped as it was
+		SharedMemoryTransport old = client;
+		server = SharedMemoryTransport.create(file, 16, WaitStrategy.PARK);
+		client = SharedMemoryTransport.open(file, WaitStrategy.PARK);
+		assertFalse(server.isClosed());
+		assertEquals(16, client.getCapacity());
+		assertEquals(0, server.getInputStream().available());
+		assertTrue(old.isClosed());
+		assertEquals(-1, old.getInputStream().read());
+	}
+
+	/**
+	 * Test method for data that wraps around a small ring.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testWrap() throws Exception {
+		if (!SharedMemoryTransport.isSupported()) {
+			return;
+		}
+		SharedMemoryTransport server = SharedMemoryTransport.create(file,
+				64, WaitStrategy.PARK);
+		final SharedMemoryTransport client = SharedMemoryTransport.open(file,
+				WaitStrategy.PARK);
+		final byte[] sent = Misc.getSequence(0, 10000);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					OutputStream output = client.getOutputStream();
+					for (int i = 0; i < sent.length; i += 100) {
+						output.write(sent, i, 100);
+						output.flush();
+					}
+				} catch (IOException e) {
+					// Fails the comparison
+				}
+			}
+		};
+		writer.start();
+		byte[] received = new byte[sent.length];
+		InputStream input = server.getInputStream();
+		int read = 0;
+		while (read < received.length) {
+			read += input.read(received, read, received.length - read);
+		}
+		writer.join();
+		assertArrayEquals(sent, received);
+		server.close();
+	}
+
+	/**
+	 * Test method for a client and server over shared memory.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testProtocol() throws Exception {
+		if (!SharedMemoryTransport.isSupported()) {
+			return;
+		}
+		final BlockingQueue<Command> commands;
+		commands = new ArrayBlockingQueue<Command>(10);
+		Handler handler = new Handler() {
+			@Override
+			public boolean authentication(byte[] user, byte[] password) {
+				return true;
+			}
+
+			@Override
+			public void command(Command command) {
+				commands.add(command);
+			}
+
+			@Override
+			public void terminate(boolean shutdown) {
+			}
+		};
+		ConnectionHandler connectionHandler = new ConnectionHandler() {
+			@Override
+			public void onAuthenticated() {
+			}
+		};
+		SharedMemoryTransport server = SharedMemoryTransport.create(file,
+				SharedMemoryTransport.DEFAULT_CAPACITY, WaitStrategy.PARK);
+		SharedMemoryTransport client = SharedMemoryTransport.open(file,
+				WaitStrategy.PARK);
+		final ServerProtocol sp = new ServerProtocol(handler,
+				connectionHandler, Misc.privateKey, server.getInputStream(),
+				server.getOutputStream());
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Packet packet;
+					while ((packet = sp.nextPacket()) != null) {
+						sp.process(packet);
+					}
+				} catch (Exception e) {
+					// Closed
+				}
+			}
+		};
+		reader.start();
+		ClientProtocol cp = new ClientProtocol(Misc.publicKey, Misc.key,
+				Misc.iv, client.getInputStream(), client.getOutputStream());
+		cp.authenticate(Misc.getSequence(10, 10), Misc.getSequence(5, 5));
+		cp.process(cp.nextPacket());
+		for (int i = 0; i < 5; i++) {
+			MouseMove mm = new MouseMove((short) i, (short) -i);
+			cp.commandRequest(mm);
+			assertEquals(0, mm.compareTo(commands.poll(5, TimeUnit.SECONDS)));
+		}
+		client.close();
+		reader.join(5000);
+		assertFalse(reader.isAlive());
+	}
+}
@@ -37,6 +37,11 @@ public class TestUtils {
 		String hex = Utils.toHex(new byte[size]);
 		assertEquals(size * 3 - 1, hex.length());
 		assertThat(hex, startsWith("00 00 00 00 00 00 00 00"));
+		// Every byte value
+		for (int i = 0; i < 256; i++) {
+			assertEquals(String.format("%02X", i),
+					Utils.toHex(new byte[] { (byte) i }));
+		}
 	}
 
 	/**
@@ -0,0 +1,85 @@
+package remote.test.api;
+
+import static org.junit.Assert.*;
+
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+
+import org.junit.Test;
+
+import remote.api.Packet;
+import remote.api.Warmup;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Test class for {@link Warmup}.
+ */
+public class TestWarmup {
+	/**
+	 * Test method for
+	 * {@link Warmup#run(java.security.PublicKey, java.security.PrivateKey, int, int)}
+	 * .
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testRun() throws Exception {
+		assertTrue(Warmup.run(Misc.publicKey, Misc.privateKey, 1, 0) > 0);
+		assertTrue(Warmup.run(Misc.publicKey, Misc.privateKey, 2, 10) > 0);
+		try {
+			Warmup.run(null, Misc.privateKey, 1, 0);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Public key cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			Warmup.run(Misc.publicKey, null, 1, 0);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Private key cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			Warmup.run(Misc.publicKey, Misc.privateKey, 0, 0);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Handshakes must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			Warmup.run(Misc.publicKey, Misc.privateKey, 1, -1);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Cycles cannot be negative");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link Warmup#run(java.security.PublicKey, java.security.PrivateKey)}
+	 * with keys that do not match.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testMismatch() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator
+				.getInstance(Packet.SECURE_ALGORITHM_NAME);
+		generator.initialize(Packet.SECURE_KEY_SIZE);
+		PublicKey other = generator.generateKeyPair().getPublic();
+		try {
+			Warmup.run(other, Misc.privateKey);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			assertTrue(e.getMessage().startsWith("Warmup failed"));
+		}
+	}
+}
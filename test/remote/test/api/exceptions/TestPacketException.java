@@ -0,0 +1,60 @@
+package remote.test.api.exceptions;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import remote.api.exceptions.PacketException;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Test class for {@link PacketException}.
+ */
+public class TestPacketException {
+	/**
+	 * Restores the default.
+	 */
+	@After
+	public void tearDown() {
+		ProtocolException.setStackTraces(true);
+	}
+
+	/**
+	 * Test method for {@link PacketException#getMessage()}.
+	 */
+	@Test
+	public void testGetMessage() {
+		PacketException e = new PacketException("Bad", new byte[] { 1,
+				(byte) 0xAB });
+		assertEquals("Bad 01 AB", e.getMessage());
+		assertSame(e.getMessage(), e.getMessage());
+		assertEquals("Bad", e.getReason());
+		assertEquals(PacketException.class.getName() + ": Bad 01 AB",
+				e.toString());
+
+		e = new PacketException("Bad", new byte[0]);
+		assertEquals("Bad", e.getMessage());
+		e = new PacketException("Bad", null);
+		assertEquals("Bad null", e.getMessage());
+
+		Exception cause = new Exception("Cause");
+		e = new PacketException("Bad", new byte[] { 2 }, cause);
+		assertEquals("Bad 02\nCause", e.getMessage());
+		assertSame(cause, e.getCause());
+	}
+
+	/**
+	 * Test method for {@link PacketException#fillInStackTrace()}.
+	 */
+	@Test
+	public void testFillInStackTrace() {
+		PacketException e = new PacketException("Bad", new byte[0]);
+		assertTrue(e.getStackTrace().length > 0);
+
+		ProtocolException.setStackTraces(false);
+		e = new PacketException("Bad", new byte[0]);
+		assertEquals(0, e.getStackTrace().length);
+		assertEquals("Bad", e.getMessage());
+	}
+}
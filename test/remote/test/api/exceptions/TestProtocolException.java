@@ -0,0 +1,42 @@
+package remote.test.api.exceptions;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import remote.api.exceptions.AuthenticationException;
+import remote.api.exceptions.ProtocolException;
+
+/**
+ * Test class for {@link ProtocolException}.
+ */
+public class TestProtocolException {
+	/**
+	 * Restores the default.
+	 */
+	@After
+	public void tearDown() {
+		ProtocolException.setStackTraces(true);
+	}
+
+	/**
+	 * Test method for {@link ProtocolException#setStackTraces(boolean)}.
+	 */
+	@Test
+	public void testSetStackTraces() {
+		assertTrue(new ProtocolException("Bad").getStackTrace().length > 0);
+
+		ProtocolException.setStackTraces(false);
+		ProtocolException e = new ProtocolException("Bad");
+		assertEquals(0, e.getStackTrace().length);
+		assertEquals("Bad", e.getMessage());
+		e = new AuthenticationException("Bad login");
+		assertEquals(0, e.getStackTrace().length);
+		e = new ProtocolException("Bad", new Exception("Cause"));
+		assertEquals("Bad\nCause", e.getMessage());
+
+		ProtocolException.setStackTraces(true);
+		assertTrue(new ProtocolException("Bad").getStackTrace().length > 0);
+	}
+}
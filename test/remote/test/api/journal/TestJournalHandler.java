@@ -0,0 +1,121 @@
+package remote.test.api.journal;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.commands.MouseWheel;
+import remote.api.exceptions.ProtocolException;
+import remote.api.journal.JournalHandler;
+import remote.api.journal.JournalReader;
+import remote.api.journal.JournalWriter;
+
+/**
+ * Test class for {@link JournalHandler}.
+ */
+public class TestJournalHandler {
+	/**
+	 * Commands passed to the handler.
+	 */
+	private List<Command> commands = new ArrayList<Command>();
+	/**
+	 * Handler collecting commands.
+	 */
+	private Handler handler = new Handler() {
+		@Override
+		public boolean authentication(byte[] user, byte[] password) {
+			return user.length == 1;
+		}
+
+		@Override
+		public void command(Command command) {
+			commands.add(command);
+		}
+
+		@Override
+		public void terminate(boolean shutdown) {
+			commands.add(null);
+		}
+	};
+
+	/**
+	 * Test method for
+	 * {@link JournalHandler#JournalHandler(Handler, JournalWriter)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testJournalHandler() throws Exception {
+		File path = File.createTempFile("journal", ".bin");
+		JournalWriter writer = new JournalWriter(path);
+		try {
+			try {
+				new JournalHandler(null, writer);
+				fail("Did not throw an exception");
+			} catch (ProtocolException e) {
+				ProtocolException ex = new ProtocolException(
+						"Handler cannot be null");
+				assertEquals(ex.getMessage(), e.getMessage());
+			}
+			try {
+				new JournalHandler(handler, null);
+				fail("Did not throw an exception");
+			} catch (ProtocolException e) {
+				ProtocolException ex = new ProtocolException(
+						"Journal cannot be null");
+				assertEquals(ex.getMessage(), e.getMessage());
+			}
+		} finally {
+			writer.close();
+			path.delete();
+		}
+	}
+
+	/**
+	 * Test method for {@link JournalHandler#command(Command)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testCommand() throws Exception {
+		File path = File.createTempFile("journal", ".bin");
+		try {
+			JournalWriter writer = new JournalWriter(path);
+			JournalHandler journalHandler = new JournalHandler(handler,
+					writer);
+			assertTrue(journalHandler.authentication(new byte[1],
+					new byte[0]));
+			assertFalse(journalHandler.authentication(new byte[0],
+					new byte[0]));
+			MouseWheel wheel = new MouseWheel(-1);
+			journalHandler.command(wheel);
+			journalHandler.terminate(false);
+			assertEquals(2, commands.size());
+			assertSame(wheel, commands.get(0));
+			assertEquals(null, commands.get(1));
+			assertEquals(1, writer.getCount());
+			assertEquals(null, journalHandler.getFailure());
+
+			// Commands are still passed on when the journal fails
+			writer.close();
+			journalHandler.command(wheel);
+			assertEquals(3, commands.size());
+			assertTrue(journalHandler.getFailure() instanceof ProtocolException);
+
+			JournalReader reader = new JournalReader(path);
+			assertEquals(0, wheel.compareTo(reader.next()));
+			assertEquals(null, reader.next());
+			reader.close();
+		} finally {
+			path.delete();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package remote.test.api.journal;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.Test;
+
+import remote.api.exceptions.ProtocolException;
+import remote.api.journal.JournalReader;
+import remote.api.journal.JournalWriter;
+
+/**
+ * Test class for {@link JournalReader}.
+ */
+public class TestJournalReader {
+	/**
+	 * Writes data to a file.
+	 * 
+	 * @param path
+	 *            The file.
+	 * @param data
+	 *            The data.
+	 * @throws Exception
+	 *             If it fails to write.
+	 */
+	private static void write(File path, byte[] data) throws Exception {
+		FileOutputStream output = new FileOutputStream(path);
+		try {
+			output.write(data);
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Test method for {@link JournalReader#JournalReader(File)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testJournalReader() throws Exception {
+		try {
+			new JournalReader(null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException("Path cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		File path = File.createTempFile("journal", ".bin");
+		try {
+			write(path, new byte[] { 1, 2, 3 });
+			try {
+				new JournalReader(path);
+				fail("Did not throw an exception");
+			} catch (ProtocolException e) {
+				ProtocolException ex = new ProtocolException("Not a journal");
+				assertEquals(ex.getMessage(), e.getMessage());
+			}
+			write(path, new byte[JournalWriter.HEADER_LENGTH]);
+			try {
+				new JournalReader(path);
+				fail("Did not throw an exception");
+			} catch (ProtocolException e) {
+				ProtocolException ex = new ProtocolException("Not a journal");
+				assertEquals(ex.getMessage(), e.getMessage());
+			}
+			write(path, new byte[] { 'R', 'J', 'N', 'L', 0, 0, 0, 9, 0, 0,
+					0, 0 });
+			try {
+				new JournalReader(path);
+				fail("Did not throw an exception");
+			} catch (ProtocolException e) {
+				ProtocolException ex = new ProtocolException(
+						"Unsupported journal version");
+				assertEquals(ex.getMessage(), e.getMessage());
+			}
+		} finally {
+			path.delete();
+		}
+	}
+}
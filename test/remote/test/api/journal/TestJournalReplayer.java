@@ -0,0 +1,101 @@
+package remote.test.api.journal;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.commands.KeyRelease;
+import remote.api.commands.MousePress;
+import remote.api.exceptions.ProtocolException;
+import remote.api.journal.JournalReplayer;
+import remote.api.journal.JournalWriter;
+
+/**
+ * Test class for {@link JournalReplayer}.
+ */
+public class TestJournalReplayer {
+	/**
+	 * Commands passed to the handler.
+	 */
+	private List<Command> commands = new ArrayList<Command>();
+	/**
+	 * Times when commands were passed to the handler.
+	 */
+	private List<Long> times = new ArrayList<Long>();
+	/**
+	 * Handler collecting commands.
+	 */
+	private Handler handler = new Handler() {
+		@Override
+		public boolean authentication(byte[] user, byte[] password) {
+			return true;
+		}
+
+		@Override
+		public void command(Command command) {
+			times.add(System.nanoTime());
+			commands.add(command);
+		}
+
+		@Override
+		public void terminate(boolean shutdown) {
+		}
+	};
+
+	/**
+	 * Test method for {@link JournalReplayer#JournalReplayer(File)}.
+	 */
+	@Test
+	public void testJournalReplayer() {
+		try {
+			new JournalReplayer(null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException("Path cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Test method for {@link JournalReplayer#replay(Handler, boolean)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testReplay() throws Exception {
+		File path = File.createTempFile("journal", ".bin");
+		try {
+			JournalWriter writer = new JournalWriter(path);
+			// Recorded 20 ms apart
+			long time = System.nanoTime();
+			writer.append(new MousePress(1), time);
+			writer.append(new KeyRelease(2), time + 20000000L);
+			writer.append(new MousePress(3), time + 40000000L);
+			writer.close();
+
+			JournalReplayer replayer = new JournalReplayer(path);
+			assertEquals(3, replayer.replay(handler, false));
+			assertEquals(3, commands.size());
+			assertEquals(0, new KeyRelease(2).compareTo(commands.get(1)));
+
+			commands.clear();
+			times.clear();
+			assertEquals(3, replayer.replay(handler, true));
+			assertEquals(3, commands.size());
+			assertThat(times.get(1) - times.get(0),
+					greaterThanOrEqualTo(19000000L));
+			assertThat(times.get(2) - times.get(0),
+					greaterThanOrEqualTo(39000000L));
+		} finally {
+			path.delete();
+		}
+	}
+}
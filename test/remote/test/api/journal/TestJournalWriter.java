@@ -0,0 +1,99 @@
+package remote.test.api.journal;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import remote.api.commands.Command;
+import remote.api.commands.KeyPress;
+import remote.api.commands.MouseMove;
+import remote.api.commands.TextInput;
+import remote.api.exceptions.ProtocolException;
+import remote.api.journal.JournalReader;
+import remote.api.journal.JournalWriter;
+
+/**
+ * Test class for {@link JournalWriter}.
+ */
+public class TestJournalWriter {
+	/**
+	 * Test method for {@link JournalWriter#JournalWriter(File, int)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testJournalWriter() throws Exception {
+		try {
+			new JournalWriter(null);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException("Path cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		File path = File.createTempFile("journal", ".bin");
+		try {
+			try {
+				new JournalWriter(path, 100);
+				fail("Did not throw an exception");
+			} catch (ProtocolException e) {
+				ProtocolException ex = new ProtocolException(
+						"Region size too small");
+				assertEquals(ex.getMessage(), e.getMessage());
+			}
+			// An empty journal only has the header
+			JournalWriter writer = new JournalWriter(path);
+			writer.close();
+			assertEquals(JournalWriter.HEADER_LENGTH, path.length());
+		} finally {
+			path.delete();
+		}
+	}
+
+	/**
+	 * Test method for {@link JournalWriter#append(Command, long)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testAppend() throws Exception {
+		File path = File.createTempFile("journal", ".bin");
+		try {
+			// Small regions to cross several of them
+			JournalWriter writer = new JournalWriter(path, 512);
+			Command[] commands = { new MouseMove((short) 1, (short) -2),
+					new KeyPress(65), new TextInput("hello".getBytes()) };
+			for (int i = 0; i < 100; i++) {
+				writer.append(commands[i % commands.length], 1000L * i);
+			}
+			assertEquals(100, writer.getCount());
+			writer.close();
+			// Closing twice is fine
+			writer.close();
+			try {
+				writer.append(commands[0], 0);
+				fail("Did not throw an exception");
+			} catch (ProtocolException e) {
+				ProtocolException ex = new ProtocolException(
+						"Journal is closed");
+				assertEquals(ex.getMessage(), e.getMessage());
+			}
+
+			JournalReader reader = new JournalReader(path);
+			for (int i = 0; i < 100; i++) {
+				Command command = reader.next();
+				assertEquals(0, commands[i % commands.length]
+						.compareTo(command));
+				assertEquals(1000L * i, reader.getTime());
+			}
+			assertEquals(null, reader.next());
+			assertEquals(null, reader.next());
+			reader.close();
+		} finally {
+			path.delete();
+		}
+	}
+}
@@ -188,6 +188,41 @@ public class TestAuthenticationRequest {
 		}
 	}
 
+	/**
+	 * Test method for {@link AuthenticationRequest#getFormats()}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testGetFormats() throws Exception {
+		assertEquals(0, ar.getFormats());
+		byte[] data = ar.pack().getData();
+		assertEquals(0, AuthenticationRequest.unpack(data).getFormats());
+		AuthenticationRequest offer = new AuthenticationRequest(key, iv, user,
+				password, Packet.FORMAT_COMPACT);
+		assertEquals(Packet.FORMAT_COMPACT, offer.getFormats());
+		assertNotEquals(0, ar.compareTo(offer));
+		if (data.length == AuthenticationRequest.MAX_LENGTH) {
+			// No room for the formats, the credentials are sent without them
+			byte[] offered = offer.pack().getData();
+			assertArrayEquals(data, offered);
+			AuthenticationRequest other = AuthenticationRequest
+					.unpack(offered);
+			assertEquals(0, other.getFormats());
+			assertArrayEquals(password, other.getPassword());
+			return;
+		}
+		// The formats follow the password
+		byte[] offered = offer.pack().getData();
+		assertEquals(data.length + 1, offered.length);
+		assertEquals(Packet.FORMAT_COMPACT, offered[data.length]);
+		AuthenticationRequest other = AuthenticationRequest.unpack(offered);
+		assertEquals(Packet.FORMAT_COMPACT, other.getFormats());
+		assertArrayEquals(password, other.getPassword());
+		assertEquals(0, offer.compareTo(other));
+	}
+
 	/**
 	 * Test method for {@link AuthenticationRequest#unpack(byte[])}.
 	 * 
@@ -4,6 +4,7 @@ import static org.junit.Assert.*;
 
 import org.junit.Test;
 
+import remote.api.Packet;
 import remote.api.exceptions.PacketException;
 import remote.api.messages.AuthenticationResponse;
 import remote.api.messages.Message;
@@ -57,6 +58,38 @@ public class TestAuthenticationResponse {
 		// Correct length should not throw
 		data = new byte[AuthenticationResponse.LENGTH];
 		AuthenticationResponse.unpack(data);
+		// With a format
+		data = new byte[] { Message.AUTHENTICATION_RESPONSE,
+				Packet.FORMAT_COMPACT };
+		assertEquals(Packet.FORMAT_COMPACT, AuthenticationResponse
+				.unpack(data).getFormat());
+		data = new byte[AuthenticationResponse.LENGTH + 2];
+		try {
+			AuthenticationResponse.unpack(data);
+			fail("Did not throw an exception");
+		} catch (PacketException e) {
+			PacketException ex = new PacketException("Unexpected length", data);
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Test method for {@link AuthenticationResponse#getFormat()}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testGetFormat() throws Exception {
+		assertEquals(0, ar.getFormat());
+		assertEquals(AuthenticationResponse.LENGTH, ar.pack().getData().length);
+		AuthenticationResponse compact = new AuthenticationResponse(
+				Packet.FORMAT_COMPACT);
+		assertEquals(Packet.FORMAT_COMPACT, compact.getFormat());
+		byte[] data = compact.pack().getData();
+		assertEquals(AuthenticationResponse.LENGTH + 1, data.length);
+		assertEquals(0, compact.compareTo(AuthenticationResponse.unpack(data)));
+		assertNotEquals(0, ar.compareTo(compact));
 	}
 
 	/**
@@ -0,0 +1,137 @@
+package remote.test.api.messages;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import remote.api.exceptions.PacketException;
+import remote.api.messages.AuthenticationResponse;
+import remote.api.messages.Message;
+import remote.api.messages.Rekey;
+
+/**
+ * Test class for {@link Rekey}.
+ */
+@RunWith(Parameterized.class)
+public class TestRekey {
+	/**
+	 * The epoch parameter.
+	 */
+	private byte epoch;
+	/**
+	 * The re-key message constructed by the parameter.
+	 */
+	private Rekey r;
+
+	/**
+	 * Constructs the re-key message from the parameter.
+	 * 
+	 * @param epoch
+	 *            The epoch.
+	 */
+	public TestRekey(byte epoch) {
+		this.epoch = epoch;
+		r = new Rekey(epoch);
+	}
+
+	/**
+	 * Creates input parameters.
+	 * 
+	 * @return The parameters.
+	 */
+	@Parameters
+	public static Collection<Object[]> data() {
+		return Arrays.asList(new Object[][] { { (byte) 0 }, { (byte) 1 },
+				{ Byte.MAX_VALUE }, { Byte.MIN_VALUE }, { (byte) -1 } });
+	}
+
+	/**
+	 * Test method for {@link Rekey#pack()}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testPack() throws Exception {
+		// Test by packing followed by unpacking
+		byte[] data = r.pack().getData();
+		Rekey other = Rekey.unpack(data);
+		assertEquals(Message.REKEY, data[0]);
+		assertEquals(epoch, r.getEpoch());
+		assertEquals(Message.REKEY, r.getType());
+		// Check that they are the same
+		assertEquals(r.getEpoch(), other.getEpoch());
+		assertEquals(r.getType(), other.getType());
+	}
+
+	/**
+	 * Test method for {@link Rekey#unpack(byte[])}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testUnpack() throws Exception {
+		// Check that it throws when it has wrong length
+		byte[] data = new byte[Rekey.LENGTH + 1];
+		try {
+			Rekey.unpack(data);
+			fail("Did not throw an exception");
+		} catch (PacketException e) {
+			PacketException ex = new PacketException("Unexpected length", data);
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		// Correct length should not throw
+		data = new byte[Rekey.LENGTH];
+		data[1] = epoch;
+		Rekey rekey = Rekey.unpack(data);
+		assertEquals(epoch, rekey.getEpoch());
+	}
+
+	/**
+	 * Test method for {@link Rekey#getEpoch()}.
+	 */
+	@Test
+	public void testGetEpoch() {
+		assertEquals(epoch, r.getEpoch());
+	}
+
+	/**
+	 * Test method for {@link Rekey#getType()}.
+	 */
+	@Test
+	public void testGetType() {
+		// Ensure it has the correct type
+		assertEquals(Message.REKEY, r.getType());
+	}
+
+	/**
+	 * Test method for {@link Rekey#compareTo(Message)}.
+	 */
+	@Test
+	public void testCompareTo() {
+		try {
+			r.compareTo(null);
+			fail("Did not throw an exception");
+		} catch (NullPointerException e) {
+		}
+		try {
+			r.compareTo(new AuthenticationResponse());
+			fail("Did not throw an exception");
+		} catch (ClassCastException e) {
+		}
+
+		// Check against object with another epoch
+		Rekey other = new Rekey((byte) (epoch + 1));
+		assertNotEquals(0, r.compareTo(other));
+
+		// Compare to self
+		assertEquals(0, r.compareTo(r));
+	}
+}
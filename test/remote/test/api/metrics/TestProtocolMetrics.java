@@ -0,0 +1,176 @@
+package remote.test.api.metrics;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import remote.api.Packet;
+import remote.api.ServerProtocol;
+import remote.api.ServerProtocol.ConnectionHandler;
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.commands.MouseMove;
+import remote.api.commands.MouseWheel;
+import remote.api.exceptions.PacketException;
+import remote.api.messages.AuthenticationRequest;
+import remote.api.messages.CommandRequest;
+import remote.api.metrics.ProtocolMetrics;
+import remote.test.api.Misc;
+
+/**
+ * Test class for {@link ProtocolMetrics}.
+ */
+public class TestProtocolMetrics {
+	/**
+	 * Handler accepting everything.
+	 */
+	private Handler handler = new Handler() {
+		@Override
+		public boolean authentication(byte[] user, byte[] password) {
+			return true;
+		}
+
+		@Override
+		public void command(Command command) {
+		}
+
+		@Override
+		public void terminate(boolean shutdown) {
+		}
+	};
+	/**
+	 * Connection handler doing nothing.
+	 */
+	private ConnectionHandler connectionHandler = new ConnectionHandler() {
+		@Override
+		public void onAuthenticated() {
+		}
+	};
+
+	/**
+	 * Test method for aggregating sessions into a parent.
+	 */
+	@Test
+	public void testParent() {
+		ProtocolMetrics total = new ProtocolMetrics();
+		ProtocolMetrics a = new ProtocolMetrics(total);
+		ProtocolMetrics b = new ProtocolMetrics(total);
+		a.packetIn(10, 100);
+		b.packetIn(20, 200);
+		b.packetOut(30, 300);
+		a.handshake(1000);
+		a.command(Command.MOUSE_MOVE, 5);
+		b.command(Command.MOUSE_MOVE, 6);
+		b.command(Command.KEY_PRESS, 7);
+		a.decodeFailure("Unknown message");
+		b.decodeFailure("Unknown message");
+		b.decodeFailure("Failed to decrypt packet");
+
+		assertEquals(1, a.getPacketsIn());
+		assertEquals(10, a.getBytesIn());
+		assertEquals(0, a.getPacketsOut());
+		assertEquals(2, total.getPacketsIn());
+		assertEquals(30, total.getBytesIn());
+		assertEquals(300, total.getDecryptNanos());
+		assertEquals(1, total.getPacketsOut());
+		assertEquals(30, total.getBytesOut());
+		assertEquals(300, total.getEncryptNanos());
+		assertEquals(1, total.getHandshakes());
+		assertEquals(1000, total.getHandshakeNanos());
+		assertEquals(3, total.getCommands());
+		assertEquals(18, total.getCommandNanos());
+		assertEquals(2, total.getCommands(Command.MOUSE_MOVE));
+		assertEquals(11, total.getCommandNanos(Command.MOUSE_MOVE));
+		assertEquals(1, b.getCommands(Command.KEY_PRESS));
+		assertEquals(3, total.getDecodeFailures());
+		assertEquals(2, total.getDecodeFailures("Unknown message"));
+		assertEquals(0, a.getDecodeFailures("Failed to decrypt packet"));
+
+		Map<String, Long> snapshot = total.getSnapshot();
+		assertEquals(Long.valueOf(2), snapshot.get("packetsIn"));
+		assertEquals(Long.valueOf(2), snapshot.get("commands.MouseMove"));
+		assertEquals(Long.valueOf(0), snapshot.get("commands.TextInput"));
+		assertEquals(Long.valueOf(1),
+				snapshot.get("decodeFailures.Failed to decrypt packet"));
+	}
+
+	/**
+	 * Test method for {@link ProtocolMetrics#register(String)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testRegister() throws Exception {
+		ProtocolMetrics metrics = new ProtocolMetrics();
+		metrics.packetIn(10, 100);
+		metrics.register("test");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(
+				"remote.api:type=ProtocolMetrics,name=\"test\"");
+		assertEquals(Long.valueOf(1), server.getAttribute(name, "PacketsIn"));
+		metrics.unregister();
+		assertFalse(server.isRegistered(name));
+		// Nothing to unregister
+		metrics.unregister();
+	}
+
+	/**
+	 * Test method for measuring a {@link ServerProtocol}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testServerProtocol() throws Exception {
+		ByteArrayInputStream input = new ByteArrayInputStream(new byte[0]);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ServerProtocol sp = new ServerProtocol(handler, connectionHandler,
+				Misc.privateKey, input, output);
+		ProtocolMetrics total = new ProtocolMetrics();
+		ProtocolMetrics metrics = new ProtocolMetrics(total);
+		sp.setMetrics(metrics);
+		assertSame(metrics, sp.getMetrics());
+
+		Packet authentication = Misc.encryptSecure(new AuthenticationRequest(
+				Misc.key, Misc.iv, new byte[0], new byte[0]).pack());
+		int authenticationLength = authentication.length();
+		sp.process(authentication);
+		assertEquals(1, total.getHandshakes());
+		assertEquals(1, metrics.getPacketsIn());
+		assertEquals(authenticationLength + 2, metrics.getBytesIn());
+		// The authentication response
+		assertEquals(1, metrics.getPacketsOut());
+		assertEquals(output.size(), metrics.getBytesOut());
+
+		sp.process(Misc.encryptBlock(new CommandRequest(new MouseMove(
+				(short) 1, (short) 2)).pack()));
+		sp.process(Misc.encryptBlock(new CommandRequest(new MouseWheel(1))
+				.pack()));
+		assertEquals(3, total.getPacketsIn());
+		assertEquals(2, total.getCommands());
+		assertEquals(1, total.getCommands(Command.MOUSE_WHEEL));
+
+		try {
+			sp.process(Misc.encryptBlock(new Packet(new byte[] { 99 })));
+			fail("Did not throw an exception");
+		} catch (PacketException e) {
+			assertEquals("Unknown message", e.getReason());
+		}
+		assertEquals(1, total.getDecodeFailures("Unknown message"));
+
+		// Stop measuring
+		sp.setMetrics(null);
+		sp.process(Misc.encryptBlock(new CommandRequest(new MouseWheel(1))
+				.pack()));
+		assertEquals(4, total.getPacketsIn());
+	}
+}
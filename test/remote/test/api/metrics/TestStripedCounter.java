@@ -0,0 +1,57 @@
+package remote.test.api.metrics;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import remote.api.metrics.StripedCounter;
+
+/**
+ * Test class for {@link StripedCounter}.
+ */
+public class TestStripedCounter {
+	/**
+	 * Test method for {@link StripedCounter#add(long)}.
+	 */
+	@Test
+	public void testAdd() {
+		StripedCounter counter = new StripedCounter(1);
+		assertEquals(0, counter.sum());
+		counter.add(5);
+		counter.increment();
+		counter.add(-2);
+		assertEquals(4, counter.sum());
+
+		counter = new StripedCounter(3);
+		counter.add(7);
+		counter.increment();
+		assertEquals(8, counter.sum());
+	}
+
+	/**
+	 * Test method for {@link StripedCounter#sum()} with concurrent updates.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testConcurrent() throws Exception {
+		final StripedCounter counter = new StripedCounter();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++) {
+						counter.increment();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(threads.length * 10000, counter.sum());
+	}
+}
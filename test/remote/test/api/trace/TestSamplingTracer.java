@@ -0,0 +1,98 @@
+package remote.test.api.trace;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import remote.api.commands.Command;
+import remote.api.commands.MouseWheel;
+import remote.api.exceptions.ProtocolException;
+import remote.api.trace.ProtocolTracer;
+import remote.api.trace.SamplingTracer;
+
+/**
+ * Test class for {@link SamplingTracer}.
+ */
+public class TestSamplingTracer {
+	/**
+	 * Number of forwarded frame events.
+	 */
+	private int frames = 0;
+	/**
+	 * Number of forwarded other events.
+	 */
+	private int others = 0;
+	/**
+	 * Tracer counting the events.
+	 */
+	private ProtocolTracer tracer = new ProtocolTracer() {
+		@Override
+		public void frame(boolean inbound, int length, byte type, long start,
+				long duration) {
+			frames++;
+		}
+
+		@Override
+		public void cipherInit(String algorithm, long start, long duration) {
+			others++;
+		}
+
+		@Override
+		public void handshake(boolean success, long start, long duration) {
+			others++;
+		}
+
+		@Override
+		public void command(Command command, long start, long duration) {
+			others++;
+		}
+	};
+
+	/**
+	 * Test method for
+	 * {@link SamplingTracer#SamplingTracer(ProtocolTracer, int)}.
+	 */
+	@Test
+	public void testSamplingTracer() {
+		try {
+			new SamplingTracer(null, 1);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Tracer cannot be null");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			new SamplingTracer(tracer, 0);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Interval must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link SamplingTracer#frame(boolean, int, byte, long, long)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testFrame() throws Exception {
+		SamplingTracer sampling = new SamplingTracer(tracer, 4);
+		for (int i = 0; i < 10; i++) {
+			sampling.frame(true, 10, (byte) 0, 0, 0);
+		}
+		// Frames 0, 4 and 8
+		assertEquals(3, frames);
+
+		// Other events are not sampled
+		sampling.cipherInit("Blowfish", 0, 0);
+		sampling.handshake(true, 0, 0);
+		sampling.command(new MouseWheel(1), 0, 0);
+		sampling.command(new MouseWheel(1), 0, 0);
+		assertEquals(4, others);
+	}
+}
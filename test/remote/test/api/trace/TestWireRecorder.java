@@ -0,0 +1,257 @@
+package remote.test.api.trace;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+import remote.api.ClientProtocol;
+import remote.api.Packet;
+import remote.api.PacketScanner;
+import remote.api.ServerProtocol;
+import remote.api.Utils;
+import remote.api.ServerProtocol.ConnectionHandler;
+import remote.api.ServerProtocol.Handler;
+import remote.api.commands.Command;
+import remote.api.commands.MouseWheel;
+import remote.api.exceptions.PacketException;
+import remote.api.exceptions.ProtocolException;
+import remote.api.messages.AuthenticationRequest;
+import remote.api.messages.CommandRequest;
+import remote.api.messages.Message;
+import remote.api.trace.WireRecorder;
+import remote.test.api.Misc;
+
+/**
+ * Test class for {@link WireRecorder}.
+ */
+public class TestWireRecorder {
+	/**
+	 * Handler accepting everything.
+	 */
+	private Handler handler = new Handler() {
+		@Override
+		public boolean authentication(byte[] user, byte[] password) {
+			return true;
+		}
+
+		@Override
+		public void command(Command command) {
+		}
+
+		@Override
+		public void terminate(boolean shutdown) {
+		}
+	};
+	/**
+	 * Connection handler doing nothing.
+	 */
+	private ConnectionHandler connectionHandler = new ConnectionHandler() {
+		@Override
+		public void onAuthenticated() {
+		}
+	};
+
+	/**
+	 * Dumps the recorder to a string.
+	 * 
+	 * @param recorder
+	 *            The recorder to dump.
+	 * @return The lines of the dump.
+	 */
+	private static String[] dump(WireRecorder recorder) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		recorder.dump(new PrintStream(output));
+		String dump = output.toString().trim();
+		return dump.length() == 0 ? new String[0] : dump.split("\n");
+	}
+
+	/**
+	 * Test method for {@link WireRecorder#WireRecorder(int, int)}.
+	 */
+	@Test
+	public void testWireRecorder() {
+		try {
+			new WireRecorder(0, 0);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Records must be positive");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		try {
+			new WireRecorder(1, WireRecorder.MAX_PLAINTEXT + 1);
+			fail("Did not throw an exception");
+		} catch (ProtocolException e) {
+			ProtocolException ex = new ProtocolException(
+					"Plaintext bytes out of range");
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		assertEquals(0, dump(new WireRecorder()).length);
+	}
+
+	/**
+	 * Test method for {@link WireRecorder#record(int, int, byte[], long)}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testRecord() throws Exception {
+		WireRecorder recorder = new WireRecorder(3, 2);
+		long now = System.nanoTime();
+		recorder.record(WireRecorder.INBOUND, 12, new byte[] {
+				Message.COMMAND_REQUEST, Command.MOUSE_WHEEL, 0, 1 }, now);
+		recorder.record(0, 10, new byte[] { Message.PING, 1 }, now);
+		String[] lines = dump(recorder);
+		assertEquals(2, lines.length);
+		assertTrue(lines[0], lines[0].startsWith("0 "));
+		assertTrue(lines[0], lines[0].endsWith(" in  12 message="
+				+ Message.COMMAND_REQUEST + " command=" + Command.MOUSE_WHEEL
+				+ " data=03 03"));
+		assertTrue(lines[1], lines[1].endsWith(" out 10 message="
+				+ Message.PING + " data=02 01"));
+
+		// Only the last four are kept
+		for (int i = 0; i < 5; i++) {
+			recorder.record(WireRecorder.INBOUND | WireRecorder.FAILED
+					| WireRecorder.ENCRYPTED, 4, new byte[] { 1, 2, 3 }, now);
+		}
+		assertEquals(7, recorder.getRecorded());
+		lines = dump(recorder);
+		assertEquals(4, lines.length);
+		assertTrue(lines[0], lines[0].startsWith("3 "));
+		assertTrue(lines[3], lines[3].endsWith(" in  4 message=-1 FAILED"
+				+ " encrypted=01 02"));
+	}
+
+	/**
+	 * Test method for recording a {@link ServerProtocol}.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testServerProtocol() throws Exception {
+		ByteArrayInputStream input = new ByteArrayInputStream(new byte[0]);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ServerProtocol sp = new ServerProtocol(handler, connectionHandler,
+				Misc.privateKey, input, output);
+		WireRecorder recorder = new WireRecorder(16, 4);
+		ByteArrayOutputStream errorOutput = new ByteArrayOutputStream();
+		recorder.setErrorOutput(new PrintStream(errorOutput));
+		sp.setRecorder(recorder);
+		assertSame(recorder, sp.getRecorder());
+
+		sp.process(Misc.encryptSecure(new AuthenticationRequest(Misc.key,
+				Misc.iv, new byte[0], new byte[0]).pack()));
+		sp.process(Misc.encryptBlock(new CommandRequest(new MouseWheel(1))
+				.pack()));
+		String[] lines = dump(recorder);
+		assertEquals(3, lines.length);
+		assertTrue(lines[0], lines[0].contains(" in  "));
+		assertTrue(lines[1], lines[1].contains(" out "));
+		assertTrue(lines[2], lines[2].contains(" command="
+				+ Command.MOUSE_WHEEL));
+		assertEquals(0, errorOutput.size());
+
+		// The ring is dumped when a frame fails
+		try {
+			sp.process(Misc.encryptBlock(new Packet(new byte[] { 99 })));
+			fail("Did not throw an exception");
+		} catch (PacketException e) {
+			PacketException ex = new PacketException("Unknown message",
+					new byte[] { 99 });
+			assertEquals(ex.getMessage(), e.getMessage());
+		}
+		lines = errorOutput.toString().trim().split("\n");
+		assertEquals(4, lines.length);
+		assertTrue(lines[3], lines[3].endsWith(" FAILED data=63"));
+	}
+
+	/**
+	 * Test that a recorded handshake holds no key material, user or password.
+	 * 
+	 * @throws Exception
+	 *             If something went wrong.
+	 */
+	@Test
+	public void testHandshake() throws Exception {
+		byte[] user = "recorded-user".getBytes();
+		byte[] password = "recorded-password".getBytes();
+		for (boolean trusted : new boolean[] { false, true }) {
+			ByteArrayOutputStream clientOutput = new ByteArrayOutputStream();
+			ByteArrayOutputStream serverOutput = new ByteArrayOutputStream();
+			ClientProtocol cp = new ClientProtocol(Misc.publicKey, Misc.key,
+					Misc.iv, new ByteArrayInputStream(new byte[0]),
+					clientOutput);
+			ServerProtocol sp = new ServerProtocol(handler, connectionHandler,
+					Misc.privateKey, new ByteArrayInputStream(new byte[0]),
+					serverOutput);
+			cp.setTrusted(trusted);
+			sp.setTrusted(trusted);
+			WireRecorder clientRecorder = new WireRecorder(16,
+					WireRecorder.MAX_PLAINTEXT);
+			WireRecorder serverRecorder = new WireRecorder(16,
+					WireRecorder.MAX_PLAINTEXT);
+			cp.setRecorder(clientRecorder);
+			sp.setRecorder(serverRecorder);
+
+			cp.authenticate(user, password);
+			sp.process(new PacketScanner(new ByteArrayInputStream(
+					clientOutput.toByteArray())).nextPacket());
+			sp.rekey();
+			PacketScanner ps = new PacketScanner(new ByteArrayInputStream(
+					serverOutput.toByteArray()));
+			cp.process(ps.nextPacket());
+			cp.process(ps.nextPacket());
+			assertTrue(cp.isAuthenticated());
+
+			for (WireRecorder recorder : new WireRecorder[] { clientRecorder,
+					serverRecorder }) {
+				String[] lines = dump(recorder);
+				// The request, the response and the re-key
+				assertEquals(3, lines.length);
+				for (String line : lines) {
+					if (line.contains(" message="
+							+ Message.AUTHENTICATION_REQUEST)
+							|| line.contains(" message=" + Message.REKEY)) {
+						assertFalse(line, line.contains(" data="));
+					}
+					assertFalse(line, line.contains(Utils.toHex(user)));
+					assertFalse(line, line.contains(Utils.toHex(password)));
+					assertFalse(line, line.contains(Utils.toHex(Misc.key)));
+					assertFalse(line, line.contains(Utils.toHex(Misc.iv)));
+				}
+			}
+		}
+
+		// Nothing of a trusted request sent to a secure server either
+		ByteArrayOutputStream clientOutput = new ByteArrayOutputStream();
+		ClientProtocol cp = new ClientProtocol(Misc.publicKey, Misc.key,
+				Misc.iv, new ByteArrayInputStream(new byte[0]), clientOutput);
+		ServerProtocol sp = new ServerProtocol(handler, connectionHandler,
+				Misc.privateKey, new ByteArrayInputStream(new byte[0]),
+				new ByteArrayOutputStream());
+		cp.setTrusted(true);
+		WireRecorder recorder = new WireRecorder(16,
+				WireRecorder.MAX_PLAINTEXT);
+		ByteArrayOutputStream errorOutput = new ByteArrayOutputStream();
+		recorder.setErrorOutput(new PrintStream(errorOutput));
+		sp.setRecorder(recorder);
+		cp.authenticate(user, password);
+		try {
+			sp.process(new PacketScanner(new ByteArrayInputStream(
+					clientOutput.toByteArray())).nextPacket());
+			fail("Did not throw an exception");
+		} catch (PacketException e) {
+			// Expected
+		}
+		String dump = errorOutput.toString().trim();
+		assertTrue(dump, dump.endsWith(" FAILED"));
+		assertFalse(dump, dump.contains(Utils.toHex(password)));
+	}
+}